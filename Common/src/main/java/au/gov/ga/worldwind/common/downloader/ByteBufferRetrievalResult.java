@@ -34,9 +34,16 @@ public class ByteBufferRetrievalResult implements RetrievalResult
 	private final boolean fromCache;
 	private final boolean notModified;
 	private final String contentType;
+	private final String etag;
 
 	public ByteBufferRetrievalResult(URL sourceURL, ByteBuffer buffer, boolean fromCache,
 			boolean notModified, Exception error, String contentType)
+	{
+		this(sourceURL, buffer, fromCache, notModified, error, contentType, null);
+	}
+
+	public ByteBufferRetrievalResult(URL sourceURL, ByteBuffer buffer, boolean fromCache,
+			boolean notModified, Exception error, String contentType, String etag)
 	{
 		this.sourceURL = sourceURL;
 		this.buffer = buffer;
@@ -44,6 +51,7 @@ public class ByteBufferRetrievalResult implements RetrievalResult
 		this.notModified = notModified;
 		this.error = error;
 		this.contentType = contentType;
+		this.etag = etag;
 	}
 
 	@Override
@@ -112,6 +120,12 @@ public class ByteBufferRetrievalResult implements RetrievalResult
 		return contentType;
 	}
 
+	@Override
+	public String getETag()
+	{
+		return etag;
+	}
+
 	@Override
 	public Exception getError()
 	{
@@ -23,10 +23,16 @@ import gov.nasa.worldwind.retrieve.Retriever;
 import gov.nasa.worldwind.retrieve.URLRetriever;
 import gov.nasa.worldwind.util.WWIO;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -41,13 +47,16 @@ import au.gov.ga.worldwind.common.util.URLUtil;
  * Utility class which performs downloading from URLs. Supports the file, http
  * and https protocols. Caches downloads (if requested) using the standard data
  * store provided by WorldWind.getDataFileStore(). Supports testing if the data
- * on the server has been modified since last downloaded.
+ * on the server has been modified since last downloaded; the server's ETag for
+ * each cached download is stored in a file alongside it, and is sent with the
+ * modification date when checking.
  * 
  * @author Michael de Hoog (michael.dehoog@ga.gov.au)
  */
 public class Downloader
 {
 	private static final String DIRECTORY = "GA/Download Cache"; //TODO should this be in configuration?
+	private static final String ETAG_SUFFIX = ".etag";
 	private static final Object cacheLock = new Object();
 	private static final Object duplicateLock = new Object();
 
@@ -91,7 +100,7 @@ public class Downloader
 
 		ImmediateRetrievalHandler immediateHandler = new ImmediateRetrievalHandler();
 		HandlerPostProcessor postProcessor = new HandlerPostProcessor(url, immediateHandler);
-		URLRetriever retriever = createRetriever(url, null, postProcessor, unzip);
+		URLRetriever retriever = createRetriever(url, null, null, postProcessor, unzip);
 
 		//check if the request is a duplicate
 		synchronized (duplicateLock)
@@ -147,13 +156,17 @@ public class Downloader
 
 		FileRetrievalResult cachedResult = getFromCache(url);
 		Long lastModified = null;
+		String etag = null;
 		if (cachedResult != null && cachedResult.hasData())
+		{
 			lastModified = cachedResult.lastModified();
+			etag = getCachedETag(url);
+		}
 
 		ImmediateRetrievalHandler immediateHandler = new ImmediateRetrievalHandler();
 		HandlerPostProcessor postProcessor = new HandlerPostProcessor(url, immediateHandler);
 		//download if lastModified is null or server's modification date is greater than lastModified
-		URLRetriever retriever = createRetriever(url, lastModified, postProcessor, unzip);
+		URLRetriever retriever = createRetriever(url, lastModified, etag, postProcessor, unzip);
 
 		//check if the request is a duplicate
 		synchronized (duplicateLock)
@@ -236,7 +249,7 @@ public class Downloader
 		};
 
 		HandlerPostProcessor postProcessor = new HandlerPostProcessor(url, cacherHandler);
-		URLRetriever retriever = createRetriever(url, null, postProcessor, unzip);
+		URLRetriever retriever = createRetriever(url, null, null, postProcessor, unzip);
 
 		synchronized (duplicateLock)
 		{
@@ -335,6 +348,7 @@ public class Downloader
 		}
 
 		Long lastModified = null;
+		String etag = null;
 		if (cacheHandler != null || checkIfModified)
 		{
 			FileRetrievalResult result = getFromCache(url);
@@ -343,7 +357,10 @@ public class Downloader
 				if (cacheHandler != null)
 					cacheHandler.handle(result);
 				if (checkIfModified)
+				{
 					lastModified = result.lastModified();
+					etag = getCachedETag(url);
+				}
 			}
 		}
 
@@ -361,7 +378,7 @@ public class Downloader
 		};
 
 		HandlerPostProcessor postProcessor = new HandlerPostProcessor(url, cacherHandler);
-		URLRetriever retriever = createRetriever(url, lastModified, postProcessor, unzip);
+		URLRetriever retriever = createRetriever(url, lastModified, etag, postProcessor, unzip);
 
 		synchronized (duplicateLock)
 		{
@@ -408,6 +425,7 @@ public class Downloader
 				//note: the following is only available in Java 6
 				file.setReadable(true, false);
 				file.setWritable(true, false);
+				saveETag(etagFile(file), result.getETag());
 			}
 			catch (Exception e)
 			{
@@ -416,6 +434,72 @@ public class Downloader
 		}
 	}
 
+	/**
+	 * @return The ETag stored with the cached version of the url, or null if
+	 *         there is none
+	 */
+	private static String getCachedETag(URL url)
+	{
+		synchronized (cacheLock)
+		{
+			File file = URLUtil.urlToFile(getCacheURL(url));
+			if (file == null)
+				return null;
+			File etagFile = etagFile(file);
+			if (!etagFile.isFile())
+				return null;
+			try
+			{
+				BufferedReader reader =
+						new BufferedReader(new InputStreamReader(new FileInputStream(etagFile), "UTF-8"));
+				try
+				{
+					String etag = reader.readLine();
+					return etag == null || etag.trim().length() == 0 ? null : etag.trim();
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Store the ETag of a cached download, or delete the stored ETag if the
+	 * download has none (so a stale ETag is never sent for a newer version).
+	 */
+	private static void saveETag(File etagFile, String etag) throws IOException
+	{
+		if (etag == null)
+		{
+			if (etagFile.isFile())
+				etagFile.delete();
+			return;
+		}
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(etagFile), "UTF-8");
+		try
+		{
+			writer.write(etag);
+		}
+		finally
+		{
+			writer.close();
+		}
+		etagFile.setReadable(true, false);
+		etagFile.setWritable(true, false);
+	}
+
+	private static File etagFile(File file)
+	{
+		return new File(file.getPath() + ETAG_SUFFIX);
+	}
+
 	/**
 	 * Remove the local cached file of this url, if it exists.
 	 * 
@@ -429,6 +513,7 @@ public class Downloader
 		if (file != null && file.isFile())
 		{
 			file.delete();
+			etagFile(file).delete();
 		}
 	}
 
@@ -455,10 +540,10 @@ public class Downloader
 		return DIRECTORY + File.separator + external;
 	}
 
-	private static URLRetriever createRetriever(URL url, Long ifModifiedSince, RetrievalPostProcessor postProcessor,
-			boolean unzip)
+	private static URLRetriever createRetriever(URL url, Long ifModifiedSince, String ifNoneMatch,
+			RetrievalPostProcessor postProcessor, boolean unzip)
 	{
-		URLRetriever retriever = doCreateRetriever(url, ifModifiedSince, postProcessor, unzip);
+		URLRetriever retriever = doCreateRetriever(url, ifModifiedSince, ifNoneMatch, postProcessor, unzip);
 		int connectTimeout = Configuration.getIntegerValue(AVKeyMore.DOWNLOADER_CONNECT_TIMEOUT, 30000);
 		int readTimeout = Configuration.getIntegerValue(AVKeyMore.DOWNLOADER_READ_TIMEOUT, 30000);
 		retriever.setConnectTimeout(connectTimeout);
@@ -466,11 +551,11 @@ public class Downloader
 		return retriever;
 	}
 
-	private static URLRetriever doCreateRetriever(URL url, Long ifModifiedSince, RetrievalPostProcessor postProcessor,
-			boolean unzip)
+	private static URLRetriever doCreateRetriever(URL url, Long ifModifiedSince, String ifNoneMatch,
+			RetrievalPostProcessor postProcessor, boolean unzip)
 	{
 		if ("http".equalsIgnoreCase(url.getProtocol()) || "https".equalsIgnoreCase(url.getProtocol()))
-			return new ExtendedHTTPRetriever(url, ifModifiedSince, postProcessor, unzip);
+			return new ExtendedHTTPRetriever(url, ifModifiedSince, ifNoneMatch, postProcessor, unzip);
 		return new ExtendedFileRetriever(url, ifModifiedSince, postProcessor, unzip);
 	}
 
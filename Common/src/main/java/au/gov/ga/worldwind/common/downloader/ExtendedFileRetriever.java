@@ -91,6 +91,12 @@ public class ExtendedFileRetriever extends FileRetriever implements ExtendedRetr
 		return notModified;
 	}
 
+	@Override
+	public String getETag()
+	{
+		return null;
+	}
+
 	@Override
 	protected ByteBuffer readZipStream(InputStream inputStream, URL url) throws IOException
 	{
@@ -32,7 +32,8 @@ import java.util.List;
  * Extension of {@link HTTPRetriever} which implements {@link ExtendedRetriever}
  * .
  * <p/>
- * Allows modification dates to be set on read, and uses the java
+ * Allows modification dates and entity tags to be set on read (for
+ * conditional requests), and uses the java
  * {@link ProxySelector} mechanism rather than the WWIO configuration mechanism.
  * 
  * @author Michael de Hoog (michael.dehoog@ga.gov.au)
@@ -41,6 +42,8 @@ import java.util.List;
 public class ExtendedHTTPRetriever extends HTTPRetriever implements ExtendedRetriever
 {
 	private Long ifModifiedSince;
+	private String ifNoneMatch;
+	private String etag;
 	private Exception error;
 	private boolean unzip;
 
@@ -50,22 +53,32 @@ public class ExtendedHTTPRetriever extends HTTPRetriever implements ExtendedRetr
 	}
 
 	public ExtendedHTTPRetriever(URL url, Long ifModifiedSince, RetrievalPostProcessor postProcessor, boolean unzip)
+	{
+		this(url, ifModifiedSince, null, postProcessor, unzip);
+	}
+
+	public ExtendedHTTPRetriever(URL url, Long ifModifiedSince, String ifNoneMatch,
+			RetrievalPostProcessor postProcessor, boolean unzip)
 	{
 		super(url, postProcessor);
 		this.ifModifiedSince = ifModifiedSince;
+		this.ifNoneMatch = ifNoneMatch;
 		this.unzip = unzip;
 	}
 
 	@Override
 	protected ByteBuffer doRead(URLConnection connection) throws Exception
 	{
-		// Overridden to catch exceptions and set the modification date in the URLConnection
+		// Overridden to catch exceptions and set the modification date and entity tag in the URLConnection
 
 		if (ifModifiedSince != null)
 			connection.setIfModifiedSince(ifModifiedSince.longValue());
+		if (ifNoneMatch != null)
+			connection.setRequestProperty("If-None-Match", ifNoneMatch);
 		try
 		{
 			ByteBuffer buffer = super.doRead(connection);
+			etag = connection.getHeaderField("ETag");
 			if (buffer == null && !isOk() && !isNotModified())
 			{
 				throw new HttpException(getResponseCode() + ": " + getResponseMessage(), getResponseCode());
@@ -123,6 +136,12 @@ public class ExtendedHTTPRetriever extends HTTPRetriever implements ExtendedRetr
 		return error;
 	}
 
+	@Override
+	public String getETag()
+	{
+		return etag;
+	}
+
 	@Override
 	protected ByteBuffer readZipStream(InputStream inputStream, URL url) throws IOException
 	{
@@ -41,4 +41,13 @@ public interface ExtendedRetriever extends Retriever
 	 * @return True if the server returned a NOT MODIFIED status
 	 */
 	public boolean isNotModified();
+
+	/**
+	 * Gets the entity tag returned by the server, which can be used to
+	 * validate a cached copy of the download.
+	 * 
+	 * @return The ETag of the download, or null if the server didn't return
+	 *         one
+	 */
+	public String getETag();
 }
@@ -75,11 +75,13 @@ public class HandlerPostProcessor implements RetrievalPostProcessor
 	{
 		Exception error = null;
 		boolean notModified = false;
+		String etag = null;
 		if (retriever instanceof ExtendedRetriever)
 		{
 			ExtendedRetriever er = (ExtendedRetriever) retriever;
 			error = er.getError();
 			notModified = er.isNotModified();
+			etag = er.getETag();
 		}
 
 		ByteBuffer buffer = retriever.getBuffer();
@@ -89,7 +91,7 @@ public class HandlerPostProcessor implements RetrievalPostProcessor
 			//synchronized with the addHandler method to ensure thread safety
 			result =
 					new ByteBufferRetrievalResult(sourceURL, buffer, false, notModified, error,
-							retriever.getContentType());
+							retriever.getContentType(), etag);
 			size = handlers.size();
 		}
 		//iterate through handlers, ending at size (which was calculated in the synchronzied
@@ -85,6 +85,14 @@ public interface RetrievalResult
 	 */
 	public String getContentType();
 
+	/**
+	 * Get the entity tag of the downloaded data.
+	 * 
+	 * @return The ETag returned by the server, or null if the server didn't
+	 *         return one (or the result was not retrieved from a http url).
+	 */
+	public String getETag();
+
 	/**
 	 * Gets the exception if the attempted download resulted in an error.
 	 * Returns null if the download was successful.
@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.common.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reader for tile pack files written by the Tiler. A tile pack stores the
+ * tiles of one or more levels of a tileset in a single file, with a fixed size
+ * index (memory mapped when the pack is opened) mapping each level/row/column
+ * to the offset and length of the tile's contents. See the Tiler's
+ * <code>TilePack</code> class for a description of the file layout.
+ * <p/>
+ * Opened packs are cached, and are reopened if the pack file is modified.
+ * Tiles within a pack can be accessed using the URLs returned by
+ * {@link #getTileURL(int, int, int)}.
+ * <p/>
+ * Reads are reference counted: a pack that is evicted from the cache (or
+ * replaced by a newer version of the file) is only closed once the reads in
+ * progress have finished. Reading a tile from a closed pack (for example from
+ * a URL created before the pack was replaced) reads from the current version
+ * of the file instead.
+ */
+public class TilePack
+{
+	public static final String EXTENSION = "pack";
+	public static final String PROTOCOL = "tilepack";
+
+	private static final int MAGIC = 0x47415450; //GATP
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int LEVEL_SIZE = 32;
+	private static final int ENTRY_SIZE = 16;
+	private static final int EXTENSION_SIZE = 16;
+	private static final int MAX_OPEN_PACKS = 64;
+
+	private static final Map<File, TilePack> packs = new LinkedHashMap<File, TilePack>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, TilePack> eldest)
+		{
+			if (size() <= MAX_OPEN_PACKS)
+			{
+				return false;
+			}
+			eldest.getValue().retire();
+			return true;
+		}
+	};
+
+	private final File file;
+	private final long lastModified;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final MappedByteBuffer index;
+	private final String extension;
+	private final int[] levels;
+	private final int[] minRows;
+	private final int[] minCols;
+	private final int[] rows;
+	private final int[] cols;
+	private final long[] indexOffsets;
+	private final URLStreamHandler handler = new TileURLStreamHandler();
+
+	//guarded by packs
+	private int readers = 0;
+	private boolean retired = false;
+	private boolean closed = false;
+
+	/**
+	 * Get the (cached) pack for the given file. The pack is reopened if the
+	 * file has been modified since it was opened.
+	 * 
+	 * @return Tile pack, or null if the file doesn't exist
+	 */
+	public static TilePack get(File file) throws IOException
+	{
+		file = file.getAbsoluteFile();
+		synchronized (packs)
+		{
+			TilePack pack = packs.get(file);
+			if (pack != null && pack.lastModified != file.lastModified())
+			{
+				packs.remove(file);
+				pack.retire();
+				pack = null;
+			}
+			if (pack == null && file.isFile())
+			{
+				pack = new TilePack(file);
+				packs.put(file, pack);
+			}
+			return pack;
+		}
+	}
+
+	private TilePack(File file) throws IOException
+	{
+		this.file = file;
+		this.lastModified = file.lastModified();
+		raf = new RandomAccessFile(file, "r");
+		try
+		{
+			channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+			{
+				throw new IOException("Invalid tile pack: " + file);
+			}
+			int levelCount = header.getInt();
+			header.getInt(); //reserved
+			byte[] ext = new byte[EXTENSION_SIZE];
+			header.get(ext);
+			int extLength = 0;
+			while (extLength < ext.length && ext[extLength] != 0)
+			{
+				extLength++;
+			}
+			extension = new String(ext, 0, extLength, "US-ASCII");
+
+			levels = new int[levelCount];
+			minRows = new int[levelCount];
+			minCols = new int[levelCount];
+			rows = new int[levelCount];
+			cols = new int[levelCount];
+			indexOffsets = new long[levelCount];
+
+			ByteBuffer table = ByteBuffer.allocate(levelCount * LEVEL_SIZE);
+			readFully(table, HEADER_SIZE);
+			table.flip();
+			long indexEnd = HEADER_SIZE + table.capacity();
+			for (int i = 0; i < levelCount; i++)
+			{
+				levels[i] = table.getInt();
+				minRows[i] = table.getInt();
+				minCols[i] = table.getInt();
+				rows[i] = table.getInt();
+				cols[i] = table.getInt();
+				table.getInt(); //reserved
+				indexOffsets[i] = table.getLong();
+				indexEnd = Math.max(indexEnd, indexOffsets[i] + (long) rows[i] * cols[i] * ENTRY_SIZE);
+			}
+			if (indexEnd > Integer.MAX_VALUE || indexEnd > channel.size())
+			{
+				throw new IOException("Invalid tile pack index: " + file);
+			}
+			index = channel.map(MapMode.READ_ONLY, 0, indexEnd);
+		}
+		catch (IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new IOException("Unexpected end of tile pack");
+			}
+		}
+	}
+
+	/**
+	 * @return Extension of the tile files stored in this pack
+	 */
+	public String getExtension()
+	{
+		return extension;
+	}
+
+	/**
+	 * @return True if this pack contains the given level
+	 */
+	public boolean hasLevel(int level)
+	{
+		return levelIndex(level) >= 0;
+	}
+
+	/**
+	 * @return True if this pack contains the given tile
+	 */
+	public boolean hasTile(int level, int row, int col)
+	{
+		int entry = entryPosition(level, row, col);
+		return entry >= 0 && index.getInt(entry + 8) > 0;
+	}
+
+	/**
+	 * Read a tile from the pack.
+	 * 
+	 * @return Tile contents, or null if the tile doesn't exist
+	 */
+	public byte[] getTile(int level, int row, int col) throws IOException
+	{
+		if (!acquire())
+		{
+			//this pack has been closed since it was retrieved, so read from the current version of the file
+			TilePack current = get(file);
+			return current != null ? current.getTile(level, row, col) : null;
+		}
+		try
+		{
+			int entry = entryPosition(level, row, col);
+			if (entry < 0)
+			{
+				return null;
+			}
+			long offset = index.getLong(entry);
+			int length = index.getInt(entry + 8);
+			if (length <= 0)
+			{
+				return null;
+			}
+			byte[] data = new byte[length];
+			readFully(ByteBuffer.wrap(data), offset);
+			return data;
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	/**
+	 * Create a URL pointing to a tile within this pack.
+	 * 
+	 * @return URL for the tile, or null if the tile doesn't exist
+	 */
+	public URL getTileURL(int level, int row, int col) throws MalformedURLException
+	{
+		if (!hasTile(level, row, col))
+		{
+			return null;
+		}
+		String spec = PROTOCOL + ":" + file.toURI().getPath() + "!/" + level + "/" + row + "/" + col;
+		return new URL(null, spec, handler);
+	}
+
+	/**
+	 * Register a read from this pack, which must be followed by a call to
+	 * {@link #release()}.
+	 * 
+	 * @return False if this pack has already been closed
+	 */
+	private boolean acquire()
+	{
+		synchronized (packs)
+		{
+			if (closed)
+			{
+				return false;
+			}
+			readers++;
+			return true;
+		}
+	}
+
+	private void release()
+	{
+		synchronized (packs)
+		{
+			readers--;
+			if (retired && readers == 0)
+			{
+				close();
+			}
+		}
+	}
+
+	/**
+	 * Mark this pack as removed from the cache, closing it if no reads are in
+	 * progress. Must be called while synchronized on the packs map.
+	 */
+	private void retire()
+	{
+		retired = true;
+		if (readers == 0)
+		{
+			close();
+		}
+	}
+
+	private void close()
+	{
+		closed = true;
+		try
+		{
+			raf.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	private int levelIndex(int level)
+	{
+		for (int i = 0; i < levels.length; i++)
+		{
+			if (levels[i] == level)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int entryPosition(int level, int row, int col)
+	{
+		int i = levelIndex(level);
+		if (i < 0)
+		{
+			return -1;
+		}
+		int r = row - minRows[i];
+		int c = col - minCols[i];
+		if (r < 0 || r >= rows[i] || c < 0 || c >= cols[i])
+		{
+			return -1;
+		}
+		return (int) (indexOffsets[i] + ((long) r * cols[i] + c) * ENTRY_SIZE);
+	}
+
+	/**
+	 * {@link URLStreamHandler} for URLs pointing to tiles within this pack.
+	 */
+	private class TileURLStreamHandler extends URLStreamHandler
+	{
+		@Override
+		protected URLConnection openConnection(URL u) throws IOException
+		{
+			return new TileURLConnection(u);
+		}
+	}
+
+	/**
+	 * {@link URLConnection} which reads a tile from this pack.
+	 */
+	private class TileURLConnection extends URLConnection
+	{
+		private byte[] data;
+
+		public TileURLConnection(URL url)
+		{
+			super(url);
+		}
+
+		@Override
+		public void connect() throws IOException
+		{
+			if (connected)
+			{
+				return;
+			}
+			String path = url.getPath();
+			int indexOfSeparator = path.lastIndexOf("!/");
+			String[] split = path.substring(indexOfSeparator + 2).split("/");
+			if (indexOfSeparator < 0 || split.length != 3)
+			{
+				throw new MalformedURLException("Invalid tile pack URL: " + url);
+			}
+			data = getTile(Integer.parseInt(split[0]), Integer.parseInt(split[1]), Integer.parseInt(split[2]));
+			if (data == null)
+			{
+				throw new FileNotFoundException(url.toExternalForm());
+			}
+			connected = true;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException
+		{
+			connect();
+			return new ByteArrayInputStream(data);
+		}
+
+		@Override
+		public int getContentLength()
+		{
+			return data != null ? data.length : -1;
+		}
+	}
+}
@@ -82,7 +82,7 @@ public class Util
 
 	/**
 	 * Create a URL pointing to a tile file on the local file system (or inside
-	 * a zip file). Returns null if no file for the tile was found.
+	 * a zip or tile pack file). Returns null if no file for the tile was found.
 	 * 
 	 * @param tile
 	 *            Tile to search for a file for
@@ -105,10 +105,57 @@ public class Util
 		if (dataset == null)
 			dataset = "";
 
+		//default to JPG
+		String ext = defaultExt;
+		if (format != null)
+		{
+			format = format.toLowerCase();
+			if (format.contains("jpg") || format.contains("jpeg"))
+				ext = "jpg";
+			else if (format.contains("png"))
+				ext = "png";
+			else if (format.contains("zip"))
+				ext = "zip";
+			else if (format.contains("dds"))
+				ext = "dds";
+			else if (format.contains("bmp"))
+				ext = "bmp";
+			else if (format.contains("gif"))
+				ext = "gif";
+			//for elevation models:
+			else if (format.contains("bil"))
+				ext = "bil";
+			else if (format.contains("zip"))
+				ext = "zip";
+		}
+
+		//first try a tile pack at the root level (Ternary.pack), then at the level level (Ternary/1.pack);
+		//only packs containing tiles with the requested (or default) extension are used
+		File[] packs =
+				new File[] { Util.getPathWithinContext(dataset + "." + TilePack.EXTENSION, context),
+						Util.getPathWithinContext(dataset + File.separator + level + "." + TilePack.EXTENSION, context) };
+		for (File pack : packs)
+		{
+			if (pack == null)
+				continue;
+			try
+			{
+				TilePack tilePack = TilePack.get(pack);
+				if (tilePack != null && tilePack.hasLevel(level)
+						&& (tilePack.getExtension().equals(ext) || tilePack.getExtension().equals(defaultExt)))
+					return tilePack.getTileURL(level, row, col);
+			}
+			catch (IOException e)
+			{
+				String msg = "Reading tile pack failed: " + pack;
+				Logging.logger().log(java.util.logging.Level.SEVERE, msg, e);
+			}
+		}
+
 		boolean isZip = true;
 		int filenameLevel = 0;
 
-		//first try a zip file at the root level: Ternary.zip
+		//next try a zip file at the root level: Ternary.zip
 		File parent = Util.getPathWithinContext(dataset + ".zip", context);
 
 		//next try a zip file at the level level: Ternary/1.zip
@@ -139,30 +186,6 @@ public class Util
 		if (parent == null)
 			return null;
 
-		//default to JPG
-		String ext = defaultExt;
-		if (format != null)
-		{
-			format = format.toLowerCase();
-			if (format.contains("jpg") || format.contains("jpeg"))
-				ext = "jpg";
-			else if (format.contains("png"))
-				ext = "png";
-			else if (format.contains("zip"))
-				ext = "zip";
-			else if (format.contains("dds"))
-				ext = "dds";
-			else if (format.contains("bmp"))
-				ext = "bmp";
-			else if (format.contains("gif"))
-				ext = "gif";
-			//for elevation models:
-			else if (format.contains("bil"))
-				ext = "bil";
-			else if (format.contains("zip"))
-				ext = "zip";
-		}
-
 		//build the filename relative to the parent level found above
 		String filename = Util.paddedInt(row, 4) + "_" + Util.paddedInt(col, 4) + "." + ext;
 		if (filenameLevel < 2)
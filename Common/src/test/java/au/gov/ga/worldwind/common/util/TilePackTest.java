@@ -0,0 +1,114 @@
+package au.gov.ga.worldwind.common.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link TilePack} class
+ */
+public class TilePackTest
+{
+	private File file;
+
+	@Before
+	public void setup() throws Exception
+	{
+		file = File.createTempFile("tileset", ".pack");
+		writePack(new byte[] { 10, 20, 30 });
+	}
+
+	private void writePack(byte[] tile) throws Exception
+	{
+		//one level (3), with a grid of 1 row (5) by 2 columns (7-8), containing a single tile at 5,8
+		ByteBuffer bb = ByteBuffer.allocate(32 + 32 + 2 * 16 + 3);
+		bb.putInt(0x47415450).putInt(1).putInt(1).putInt(0);
+		bb.put("png".getBytes("US-ASCII"));
+		bb.position(32);
+		bb.putInt(3).putInt(5).putInt(7).putInt(1).putInt(2).putInt(0).putLong(64);
+		bb.putLong(0).putInt(0).putInt(0);
+		bb.putLong(96).putInt(3).putInt(0);
+		bb.put(tile);
+
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(bb.array());
+		fos.close();
+	}
+
+	@After
+	public void teardown()
+	{
+		file.delete();
+	}
+
+	@Test
+	public void testReadTile() throws Exception
+	{
+		TilePack pack = TilePack.get(file);
+		assertEquals("png", pack.getExtension());
+		assertTrue(pack.hasLevel(3));
+		assertFalse(pack.hasLevel(2));
+		assertTrue(pack.hasTile(3, 5, 8));
+		assertFalse(pack.hasTile(3, 5, 7));
+		assertArrayEquals(new byte[] { 10, 20, 30 }, pack.getTile(3, 5, 8));
+		assertNull(pack.getTile(3, 5, 7));
+		assertNull(pack.getTile(3, 6, 8));
+		assertNull(pack.getTile(2, 5, 8));
+	}
+
+	@Test
+	public void testPacksAreCached() throws Exception
+	{
+		assertSame(TilePack.get(file), TilePack.get(file));
+		assertNull(TilePack.get(new File(file.getPath() + ".missing")));
+	}
+
+	@Test
+	public void testReplacedPackCanStillBeRead() throws Exception
+	{
+		TilePack pack = TilePack.get(file);
+		long lastModified = file.lastModified();
+		writePack(new byte[] { 40, 50, 60 });
+		file.setLastModified(lastModified + 2000);
+
+		TilePack replaced = TilePack.get(file);
+		assertFalse(pack == replaced);
+		assertArrayEquals(new byte[] { 40, 50, 60 }, replaced.getTile(3, 5, 8));
+		//the old pack has been closed, so it reads from the new version of the file
+		assertArrayEquals(new byte[] { 40, 50, 60 }, pack.getTile(3, 5, 8));
+	}
+
+	@Test
+	public void testTileURL() throws Exception
+	{
+		TilePack pack = TilePack.get(file);
+		assertNull(pack.getTileURL(3, 5, 7));
+
+		URL url = pack.getTileURL(3, 5, 8);
+		assertEquals(TilePack.PROTOCOL, url.getProtocol());
+
+		InputStream is = url.openStream();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		int b;
+		while ((b = is.read()) >= 0)
+		{
+			baos.write(b);
+		}
+		is.close();
+		assertArrayEquals(new byte[] { 10, 20, 30 }, baos.toByteArray());
+	}
+}
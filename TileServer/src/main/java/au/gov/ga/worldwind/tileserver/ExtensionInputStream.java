@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A tile found by the {@link TileFinder}: a stream of the tile's contents,
+ * the tile's file extension, and its HTTP validators (see {@link Validators}). If the tile is read from an archive, the
+ * archive's handle is released when the stream is closed.
+ */
+public class ExtensionInputStream
+{
+	public final InputStream inputStream;
+	public final String extension;
+	public final long length;
+	public final long lastModified;
+	public final String etag;
+	private final HandleCache.Handle<?> handle;
+
+	/**
+	 * @param inputStream
+	 *            Stream of the tile's contents
+	 * @param extension
+	 *            Tile's file extension
+	 * @param length
+	 *            Length of the tile's contents, or -1 if unknown
+	 * @param lastModified
+	 *            Modification time of the tile (or of the archive containing
+	 *            it)
+	 * @param etag
+	 *            ETag of the tile
+	 * @param handle
+	 *            Archive handle to release when closed (can be null)
+	 */
+	public ExtensionInputStream(InputStream inputStream, String extension, long length, long lastModified,
+			String etag, HandleCache.Handle<?> handle)
+	{
+		this.inputStream = inputStream;
+		this.extension = extension;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.etag = etag;
+		this.handle = handle;
+	}
+
+	public void close() throws IOException
+	{
+		try
+		{
+			if (inputStream != null)
+				inputStream.close();
+		}
+		finally
+		{
+			if (handle != null)
+				handle.release();
+		}
+	}
+}
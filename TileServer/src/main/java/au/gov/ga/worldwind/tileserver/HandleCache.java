@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Least recently used cache of open file handles (such as zip files, with
+ * their parsed central directories). Opening an archive and parsing its
+ * directory for every request costs far more than reading a single tile, so
+ * handles are kept open between requests.
+ * <p/>
+ * Handles are reference counted: each {@link #acquire(File)} must be followed
+ * by a {@link Handle#release()} once the caller has finished reading. When the
+ * cache holds more than the maximum number of handles, the least recently used
+ * handles are evicted, and closed once they are no longer in use. Where
+ * {@link #close(Object)} releases the file, the number of open files is
+ * therefore bounded by the maximum plus the number of requests reading from
+ * evicted handles; values that can't be closed explicitly (such as memory
+ * mapped {@link ZipIndex}es) are only bounded in number, and their files are
+ * released when they are garbage collected.
+ * <p/>
+ * A handle is invalidated (and the file reopened) if the file's modification
+ * time or length has changed since it was opened.
+ */
+public abstract class HandleCache<T>
+{
+	private static final Logger logger = Logger.getLogger(HandleCache.class.getName());
+
+	private final String name;
+	private final int maxOpen;
+	private final LinkedHashMap<File, Handle<T>> handles = new LinkedHashMap<File, Handle<T>>(16, 0.75f, true);
+	private long hits = 0;
+	private long misses = 0;
+	private long invalidations = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param name
+	 *            Name of the cache (used for logging)
+	 * @param maxOpen
+	 *            Maximum number of handles to keep open
+	 */
+	public HandleCache(String name, int maxOpen)
+	{
+		if (maxOpen < 1)
+		{
+			throw new IllegalArgumentException("Maximum open handles must be at least 1");
+		}
+		this.name = name;
+		this.maxOpen = maxOpen;
+	}
+
+	/**
+	 * Open a handle to the given file.
+	 */
+	protected abstract T open(File file) throws IOException;
+
+	/**
+	 * Close a handle opened by {@link #open(File)}.
+	 */
+	protected abstract void close(T value) throws IOException;
+
+	/**
+	 * Get an open handle to the given file, opening it if it is not cached (or
+	 * if the file has changed). The handle must be released once it is no
+	 * longer required.
+	 * 
+	 * @param file
+	 *            File to open
+	 * @return Handle, or null if the file doesn't exist
+	 */
+	public Handle<T> acquire(File file) throws IOException
+	{
+		long lastModified = file.lastModified();
+		long length = file.length();
+		if (lastModified == 0 && !file.isFile())
+		{
+			return null;
+		}
+
+		synchronized (handles)
+		{
+			Handle<T> handle = handles.get(file);
+			if (handle != null)
+			{
+				if (handle.matches(lastModified, length))
+				{
+					handle.users++;
+					hits++;
+					return handle;
+				}
+				handles.remove(file);
+				retire(handle);
+				invalidations++;
+			}
+			misses++;
+		}
+
+		//open outside the lock, as parsing the file can be slow
+		T value = open(file);
+		synchronized (handles)
+		{
+			Handle<T> existing = handles.get(file);
+			if (existing != null && existing.matches(lastModified, length))
+			{
+				//another thread opened the same file at the same time
+				closeQuietly(value);
+				existing.users++;
+				return existing;
+			}
+			if (existing != null)
+			{
+				handles.remove(file);
+				retire(existing);
+			}
+
+			Handle<T> handle = new Handle<T>(this, file, value, lastModified, length);
+			handle.users = 1;
+			handles.put(file, handle);
+			evict();
+			return handle;
+		}
+	}
+
+	/**
+	 * Close all cached handles (handles in use are closed when released).
+	 */
+	public void clear()
+	{
+		synchronized (handles)
+		{
+			List<Handle<T>> all = new ArrayList<Handle<T>>(handles.values());
+			handles.clear();
+			for (Handle<T> handle : all)
+			{
+				retire(handle);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of handles currently cached
+	 */
+	public int size()
+	{
+		synchronized (handles)
+		{
+			return handles.size();
+		}
+	}
+
+	/**
+	 * @return Summary of the cache's hit, miss, invalidation and eviction
+	 *         counts
+	 */
+	public String getStatistics()
+	{
+		synchronized (handles)
+		{
+			return name + ": " + handles.size() + " open, " + hits + " hits, " + misses + " misses, "
+					+ invalidations + " invalidated, " + evictions + " evicted";
+		}
+	}
+
+	private void release(Handle<T> handle)
+	{
+		synchronized (handles)
+		{
+			handle.users--;
+			if (handle.retired && handle.users == 0)
+			{
+				closeQuietly(handle.value);
+			}
+		}
+	}
+
+	/**
+	 * Evict the least recently used handles while the cache is too large.
+	 * Must be called while synchronized on the handles map.
+	 */
+	private void evict()
+	{
+		Iterator<Handle<T>> iterator = handles.values().iterator();
+		while (handles.size() > maxOpen && iterator.hasNext())
+		{
+			Handle<T> handle = iterator.next();
+			iterator.remove();
+			retire(handle);
+			evictions++;
+		}
+	}
+
+	/**
+	 * Mark a handle removed from the cache, closing it if it is not in use.
+	 * Must be called while synchronized on the handles map.
+	 */
+	private void retire(Handle<T> handle)
+	{
+		handle.retired = true;
+		if (handle.users == 0)
+		{
+			closeQuietly(handle.value);
+		}
+	}
+
+	private void closeQuietly(T value)
+	{
+		try
+		{
+			close(value);
+		}
+		catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Error closing " + name + " handle", e);
+		}
+	}
+
+	/**
+	 * An open handle acquired from a {@link HandleCache}.
+	 */
+	public static class Handle<T>
+	{
+		public final File file;
+		public final T value;
+		private final HandleCache<T> cache;
+		private final long lastModified;
+		private final long length;
+		private int users = 0;
+		private boolean retired = false;
+
+		private Handle(HandleCache<T> cache, File file, T value, long lastModified, long length)
+		{
+			this.cache = cache;
+			this.file = file;
+			this.value = value;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+
+		private boolean matches(long lastModified, long length)
+		{
+			return this.lastModified == lastModified && this.length == length;
+		}
+
+		/**
+		 * @return Modification time of the file when it was opened
+		 */
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+
+		/**
+		 * Release this handle back to the cache. Must be called exactly once
+		 * for each time the handle was acquired.
+		 */
+		public void release()
+		{
+			cache.release(this);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-dataset Cache-Control max-age configuration, read from a
+ * <code>maxage.properties</code> file in the tile root directory. Each
+ * property maps a dataset path (the T parameter, or a parent of it) to the
+ * number of seconds responses may be cached for; the longest matching path
+ * is used, and the <code>*</code> property sets the default:
+ * 
+ * <pre>
+ * * = 3600
+ * imagery = 86400
+ * imagery/daily = 300
+ * </pre>
+ * 
+ * The file is reread when it is modified.
+ */
+public class MaxAgeConfiguration
+{
+	public static final String FILENAME = "maxage.properties";
+	public static final int DEFAULT_MAX_AGE = 3600;
+
+	private static final Logger logger = Logger.getLogger(MaxAgeConfiguration.class.getName());
+
+	private final File file;
+	private Properties properties = new Properties();
+	private long lastModified = 0;
+
+	/**
+	 * @param root
+	 *            Root directory of the tiles
+	 */
+	public MaxAgeConfiguration(File root)
+	{
+		this.file = new File(root, FILENAME);
+	}
+
+	/**
+	 * @param T
+	 *            Tile dataset
+	 * @return Number of seconds responses for the dataset may be cached for
+	 */
+	public int getMaxAge(String T)
+	{
+		Properties properties = getProperties();
+		String path = T;
+		while (path != null)
+		{
+			Integer maxAge = parse(properties.getProperty(path));
+			if (maxAge != null)
+			{
+				return maxAge;
+			}
+			int indexOfLastSlash = path.lastIndexOf('/');
+			path = indexOfLastSlash > 0 ? path.substring(0, indexOfLastSlash) : null;
+		}
+		Integer maxAge = parse(properties.getProperty("*"));
+		return maxAge != null ? maxAge : DEFAULT_MAX_AGE;
+	}
+
+	private synchronized Properties getProperties()
+	{
+		long modified = file.lastModified();
+		if (modified != lastModified)
+		{
+			Properties newProperties = new Properties();
+			if (modified != 0)
+			{
+				try
+				{
+					InputStream is = new FileInputStream(file);
+					try
+					{
+						newProperties.load(is);
+					}
+					finally
+					{
+						is.close();
+					}
+				}
+				catch (IOException e)
+				{
+					logger.log(Level.WARNING, "Error reading " + file, e);
+				}
+			}
+			properties = newProperties;
+			lastModified = modified;
+		}
+		return properties;
+	}
+
+	private static Integer parse(String value)
+	{
+		if (value == null)
+		{
+			return null;
+		}
+		try
+		{
+			return Math.max(0, Integer.parseInt(value.trim()));
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+}
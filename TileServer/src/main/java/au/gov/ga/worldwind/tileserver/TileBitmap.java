@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Record of which tiles exist in one level of a dataset, in any of the
+ * places the {@link TileFinder} searches (loose files, zip files and tile
+ * packs). Each row is stored as a bitmap of its columns.
+ * <p/>
+ * A bitmap can be written for clients with {@link #write(OutputStream)}. The
+ * format (big-endian) is:
+ * 
+ * <pre>
+ * int   magic (GATB)
+ * int   version (1)
+ * int   level
+ * int   number of rows containing tiles
+ * for each row, in ascending order:
+ *   int   row
+ *   int   number of words
+ *   long  words; bit (col % 64) of word (col / 64) is set if tile row/col exists
+ * </pre>
+ */
+public class TileBitmap
+{
+	private static final int MAGIC = 0x47415442; //GATB
+	private static final int VERSION = 1;
+
+	private final int level;
+	private final Map<Integer, BitSet> rows = new TreeMap<Integer, BitSet>();
+	private final TileLocationCache.Dependencies dependencies;
+	private boolean levelExists = false;
+	private int tileCount = 0;
+	private long checked = System.currentTimeMillis();
+
+	/**
+	 * @param level
+	 *            Level of the tiles in this bitmap
+	 * @param dependencies
+	 *            Paths the bitmap was built from
+	 */
+	public TileBitmap(int level, TileLocationCache.Dependencies dependencies)
+	{
+		this.level = level;
+		this.dependencies = dependencies;
+	}
+
+	/**
+	 * Mark a tile as existing.
+	 */
+	public void set(int row, int col)
+	{
+		if (row < 0 || col < 0)
+		{
+			return;
+		}
+		BitSet cols = rows.get(row);
+		if (cols == null)
+		{
+			cols = new BitSet();
+			rows.put(row, cols);
+		}
+		if (!cols.get(col))
+		{
+			cols.set(col);
+			tileCount++;
+		}
+	}
+
+	/**
+	 * @return Does the tile at row/col exist?
+	 */
+	public boolean contains(int row, int col)
+	{
+		BitSet cols = rows.get(row);
+		return cols != null && col >= 0 && cols.get(col);
+	}
+
+	/**
+	 * Mark the level as existing (a level can exist without containing any
+	 * tiles, such as an empty level directory).
+	 */
+	public void setLevelExists()
+	{
+		levelExists = true;
+	}
+
+	/**
+	 * @return Does this level exist?
+	 */
+	public boolean levelExists()
+	{
+		return levelExists || tileCount > 0;
+	}
+
+	public int getLevel()
+	{
+		return level;
+	}
+
+	public int getTileCount()
+	{
+		return tileCount;
+	}
+
+	/**
+	 * Check that the bitmap is still current. The paths it was built from are
+	 * only checked once the time to live has passed since the last check.
+	 * 
+	 * @param ttl
+	 *            Time between checks, in milliseconds
+	 * @return False if the bitmap must be rebuilt
+	 */
+	public boolean isCurrent(long ttl)
+	{
+		long now = System.currentTimeMillis();
+		synchronized (this)
+		{
+			if (now - checked <= ttl)
+			{
+				return true;
+			}
+		}
+		if (!dependencies.isValid())
+		{
+			return false;
+		}
+		synchronized (this)
+		{
+			checked = now;
+		}
+		return true;
+	}
+
+	/**
+	 * Write this bitmap to an output stream, in the format described above.
+	 */
+	public void write(OutputStream os) throws IOException
+	{
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeInt(level);
+		dos.writeInt(rows.size());
+		for (Map.Entry<Integer, BitSet> entry : rows.entrySet())
+		{
+			BitSet cols = entry.getValue();
+			int words = (cols.length() + 63) / 64;
+			dos.writeInt(entry.getKey());
+			dos.writeInt(words);
+			for (int i = 0; i < words; i++)
+			{
+				long word = 0;
+				for (int bit = cols.nextSetBit(i * 64); bit >= 0 && bit < (i + 1) * 64; bit = cols.nextSetBit(bit + 1))
+				{
+					word |= 1L << (bit - i * 64);
+				}
+				dos.writeLong(word);
+			}
+		}
+		dos.flush();
+	}
+}
@@ -0,0 +1,926 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Finds tiles under the tile server's root directory. Tiles can be stored as
+ * loose files (<code>dataset/level/row/row_col.ext</code>), or in dataset,
+ * level or row zip files, or in dataset or level tile packs.
+ * <p/>
+ * Zip file indexes and tile packs are kept open in {@link HandleCache}s
+ * between requests, so their directories are only parsed when the archive is
+ * first used (or after it changes). Tile packs are closed when evicted, but a
+ * {@link ZipIndex} can't be closed: an evicted zip file stays mapped (and, on
+ * Windows, can't be replaced) until its index is garbage collected, so the
+ * cache limits the number of zip indexes, not of open zip files. Resolved tile locations (including
+ * missing tiles) are kept in a {@link TileLocationCache}, so repeated requests
+ * for a tile don't repeat the search.
+ * <p/>
+ * Each dataset level also has a {@link TileBitmap} of the tiles it contains,
+ * built when the level is first requested. Requests for tiles that are not in
+ * the bitmap, and checks for whether a level exists, are answered from memory.
+ * A bitmap is rebuilt if any of the directories or archives it was built from
+ * have changed, which is checked once per time to live; a tile added to a
+ * level can therefore be reported missing until the time to live has passed.
+ */
+public class TileFinder
+{
+	private static final int MAX_BITMAPS = 1024;
+	private static final Pattern TILE_NAME = Pattern.compile("(\\d+)_(\\d+)\\.(\\w+)");
+
+	private final String rootPath;
+	private final HandleCache<ZipIndex> zips;
+	private final HandleCache<TilePack> packs;
+	private final TileLocationCache locations;
+
+	private final long bitmapTtl;
+	private final Map<String, TileBitmap> bitmaps = new LinkedHashMap<String, TileBitmap>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TileBitmap> eldest)
+		{
+			return size() > MAX_BITMAPS;
+		}
+	};
+	//bitmaps being built, so concurrent requests for the same level share one build
+	private final Map<String, FutureTask<TileBitmap>> buildingBitmaps = new HashMap<String, FutureTask<TileBitmap>>();
+	private long bitmapBuilds = 0;
+	private long bitmapRejections = 0;
+
+	/**
+	 * @param root
+	 *            Root directory of the tiles
+	 * @param maxOpenArchives
+	 *            Maximum number of tile packs to keep open (and of zip file
+	 *            indexes to cache; see the class comment)
+	 * @param maxLocations
+	 *            Maximum number of resolved tile locations to cache
+	 * @param locationTtl
+	 *            Time to live of cached tile locations (and time between
+	 *            checks that tile bitmaps are current), in milliseconds
+	 */
+	public TileFinder(File root, int maxOpenArchives, int maxLocations, long locationTtl)
+	{
+		this.rootPath = root.getAbsolutePath();
+		locations = new TileLocationCache(maxLocations, locationTtl);
+		bitmapTtl = locationTtl;
+		zips = new HandleCache<ZipIndex>("Zip files", maxOpenArchives)
+		{
+			@Override
+			protected ZipIndex open(File file) throws IOException
+			{
+				return new ZipIndex(file);
+			}
+
+			@Override
+			protected void close(ZipIndex value) throws IOException
+			{
+				//a zip index can't be unmapped; the mapping (and the file) is released when it is garbage collected
+			}
+		};
+		packs = new HandleCache<TilePack>("Tile packs", maxOpenArchives)
+		{
+			@Override
+			protected TilePack open(File file) throws IOException
+			{
+				return new TilePack(file);
+			}
+
+			@Override
+			protected void close(TilePack value) throws IOException
+			{
+				value.close();
+			}
+		};
+	}
+
+	/**
+	 * Find a file with the tiles path.
+	 *
+	 * @param rowDirectory
+	 *            Tile row directory
+	 * @param filename
+	 *            Tile filename
+	 * @param L
+	 *            Tile level
+	 * @param T
+	 *            Tile dataset
+	 * @param extension
+	 *            File extension (if null, searches all possible extensions)
+	 * @param mask
+	 *            Should we search in the 'mask' directory?
+	 * @return InputStream if a file exists, else null
+	 */
+	public ExtensionInputStream findFile(String rowDirectory, String filename, String L, String T, String extension,
+			boolean mask) throws IOException
+	{
+		if (!isSafePath(T) || !isSafePath(L) || (rowDirectory != null && !isDigits(rowDirectory))
+				|| filename.indexOf('/') >= 0 || filename.indexOf('\\') >= 0 || filename.equals(".."))
+		{
+			return null;
+		}
+
+		//if searching for mask, replace last directory in T string with 'mask'
+		if (mask && T != null)
+		{
+			String maskT = "";
+			int indexOfLastSlash = T.lastIndexOf('/');
+			if (indexOfLastSlash >= 0)
+			{
+				maskT = T.substring(0, indexOfLastSlash + 1);
+			}
+			T = maskT + "mask";
+		}
+
+		if (isKnownAbsent(rowDirectory, filename, L, T))
+		{
+			return null;
+		}
+
+		String key = TileLocationCache.key(T, L, rowDirectory, filename, extension);
+		TileLocationCache.Location location = locations.get(key);
+		if (location != null)
+		{
+			ExtensionInputStream result = open(location, L, rowDirectory, filename);
+			if (result != null || location.type == TileLocationCache.Location.Type.ABSENT)
+			{
+				return result;
+			}
+			//the tile has disappeared without its dependencies changing; resolve it again
+			locations.remove(key);
+		}
+
+		TileLocationCache.Dependencies dependencies = new TileLocationCache.Dependencies();
+		location = null;
+		if (extension == null)
+		{
+			//if no extension was provided, try all known extensions
+			for (String ext : TileFormats.getExtensions())
+			{
+				location = resolve(rowDirectory, filename, L, T, ext, dependencies);
+				if (location != null)
+					break;
+			}
+		}
+		else
+		{
+			location = resolve(rowDirectory, filename, L, T, extension, dependencies);
+		}
+		if (location == null)
+		{
+			location =
+					new TileLocationCache.Location(TileLocationCache.Location.Type.ABSENT, null, null, null,
+							dependencies);
+		}
+		locations.put(key, location);
+		return open(location, L, rowDirectory, filename);
+	}
+
+	/**
+	 * Find where a tile with a particular extension is stored, recording the
+	 * paths probed in dependencies.
+	 *
+	 * @return Location of the tile, or null if it was not found
+	 */
+	private TileLocationCache.Location resolve(String rowDirectory, String filename, String L, String T,
+			String extension, TileLocationCache.Dependencies dependencies) throws IOException
+	{
+		//build the tile filename string
+		String parentPath = rootPath;
+		if (T != null)
+			parentPath += "/" + T;
+
+		String levelPath = "";
+		if (L != null)
+			levelPath += L + "/";
+		String rowPath = "";
+		if (rowDirectory != null)
+			rowPath += rowDirectory + "/";
+		String namePath = filename + "." + extension;
+
+		if (L != null && rowDirectory != null)
+		{
+			//first try the tile pack for the whole dataset
+			File pack = new File(parentPath + "." + TilePack.EXTENSION);
+			if (packContains(pack, rowDirectory, filename, L, extension, dependencies))
+				return location(TileLocationCache.Location.Type.PACK, pack, null, extension, dependencies);
+		}
+
+		File parent = new File(parentPath);
+		dependencies.add(parent);
+		if (parent.isDirectory())
+		{
+			//depend on the directory containing the file, which changes when a file is added or removed
+			File file = new File(parent, levelPath + rowPath + namePath);
+			dependencies.add(file.getParentFile());
+			if (file.isFile())
+			{
+				return location(TileLocationCache.Location.Type.FILE, file, null, extension, dependencies);
+			}
+
+			if (L != null)
+			{
+				if (rowDirectory != null)
+				{
+					File pack = new File(parent, L + "." + TilePack.EXTENSION);
+					if (packContains(pack, rowDirectory, filename, L, extension, dependencies))
+						return location(TileLocationCache.Location.Type.PACK, pack, null, extension, dependencies);
+				}
+
+				File levelParent = new File(parent, L + ".zip");
+				dependencies.add(levelParent);
+				if (levelParent.isFile())
+				{
+					return zipLocation(levelParent, rowPath + namePath, extension, dependencies);
+				}
+
+				if (rowDirectory != null)
+				{
+					File rowParent = new File(parentPath + "/" + L, rowDirectory + ".zip");
+					dependencies.add(rowParent);
+					if (rowParent.isFile())
+					{
+						return zipLocation(rowParent, namePath, extension, dependencies);
+					}
+				}
+			}
+		}
+		else
+		{
+			if (!(parent.exists() && parent.getName().toLowerCase().endsWith(".zip")))
+			{
+				parent = new File(parentPath + ".zip");
+				dependencies.add(parent);
+			}
+
+			if (parent.isFile())
+			{
+				return zipLocation(parent, levelPath + rowPath + namePath, extension, dependencies);
+			}
+		}
+		return null;
+	}
+
+	private static TileLocationCache.Location location(TileLocationCache.Location.Type type, File file,
+			String entry, String extension, TileLocationCache.Dependencies dependencies)
+	{
+		dependencies.add(file);
+		return new TileLocationCache.Location(type, file, entry, extension, dependencies);
+	}
+
+	/**
+	 * Open the tile at a resolved location.
+	 *
+	 * @return InputStream of the tile, or null if the location is absent (or
+	 *         the tile could not be found at the location)
+	 */
+	private ExtensionInputStream open(TileLocationCache.Location location, String L, String rowDirectory,
+			String filename) throws IOException
+	{
+		switch (location.type)
+		{
+		case FILE:
+			try
+			{
+				long length = location.file.length();
+				long lastModified = location.file.lastModified();
+				return new ExtensionInputStream(new FileInputStream(location.file), location.extension, length,
+						lastModified, Validators.fileETag(length, lastModified), null);
+			}
+			catch (FileNotFoundException e)
+			{
+				return null;
+			}
+		case PACK:
+			return getFileFromPack(location.file, rowDirectory, filename, L, location.extension);
+		case ZIP:
+			return getFileFromZip(location.file, location.entry, location.extension);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Does the dataset/level directory exist?
+	 * 
+	 * @param L
+	 *            Tile level
+	 * @param T
+	 *            Tile dataset
+	 * @return true if the directory exists, else false
+	 */
+	public boolean directoryExists(String L, String T) throws IOException
+	{
+		if (!isSafePath(T) || !isSafePath(L))
+		{
+			return false;
+		}
+
+		TileBitmap bitmap = getBitmap(L, T, false);
+		if (bitmap != null)
+		{
+			return bitmap.levelExists();
+		}
+
+		//the level isn't numeric (so it can't have a bitmap), or its bitmap is being built
+		HandleCache.Handle<TilePack> pack = packs.acquire(new File(rootPath + "/" + T + "." + TilePack.EXTENSION));
+		if (pack != null)
+		{
+			try
+			{
+				if (pack.value.hasLevel(Integer.parseInt(L)))
+					return true;
+			}
+			catch (NumberFormatException e)
+			{
+			}
+			finally
+			{
+				pack.release();
+			}
+		}
+
+		File parent = new File(rootPath + "/" + T);
+		if (parent.isDirectory())
+		{
+			return new File(parent, L).isDirectory() || new File(parent, L + ".zip").isFile()
+					|| new File(parent, L + "." + TilePack.EXTENSION).isFile();
+		}
+		else
+		{
+			if (!(parent.exists() && parent.getName().toLowerCase().endsWith(".zip")))
+				parent = new File(rootPath + "/" + T + ".zip");
+
+			if (parent.isFile())
+			{
+				return entryExistsInZip(parent, L + "/");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the bitmap of the tiles that exist in a dataset level, building it
+	 * if it isn't cached or is out of date.
+	 *
+	 * @param L
+	 *            Tile level
+	 * @param T
+	 *            Tile dataset
+	 * @return Tile bitmap, or null if L is not a level number
+	 */
+	public TileBitmap getBitmap(String L, String T) throws IOException
+	{
+		return getBitmap(L, T, true);
+	}
+
+	/**
+	 * Get the bitmap of the tiles that exist in a dataset level. Only one
+	 * request builds a level's bitmap at a time; other requests for the same
+	 * level either wait for the build, or use the out of date bitmap (if
+	 * any) while it is rebuilt.
+	 * 
+	 * @param wait
+	 *            Should the request wait for a build in progress if there is
+	 *            no out of date bitmap to use?
+	 * @return Tile bitmap, or null if L is not a level number (or if not
+	 *         waiting and the bitmap is being built)
+	 */
+	private TileBitmap getBitmap(String L, String T, boolean wait) throws IOException
+	{
+		if (L == null || T == null || !isSafePath(T) || !isSafePath(L) || !isDigits(L))
+		{
+			return null;
+		}
+		int level;
+		try
+		{
+			level = Integer.parseInt(L);
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+
+		final String key = T + "|" + L;
+		TileBitmap bitmap;
+		boolean building;
+		synchronized (bitmaps)
+		{
+			bitmap = bitmaps.get(key);
+			building = buildingBitmaps.containsKey(key);
+		}
+		if (building && (bitmap != null || !wait))
+		{
+			//don't recheck the bitmap's paths while it is being rebuilt
+			return bitmap;
+		}
+		if (bitmap != null && bitmap.isCurrent(bitmapTtl))
+		{
+			return bitmap;
+		}
+
+		FutureTask<TileBitmap> build;
+		boolean builder = false;
+		synchronized (bitmaps)
+		{
+			build = buildingBitmaps.get(key);
+			if (build == null)
+			{
+				final String finalL = L, finalT = T;
+				final int finalLevel = level;
+				build = new FutureTask<TileBitmap>(new Callable<TileBitmap>()
+				{
+					@Override
+					public TileBitmap call() throws Exception
+					{
+						TileBitmap built = buildBitmap(finalL, finalT, finalLevel);
+						synchronized (bitmaps)
+						{
+							bitmaps.put(key, built);
+							bitmapBuilds++;
+						}
+						return built;
+					}
+				});
+				buildingBitmaps.put(key, build);
+				builder = true;
+			}
+		}
+
+		if (builder)
+		{
+			//build outside the lock, as listing a level can be slow
+			try
+			{
+				build.run();
+			}
+			finally
+			{
+				synchronized (bitmaps)
+				{
+					buildingBitmaps.remove(key);
+				}
+			}
+		}
+		else if (bitmap != null || !wait)
+		{
+			//another request is building the bitmap; use the out of date bitmap (or none) until it is done
+			return bitmap;
+		}
+
+		try
+		{
+			return build.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for tile bitmap " + key);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+			{
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Error building tile bitmap " + key + ": " + cause);
+		}
+	}
+
+	/**
+	 * Is a tile known not to exist, according to its level's bitmap?
+	 */
+	private boolean isKnownAbsent(String rowDirectory, String filename, String L, String T) throws IOException
+	{
+		if (rowDirectory == null || L == null || T == null || !isDigits(rowDirectory))
+		{
+			return false;
+		}
+		String col = filename.substring(filename.lastIndexOf('_') + 1);
+		if (!isDigits(col))
+		{
+			return false;
+		}
+		TileBitmap bitmap = getBitmap(L, T, false);
+		try
+		{
+			if (bitmap == null || bitmap.contains(Integer.parseInt(rowDirectory), Integer.parseInt(col)))
+			{
+				return false;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			return false;
+		}
+		synchronized (bitmaps)
+		{
+			bitmapRejections++;
+		}
+		return true;
+	}
+
+	/**
+	 * Build the bitmap of a dataset level, by listing the same places
+	 * {@link #findFile} searches. The bitmap may contain tiles that findFile
+	 * won't find (such as tiles hidden by a higher priority location), but
+	 * never the reverse.
+	 */
+	private TileBitmap buildBitmap(String L, String T, int level) throws IOException
+	{
+		TileLocationCache.Dependencies dependencies = new TileLocationCache.Dependencies();
+		TileBitmap bitmap = new TileBitmap(level, dependencies);
+		String parentPath = rootPath + "/" + T;
+
+		if (markPackTiles(new File(parentPath + "." + TilePack.EXTENSION), level, bitmap, dependencies))
+		{
+			bitmap.setLevelExists();
+		}
+
+		File parent = new File(parentPath);
+		dependencies.add(parent);
+		if (parent.isDirectory())
+		{
+			File levelDirectory = new File(parent, L);
+			dependencies.add(levelDirectory);
+			File[] rowFiles = levelDirectory.listFiles();
+			if (rowFiles != null)
+			{
+				bitmap.setLevelExists();
+				for (File rowFile : rowFiles)
+				{
+					if (rowFile.isDirectory())
+					{
+						dependencies.add(rowFile);
+						String[] names = rowFile.list();
+						if (names != null)
+						{
+							for (String name : names)
+							{
+								markTile(name, bitmap);
+							}
+						}
+					}
+					else if (rowFile.getName().toLowerCase().endsWith(".zip"))
+					{
+						markZipTiles(rowFile, null, bitmap, dependencies);
+					}
+				}
+			}
+
+			File levelPack = new File(parent, L + "." + TilePack.EXTENSION);
+			markPackTiles(levelPack, level, bitmap, dependencies);
+			if (levelPack.isFile())
+			{
+				bitmap.setLevelExists();
+			}
+
+			if (markZipTiles(new File(parent, L + ".zip"), null, bitmap, dependencies))
+			{
+				bitmap.setLevelExists();
+			}
+		}
+		else
+		{
+			if (!(parent.exists() && parent.getName().toLowerCase().endsWith(".zip")))
+			{
+				parent = new File(parentPath + ".zip");
+				dependencies.add(parent);
+			}
+			markZipTiles(parent, L + "/", bitmap, dependencies);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Mark the tiles of a level in a tile pack.
+	 *
+	 * @return True if the pack contains the level
+	 */
+	private boolean markPackTiles(File packFile, int level, TileBitmap bitmap,
+			TileLocationCache.Dependencies dependencies) throws IOException
+	{
+		dependencies.add(packFile);
+		HandleCache.Handle<TilePack> pack = packs.acquire(packFile);
+		if (pack == null)
+			return false;
+
+		try
+		{
+			pack.value.markTiles(level, bitmap);
+			return pack.value.hasLevel(level);
+		}
+		finally
+		{
+			pack.release();
+		}
+	}
+
+	/**
+	 * Mark the tiles in a zip file. If prefix is not null, only entries
+	 * starting with prefix are marked, and the level is marked as existing if
+	 * there are any.
+	 *
+	 * @return True if the zip file exists
+	 */
+	private boolean markZipTiles(File zipFile, String prefix, TileBitmap bitmap,
+			TileLocationCache.Dependencies dependencies) throws IOException
+	{
+		dependencies.add(zipFile);
+		HandleCache.Handle<ZipIndex> zip = zips.acquire(zipFile);
+		if (zip == null)
+			return false;
+
+		try
+		{
+			for (String name : zip.value.getNames())
+			{
+				if (prefix != null)
+				{
+					if (!name.startsWith(prefix))
+						continue;
+					bitmap.setLevelExists();
+				}
+				markTile(name.substring(name.lastIndexOf('/') + 1), bitmap);
+			}
+			return true;
+		}
+		finally
+		{
+			zip.release();
+		}
+	}
+
+	/**
+	 * Mark a tile, if the filename is a row_col.ext tile filename with a known
+	 * extension.
+	 */
+	private static void markTile(String filename, TileBitmap bitmap)
+	{
+		Matcher matcher = TILE_NAME.matcher(filename);
+		if (matcher.matches() && TileFormats.getContentTypeForExtension(matcher.group(3).toLowerCase()) != null)
+		{
+			try
+			{
+				bitmap.set(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+			}
+			catch (NumberFormatException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * @return Is the given tile parameter a non-empty string of decimal digits?
+	 */
+	static boolean isDigits(String value)
+	{
+		if (value.length() == 0)
+		{
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++)
+		{
+			if (value.charAt(i) < '0' || value.charAt(i) > '9')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find a blank tile file in the root directory.
+	 * 
+	 * @param extension
+	 *            File extension of the blank file
+	 * @return Blank file if it exists, else null
+	 */
+	public ExtensionInputStream findBlankFile(String extension) throws IOException
+	{
+		return findFile(null, "blank", null, null, extension, false);
+	}
+
+	/**
+	 * @return Statistics of the archive handle, tile location and tile bitmap
+	 *         caches
+	 */
+	public String getStatistics()
+	{
+		String bitmapStatistics;
+		synchronized (bitmaps)
+		{
+			bitmapStatistics =
+					"Tile bitmaps: " + bitmaps.size() + " cached, " + bitmapBuilds + " built, " + bitmapRejections
+							+ " tiles rejected";
+		}
+		return zips.getStatistics() + "; " + packs.getStatistics() + "; " + locations.getStatistics() + "; "
+				+ bitmapStatistics;
+	}
+
+	/**
+	 * Close all cached archive handles, and clear the cached tile locations.
+	 */
+	public void close()
+	{
+		zips.clear();
+		packs.clear();
+		locations.clear();
+		synchronized (bitmaps)
+		{
+			bitmaps.clear();
+		}
+	}
+
+	/**
+	 * Tests whether a tile pack contains a tile with a particular extension.
+	 */
+	private boolean packContains(File packFile, String rowDirectory, String filename, String L, String extension,
+			TileLocationCache.Dependencies dependencies) throws IOException
+	{
+		dependencies.add(packFile);
+		HandleCache.Handle<TilePack> pack = packs.acquire(packFile);
+		if (pack == null)
+			return false;
+
+		try
+		{
+			if (!pack.value.getExtension().equals(extension))
+				return false;
+
+			int level = Integer.parseInt(L);
+			int row = Integer.parseInt(rowDirectory);
+			int col = Integer.parseInt(filename.substring(filename.lastIndexOf('_') + 1));
+			return pack.value.hasTile(level, row, col);
+		}
+		catch (NumberFormatException e)
+		{
+			return false;
+		}
+		finally
+		{
+			pack.release();
+		}
+	}
+
+	/**
+	 * Create the location of an entry within a zip file.
+	 *
+	 * @return Location if the entry exists, else null
+	 */
+	private TileLocationCache.Location zipLocation(File zipFile, String entry, String extension,
+			TileLocationCache.Dependencies dependencies) throws IOException
+	{
+		if (entryExistsInZip(zipFile, entry))
+		{
+			return location(TileLocationCache.Location.Type.ZIP, zipFile, entry, extension, dependencies);
+		}
+		return null;
+	}
+
+	/**
+	 * Read a tile from a tile pack.
+	 * 
+	 * @return InputStream if the tile exists in the pack, else null
+	 */
+	private ExtensionInputStream getFileFromPack(File packFile, String rowDirectory, String filename, String L,
+			String extension) throws IOException
+	{
+		HandleCache.Handle<TilePack> pack = packs.acquire(packFile);
+		if (pack == null)
+			return null;
+
+		try
+		{
+			if (!pack.value.getExtension().equals(extension))
+				return null;
+
+			int level = Integer.parseInt(L);
+			int row = Integer.parseInt(rowDirectory);
+			int col = Integer.parseInt(filename.substring(filename.lastIndexOf('_') + 1));
+			byte[] data = pack.value.getTile(level, row, col);
+			if (data != null)
+			{
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				return new ExtensionInputStream(new ByteArrayInputStream(data), extension, data.length,
+						pack.getLastModified(), Validators.crcETag(data.length, crc.getValue()), null);
+			}
+		}
+		catch (NumberFormatException e)
+		{
+		}
+		finally
+		{
+			pack.release();
+		}
+		return null;
+	}
+
+	/**
+	 * Create an InputStream wrapping an entry within a zip file. The zip
+	 * file's handle is released when the returned stream is closed.
+	 * 
+	 * @return InputStream if the entry exists, else null.
+	 */
+	private ExtensionInputStream getFileFromZip(File zipFile, String entry, String extension) throws IOException
+	{
+		HandleCache.Handle<ZipIndex> zip = zips.acquire(zipFile);
+		if (zip == null)
+			return null;
+
+		boolean release = true;
+		try
+		{
+			ZipIndex.Entry zentry = zip.value.getEntry(entry);
+			if (zentry != null)
+			{
+				ExtensionInputStream result =
+						new ExtensionInputStream(zip.value.getInputStream(zentry), extension, zentry.size,
+								zip.getLastModified(), Validators.crcETag(zentry.size, zentry.crc), zip);
+				//released when the stream is closed
+				release = false;
+				return result;
+			}
+		}
+		finally
+		{
+			if (release)
+				zip.release();
+		}
+		return null;
+	}
+
+	/**
+	 * Tests whether a zip file contains a particular entry.
+	 */
+	private boolean entryExistsInZip(File zipFile, String entry) throws IOException
+	{
+		HandleCache.Handle<ZipIndex> zip = zips.acquire(zipFile);
+		if (zip == null)
+			return false;
+
+		try
+		{
+			return zip.value.getEntry(entry) != null;
+		}
+		finally
+		{
+			zip.release();
+		}
+	}
+
+	/**
+	 * @return False if the given path parameter could escape the root
+	 *         directory
+	 */
+	private static boolean isSafePath(String path)
+	{
+		if (path == null)
+		{
+			return true;
+		}
+		for (String segment : path.replace('\\', '/').split("/"))
+		{
+			if (segment.equals(".."))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
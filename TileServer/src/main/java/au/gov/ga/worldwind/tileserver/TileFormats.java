@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The tile formats served by the tile server, with the extensions of the tile
+ * files and the content types they are served with.
+ */
+public class TileFormats
+{
+	private static final Map<String, String> extensions = new HashMap<String, String>();
+	private static final Map<String, String> contentTypes = new LinkedHashMap<String, String>();
+
+	static
+	{
+		addFormat("zip", "application/zip");
+		addFormat("jpg", "image/jpeg", "image/jpg");
+		addFormat("png", "image/png");
+		//addFormat("dds", "image/x-dds");
+		//addFormat("gif", "image/gif");
+		addFormat("bil", "application/bil", "application/bil16", "application/bil32");
+	}
+
+	/**
+	 * Adds an image/elevation format to the static maps.
+	 * 
+	 * @param extension
+	 *            File extension
+	 * @param contentType
+	 *            HTTP content type to return for this format
+	 * @param alternateMimeTypes
+	 *            List of alternative mime types that could be provided in the F
+	 *            query parameter
+	 */
+	private static void addFormat(String extension, String contentType, String... alternateMimeTypes)
+	{
+		extensions.put(extension, extension);
+		extensions.put(contentType, extension);
+		for (String alternateMimeType : alternateMimeTypes)
+		{
+			extensions.put(alternateMimeType, extension);
+		}
+		contentTypes.put(extension, contentType);
+	}
+
+	/**
+	 * @return Extensions of all known formats, in the order they are searched
+	 */
+	public static Set<String> getExtensions()
+	{
+		return Collections.unmodifiableSet(contentTypes.keySet());
+	}
+
+	/**
+	 * Get the extension for a format provided in the F query parameter.
+	 * 
+	 * @param format
+	 * @return Extension matching format
+	 */
+	public static String getExtensionForFormat(String format)
+	{
+		return extensions.get(format);
+	}
+
+	/**
+	 * Get the content type to return for a particular file extension.
+	 * 
+	 * @param extension
+	 * @return Content type matching extension
+	 */
+	public static String getContentTypeForExtension(String extension)
+	{
+		return contentTypes.get(extension);
+	}
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of resolved tile locations, keyed by the tile's dataset, level, row,
+ * column and requested extension. A location records where the tile was
+ * found (a loose file, a tile pack or a zip entry), or that it was absent.
+ * <p/>
+ * Resolving a tile probes the dataset, level and row directories and
+ * archives for every known extension; for a missing tile all of these probes
+ * fail. Each location remembers the modification times of the paths probed
+ * while resolving it (0 for paths that didn't exist), and is only used while
+ * none of them have changed, so a cache hit costs one stat per distinct path
+ * instead of the whole search. Locations also expire after a time to live,
+ * which bounds how long a change within the file system's timestamp
+ * granularity can go unnoticed.
+ */
+public class TileLocationCache
+{
+	private final int maxSize;
+	private final long ttl;
+	private final LinkedHashMap<String, Location> locations;
+	private long hits = 0;
+	private long misses = 0;
+	private long expirations = 0;
+	private long invalidations = 0;
+
+	/**
+	 * @param maxSize
+	 *            Maximum number of locations to cache
+	 * @param ttl
+	 *            Time to live of each location, in milliseconds
+	 */
+	public TileLocationCache(int maxSize, long ttl)
+	{
+		if (maxSize < 1)
+		{
+			throw new IllegalArgumentException("Maximum size must be at least 1");
+		}
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.locations = new LinkedHashMap<String, Location>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Location> eldest)
+			{
+				return size() > TileLocationCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Create the key of a tile location.
+	 */
+	public static String key(String T, String L, String rowDirectory, String filename, String extension)
+	{
+		return T + "|" + L + "|" + rowDirectory + "|" + filename + "|" + extension;
+	}
+
+	/**
+	 * Get a cached location, if it hasn't expired and none of the paths it
+	 * depends on have changed.
+	 * 
+	 * @return Location, or null if the location must be resolved
+	 */
+	public Location get(String key)
+	{
+		Location location;
+		synchronized (locations)
+		{
+			location = locations.get(key);
+			if (location == null)
+			{
+				misses++;
+				return null;
+			}
+			if (System.currentTimeMillis() - location.created > ttl)
+			{
+				locations.remove(key);
+				expirations++;
+				misses++;
+				return null;
+			}
+		}
+
+		//check the dependencies outside the lock, as they require file system access
+		boolean valid = location.isValid();
+		synchronized (locations)
+		{
+			if (valid)
+			{
+				hits++;
+				return location;
+			}
+			if (locations.get(key) == location)
+			{
+				locations.remove(key);
+			}
+			invalidations++;
+			misses++;
+			return null;
+		}
+	}
+
+	/**
+	 * Cache a resolved location.
+	 */
+	public void put(String key, Location location)
+	{
+		synchronized (locations)
+		{
+			locations.put(key, location);
+		}
+	}
+
+	/**
+	 * Remove a location from the cache (for example, if it could not be
+	 * opened).
+	 */
+	public void remove(String key)
+	{
+		synchronized (locations)
+		{
+			locations.remove(key);
+		}
+	}
+
+	public void clear()
+	{
+		synchronized (locations)
+		{
+			locations.clear();
+		}
+	}
+
+	/**
+	 * @return Summary of the cache's hit, miss, expiry and invalidation counts
+	 */
+	public String getStatistics()
+	{
+		synchronized (locations)
+		{
+			return "Tile locations: " + locations.size() + " cached, " + hits + " hits, " + misses + " misses, "
+					+ expirations + " expired, " + invalidations + " invalidated";
+		}
+	}
+
+	/**
+	 * Records the paths probed while resolving a location, with their
+	 * modification times. The modification time is recorded before the path
+	 * is probed, so a change made during resolution invalidates the location.
+	 */
+	public static class Dependencies
+	{
+		private final Map<File, Long> lastModified = new LinkedHashMap<File, Long>();
+
+		/**
+		 * Record a path that the location depends on.
+		 */
+		public void add(File file)
+		{
+			if (!lastModified.containsKey(file))
+			{
+				lastModified.put(file, file.lastModified());
+			}
+		}
+
+		/**
+		 * @return Have none of the recorded paths changed?
+		 */
+		public boolean isValid()
+		{
+			for (Map.Entry<File, Long> entry : lastModified.entrySet())
+			{
+				if (entry.getKey().lastModified() != entry.getValue())
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The resolved location of a tile.
+	 */
+	public static class Location
+	{
+		public enum Type
+		{
+			ABSENT,
+			FILE,
+			PACK,
+			ZIP
+		}
+
+		public final Type type;
+		/**
+		 * The tile file, pack or zip file (null if absent)
+		 */
+		public final File file;
+		/**
+		 * Zip entry name (only for ZIP locations)
+		 */
+		public final String entry;
+		public final String extension;
+		private final File[] dependencies;
+		private final long[] lastModified;
+		private final long created = System.currentTimeMillis();
+
+		public Location(Type type, File file, String entry, String extension, Dependencies dependencies)
+		{
+			this.type = type;
+			this.file = file;
+			this.entry = entry;
+			this.extension = extension;
+
+			List<File> files = new ArrayList<File>(dependencies.lastModified.keySet());
+			this.dependencies = files.toArray(new File[files.size()]);
+			this.lastModified = new long[files.size()];
+			for (int i = 0; i < this.dependencies.length; i++)
+			{
+				this.lastModified[i] = dependencies.lastModified.get(this.dependencies[i]);
+			}
+		}
+
+		/**
+		 * @return Have none of the paths this location depends on changed?
+		 */
+		private boolean isValid()
+		{
+			for (int i = 0; i < dependencies.length; i++)
+			{
+				if (dependencies[i].lastModified() != lastModified[i])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reader for tile pack files written by the Tiler. A pack contains the tiles
+ * of one or more levels in a single file, with a fixed size index that maps
+ * each level/row/column to the offset and length of the tile. The index is
+ * memory mapped when the pack is opened, so finding a tile doesn't require any
+ * searching.
+ */
+public class TilePack
+{
+	public static final String EXTENSION = "pack";
+
+	private static final int MAGIC = 0x47415450; //GATP
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int LEVEL_SIZE = 32;
+	private static final int ENTRY_SIZE = 16;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final MappedByteBuffer index;
+	private final String extension;
+	private final int[] levels, minRows, minCols, rows, cols;
+	private final long[] indexOffsets;
+
+	public TilePack(File file) throws IOException
+	{
+		raf = new RandomAccessFile(file, "r");
+		try
+		{
+			channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+			{
+				throw new IOException("Invalid tile pack: " + file);
+			}
+			int levelCount = header.getInt();
+			header.getInt(); //reserved
+			byte[] ext = new byte[header.remaining()];
+			header.get(ext);
+			int extLength = 0;
+			while (extLength < ext.length && ext[extLength] != 0)
+			{
+				extLength++;
+			}
+			extension = new String(ext, 0, extLength, "US-ASCII");
+
+			levels = new int[levelCount];
+			minRows = new int[levelCount];
+			minCols = new int[levelCount];
+			rows = new int[levelCount];
+			cols = new int[levelCount];
+			indexOffsets = new long[levelCount];
+
+			ByteBuffer table = ByteBuffer.allocate(levelCount * LEVEL_SIZE);
+			readFully(table, HEADER_SIZE);
+			table.flip();
+			long indexEnd = HEADER_SIZE + table.capacity();
+			for (int i = 0; i < levelCount; i++)
+			{
+				levels[i] = table.getInt();
+				minRows[i] = table.getInt();
+				minCols[i] = table.getInt();
+				rows[i] = table.getInt();
+				cols[i] = table.getInt();
+				table.getInt(); //reserved
+				indexOffsets[i] = table.getLong();
+				indexEnd = Math.max(indexEnd, indexOffsets[i] + (long) rows[i] * cols[i] * ENTRY_SIZE);
+			}
+			if (indexEnd > Integer.MAX_VALUE || indexEnd > channel.size())
+			{
+				throw new IOException("Invalid tile pack index: " + file);
+			}
+			index = channel.map(FileChannel.MapMode.READ_ONLY, 0, indexEnd);
+		}
+		catch (IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new IOException("Unexpected end of tile pack");
+			}
+		}
+	}
+
+	/**
+	 * @return Extension of the tiles in this pack
+	 */
+	public String getExtension()
+	{
+		return extension;
+	}
+
+	/**
+	 * @return Does this pack contain the given level?
+	 */
+	public boolean hasLevel(int level)
+	{
+		return levelIndex(level) >= 0;
+	}
+
+	/**
+	 * @return Does this pack contain the given tile?
+	 */
+	public boolean hasTile(int level, int row, int col)
+	{
+		int entry = entryIndex(level, row, col);
+		return entry >= 0 && index.getInt(entry + 8) > 0;
+	}
+
+	/**
+	 * Mark each tile of a level in this pack as existing in a bitmap.
+	 */
+	public void markTiles(int level, TileBitmap bitmap)
+	{
+		int i = levelIndex(level);
+		if (i < 0)
+		{
+			return;
+		}
+		for (int r = 0; r < rows[i]; r++)
+		{
+			for (int c = 0; c < cols[i]; c++)
+			{
+				int entry = (int) (indexOffsets[i] + ((long) r * cols[i] + c) * ENTRY_SIZE);
+				if (index.getInt(entry + 8) > 0)
+				{
+					bitmap.set(minRows[i] + r, minCols[i] + c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Tile contents, or null if the tile is not in this pack
+	 */
+	public byte[] getTile(int level, int row, int col) throws IOException
+	{
+		int entry = entryIndex(level, row, col);
+		if (entry < 0)
+		{
+			return null;
+		}
+		long offset = index.getLong(entry);
+		int length = index.getInt(entry + 8);
+		if (length <= 0)
+		{
+			return null;
+		}
+		byte[] data = new byte[length];
+		readFully(ByteBuffer.wrap(data), offset);
+		return data;
+	}
+
+	/**
+	 * @return Position of the tile's entry in the index, or -1 if the tile is
+	 *         outside the pack's levels and extents
+	 */
+	private int entryIndex(int level, int row, int col)
+	{
+		int i = levelIndex(level);
+		if (i < 0)
+		{
+			return -1;
+		}
+		int r = row - minRows[i];
+		int c = col - minCols[i];
+		if (r < 0 || r >= rows[i] || c < 0 || c >= cols[i])
+		{
+			return -1;
+		}
+		return (int) (indexOffsets[i] + ((long) r * cols[i] + c) * ENTRY_SIZE);
+	}
+
+	private int levelIndex(int level)
+	{
+		for (int i = 0; i < levels.length; i++)
+		{
+			if (levels[i] == level)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public void close() throws IOException
+	{
+		raf.close();
+	}
+}
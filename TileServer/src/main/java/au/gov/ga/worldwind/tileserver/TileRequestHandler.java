@@ -0,0 +1,450 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Handles tile requests, with the same query parameters and behaviour as the
+ * tiles.jsp and elev.jsp pages (see common.inc). Requests whose path ends with
+ * <code>tiles.jsp</code> (or <code>tiles</code>) return blank tiles for
+ * missing tiles and search for masks; requests whose path ends with
+ * <code>elev.jsp</code> (or <code>elev</code>) do neither. Requests whose
+ * path ends with <code>bitmap.jsp</code> (or <code>bitmap</code>) return the
+ * {@link TileBitmap} of the tiles in the level given by the T and L
+ * parameters, so clients can avoid requesting tiles that don't exist.
+ * <p/>
+ * Tile responses include ETag, Last-Modified and Cache-Control headers (with
+ * the max-age configured for the dataset by a {@link MaxAgeConfiguration}),
+ * and conditional requests for unmodified tiles are answered with 304 Not
+ * Modified.
+ */
+public class TileRequestHandler implements HttpHandler
+{
+	private static final Logger logger = Logger.getLogger(TileRequestHandler.class.getName());
+
+	private final TileFinder finder;
+	private final MaxAgeConfiguration maxAges;
+
+	public TileRequestHandler(TileFinder finder, MaxAgeConfiguration maxAges)
+	{
+		this.finder = finder;
+		this.maxAges = maxAges;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			String method = exchange.getRequestMethod();
+			boolean head = "HEAD".equalsIgnoreCase(method);
+			if (!head && !"GET".equalsIgnoreCase(method))
+			{
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				sendError(exchange, 405);
+				return;
+			}
+
+			String path = exchange.getRequestURI().getPath();
+			String page = path.substring(path.lastIndexOf('/') + 1);
+			if (page.equals("tiles.jsp") || page.equals("tiles"))
+			{
+				handleRequest(exchange, head, true, true);
+			}
+			else if (page.equals("elev.jsp") || page.equals("elev"))
+			{
+				handleRequest(exchange, head, false, false);
+			}
+			else if (page.equals("bitmap.jsp") || page.equals("bitmap"))
+			{
+				handleBitmapRequest(exchange, head);
+			}
+			else
+			{
+				sendError(exchange, HttpURLConnection.HTTP_NOT_FOUND);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.log(Level.FINE, "Error handling request: " + exchange.getRequestURI(), e);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			logger.log(Level.WARNING, "Error handling request: " + exchange.getRequestURI(), e);
+			throw e;
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Handle a tile request.
+	 * 
+	 * @param exchange
+	 * @param head
+	 *            Is this a HEAD request (headers only)?
+	 * @param blankOnError
+	 *            If the file is not found, should I return a blank file?
+	 * @param searchForMask
+	 *            Should I search for a corresponding mask file to return in a
+	 *            zip?
+	 */
+	private void handleRequest(HttpExchange exchange, boolean head, boolean blankOnError, boolean searchForMask)
+			throws IOException
+	{
+		//see the implementation notes in common.inc's handleRequest
+
+		//get the parameters from the request
+		Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+		String X = parameters.get("X"); //col
+		String Y = parameters.get("Y"); //row
+		String L = parameters.get("L"); //level
+		String T = parameters.get("T"); //dataset
+		String F = parameters.get("F"); //format
+
+		if (X == null || Y == null || L == null || T == null)
+		{
+			//if the essential parameters are not defined, just return
+			exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+			return;
+		}
+
+		if (!TileFinder.isDigits(X) || !TileFinder.isDigits(Y))
+		{
+			//the row and column become part of the tile's path, so anything but digits could escape the root
+			sendError(exchange, HttpURLConnection.HTTP_BAD_REQUEST);
+			return;
+		}
+
+		//calculate tile directory and filename
+		String rowDirectory = paddedInt(Y, 4);
+		String filename = rowDirectory + "_" + paddedInt(X, 4);
+
+		ExtensionInputStream file = null, mask = null;
+		boolean needsZip = false;
+		String contentType = null;
+
+		try
+		{
+			if (F == null)
+			{
+				//if no format has been specified, search for a file using any known extension
+				file = finder.findFile(rowDirectory, filename, L, T, null, false);
+				if (file != null)
+				{
+					//if the file has been found, set the correct content type
+					contentType = TileFormats.getContentTypeForExtension(file.extension);
+				}
+				else if (blankOnError && finder.directoryExists(L, T))
+				{
+					//if no file has been found and a blank should be returned, return a blank file (default to jpg)
+					String extension = "jpg";
+					file = finder.findBlankFile(extension);
+					contentType = TileFormats.getContentTypeForExtension(extension);
+				}
+			}
+			else
+			{
+				//format has been specified; get the extension for the requested format
+				F = F.toLowerCase();
+				String extension = TileFormats.getExtensionForFormat(F);
+
+				if (extension == null)
+				{
+					//if the format is unknown, return a 400 error
+					sendError(exchange, HttpURLConnection.HTTP_BAD_REQUEST);
+					return;
+				}
+
+				//set the content type for the requested extension
+				contentType = TileFormats.getContentTypeForExtension(extension);
+				boolean isZip = extension.equals("zip");
+
+				//find a file matching the extension
+				file = finder.findFile(rowDirectory, filename, L, T, extension, false);
+
+				if (file == null && isZip)
+				{
+					//if no file has been found but a zip is requested
+					needsZip = true;
+					//search for a file using any known extension
+					file = finder.findFile(rowDirectory, filename, L, T, null, false);
+					if (searchForMask)
+					{
+						//search for a file in the mask directory using any known extension
+						mask = finder.findFile(rowDirectory, filename, L, T, null, true);
+					}
+				}
+
+				if (file == null && blankOnError && finder.directoryExists(L, T))
+				{
+					//if still no file has been found and a blank file should be returned
+					if (isZip)
+					{
+						//if a zip is requested, find blank files for the image and mask (default to jpg and png)
+						file = finder.findBlankFile("jpg");
+						if (searchForMask)
+						{
+							if (mask != null)
+								mask.close();
+							mask = finder.findBlankFile("png");
+						}
+					}
+					else
+					{
+						//find a blank file for the requested extension
+						file = finder.findBlankFile(extension);
+					}
+				}
+			}
+
+			if (file == null)
+			{
+				//if no file has been found to return, return a 404 error
+				sendError(exchange, HttpURLConnection.HTTP_NOT_FOUND);
+				return;
+			}
+
+			//set the validators; a generated zip combines the validators of the tiles it contains
+			String etag = file.etag;
+			long lastModified = file.lastModified;
+			if (needsZip)
+			{
+				etag = mask != null ? Validators.combinedETag(file.etag, mask.etag) : Validators.combinedETag(file.etag);
+				if (mask != null)
+					lastModified = Math.max(lastModified, mask.lastModified);
+			}
+			Headers headers = exchange.getResponseHeaders();
+			headers.set("ETag", etag);
+			if (lastModified > 0)
+				headers.set("Last-Modified", Validators.formatDate(lastModified));
+			headers.set("Cache-Control", "max-age=" + maxAges.getMaxAge(T));
+
+			Headers requestHeaders = exchange.getRequestHeaders();
+			if (Validators.isNotModified(requestHeaders.getFirst("If-None-Match"),
+					requestHeaders.getFirst("If-Modified-Since"), etag, lastModified))
+			{
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", contentType);
+			if (needsZip)
+			{
+				//set the save-as filename in the http header
+				exchange.getResponseHeaders().set("Content-disposition", "inline; filename=" + filename + ".zip");
+				if (head)
+				{
+					exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+					return;
+				}
+
+				//the zip's length isn't known until it's written, so use chunked encoding
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+				ZipOutputStream zos = new ZipOutputStream(exchange.getResponseBody());
+				try
+				{
+					//add the file to the zip file
+					zos.putNextEntry(createZipEntry(filename + "." + file.extension, file.lastModified));
+					copy(file.inputStream, zos);
+					zos.closeEntry();
+
+					if (mask != null)
+					{
+						//if a mask exists, add the mask to the zip file
+						zos.putNextEntry(createZipEntry(filename + "_mask." + mask.extension, mask.lastModified));
+						copy(mask.inputStream, zos);
+						zos.closeEntry();
+					}
+				}
+				finally
+				{
+					zos.close();
+				}
+			}
+			else
+			{
+				//set the save-as filename in the http header
+				exchange.getResponseHeaders().set("Content-disposition",
+						"inline; filename=" + filename + "." + file.extension);
+				if (head)
+				{
+					if (file.length >= 0)
+						exchange.getResponseHeaders().set("Content-Length", String.valueOf(file.length));
+					exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+					return;
+				}
+
+				//a response length of 0 means chunked encoding, and -1 means no body
+				long length = file.length < 0 ? 0 : file.length == 0 ? -1 : file.length;
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, length);
+				if (length != -1)
+				{
+					OutputStream os = exchange.getResponseBody();
+					try
+					{
+						copy(file.inputStream, os);
+					}
+					finally
+					{
+						os.close();
+					}
+				}
+			}
+		}
+		finally
+		{
+			if (file != null)
+			{
+				file.close();
+			}
+			if (mask != null)
+			{
+				mask.close();
+			}
+		}
+	}
+
+	/**
+	 * Handle a request for the tile bitmap of a dataset level.
+	 */
+	private void handleBitmapRequest(HttpExchange exchange, boolean head) throws IOException
+	{
+		Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+		TileBitmap bitmap = finder.getBitmap(parameters.get("L"), parameters.get("T"));
+		if (bitmap == null || !bitmap.levelExists())
+		{
+			sendError(exchange, HttpURLConnection.HTTP_NOT_FOUND);
+			return;
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		bitmap.write(baos);
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+		if (head)
+		{
+			exchange.getResponseHeaders().set("Content-Length", String.valueOf(baos.size()));
+			exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, baos.size());
+		OutputStream os = exchange.getResponseBody();
+		try
+		{
+			baos.writeTo(os);
+		}
+		finally
+		{
+			os.close();
+		}
+	}
+
+	/**
+	 * Create a zip entry with the tile's modification time (rather than the
+	 * current time), so identical tiles are zipped identically.
+	 */
+	private static ZipEntry createZipEntry(String name, long lastModified)
+	{
+		ZipEntry entry = new ZipEntry(name);
+		if (lastModified > 0)
+		{
+			entry.setTime(lastModified);
+		}
+		return entry;
+	}
+
+	private static void sendError(HttpExchange exchange, int code) throws IOException
+	{
+		exchange.sendResponseHeaders(code, -1);
+	}
+
+	private static void copy(InputStream is, OutputStream os) throws IOException
+	{
+		byte[] buffer = new byte[8192];
+		int size;
+		while ((size = is.read(buffer)) >= 0)
+		{
+			os.write(buffer, 0, size);
+		}
+	}
+
+	/**
+	 * Parse the query string of a request into a map of parameters. If a
+	 * parameter is repeated, the first value is used (as for
+	 * ServletRequest.getParameter).
+	 */
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException
+	{
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (query == null)
+		{
+			return parameters;
+		}
+		for (String pair : query.split("&"))
+		{
+			if (pair.length() == 0)
+			{
+				continue;
+			}
+			int equals = pair.indexOf('=');
+			String name = URLDecoder.decode(equals >= 0 ? pair.substring(0, equals) : pair, "UTF-8");
+			String value = equals >= 0 ? URLDecoder.decode(pair.substring(equals + 1), "UTF-8") : "";
+			if (!parameters.containsKey(name))
+			{
+				parameters.put(name, value);
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * Pad a string with leading zeros.
+	 * 
+	 * @param value
+	 *            String to pad
+	 * @param charcount
+	 *            Minimum length of the returned string
+	 * @return value, padded with leading zeros if shorter than charcount
+	 */
+	private static String paddedInt(String value, int charcount)
+	{
+		while (value.length() < charcount)
+		{
+			value = "0" + value;
+		}
+		return value;
+	}
+}
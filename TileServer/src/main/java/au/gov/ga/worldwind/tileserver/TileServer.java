@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Standalone tile server, serving the same requests as the tiles.jsp and
+ * elev.jsp pages without requiring a servlet container. Opened zip files and
+ * tile packs are kept in a bounded cache between requests.
+ */
+public class TileServer
+{
+	private static final Logger logger = Logger.getLogger(TileServer.class.getName());
+
+	private static void printUsage()
+	{
+		// @formatter:off
+		String text =
+				"Usage: [-p port] [-w threads] [-z archives] [-c locations] [-t ttl] root_directory\n"
+						+ "\n"
+						+ "  -p port       Port to listen on (default: 8080)\n"
+						+ "  -w threads    Number of request handling threads (default: 16)\n"
+						+ "  -z archives   Maximum number of tile packs to keep open, and of zip file\n"
+						+ "                indexes to cache (default: 64)\n"
+						+ "  -c locations  Maximum number of resolved tile locations to cache\n"
+						+ "                (default: 20000)\n"
+						+ "  -t ttl        Seconds to cache resolved tile locations (default: 60)";
+		// @formatter:on
+		System.out.println(text);
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		int port = 8080;
+		int threads = 16;
+		int maxOpenArchives = 64;
+		int maxLocations = 20000;
+		int locationTtl = 60;
+		String root = null;
+
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-p") && i + 1 < args.length)
+				{
+					port = Integer.parseInt(args[++i]);
+				}
+				else if (args[i].equals("-w") && i + 1 < args.length)
+				{
+					threads = Integer.parseInt(args[++i]);
+				}
+				else if (args[i].equals("-z") && i + 1 < args.length)
+				{
+					maxOpenArchives = Integer.parseInt(args[++i]);
+				}
+				else if (args[i].equals("-c") && i + 1 < args.length)
+				{
+					maxLocations = Integer.parseInt(args[++i]);
+				}
+				else if (args[i].equals("-t") && i + 1 < args.length)
+				{
+					locationTtl = Integer.parseInt(args[++i]);
+				}
+				else if (root == null && !args[i].startsWith("-"))
+				{
+					root = args[i];
+				}
+				else
+				{
+					root = null;
+					break;
+				}
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			root = null;
+		}
+
+		if (root == null || threads < 1 || maxOpenArchives < 1 || maxLocations < 1 || locationTtl < 0)
+		{
+			printUsage();
+			System.exit(2);
+		}
+
+		File rootDirectory = new File(root);
+		if (!rootDirectory.isDirectory())
+		{
+			System.err.println("Not a directory: " + root);
+			System.exit(2);
+		}
+
+		start(rootDirectory, port, threads, maxOpenArchives, maxLocations, locationTtl * 1000L);
+	}
+
+	/**
+	 * Start a tile server.
+	 * 
+	 * @param root
+	 *            Root directory of the tiles
+	 * @param port
+	 *            Port to listen on
+	 * @param threads
+	 *            Number of request handling threads
+	 * @param maxOpenArchives
+	 *            Maximum number of tile packs to keep open (and of zip file
+	 *            indexes to cache)
+	 * @param maxLocations
+	 *            Maximum number of resolved tile locations to cache
+	 * @param locationTtl
+	 *            Time to live of cached tile locations, in milliseconds
+	 * @return Started server
+	 */
+	public static HttpServer start(File root, int port, int threads, int maxOpenArchives, int maxLocations,
+			long locationTtl) throws IOException
+	{
+		final TileFinder finder = new TileFinder(root, maxOpenArchives, maxLocations, locationTtl);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/", new TileRequestHandler(finder, new MaxAgeConfiguration(root)));
+		server.setExecutor(executor);
+		server.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			@Override
+			public void run()
+			{
+				server.stop(1);
+				executor.shutdown();
+				//the log manager may already have been reset by its own shutdown hook
+				System.out.println(finder.getStatistics());
+				finder.close();
+			}
+		});
+
+		logger.info("Serving tiles from " + root.getAbsolutePath() + " on port " + port);
+		return server;
+	}
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Helper functions for the HTTP validators (ETag and Last-Modified) of tiles,
+ * and for answering conditional requests.
+ * <p/>
+ * Tile ETags are strong validators: a loose file's ETag is derived from its
+ * size and modification time, and a tile read from a zip file or tile pack
+ * from its size and CRC (from the zip's central directory, or calculated from
+ * the tile's contents), so a tile's ETag doesn't change when the archive
+ * containing it is rebuilt with the same contents.
+ */
+public class Validators
+{
+	private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+	/**
+	 * @return ETag for a file with the given size and modification time
+	 */
+	public static String fileETag(long size, long lastModified)
+	{
+		return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+	}
+
+	/**
+	 * @return ETag for contents with the given size and CRC-32
+	 */
+	public static String crcETag(long size, long crc)
+	{
+		return "\"" + Long.toHexString(size) + "-c" + Long.toHexString(crc) + "\"";
+	}
+
+	/**
+	 * Combine ETags into a weak ETag, for responses generated from several
+	 * tiles (whose bytes may not be identical for identical tiles).
+	 */
+	public static String combinedETag(String... etags)
+	{
+		StringBuilder sb = new StringBuilder("W/\"");
+		for (int i = 0; i < etags.length; i++)
+		{
+			if (i > 0)
+			{
+				sb.append('+');
+			}
+			sb.append(opaqueTag(etags[i]));
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Should a conditional request be answered with 304 Not Modified? As per
+	 * RFC 7232, If-Modified-Since is ignored if If-None-Match is present, and
+	 * If-None-Match uses the weak comparison.
+	 * 
+	 * @param ifNoneMatch
+	 *            If-None-Match request header (can be null)
+	 * @param ifModifiedSince
+	 *            If-Modified-Since request header (can be null)
+	 * @param etag
+	 *            ETag of the response (can be null)
+	 * @param lastModified
+	 *            Last modification time of the response (0 if unknown)
+	 * @return True if the client's copy is current
+	 */
+	public static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, String etag, long lastModified)
+	{
+		if (ifNoneMatch != null)
+		{
+			if (etag == null)
+			{
+				return false;
+			}
+			String tag = opaqueTag(etag);
+			for (String candidate : ifNoneMatch.split(","))
+			{
+				candidate = candidate.trim();
+				if (candidate.equals("*") || opaqueTag(candidate).equals(tag))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		if (ifModifiedSince != null && lastModified > 0)
+		{
+			long since = parseDate(ifModifiedSince);
+			//HTTP dates have a resolution of one second
+			return since >= 0 && lastModified / 1000 <= since / 1000;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Date formatted for an HTTP header
+	 */
+	public static String formatDate(long time)
+	{
+		return createDateFormat().format(new Date(time));
+	}
+
+	/**
+	 * @return Time of an HTTP header date, or -1 if it cannot be parsed
+	 */
+	public static long parseDate(String date)
+	{
+		try
+		{
+			return createDateFormat().parse(date.trim()).getTime();
+		}
+		catch (ParseException e)
+		{
+			return -1;
+		}
+	}
+
+	private static DateFormat createDateFormat()
+	{
+		//SimpleDateFormat isn't thread safe, so create one each time
+		DateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format;
+	}
+
+	/**
+	 * @return ETag without the weak indicator or quotes
+	 */
+	private static String opaqueTag(String etag)
+	{
+		if (etag.startsWith("W/"))
+		{
+			etag = etag.substring(2);
+		}
+		if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\""))
+		{
+			etag = etag.substring(1, etag.length() - 1);
+		}
+		return etag;
+	}
+}
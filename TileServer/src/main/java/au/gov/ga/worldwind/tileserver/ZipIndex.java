@@ -0,0 +1,424 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Random access reader for zip files. The archive is memory mapped and its
+ * central directory is parsed once when the index is created; entries are
+ * then read directly from the mapped archive: stored entries by offset, and
+ * deflated entries by streaming them through an {@link Inflater}. Zip64
+ * archives (with more than 65535 entries, or larger than 4GB) are supported.
+ * <p/>
+ * The index is safe to use from multiple threads. The file is closed once
+ * it is mapped, but the mapping keeps the archive open until the index is
+ * garbage collected (there is no way to unmap it explicitly); on Windows an
+ * archive can't be replaced or deleted until then. Elsewhere, archives should
+ * be replaced (rather than rewritten in place) while they are being read.
+ */
+public class ZipIndex
+{
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_HEADER = 0x06054b50;
+	private static final int ZIP64_END_HEADER = 0x06064b50;
+	private static final int ZIP64_LOCATOR = 0x07064b50;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_SIZE = 22;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	private static final int ZIP64_EXTRA = 0x0001;
+	private static final int MAX_COMMENT = 0xFFFF;
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	//archives are mapped in 1GB segments, as a single mapping is limited to 2GB
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+	private final ByteBuffer[] segments;
+	private final long length;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	public ZipIndex(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			length = channel.size();
+			int count = (int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+			segments = new ByteBuffer[count];
+			for (int i = 0; i < count; i++)
+			{
+				long position = (long) i << SEGMENT_SHIFT;
+				segments[i] =
+						channel.map(FileChannel.MapMode.READ_ONLY, position,
+								Math.min(SEGMENT_MASK + 1, length - position));
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		try
+		{
+			readCentralDirectory();
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			throw new IOException("Invalid zip file: " + file);
+		}
+	}
+
+	/**
+	 * Find the end of central directory record, and read the entries from the
+	 * central directory.
+	 */
+	private void readCentralDirectory() throws IOException
+	{
+		long end = -1;
+		long min = Math.max(0, length - END_SIZE - MAX_COMMENT);
+		for (long position = length - END_SIZE; position >= min; position--)
+		{
+			if (getInt(position) == END_HEADER && position + END_SIZE + getShort(position + 20) <= length)
+			{
+				end = position;
+				break;
+			}
+		}
+		if (end < 0)
+		{
+			throw new IOException("Zip end of central directory not found");
+		}
+
+		long count = getShort(end + 10);
+		long directorySize = getUnsignedInt(end + 12);
+		long directoryOffset = getUnsignedInt(end + 16);
+
+		long locator = end - ZIP64_LOCATOR_SIZE;
+		if (locator >= 0 && getInt(locator) == ZIP64_LOCATOR)
+		{
+			long end64 = getLong(locator + 8);
+			if (end64 < 0 || end64 > locator || getInt(end64) != ZIP64_END_HEADER)
+			{
+				throw new IOException("Invalid zip64 end of central directory");
+			}
+			count = getLong(end64 + 32);
+			directorySize = getLong(end64 + 40);
+			directoryOffset = getLong(end64 + 48);
+		}
+		if (directoryOffset < 0 || directorySize < 0 || directoryOffset + directorySize > end
+				|| count > Integer.MAX_VALUE)
+		{
+			throw new IOException("Invalid zip central directory");
+		}
+
+		long position = directoryOffset;
+		for (long i = 0; i < count; i++)
+		{
+			if (position + CENTRAL_HEADER_SIZE > end || getInt(position) != CENTRAL_HEADER)
+			{
+				throw new IOException("Invalid zip central directory entry");
+			}
+			int flags = getShort(position + 8);
+			int method = getShort(position + 10);
+			long crc = getUnsignedInt(position + 16);
+			long compressedSize = getUnsignedInt(position + 20);
+			long size = getUnsignedInt(position + 24);
+			int nameLength = getShort(position + 28);
+			int extraLength = getShort(position + 30);
+			int commentLength = getShort(position + 32);
+			long localHeaderOffset = getUnsignedInt(position + 42);
+			if (position + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength > end)
+			{
+				throw new IOException("Invalid zip central directory entry");
+			}
+
+			byte[] nameBytes = new byte[nameLength];
+			read(position + CENTRAL_HEADER_SIZE, nameBytes, 0, nameLength);
+			//decode names as UTF-8, as ZipFile does by default
+			String name = new String(nameBytes, "UTF-8");
+
+			//zip64 sizes and offsets are stored in an extra field, in this order, if they overflowed
+			long extra = position + CENTRAL_HEADER_SIZE + nameLength;
+			long extraEnd = extra + extraLength;
+			while (extra + 4 <= extraEnd)
+			{
+				int id = getShort(extra);
+				int dataSize = getShort(extra + 2);
+				if (id == ZIP64_EXTRA)
+				{
+					long data = extra + 4;
+					if (size == 0xFFFFFFFFL)
+					{
+						size = getLong(data);
+						data += 8;
+					}
+					if (compressedSize == 0xFFFFFFFFL)
+					{
+						compressedSize = getLong(data);
+						data += 8;
+					}
+					if (localHeaderOffset == 0xFFFFFFFFL)
+					{
+						localHeaderOffset = getLong(data);
+					}
+					break;
+				}
+				extra += 4 + dataSize;
+			}
+
+			entries.put(name, new Entry(name, method, flags, crc, size, compressedSize, localHeaderOffset));
+			position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+	}
+
+	/**
+	 * @return Entry with the given name, or null if it doesn't exist
+	 */
+	public Entry getEntry(String name)
+	{
+		return entries.get(name);
+	}
+
+	/**
+	 * @return Names of the entries in the archive
+	 */
+	public Set<String> getNames()
+	{
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * @return Number of entries in the archive
+	 */
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Open a stream that reads the (uncompressed) contents of an entry.
+	 * 
+	 * @param entry
+	 *            Entry from this index
+	 * @return Stream of the entry's contents
+	 */
+	public InputStream getInputStream(Entry entry) throws IOException
+	{
+		if ((entry.flags & 1) != 0)
+		{
+			throw new IOException("Encrypted zip entries are not supported: " + entry.name);
+		}
+		if (entry.method != STORED && entry.method != DEFLATED)
+		{
+			throw new IOException("Unsupported zip compression method " + entry.method + ": " + entry.name);
+		}
+
+		long header = entry.localHeaderOffset;
+		if (header < 0 || header + LOCAL_HEADER_SIZE > length || getInt(header) != LOCAL_HEADER)
+		{
+			throw new IOException("Invalid zip local header: " + entry.name);
+		}
+		//the local extra field can differ from the central directory's, so it must be read here
+		long data = header + LOCAL_HEADER_SIZE + getShort(header + 26) + getShort(header + 28);
+		if (entry.compressedSize < 0 || data + entry.compressedSize > length)
+		{
+			throw new IOException("Zip entry extends beyond the end of the archive: " + entry.name);
+		}
+
+		if (entry.method == STORED)
+		{
+			return new MappedInputStream(data, entry.compressedSize, false);
+		}
+
+		//the inflater requires an extra dummy byte when reading raw deflate data
+		final Inflater inflater = new Inflater(true);
+		int bufferSize = (int) Math.max(1, Math.min(8192, entry.compressedSize + 1));
+		return new InflaterInputStream(new MappedInputStream(data, entry.compressedSize, true), inflater, bufferSize)
+		{
+			private boolean closed = false;
+
+			@Override
+			public void close() throws IOException
+			{
+				if (!closed)
+				{
+					closed = true;
+					inflater.end();
+					super.close();
+				}
+			}
+		};
+	}
+
+	private int getByte(long position)
+	{
+		return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK)) & 0xFF;
+	}
+
+	private int getShort(long position)
+	{
+		return getByte(position) | (getByte(position + 1) << 8);
+	}
+
+	private int getInt(long position)
+	{
+		return getShort(position) | (getShort(position + 2) << 16);
+	}
+
+	private long getUnsignedInt(long position)
+	{
+		return getInt(position) & 0xFFFFFFFFL;
+	}
+
+	private long getLong(long position)
+	{
+		return getUnsignedInt(position) | (getUnsignedInt(position + 4) << 32);
+	}
+
+	/**
+	 * Copy bytes from the mapped archive, without changing the position of the
+	 * shared segment buffers.
+	 * 
+	 * @return Number of bytes copied (less than len if the copy crosses a
+	 *         segment boundary)
+	 */
+	private int read(long position, byte[] b, int off, int len)
+	{
+		ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+		segment.position((int) (position & SEGMENT_MASK));
+		int count = Math.min(len, segment.remaining());
+		segment.get(b, off, count);
+		return count;
+	}
+
+	/**
+	 * An entry in a {@link ZipIndex}.
+	 */
+	public static class Entry
+	{
+		public final String name;
+		public final long crc;
+		public final long size;
+		public final long compressedSize;
+		private final int method;
+		private final int flags;
+		private final long localHeaderOffset;
+
+		private Entry(String name, int method, int flags, long crc, long size, long compressedSize,
+				long localHeaderOffset)
+		{
+			this.name = name;
+			this.crc = crc;
+			this.method = method;
+			this.flags = flags;
+			this.size = size;
+			this.compressedSize = compressedSize;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+	}
+
+	/**
+	 * Stream that reads a range of the mapped archive.
+	 */
+	private class MappedInputStream extends InputStream
+	{
+		private long position;
+		private final long end;
+		private boolean dummy;
+
+		/**
+		 * @param position
+		 *            Start of the range
+		 * @param length
+		 *            Length of the range
+		 * @param dummy
+		 *            Read a single zero byte after the end of the range?
+		 */
+		public MappedInputStream(long position, long length, boolean dummy)
+		{
+			this.position = position;
+			this.end = position + length;
+			this.dummy = dummy;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (position < end)
+			{
+				return getByte(position++);
+			}
+			if (dummy)
+			{
+				dummy = false;
+				return 0;
+			}
+			return -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			if (position >= end)
+			{
+				int value = read();
+				if (value < 0)
+				{
+					return -1;
+				}
+				b[off] = (byte) value;
+				return 1;
+			}
+			int count = ZipIndex.this.read(position, b, off, (int) Math.min(len, end - position));
+			position += count;
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long count = Math.max(0, Math.min(n, end - position));
+			position += count;
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int) Math.min(Integer.MAX_VALUE, end - position + (dummy ? 1 : 0));
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link HandleCache} class
+ */
+public class HandleCacheTest
+{
+	private File directory;
+	private int opened;
+
+	@Before
+	public void setup() throws Exception
+	{
+		directory = File.createTempFile("handles", "");
+		directory.delete();
+		directory.mkdirs();
+		opened = 0;
+	}
+
+	@After
+	public void teardown()
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testCachedHandleIsReused() throws Exception
+	{
+		HandleCache<Resource> cache = new ResourceCache(4);
+		File file = file("a", 1);
+
+		HandleCache.Handle<Resource> first = cache.acquire(file);
+		first.release();
+		HandleCache.Handle<Resource> second = cache.acquire(file);
+		second.release();
+
+		assertSame(first, second);
+		assertEquals(1, opened);
+		assertFalse(first.value.closed);
+	}
+
+	@Test
+	public void testMissingFileIsNotOpened() throws Exception
+	{
+		HandleCache<Resource> cache = new ResourceCache(4);
+		assertNull(cache.acquire(new File(directory, "missing")));
+		assertEquals(0, opened);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedHandleIsEvicted() throws Exception
+	{
+		HandleCache<Resource> cache = new ResourceCache(2);
+		File a = file("a", 1);
+		File b = file("b", 1);
+		File c = file("c", 1);
+
+		HandleCache.Handle<Resource> ha = cache.acquire(a);
+		ha.release();
+		HandleCache.Handle<Resource> hb = cache.acquire(b);
+		hb.release();
+		//use a again, so that b is the least recently used
+		cache.acquire(a).release();
+		HandleCache.Handle<Resource> hc = cache.acquire(c);
+		hc.release();
+
+		assertEquals(2, cache.size());
+		assertTrue(hb.value.closed);
+		assertFalse(ha.value.closed);
+		assertFalse(hc.value.closed);
+		assertSame(ha, cache.acquire(a));
+	}
+
+	@Test
+	public void testEvictedHandleIsClosedOnlyOnceReleased() throws Exception
+	{
+		HandleCache<Resource> cache = new ResourceCache(1);
+		File a = file("a", 1);
+		File b = file("b", 1);
+
+		HandleCache.Handle<Resource> ha = cache.acquire(a);
+		HandleCache.Handle<Resource> ha2 = cache.acquire(a);
+		cache.acquire(b).release();
+		assertEquals(1, cache.size());
+		assertFalse(ha.value.closed);
+
+		ha.release();
+		assertFalse(ha.value.closed);
+		ha2.release();
+		assertTrue(ha.value.closed);
+	}
+
+	@Test
+	public void testHandleIsReopenedWhenLengthChanges() throws Exception
+	{
+		HandleCache<Resource> cache = new ResourceCache(4);
+		File file = file("a", 1);
+		long lastModified = file.lastModified();
+
+		HandleCache.Handle<Resource> first = cache.acquire(file);
+		first.release();
+		file("a", 2);
+		file.setLastModified(lastModified);
+		HandleCache.Handle<Resource> second = cache.acquire(file);
+		second.release();
+
+		assertNotSame(first, second);
+		assertTrue(first.value.closed);
+		assertFalse(second.value.closed);
+		assertEquals(2, opened);
+	}
+
+	@Test
+	public void testHandleIsReopenedWhenModified() throws Exception
+	{
+		HandleCache<Resource> cache = new ResourceCache(4);
+		File file = file("a", 1);
+
+		HandleCache.Handle<Resource> first = cache.acquire(file);
+		file.setLastModified(file.lastModified() - 60000);
+		HandleCache.Handle<Resource> second = cache.acquire(file);
+
+		assertNotSame(first, second);
+		//the replaced handle is still in use, so isn't closed until released
+		assertFalse(first.value.closed);
+		first.release();
+		assertTrue(first.value.closed);
+		second.release();
+		assertFalse(second.value.closed);
+	}
+
+	@Test
+	public void testClearClosesHandlesOnceReleased() throws Exception
+	{
+		HandleCache<Resource> cache = new ResourceCache(4);
+		HandleCache.Handle<Resource> ha = cache.acquire(file("a", 1));
+		HandleCache.Handle<Resource> hb = cache.acquire(file("b", 1));
+		hb.release();
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertTrue(hb.value.closed);
+		assertFalse(ha.value.closed);
+		ha.release();
+		assertTrue(ha.value.closed);
+	}
+
+	private File file(String name, int length) throws IOException
+	{
+		File file = new File(directory, name);
+		FileOutputStream fos = new FileOutputStream(file);
+		try
+		{
+			fos.write(new byte[length]);
+		}
+		finally
+		{
+			fos.close();
+		}
+		return file;
+	}
+
+	private static class Resource
+	{
+		public boolean closed = false;
+	}
+
+	private class ResourceCache extends HandleCache<Resource>
+	{
+		public ResourceCache(int maxOpen)
+		{
+			super("Test", maxOpen);
+		}
+
+		@Override
+		protected Resource open(File file) throws IOException
+		{
+			opened++;
+			return new Resource();
+		}
+
+		@Override
+		protected void close(Resource value) throws IOException
+		{
+			assertFalse("Handle closed twice", value.closed);
+			value.closed = true;
+		}
+	}
+}
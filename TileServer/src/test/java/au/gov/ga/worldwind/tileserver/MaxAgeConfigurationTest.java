@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link MaxAgeConfiguration} class
+ */
+public class MaxAgeConfigurationTest
+{
+	private File directory;
+	private File file;
+
+	@Before
+	public void setup() throws Exception
+	{
+		directory = File.createTempFile("maxage", "");
+		directory.delete();
+		directory.mkdirs();
+		file = new File(directory, MaxAgeConfiguration.FILENAME);
+	}
+
+	@After
+	public void teardown()
+	{
+		file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testDefaultWithoutFile()
+	{
+		MaxAgeConfiguration configuration = new MaxAgeConfiguration(directory);
+		assertEquals(MaxAgeConfiguration.DEFAULT_MAX_AGE, configuration.getMaxAge("imagery"));
+		assertEquals(MaxAgeConfiguration.DEFAULT_MAX_AGE, configuration.getMaxAge(null));
+	}
+
+	@Test
+	public void testLongestMatchingPath() throws Exception
+	{
+		write("* = 60\nimagery = 86400\nimagery/daily = 300\n");
+		MaxAgeConfiguration configuration = new MaxAgeConfiguration(directory);
+		assertEquals(86400, configuration.getMaxAge("imagery"));
+		assertEquals(300, configuration.getMaxAge("imagery/daily"));
+		assertEquals(300, configuration.getMaxAge("imagery/daily/landsat"));
+		assertEquals(86400, configuration.getMaxAge("imagery/monthly"));
+		assertEquals(60, configuration.getMaxAge("elevation"));
+		//a dataset path only matches whole path components
+		assertEquals(60, configuration.getMaxAge("imagery2"));
+	}
+
+	@Test
+	public void testDefaultWithoutStarProperty() throws Exception
+	{
+		write("imagery = 86400\n");
+		MaxAgeConfiguration configuration = new MaxAgeConfiguration(directory);
+		assertEquals(MaxAgeConfiguration.DEFAULT_MAX_AGE, configuration.getMaxAge("elevation"));
+	}
+
+	@Test
+	public void testInvalidValues() throws Exception
+	{
+		write("* = 60\nimagery = soon\nimagery/daily = -5\n");
+		MaxAgeConfiguration configuration = new MaxAgeConfiguration(directory);
+		assertEquals(60, configuration.getMaxAge("imagery"));
+		assertEquals(0, configuration.getMaxAge("imagery/daily"));
+	}
+
+	@Test
+	public void testFileIsRereadWhenModified() throws Exception
+	{
+		write("* = 60\n");
+		MaxAgeConfiguration configuration = new MaxAgeConfiguration(directory);
+		assertEquals(60, configuration.getMaxAge("imagery"));
+
+		long lastModified = file.lastModified();
+		write("* = 120\n");
+		file.setLastModified(lastModified + 10000);
+		assertEquals(120, configuration.getMaxAge("imagery"));
+
+		file.delete();
+		assertEquals(MaxAgeConfiguration.DEFAULT_MAX_AGE, configuration.getMaxAge("imagery"));
+	}
+
+	private void write(String contents) throws IOException
+	{
+		FileOutputStream fos = new FileOutputStream(file);
+		try
+		{
+			fos.write(contents.getBytes("ISO-8859-1"));
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link TileBitmap} class
+ */
+public class TileBitmapTest
+{
+	@Test
+	public void testSetTilesAreContained()
+	{
+		TileBitmap bitmap = new TileBitmap(3, new TileLocationCache.Dependencies());
+		bitmap.set(0, 0);
+		bitmap.set(5, 64);
+		bitmap.set(5, 1000);
+
+		assertTrue(bitmap.contains(0, 0));
+		assertTrue(bitmap.contains(5, 64));
+		assertTrue(bitmap.contains(5, 1000));
+		assertFalse(bitmap.contains(0, 1));
+		assertFalse(bitmap.contains(1, 0));
+		assertFalse(bitmap.contains(5, 63));
+		assertFalse(bitmap.contains(-1, 0));
+		assertFalse(bitmap.contains(0, -1));
+		assertEquals(3, bitmap.getLevel());
+		assertEquals(3, bitmap.getTileCount());
+	}
+
+	@Test
+	public void testTilesAreCountedOnce()
+	{
+		TileBitmap bitmap = new TileBitmap(0, new TileLocationCache.Dependencies());
+		bitmap.set(1, 2);
+		bitmap.set(1, 2);
+		bitmap.set(-1, 2);
+		bitmap.set(1, -2);
+		assertEquals(1, bitmap.getTileCount());
+	}
+
+	@Test
+	public void testLevelExists()
+	{
+		TileBitmap bitmap = new TileBitmap(0, new TileLocationCache.Dependencies());
+		assertFalse(bitmap.levelExists());
+		bitmap.setLevelExists();
+		assertTrue(bitmap.levelExists());
+
+		bitmap = new TileBitmap(0, new TileLocationCache.Dependencies());
+		bitmap.set(0, 0);
+		assertTrue(bitmap.levelExists());
+	}
+
+	@Test
+	public void testEmptyBitmapIsWritten() throws Exception
+	{
+		TileBitmap bitmap = new TileBitmap(7, new TileLocationCache.Dependencies());
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(write(bitmap)));
+		assertEquals(0x47415442, dis.readInt());
+		assertEquals(1, dis.readInt());
+		assertEquals(7, dis.readInt());
+		assertEquals(0, dis.readInt());
+		assertEquals(-1, dis.read());
+	}
+
+	@Test
+	public void testWrittenBitmapContainsTheSameTiles() throws Exception
+	{
+		Random random = new Random(0);
+		TileBitmap bitmap = new TileBitmap(9, new TileLocationCache.Dependencies());
+		Set<Long> tiles = new HashSet<Long>();
+		for (int i = 0; i < 1000; i++)
+		{
+			int row = random.nextInt(100);
+			int col = random.nextInt(500);
+			bitmap.set(row, col);
+			tiles.add(((long) row << 32) | col);
+		}
+
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(write(bitmap)));
+		assertEquals(0x47415442, dis.readInt());
+		assertEquals(1, dis.readInt());
+		assertEquals(9, dis.readInt());
+		int rows = dis.readInt();
+		Set<Long> read = new HashSet<Long>();
+		int lastRow = -1;
+		for (int i = 0; i < rows; i++)
+		{
+			int row = dis.readInt();
+			assertTrue("Rows are written in ascending order", row > lastRow);
+			lastRow = row;
+			int words = dis.readInt();
+			assertTrue(words > 0);
+			for (int w = 0; w < words; w++)
+			{
+				long word = dis.readLong();
+				if (w == words - 1)
+				{
+					assertTrue("Last word of a row contains a tile", word != 0);
+				}
+				for (int bit = 0; bit < 64; bit++)
+				{
+					if ((word & (1L << bit)) != 0)
+					{
+						read.add(((long) row << 32) | (w * 64 + bit));
+					}
+				}
+			}
+		}
+		assertEquals(-1, dis.read());
+		assertEquals(tiles, read);
+		assertEquals(tiles.size(), bitmap.getTileCount());
+	}
+
+	@Test
+	public void testBitmapIsCurrentUntilTimeToLive() throws Exception
+	{
+		File file = File.createTempFile("bitmap", ".zip");
+		try
+		{
+			TileLocationCache.Dependencies dependencies = new TileLocationCache.Dependencies();
+			dependencies.add(file);
+			TileBitmap bitmap = new TileBitmap(0, dependencies);
+			assertTrue(bitmap.isCurrent(0));
+
+			//changes are only noticed once the time to live has passed since the last check
+			file.setLastModified(file.lastModified() - 10000);
+			assertTrue(bitmap.isCurrent(60000));
+			Thread.sleep(10);
+			assertFalse(bitmap.isCurrent(0));
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	private static byte[] write(TileBitmap bitmap) throws Exception
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		bitmap.write(baos);
+		return baos.toByteArray();
+	}
+}
@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link TileFinder} class
+ */
+public class TileFinderTest
+{
+	private File directory;
+	private TileFinder finder;
+
+	@Before
+	public void setup() throws Exception
+	{
+		directory = File.createTempFile("tilefinder", "");
+		directory.delete();
+		directory.mkdirs();
+
+		//a dataset inside the root, and one beside it that requests must not be able to reach
+		file("root/dataset/0/0000/0000_0000.jpg", 3);
+		file("root/blank.jpg", 1);
+		file("outside/0/0000/0000_0000.jpg", 5);
+		finder = new TileFinder(new File(directory, "root"), 4, 100, 60000);
+	}
+
+	@After
+	public void teardown()
+	{
+		finder.close();
+		delete(directory);
+	}
+
+	@Test
+	public void testTileIsFound() throws Exception
+	{
+		ExtensionInputStream tile = finder.findFile("0000", "0000_0000", "0", "dataset", "jpg", false);
+		assertNotNull(tile);
+		assertEquals("jpg", tile.extension);
+		assertEquals(3, tile.length);
+		tile.close();
+	}
+
+	@Test
+	public void testTileIsFoundWithoutExtension() throws Exception
+	{
+		ExtensionInputStream tile = finder.findFile("0000", "0000_0000", "0", "dataset", null, false);
+		assertNotNull(tile);
+		assertEquals("jpg", tile.extension);
+		tile.close();
+	}
+
+	@Test
+	public void testMissingTileIsNotFound() throws Exception
+	{
+		assertNull(finder.findFile("0000", "0001_0000", "0", "dataset", "jpg", false));
+	}
+
+	@Test
+	public void testBlankFileIsFound() throws Exception
+	{
+		ExtensionInputStream blank = finder.findBlankFile("jpg");
+		assertNotNull(blank);
+		assertEquals(1, blank.length);
+		blank.close();
+	}
+
+	@Test
+	public void testDatasetCannotEscapeRoot() throws Exception
+	{
+		assertNull(finder.findFile("0000", "0000_0000", "0", "../outside", "jpg", false));
+		assertNull(finder.findFile("0000", "0000_0000", "0", "dataset/../../outside", "jpg", false));
+		assertNull(finder.findFile("0000", "0000_0000", "0", "..\\outside", "jpg", false));
+	}
+
+	@Test
+	public void testLevelCannotEscapeRoot() throws Exception
+	{
+		assertNull(finder.findFile("0000", "0000_0000", "../../outside/0", "dataset", "jpg", false));
+		assertNull(finder.findFile("0000", "0000_0000", "..", "dataset", "jpg", false));
+	}
+
+	@Test
+	public void testRowDirectoryMustBeDigits() throws Exception
+	{
+		assertNull(finder.findFile("..", "0000_0000", "0", "dataset", "jpg", false));
+		assertNull(finder.findFile("0000/..", "0000_0000", "0", "dataset", "jpg", false));
+		assertNull(finder.findFile("00a0", "0000_0000", "0", "dataset", "jpg", false));
+		assertNull(finder.findFile("", "0000_0000", "0", "dataset", "jpg", false));
+	}
+
+	@Test
+	public void testFilenameCannotContainPath() throws Exception
+	{
+		assertNull(finder.findFile("0000", "..", "0", "dataset", "jpg", false));
+		assertNull(finder.findFile("0000", "../0000/0000_0000", "0", "dataset", "jpg", false));
+		assertNull(finder.findFile("0000", "..\\0000\\0000_0000", "0", "dataset", "jpg", false));
+	}
+
+	@Test
+	public void testIsDigits()
+	{
+		assertTrue(TileFinder.isDigits("0"));
+		assertTrue(TileFinder.isDigits("0123456789"));
+		assertFalse(TileFinder.isDigits(""));
+		assertFalse(TileFinder.isDigits("-1"));
+		assertFalse(TileFinder.isDigits("1a"));
+		assertFalse(TileFinder.isDigits(".."));
+		assertFalse(TileFinder.isDigits(" 1"));
+	}
+
+	@Test
+	public void testBitmapIsBuiltFromFilesAndZips() throws Exception
+	{
+		zip("root/dataset/0/0001.zip", "0001_0003.png", "readme.txt", "0001_0004.txt");
+		zip("root/dataset/1.zip", "0002/0002_0005.jpg");
+		zip("root/zipped.zip", "0/0000/0000_0002.jpg", "1/0000/0000_0007.jpg");
+
+		TileBitmap bitmap = finder.getBitmap("0", "dataset");
+		assertTrue(bitmap.levelExists());
+		assertTrue(bitmap.contains(0, 0));
+		assertTrue(bitmap.contains(1, 3));
+		assertFalse(bitmap.contains(1, 4));
+		assertFalse(bitmap.contains(0, 1));
+		assertEquals(2, bitmap.getTileCount());
+
+		bitmap = finder.getBitmap("1", "dataset");
+		assertTrue(bitmap.contains(2, 5));
+		assertEquals(1, bitmap.getTileCount());
+
+		bitmap = finder.getBitmap("0", "zipped");
+		assertTrue(bitmap.levelExists());
+		assertTrue(bitmap.contains(0, 2));
+		assertFalse(bitmap.contains(0, 7));
+
+		assertFalse(finder.getBitmap("2", "dataset").levelExists());
+		assertFalse(finder.directoryExists("2", "dataset"));
+		assertTrue(finder.directoryExists("1", "dataset"));
+	}
+
+	@Test
+	public void testBitmapRequiresNumericLevelAndSafePath() throws Exception
+	{
+		assertNull(finder.getBitmap("a", "dataset"));
+		assertNull(finder.getBitmap("-1", "dataset"));
+		assertNull(finder.getBitmap("0", "../outside"));
+		assertNull(finder.getBitmap(null, "dataset"));
+	}
+
+	@Test
+	public void testMissingTileIsRejectedByBitmap() throws Exception
+	{
+		finder.findFile("0000", "0000_0000", "0", "dataset", "jpg", false).close();
+		assertNull(finder.findFile("0000", "0000_0001", "0", "dataset", "jpg", false));
+		assertTrue(finder.getStatistics(), finder.getStatistics().contains("1 built, 1 tiles rejected"));
+
+		//the bitmap isn't checked again until its time to live has passed, so a new tile is still rejected
+		file("root/dataset/0/0000/0000_0001.jpg", 2);
+		assertNull(finder.findFile("0000", "0000_0001", "0", "dataset", "jpg", false));
+	}
+
+	@Test
+	public void testBitmapIsRebuiltWhenLevelChanges() throws Exception
+	{
+		TileFinder expiring = new TileFinder(new File(directory, "root"), 4, 100, 0);
+		try
+		{
+			TileBitmap bitmap = expiring.getBitmap("0", "dataset");
+			assertFalse(bitmap.contains(1, 0));
+			assertNull(expiring.findFile("0001", "0001_0000", "0", "dataset", "jpg", false));
+
+			File level = new File(directory, "root/dataset/0");
+			long lastModified = level.lastModified();
+			file("root/dataset/0/0001/0001_0000.jpg", 2);
+			level.setLastModified(lastModified + 10000);
+			Thread.sleep(10);
+
+			ExtensionInputStream tile = expiring.findFile("0001", "0001_0000", "0", "dataset", "jpg", false);
+			assertNotNull(tile);
+			tile.close();
+			assertTrue(expiring.getBitmap("0", "dataset").contains(1, 0));
+			assertTrue(expiring.getStatistics(), expiring.getStatistics().contains("2 built"));
+		}
+		finally
+		{
+			expiring.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentRequestsBuildBitmapOnce() throws Exception
+	{
+		//a level large enough that the build takes a while
+		for (int row = 1; row < 200; row++)
+		{
+			for (int col = 0; col < 10; col++)
+			{
+				file(String.format("root/dataset/0/%04d/%04d_%04d.jpg", row, row, col), 1);
+			}
+		}
+
+		int threads = 16;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			List<Future<TileBitmap>> bitmaps = new ArrayList<Future<TileBitmap>>();
+			List<Future<ExtensionInputStream>> tiles = new ArrayList<Future<ExtensionInputStream>>();
+			for (int i = 0; i < threads; i++)
+			{
+				if (i % 2 == 0)
+				{
+					bitmaps.add(executor.submit(new Callable<TileBitmap>()
+					{
+						@Override
+						public TileBitmap call() throws Exception
+						{
+							start.await();
+							return finder.getBitmap("0", "dataset");
+						}
+					}));
+				}
+				else
+				{
+					//tile requests don't wait for the build, and must give the same answer
+					tiles.add(executor.submit(new Callable<ExtensionInputStream>()
+					{
+						@Override
+						public ExtensionInputStream call() throws Exception
+						{
+							start.await();
+							return finder.findFile("0000", "0000_0001", "0", "dataset", "jpg", false);
+						}
+					}));
+				}
+			}
+			start.countDown();
+
+			TileBitmap first = bitmaps.get(0).get();
+			assertEquals(1 + 199 * 10, first.getTileCount());
+			for (Future<TileBitmap> bitmap : bitmaps)
+			{
+				assertSame(first, bitmap.get());
+			}
+			for (Future<ExtensionInputStream> tile : tiles)
+			{
+				assertNull(tile.get());
+			}
+			assertTrue(finder.getStatistics(), finder.getStatistics().contains("1 built"));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	private void zip(String path, String... names) throws IOException
+	{
+		File file = new File(directory, path);
+		file.getParentFile().mkdirs();
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+		try
+		{
+			for (String name : names)
+			{
+				zos.putNextEntry(new ZipEntry(name));
+				zos.write(new byte[1]);
+				zos.closeEntry();
+			}
+		}
+		finally
+		{
+			zos.close();
+		}
+	}
+
+	private File file(String path, int length) throws IOException
+	{
+		File file = new File(directory, path);
+		file.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(file);
+		try
+		{
+			fos.write(new byte[length]);
+		}
+		finally
+		{
+			fos.close();
+		}
+		return file;
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link TileLocationCache} class, and for the locations
+ * {@link TileFinder} caches in it
+ */
+public class TileLocationCacheTest
+{
+	private File directory;
+
+	@Before
+	public void setup() throws Exception
+	{
+		directory = File.createTempFile("locations", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void teardown()
+	{
+		delete(directory);
+	}
+
+	@Test
+	public void testLocationIsCached() throws Exception
+	{
+		TileLocationCache cache = new TileLocationCache(10, 60000);
+		File tile = file("dataset/0/0000/0000_0000.jpg");
+		TileLocationCache.Location location = location(TileLocationCache.Location.Type.FILE, tile, tile);
+
+		String key = TileLocationCache.key("dataset", "0", "0000", "0000_0000", "jpg");
+		cache.put(key, location);
+		assertSame(location, cache.get(key));
+		assertNull(cache.get(TileLocationCache.key("dataset", "0", "0000", "0000_0001", "jpg")));
+	}
+
+	@Test
+	public void testLocationExpires() throws Exception
+	{
+		TileLocationCache cache = new TileLocationCache(10, 50);
+		File tile = file("dataset/0/0000/0000_0000.jpg");
+		cache.put("key", location(TileLocationCache.Location.Type.FILE, tile, tile));
+		assertNotNull(cache.get("key"));
+
+		Thread.sleep(100);
+		assertNull(cache.get("key"));
+		assertTrue(cache.getStatistics().contains("1 expired"));
+	}
+
+	@Test
+	public void testLocationIsInvalidatedWhenDependencyChanges() throws Exception
+	{
+		TileLocationCache cache = new TileLocationCache(10, 60000);
+		File tile = file("dataset/0/0000/0000_0000.jpg");
+		cache.put("key", location(TileLocationCache.Location.Type.FILE, tile, tile));
+
+		tile.setLastModified(tile.lastModified() - 10000);
+		assertNull(cache.get("key"));
+		//the invalid location is removed, rather than checked again
+		assertNull(cache.get("key"));
+		assertTrue(cache.getStatistics().contains("1 invalidated"));
+	}
+
+	@Test
+	public void testAbsentLocationIsInvalidatedWhenFileIsCreated() throws Exception
+	{
+		TileLocationCache cache = new TileLocationCache(10, 60000);
+		File zip = new File(directory, "dataset.zip");
+		cache.put("key", location(TileLocationCache.Location.Type.ABSENT, null, zip));
+		assertNotNull(cache.get("key"));
+
+		file("dataset.zip");
+		assertNull(cache.get("key"));
+	}
+
+	@Test
+	public void testAbsentLocationIsInvalidatedWhenDirectoryChanges() throws Exception
+	{
+		TileLocationCache cache = new TileLocationCache(10, 60000);
+		File row = new File(directory, "dataset/0/0000");
+		row.mkdirs();
+		row.setLastModified(row.lastModified() - 10000);
+		cache.put("key", location(TileLocationCache.Location.Type.ABSENT, null, row));
+		assertNotNull(cache.get("key"));
+
+		//adding a tile changes the directory's modification time (set explicitly, as it may be too coarse to see)
+		file("dataset/0/0000/0000_0000.jpg");
+		row.setLastModified(row.lastModified() + 10000);
+		assertNull(cache.get("key"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedLocationIsEvicted() throws Exception
+	{
+		TileLocationCache cache = new TileLocationCache(2, 60000);
+		cache.put("a", location(TileLocationCache.Location.Type.ABSENT, null, directory));
+		cache.put("b", location(TileLocationCache.Location.Type.ABSENT, null, directory));
+		assertNotNull(cache.get("a"));
+		cache.put("c", location(TileLocationCache.Location.Type.ABSENT, null, directory));
+
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+	}
+
+	@Test
+	public void testKeyIncludesExtension()
+	{
+		String jpg = TileLocationCache.key("dataset", "0", "0000", "0000_0000", "jpg");
+		String png = TileLocationCache.key("dataset", "0", "0000", "0000_0000", "png");
+		String any = TileLocationCache.key("dataset", "0", "0000", "0000_0000", null);
+		assertFalse(jpg.equals(png));
+		assertFalse(jpg.equals(any));
+		assertFalse(png.equals(any));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMaximumSizeMustBePositive()
+	{
+		new TileLocationCache(0, 60000);
+	}
+
+	@Test
+	public void testExtensionIsResolvedWhenNotRequested() throws Exception
+	{
+		file("dataset/0/0000/0000_0000.png");
+		TileFinder finder = new TileFinder(directory, 4, 100, 60000);
+		try
+		{
+			ExtensionInputStream tile = finder.findFile("0000", "0000_0000", "0", "dataset", null, false);
+			assertNotNull(tile);
+			assertEquals("png", tile.extension);
+			tile.close();
+
+			//the resolved extension is cached for requests without an extension, not for other extensions
+			tile = finder.findFile("0000", "0000_0000", "0", "dataset", null, false);
+			assertNotNull(tile);
+			assertEquals("png", tile.extension);
+			tile.close();
+			assertNull(finder.findFile("0000", "0000_0000", "0", "dataset", "jpg", false));
+		}
+		finally
+		{
+			finder.close();
+		}
+	}
+
+	@Test
+	public void testExtensionIsResolvedAgainWhenTileIsReplaced() throws Exception
+	{
+		File png = file("dataset/0/0000/0000_0000.png");
+		TileFinder finder = new TileFinder(directory, 4, 100, 60000);
+		try
+		{
+			ExtensionInputStream tile = finder.findFile("0000", "0000_0000", "0", "dataset", null, false);
+			assertEquals("png", tile.extension);
+			tile.close();
+
+			File row = png.getParentFile();
+			long lastModified = row.lastModified();
+			png.delete();
+			file("dataset/0/0000/0000_0000.jpg");
+			row.setLastModified(lastModified + 10000);
+
+			tile = finder.findFile("0000", "0000_0000", "0", "dataset", null, false);
+			assertNotNull(tile);
+			assertEquals("jpg", tile.extension);
+			tile.close();
+		}
+		finally
+		{
+			finder.close();
+		}
+	}
+
+	private static TileLocationCache.Location location(TileLocationCache.Location.Type type, File file,
+			File dependency)
+	{
+		TileLocationCache.Dependencies dependencies = new TileLocationCache.Dependencies();
+		dependencies.add(dependency);
+		return new TileLocationCache.Location(type, file, null, file == null ? null : "jpg", dependencies);
+	}
+
+	private File file(String path) throws IOException
+	{
+		File file = new File(directory, path);
+		file.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(file);
+		try
+		{
+			fos.write(new byte[1]);
+		}
+		finally
+		{
+			fos.close();
+		}
+		return file;
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests for the conditional request handling of the
+ * {@link TileRequestHandler} class. Requests are made over a socket, so that
+ * the tests can check that 304 responses carry no body.
+ */
+public class TileRequestHandlerTest
+{
+	private static final String TILE = "/tiles.jsp?T=dataset&L=0&X=0&Y=0&F=image/jpeg";
+
+	private File directory;
+	private TileFinder finder;
+	private HttpServer server;
+
+	@Before
+	public void setup() throws Exception
+	{
+		directory = File.createTempFile("handler", "");
+		directory.delete();
+		directory.mkdirs();
+		write("dataset/0/0000/0000_0000.jpg", "tile");
+
+		finder = new TileFinder(directory, 4, 100, 60000);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new TileRequestHandler(finder, new MaxAgeConfiguration(directory)));
+		server.start();
+	}
+
+	@After
+	public void teardown()
+	{
+		server.stop(0);
+		finder.close();
+		delete(directory);
+	}
+
+	@Test
+	public void testTileHasValidators() throws Exception
+	{
+		Response response = get(TILE);
+		assertEquals(200, response.status);
+		assertEquals("tile", response.body);
+		assertNotNull(response.headers.get("ETag"));
+		assertNotNull(response.headers.get("Last-Modified"));
+		assertEquals("max-age=" + MaxAgeConfiguration.DEFAULT_MAX_AGE, response.headers.get("Cache-Control"));
+	}
+
+	@Test
+	public void testMaxAgeIsConfigured() throws Exception
+	{
+		write(MaxAgeConfiguration.FILENAME, "dataset = 120\n");
+		assertEquals("max-age=120", get(TILE).headers.get("Cache-Control"));
+	}
+
+	@Test
+	public void testIfNoneMatchIsAnsweredWithoutBody() throws Exception
+	{
+		String etag = get(TILE).headers.get("ETag");
+		Response response = get(TILE, "If-None-Match: " + etag);
+		assertNotModified(response, etag);
+
+		response = get(TILE, "If-None-Match: \"other\", W/" + etag);
+		assertNotModified(response, etag);
+	}
+
+	@Test
+	public void testIfModifiedSinceIsAnsweredWithoutBody() throws Exception
+	{
+		Response first = get(TILE);
+		Response response = get(TILE, "If-Modified-Since: " + first.headers.get("Last-Modified"));
+		assertNotModified(response, first.headers.get("ETag"));
+	}
+
+	@Test
+	public void testIfNoneMatchTakesPrecedence() throws Exception
+	{
+		Response first = get(TILE);
+		Response response =
+				get(TILE, "If-None-Match: \"other\"", "If-Modified-Since: " + first.headers.get("Last-Modified"));
+		assertEquals(200, response.status);
+		assertEquals("tile", response.body);
+	}
+
+	@Test
+	public void testModifiedTileIsSent() throws Exception
+	{
+		Response first = get(TILE);
+		File tile = new File(directory, "dataset/0/0000/0000_0000.jpg");
+		tile.setLastModified(tile.lastModified() + 10000);
+
+		Response response =
+				get(TILE, "If-None-Match: " + first.headers.get("ETag"),
+						"If-Modified-Since: " + first.headers.get("Last-Modified"));
+		assertEquals(200, response.status);
+		assertFalse(first.headers.get("ETag").equals(response.headers.get("ETag")));
+	}
+
+	private static void assertNotModified(Response response, String etag)
+	{
+		assertEquals(304, response.status);
+		assertEquals("", response.body);
+		assertEquals(etag, response.headers.get("ETag"));
+		assertEquals(null, response.headers.get("Content-Type"));
+	}
+
+	/**
+	 * Make a GET request, and read the whole response (the connection is
+	 * closed after the response, so anything after the headers is the body).
+	 */
+	private Response get(String path, String... headers) throws IOException
+	{
+		Socket socket = new Socket("127.0.0.1", server.getAddress().getPort());
+		try
+		{
+			socket.setSoTimeout(10000);
+			StringBuilder request = new StringBuilder();
+			request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+			request.append("Host: localhost\r\n");
+			request.append("Connection: close\r\n");
+			for (String header : headers)
+			{
+				request.append(header).append("\r\n");
+			}
+			request.append("\r\n");
+			OutputStream os = socket.getOutputStream();
+			os.write(request.toString().getBytes("ISO-8859-1"));
+			os.flush();
+
+			InputStream is = socket.getInputStream();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = is.read(buffer)) >= 0)
+			{
+				baos.write(buffer, 0, read);
+			}
+			return new Response(new String(baos.toByteArray(), "ISO-8859-1"));
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	private void write(String path, String contents) throws IOException
+	{
+		File file = new File(directory, path);
+		file.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(file);
+		try
+		{
+			fos.write(contents.getBytes("ISO-8859-1"));
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static class Response
+	{
+		public final int status;
+		public final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		public final String body;
+
+		public Response(String response)
+		{
+			int end = response.indexOf("\r\n\r\n");
+			String[] lines = response.substring(0, end).split("\r\n");
+			status = Integer.parseInt(lines[0].split(" ")[1]);
+			for (int i = 1; i < lines.length; i++)
+			{
+				int colon = lines[i].indexOf(':');
+				headers.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+			}
+			body = response.substring(end + 4);
+		}
+	}
+}
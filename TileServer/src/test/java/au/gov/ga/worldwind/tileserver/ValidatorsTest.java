@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link Validators} class
+ */
+public class ValidatorsTest
+{
+	private static final long TIME = 1350000000000L;
+	private static final String DATE = "Fri, 12 Oct 2012 00:00:00 GMT";
+
+	@Test
+	public void testFileETagIsStrong()
+	{
+		assertEquals("\"400-13a52453c00\"", Validators.fileETag(1024, TIME));
+	}
+
+	@Test
+	public void testCrcETagIsStrongAndDiffersFromFileETag()
+	{
+		assertEquals("\"400-cdeadbeef\"", Validators.crcETag(1024, 0xdeadbeefL));
+		assertFalse(Validators.crcETag(1024, 0x123).equals(Validators.fileETag(1024, 0x123)));
+	}
+
+	@Test
+	public void testCombinedETagIsWeak()
+	{
+		String file = Validators.crcETag(10, 0xabc);
+		String mask = Validators.fileETag(20, 0xdef);
+		assertEquals("W/\"a-cabc\"", Validators.combinedETag(file));
+		assertEquals("W/\"a-cabc+14-def\"", Validators.combinedETag(file, mask));
+	}
+
+	@Test
+	public void testIfNoneMatchMatchesETag()
+	{
+		String etag = Validators.fileETag(10, TIME);
+		assertTrue(Validators.isNotModified(etag, null, etag, TIME));
+		assertFalse(Validators.isNotModified(Validators.fileETag(11, TIME), null, etag, TIME));
+	}
+
+	@Test
+	public void testIfNoneMatchUsesWeakComparison()
+	{
+		String etag = Validators.crcETag(10, 0xabc);
+		assertTrue(Validators.isNotModified("W/" + etag, null, etag, TIME));
+
+		String weak = Validators.combinedETag(etag);
+		assertTrue(Validators.isNotModified(weak, null, weak, TIME));
+		assertTrue(Validators.isNotModified("\"a-cabc\"", null, weak, TIME));
+	}
+
+	@Test
+	public void testIfNoneMatchList()
+	{
+		String etag = Validators.fileETag(10, TIME);
+		assertTrue(Validators.isNotModified("\"other\", " + etag + ",\"another\"", null, etag, TIME));
+		assertTrue(Validators.isNotModified("\"other\"," + etag, null, etag, TIME));
+		assertFalse(Validators.isNotModified("\"other\", \"another\"", null, etag, TIME));
+	}
+
+	@Test
+	public void testIfNoneMatchAny()
+	{
+		String etag = Validators.fileETag(10, TIME);
+		assertTrue(Validators.isNotModified("*", null, etag, TIME));
+		assertTrue(Validators.isNotModified("\"other\", *", null, etag, TIME));
+		//there is no current representation without an ETag
+		assertFalse(Validators.isNotModified("*", null, null, TIME));
+	}
+
+	@Test
+	public void testIfModifiedSince()
+	{
+		assertTrue(Validators.isNotModified(null, DATE, null, TIME));
+		//HTTP dates have a resolution of one second
+		assertTrue(Validators.isNotModified(null, DATE, null, TIME + 999));
+		assertFalse(Validators.isNotModified(null, DATE, null, TIME + 1000));
+		assertTrue(Validators.isNotModified(null, DATE, null, TIME - 1000));
+	}
+
+	@Test
+	public void testIfModifiedSinceIsIgnoredWithIfNoneMatch()
+	{
+		String etag = Validators.fileETag(10, TIME);
+		assertFalse(Validators.isNotModified("\"other\"", DATE, etag, TIME));
+		assertTrue(Validators.isNotModified(etag, "Thu, 01 Jan 1970 00:00:00 GMT", etag, TIME));
+	}
+
+	@Test
+	public void testUnusableIfModifiedSince()
+	{
+		assertFalse(Validators.isNotModified(null, "yesterday", null, TIME));
+		//without a modification time, the client's copy can't be shown to be current
+		assertFalse(Validators.isNotModified(null, DATE, null, 0));
+		assertFalse(Validators.isNotModified(null, null, Validators.fileETag(10, TIME), TIME));
+	}
+
+	@Test
+	public void testDateRoundTrip()
+	{
+		assertEquals(DATE, Validators.formatDate(TIME));
+		assertEquals(TIME, Validators.parseDate(DATE));
+		assertEquals(TIME, Validators.parseDate(" " + DATE + " "));
+		assertEquals(-1, Validators.parseDate("12/10/2012"));
+	}
+}
@@ -0,0 +1,293 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tileserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link ZipIndex} class, which compare the entries read
+ * with those read by {@link ZipFile}
+ */
+public class ZipIndexTest
+{
+	private File file;
+
+	@Before
+	public void setup() throws Exception
+	{
+		file = File.createTempFile("zipindex", ".zip");
+	}
+
+	@After
+	public void teardown()
+	{
+		file.delete();
+	}
+
+	@Test
+	public void testStoredEntries() throws Exception
+	{
+		writeZip(file, 10, 20000, ZipEntry.STORED, null);
+		assertMatchesZipFile(file, 10);
+	}
+
+	@Test
+	public void testDeflatedEntries() throws Exception
+	{
+		writeZip(file, 10, 20000, ZipEntry.DEFLATED, null);
+		assertMatchesZipFile(file, 10);
+	}
+
+	@Test
+	public void testEmptyEntry() throws Exception
+	{
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+		zos.putNextEntry(new ZipEntry("0/0000/0000_0000.jpg"));
+		zos.closeEntry();
+		zos.close();
+
+		ZipIndex index = new ZipIndex(file);
+		ZipIndex.Entry entry = index.getEntry("0/0000/0000_0000.jpg");
+		assertNotNull(entry);
+		assertArrayEquals(new byte[0], read(index.getInputStream(entry)));
+	}
+
+	@Test
+	public void testMissingEntry() throws Exception
+	{
+		writeZip(file, 2, 100, ZipEntry.DEFLATED, null);
+		assertNull(new ZipIndex(file).getEntry("missing.jpg"));
+	}
+
+	@Test
+	public void testZip64Archive() throws Exception
+	{
+		//more entries than fit in the end of central directory record
+		writeZip(file, 70000, 20, ZipEntry.STORED, null);
+		assertMatchesZipFile(file, 70000);
+	}
+
+	@Test
+	public void testArchiveWithComment() throws Exception
+	{
+		StringBuilder comment = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+		{
+			comment.append("comment ");
+		}
+		writeZip(file, 10, 20000, ZipEntry.DEFLATED, comment.toString());
+		assertMatchesZipFile(file, 10);
+	}
+
+	@Test
+	public void testTruncatedArchive() throws Exception
+	{
+		writeZip(file, 10, 200, ZipEntry.DEFLATED, null);
+		byte[] original = readFile(file);
+		for (int length = 0; length < original.length; length++)
+		{
+			byte[] truncated = new byte[length];
+			System.arraycopy(original, 0, truncated, 0, length);
+			writeFile(file, truncated);
+			try
+			{
+				new ZipIndex(file);
+				fail("Truncated archive was read (" + length + "/" + original.length + " bytes)");
+			}
+			catch (IOException e)
+			{
+				//expected
+			}
+		}
+	}
+
+	@Test
+	public void testCorruptArchive() throws Exception
+	{
+		writeZip(file, 5, 200, ZipEntry.DEFLATED, null);
+		byte[] original = readFile(file);
+		Random random = new Random(0);
+
+		//corrupt each byte in turn, which must either be read successfully or fail with an IOException
+		for (int i = 0; i < original.length; i++)
+		{
+			for (int value : new int[] { 0x00, 0xFF, random.nextInt(256) })
+			{
+				byte[] corrupt = original.clone();
+				corrupt[i] = (byte) value;
+				writeFile(file, corrupt);
+				try
+				{
+					ZipIndex index = new ZipIndex(file);
+					for (String name : index.getNames())
+					{
+						read(index.getInputStream(index.getEntry(name)));
+					}
+				}
+				catch (IOException e)
+				{
+					//expected
+				}
+				catch (RuntimeException e)
+				{
+					throw new AssertionError("Corrupt byte " + i + " = " + value + " threw " + e);
+				}
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAnArchive() throws Exception
+	{
+		writeFile(file, new byte[1000]);
+		new ZipIndex(file);
+	}
+
+	private static void assertMatchesZipFile(File file, int count) throws IOException
+	{
+		ZipIndex index = new ZipIndex(file);
+		ZipFile zip = new ZipFile(file);
+		try
+		{
+			assertEquals(count, index.size());
+			assertEquals(zip.size(), index.size());
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements())
+			{
+				ZipEntry expected = entries.nextElement();
+				ZipIndex.Entry entry = index.getEntry(expected.getName());
+				assertNotNull(expected.getName(), entry);
+				assertEquals(expected.getSize(), entry.size);
+				assertEquals(expected.getCompressedSize(), entry.compressedSize);
+				assertEquals(expected.getCrc(), entry.crc);
+				assertArrayEquals(expected.getName(), read(zip.getInputStream(expected)),
+						read(index.getInputStream(entry)));
+			}
+		}
+		finally
+		{
+			zip.close();
+		}
+	}
+
+	private static void writeZip(File file, int count, int maxSize, int method, String comment) throws IOException
+	{
+		Random random = new Random(count);
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+		try
+		{
+			zos.setMethod(method);
+			if (comment != null)
+			{
+				zos.setComment(comment);
+			}
+			for (int i = 0; i < count; i++)
+			{
+				//compressible tiles of varying size
+				byte[] data = new byte[random.nextInt(maxSize)];
+				for (int j = 0; j < data.length; j++)
+				{
+					data[j] = (byte) (random.nextInt(8) + j / 64);
+				}
+
+				ZipEntry entry = new ZipEntry((i / 100) + "/" + String.format("%04d_%04d", i / 100, i % 100) + ".bil");
+				if (method == ZipEntry.STORED)
+				{
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					entry.setSize(data.length);
+					entry.setCompressedSize(data.length);
+					entry.setCrc(crc.getValue());
+				}
+				zos.putNextEntry(entry);
+				zos.write(data);
+				zos.closeEntry();
+			}
+		}
+		finally
+		{
+			zos.close();
+		}
+	}
+
+	private static byte[] read(InputStream is) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = is.read(buffer)) >= 0)
+			{
+				baos.write(buffer, 0, read);
+			}
+			return baos.toByteArray();
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			byte[] data = new byte[(int) raf.length()];
+			raf.readFully(data);
+			return data;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private static void writeFile(File file, byte[] data) throws IOException
+	{
+		FileOutputStream fos = new FileOutputStream(file);
+		try
+		{
+			fos.write(data);
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+}
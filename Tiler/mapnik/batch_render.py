@@ -0,0 +1,63 @@
+#!/usr/bin/env python
+"""
+Batch Mapnik renderer for the Tiler, using the Mapnik Python bindings.
+
+Loads the mapfile once, then renders a tile for each request line read from
+standard input, writing each tile to standard output as a length-prefixed
+frame. See au.gov.ga.worldwind.tiler.mapnik.MapnikRenderer for the protocol.
+
+Usage: batch_render.py -m <mapfile> [-s <srs>]
+"""
+import struct
+import sys
+
+import mapnik
+
+
+def main(args):
+    mapfile = None
+    srs = None
+    i = 0
+    while i < len(args):
+        if args[i] == '-m' and i + 1 < len(args):
+            mapfile = args[i + 1]
+            i += 1
+        elif args[i] == '-s' and i + 1 < len(args):
+            srs = '+init=' + args[i + 1].lower()
+            i += 1
+        i += 1
+    if mapfile is None:
+        sys.stderr.write(__doc__)
+        return 1
+
+    stdin = getattr(sys.stdin, 'buffer', sys.stdin)
+    stdout = getattr(sys.stdout, 'buffer', sys.stdout)
+
+    m = mapnik.Map(256, 256)
+    mapnik.load_map(m, mapfile)
+    if srs is not None:
+        m.srs = srs
+
+    for line in iter(stdin.readline, b''):
+        line = line.strip()
+        if not line:
+            continue
+        try:
+            minlon, minlat, maxlon, maxlat, width, height, format = line.decode('utf-8').split()
+            m.resize(int(width), int(height))
+            m.zoom_to_box(mapnik.Box2d(float(minlon), float(minlat), float(maxlon), float(maxlat)))
+            image = mapnik.Image(int(width), int(height))
+            mapnik.render(m, image)
+            data = image.tostring('jpeg' if format == 'jpg' else 'png')
+            stdout.write(struct.pack('>i', len(data)))
+            stdout.write(data)
+        except Exception as e:
+            message = str(e).encode('utf-8')
+            stdout.write(struct.pack('>i', -len(message)))
+            stdout.write(message)
+        stdout.flush()
+    return 0
+
+
+if __name__ == '__main__':
+    sys.exit(main(sys.argv[1:]))
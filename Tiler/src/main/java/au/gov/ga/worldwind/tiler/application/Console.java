@@ -36,12 +36,15 @@ import org.gdal.gdalconst.gdalconst;
 
 import au.gov.ga.worldwind.tiler.application.Tiler.TilingType;
 import au.gov.ga.worldwind.tiler.gdal.GDALUtil;
+import au.gov.ga.worldwind.tiler.util.DDSEncoder;
 import au.gov.ga.worldwind.tiler.util.LatLon;
 import au.gov.ga.worldwind.tiler.util.MinMaxArray;
 import au.gov.ga.worldwind.tiler.util.NullableNumberArray;
 import au.gov.ga.worldwind.tiler.util.NumberArray;
 import au.gov.ga.worldwind.tiler.util.ProgressReporter;
 import au.gov.ga.worldwind.tiler.util.Sector;
+import au.gov.ga.worldwind.tiler.util.TilerException;
+import au.gov.ga.worldwind.tiler.util.TilePacker;
 import au.gov.ga.worldwind.tiler.util.Util;
 
 /**
@@ -65,6 +68,11 @@ public class Console
 						+ "       [{-q,--quality} qual] [{-o,--setoutside} \"value[,value...]]\"\n"
 						+ "       [{-r,--replacevalues} \"min1[,min1...] max1[,max1...] min2[,min2...]\n"
 						+ "                              max2[,max2...] with[,with...] else[,else...]\"\n"
+						+ "       [{-w,--threads} threads] [{-u,--blocksize} size]\n"
+						+ "       [{-x,--pipeline} read,transform,encode,write] [{-j,--queuesize} size]\n"
+						+ "       [{-y,--fused}] [{-v,--pack} {LEVEL|DATASET}] [{-c,--stripsize} MB]\n"
+						+ "       [--dedup] [--warpplan] [--update minlat,minlon,maxlat,maxlon]\n"
+						+ "       [--updatechanged] [--dds {DXT1|DXT5|AUTO}] [--ddsonly]\n"
 						+ "       input_file output_directory\n"
 						+ "\n"
 						+ "General switches:\n"
@@ -89,9 +97,36 @@ public class Console
 						+ "             number of output bands, blanks permitted)\n"
 						+ "  -r \"...\"   Replace values between (number of values in each group must\n"
 						+ "             equal the number of output bands, blanks permitted)\n"
+						+ "  -w threads Number of tiling and overview worker threads (default: 1)\n"
+						+ "  -u size    Hand tiles to workers in blocks of size x size tiles (default:\n"
+						+ "             whole rows)\n"
+						+ "  -x r,t,e,w Generate tiles using a pipeline, with the given number of read,\n"
+						+ "             transform, encode and write threads (overrides -w)\n"
+						+ "  -j size    Number of tiles queued between pipeline stages (default: 16)\n"
+						+ "  -y         Generate the overviews while tiling, without reading the tiles\n"
+						+ "             back from disk (overrides -x)\n"
+						+ "  -v mode    Once tiling is complete, pack the tiles into a single file per\n"
+						+ "             level (LEVEL) or per dataset (DATASET), and delete the tile files\n"
+						+ "  -c MB      Read the dataset in strips of up to MB megabytes per reading\n"
+						+ "             thread, shared by neighbouring tiles (default: disabled)\n"
+						+ "  --dedup    Write tiles identical to an earlier tile as hard links to the\n"
+						+ "             earlier tile, and report the duplicates found\n"
+						+ "  --warpplan When reprojecting, transform a coarse grid of points per tile\n"
+						+ "             using a transformation created once per level, instead of\n"
+						+ "             creating a GDAL transformer for every tile\n"
+						+ "  --update s Regenerate only the tiles (and their overviews) intersecting the\n"
+						+ "             sector minlat,minlon,maxlat,maxlon, replacing the existing tiles\n"
+						+ "  --updatechanged\n"
+						+ "             Regenerate only the tiles (and their overviews) intersecting the\n"
+						+ "             source files modified since the previous run finished\n"
 						+ "Image specific switches:\n"
 						+ "  -f format  Image output format (default: JPG)\n"
 						+ "  -a         Add alpha band to image tiles if input has no alpha band\n"
+						+ "  --dds fmt  Once tiling is complete, bake each tile into a DXT1 or DXT5\n"
+						+ "             compressed DDS tile with mipmaps; AUTO uses DXT5 for tiles\n"
+						+ "             containing transparent pixels, and DXT1 otherwise\n"
+						+ "  --ddsonly  Delete the image tiles once they have been baked to DDS (the\n"
+						+ "             DDS tiles are packed instead if -v is used)\n"
 						+ "Elevation specific switches:\n"
 						+ "  -d type    Elevation output format (default: INT16)\n"
 						+ "  -b band    Band to read from for elevation data (default: 1)";
@@ -128,6 +163,19 @@ public class Console
 		//-r --replacevalues "n,n,n n,n,n n,n,n n,n,n n,n,n n,n,n"
 		//-k --includeblank
 		//-s --origin n,n
+		//-w --threads n
+		//-u --blocksize n
+		//-x --pipeline n,n,n,n
+		//-j --queuesize n
+		//-y --fused
+		//-v --pack LEVEL|DATASET
+		//-c --stripsize n
+		//--dedup
+		//--warpplan
+		//--update n,n,n,n
+		//--updatechanged
+		//--dds DXT1|DXT5|AUTO
+		//--ddsonly
 
 		CmdLineParser parser = new CmdLineParser();
 
@@ -147,6 +195,35 @@ public class Console
 		Option bilinearOverviewsO = parser.addBooleanOption('g', "nominification");
 		Option includeBlankO = parser.addBooleanOption('k', "includeblank");
 		Option qualityO = parser.addDoubleOption('q', "quality");
+		Option threadsO = parser.addIntegerOption('w', "threads");
+		Option blockSizeO = parser.addIntegerOption('u', "blocksize");
+		Option queueSizeO = parser.addIntegerOption('j', "queuesize");
+		Option fusedO = parser.addBooleanOption('y', "fused");
+		Option packO = parser.addStringOption('v', "pack");
+		Option stripSizeO = parser.addIntegerOption('c', "stripsize");
+		Option dedupO = parser.addBooleanOption("dedup");
+		Option warpPlanO = parser.addBooleanOption("warpplan");
+		Option updateChangedO = parser.addBooleanOption("updatechanged");
+		Option ddsO = parser.addStringOption("dds");
+		Option ddsOnlyO = parser.addBooleanOption("ddsonly");
+		Option updateO = new Option("update", true)
+		{
+			@Override
+			protected Object parseValue(String arg, Locale locale) throws IllegalOptionValueException
+			{
+				return parseSector(this, arg);
+			}
+		};
+		parser.addOption(updateO);
+		Option pipelineO = new Option('x', "pipeline", true)
+		{
+			@Override
+			protected Object parseValue(String arg, Locale locale) throws IllegalOptionValueException
+			{
+				return parsePipelineThreads(this, arg);
+			}
+		};
+		parser.addOption(pipelineO);
 		Option originO = new Option('s', "origin", true)
 		{
 			@Override
@@ -262,6 +339,71 @@ public class Console
 		NullableNumberArray outside = (NullableNumberArray) parser.getOptionValue(outsideO);
 		ReplaceValues replaces = (ReplaceValues) parser.getOptionValue(replaceO, new ReplaceValues());
 
+		TilingOptions options = new TilingOptions();
+		options.threads = (Integer) parser.getOptionValue(threadsO, 1);
+		options.blockSize = (Integer) parser.getOptionValue(blockSizeO, 0);
+		options.queueSize = (Integer) parser.getOptionValue(queueSizeO, options.queueSize);
+		int[] pipelineThreads = (int[]) parser.getOptionValue(pipelineO);
+		if (pipelineThreads != null)
+		{
+			options.pipeline = true;
+			options.readThreads = pipelineThreads[0];
+			options.transformThreads = pipelineThreads[1];
+			options.encodeThreads = pipelineThreads[2];
+			options.writeThreads = pipelineThreads[3];
+		}
+		options.fusedOverviews = !nooverviews && (Boolean) parser.getOptionValue(fusedO, false);
+		options.bilinearOverviews = bilinearOverviews;
+		options.stripSize = (Integer) parser.getOptionValue(stripSizeO, 0) * 1024L * 1024L;
+		options.deduplicate = (Boolean) parser.getOptionValue(dedupO, false);
+		options.warpPlan = (Boolean) parser.getOptionValue(warpPlanO, false);
+		options.updateSector = (Sector) parser.getOptionValue(updateO);
+		Boolean updateChanged = (Boolean) parser.getOptionValue(updateChangedO, false);
+		if (options.updateSector != null || updateChanged)
+		{
+			//the fused pyramid builder regenerates the whole pyramid
+			options.fusedOverviews = false;
+		}
+		String pack = (String) parser.getOptionValue(packO);
+		if (pack != null)
+		{
+			pack = pack.toUpperCase();
+			if (!(pack.equals("LEVEL") || pack.equals("DATASET")))
+			{
+				exitWithMessage("Unknown pack mode: " + pack);
+			}
+		}
+		String dds = (String) parser.getOptionValue(ddsO);
+		Boolean ddsOnly = (Boolean) parser.getOptionValue(ddsOnlyO, false);
+		if (ddsOnly && dds == null)
+		{
+			dds = "AUTO";
+		}
+		DDSEncoder.Format ddsFormat = null;
+		if (dds != null)
+		{
+			if (elevations)
+			{
+				exitWithMessage("DDS tiles can only be baked from image tiles");
+			}
+			try
+			{
+				ddsFormat = DDSBaker.parseFormat(dds);
+			}
+			catch (IllegalArgumentException e)
+			{
+				exitWithMessage(e.getMessage());
+			}
+		}
+		if (options.queueSize < 1)
+		{
+			exitWithMessage("Queue size must be at least 1");
+		}
+		if (options.threads < 1)
+		{
+			exitWithMessage("Thread count must be at least 1");
+		}
+
 		try
 		{
 			GDALUtil.init();
@@ -285,6 +427,24 @@ public class Console
 						+ ") doesn't equal output band count (" + bandCount + ")");
 			}
 
+			if (updateChanged)
+			{
+				//the journal is last modified when the previous run finished writing tiles
+				File journal = new File(new File(output, String.valueOf(level)), TileJournal.FILENAME);
+				if (!journal.exists())
+				{
+					exitWithMessage("Tile journal not found, cannot find changes since the previous run: " + journal);
+				}
+				Sector changed = GDALUtil.getChangedSector(dataset, journal.lastModified());
+				if (changed == null)
+				{
+					System.out.println("No source files have changed since the previous run");
+					return;
+				}
+				options.updateSector =
+						options.updateSector == null ? changed : options.updateSector.union(changed);
+			}
+
 			ConsoleProgressReporter reporter = new ConsoleProgressReporter();
 
 			LogWriter logWriter = null;
@@ -304,14 +464,17 @@ public class Console
 					NumberArray minMax = new NumberArray(2);
 					Tiler.tileElevations(dataset, reproject, bilinear, sector, origin, level, tilesize, lzts,
 							bufferType, band, outside, replaces.replaceMinMaxs, replaces.replace, replaces.otherwise,
-							minMax, output, true, reporter);
-					if (!nooverviews)
+							minMax, output, true, options, reporter);
+					checkNotCancelled(reporter);
+					if (!nooverviews && !options.fusedOverviews)
 					{
 						Overviewer.createElevationOverviews(output, tilesize, tilesize, bufferType,
 								ByteOrder.LITTLE_ENDIAN, outside, sector, origin, lzts, bilinearOverviews,
-								!includeBlank, reporter);
+								!includeBlank, options, reporter);
 					}
+					checkNotCancelled(reporter);
 					logWriter.logMinMax(minMax, isFloat);
+					packTiles(output, "bil", pack, reporter);
 				}
 				else
 				{
@@ -321,12 +484,25 @@ public class Console
 
 					Tiler.tileImages(dataset, reproject, bilinear, sector, origin, level, tilesize, lzts, imageFormat,
 							addAlpha, quality.floatValue(), outside, !includeBlank, replaces.replaceMinMaxs,
-							replaces.replace, replaces.otherwise, output, true, reporter);
-					if (!nooverviews)
+							replaces.replace, replaces.otherwise, output, true, options, reporter);
+					checkNotCancelled(reporter);
+					if (!nooverviews && !options.fusedOverviews)
 					{
 						Overviewer.createImageOverviews(output, imageFormat, tilesize, tilesize, outside, sector,
-								origin, lzts, bilinearOverviews, !includeBlank, quality.floatValue(), reporter);
+								origin, lzts, bilinearOverviews, !includeBlank, quality.floatValue(), options, reporter);
+					}
+					checkNotCancelled(reporter);
+					String packFormat = imageFormat;
+					if (dds != null)
+					{
+						DDSBaker.bake(output, imageFormat, ddsFormat, true, ddsOnly, options.threads, reporter);
+						checkNotCancelled(reporter);
+						if (ddsOnly)
+						{
+							packFormat = DDSEncoder.EXTENSION;
+						}
 					}
+					packTiles(output, packFormat, pack, reporter);
 				}
 			}
 			finally
@@ -347,6 +523,31 @@ public class Console
 		}
 	}
 
+	/**
+	 * Stop the run if a step has cancelled it (tiling steps cancel when one of
+	 * their workers fails), so later steps don't build on incomplete output.
+	 */
+	private static void checkNotCancelled(ProgressReporter reporter) throws TilerException
+	{
+		if (reporter.isCancelled())
+		{
+			throw new TilerException("Tiling failed, see the log for details");
+		}
+	}
+
+	private static void packTiles(File output, String extension, String pack, ProgressReporter reporter)
+			throws IOException
+	{
+		if ("LEVEL".equals(pack))
+		{
+			TilePacker.packLevels(output, extension, true, reporter);
+		}
+		else if ("DATASET".equals(pack))
+		{
+			TilePacker.packTileset(output, extension, true, reporter);
+		}
+	}
+
 	private static void exitWithMessage(String message)
 	{
 		System.err.println(message);
@@ -369,6 +570,44 @@ public class Console
 		}
 	}
 
+	private static Sector parseSector(Option option, String arg) throws IllegalOptionValueException
+	{
+		try
+		{
+			String[] split = (arg + " ").split(","); //split doesn't work if there are no values
+			Double[] d = stringsToDoubles(split);
+			if (d.length == 4 && d[0] < d[2] && d[1] < d[3])
+				return new Sector(d[0], d[1], d[2], d[3]);
+			throw new Exception();
+		}
+		catch (Exception e)
+		{
+			throw new IllegalOptionValueException(option, arg);
+		}
+	}
+
+	private static int[] parsePipelineThreads(Option option, String arg) throws IllegalOptionValueException
+	{
+		try
+		{
+			String[] split = arg.split(",");
+			if (split.length != 4)
+				throw new Exception();
+			int[] threads = new int[split.length];
+			for (int i = 0; i < split.length; i++)
+			{
+				threads[i] = Integer.parseInt(split[i].trim());
+				if (threads[i] < 1)
+					throw new Exception();
+			}
+			return threads;
+		}
+		catch (Exception e)
+		{
+			throw new IllegalOptionValueException(option, arg);
+		}
+	}
+
 	private static NullableNumberArray parseNumberArray(Option option, String arg) throws IllegalOptionValueException
 	{
 		try
@@ -469,6 +708,7 @@ public class Console
 		private int oldforty = -1;
 		private int forty = 0;
 		private boolean needsNewLine = false;
+		private volatile boolean cancelled = false;
 
 		public ConsoleProgressReporter()
 		{
@@ -478,6 +718,8 @@ public class Console
 		@Override
 		public void cancel()
 		{
+			//there is no user to cancel a console run, but tiling cancels when a worker fails
+			cancelled = true;
 		}
 
 		@Override
@@ -494,7 +736,7 @@ public class Console
 		@Override
 		public boolean isCancelled()
 		{
-			return false;
+			return cancelled;
 		}
 
 		@Override
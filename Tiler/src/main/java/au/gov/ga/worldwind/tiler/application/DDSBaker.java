@@ -0,0 +1,337 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import jargs.gnu.CmdLineParser;
+import jargs.gnu.CmdLineParser.Option;
+import jargs.gnu.CmdLineParser.OptionException;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import au.gov.ga.worldwind.tiler.application.Console.ConsoleProgressReporter;
+import au.gov.ga.worldwind.tiler.util.DDSEncoder;
+import au.gov.ga.worldwind.tiler.util.FileUtil;
+import au.gov.ga.worldwind.tiler.util.ProgressReporter;
+import au.gov.ga.worldwind.tiler.util.TilePacker;
+
+/**
+ * Bakes the image tiles of a tileset (<code>level/row/row_col.ext</code>) into
+ * DXT compressed DDS tiles (<code>level/row/row_col.dds</code>) using the
+ * {@link DDSEncoder}. Layers with a DDS texture format otherwise compress every
+ * tile as it is loaded; baking the tiles once when the tileset is published
+ * means the tiles can be uploaded as they are.
+ * <p/>
+ * Tiles are baked in parallel. DDS tiles newer than their source tile are
+ * skipped, so an interrupted bake can be resumed. The source tiles can
+ * optionally be deleted once their DDS tile has been written.
+ */
+public class DDSBaker
+{
+	private static void printUsage()
+	{
+		// @formatter:off
+		String text =
+				"Usage: [{-h,--help}] [{-f,--format} {DXT1|DXT5|AUTO}] [{-n,--nomipmaps}]\n"
+						+ "       [{-d,--delete}] [{-w,--threads} threads] tileset_directory extension\n"
+						+ "\n"
+						+ "  -h         Show this help\n"
+						+ "  -f format  DXT compression format; AUTO uses DXT5 for tiles containing\n"
+						+ "             transparent pixels, and DXT1 otherwise (default: AUTO)\n"
+						+ "  -n         Don't include mipmaps in the DDS tiles\n"
+						+ "  -d         Delete the source tiles once they have been baked\n"
+						+ "  -w threads Number of baking threads (default: number of processors)";
+		// @formatter:on
+		System.out.println(text);
+	}
+
+	public static void main(String[] args)
+	{
+		CmdLineParser parser = new CmdLineParser();
+		Option helpO = parser.addBooleanOption('h', "help");
+		Option formatO = parser.addStringOption('f', "format");
+		Option nomipmapsO = parser.addBooleanOption('n', "nomipmaps");
+		Option deleteO = parser.addBooleanOption('d', "delete");
+		Option threadsO = parser.addIntegerOption('w', "threads");
+
+		try
+		{
+			parser.parse(args);
+		}
+		catch (OptionException e)
+		{
+			exitWithMessage(e.getMessage());
+		}
+
+		String[] otherArgs = parser.getRemainingArgs();
+		if ((Boolean) parser.getOptionValue(helpO, false) || otherArgs.length < 2)
+		{
+			printUsage();
+			System.exit(0);
+		}
+
+		File directory = new File(otherArgs[0]);
+		if (!directory.isDirectory())
+		{
+			exitWithMessage("Not a directory: " + otherArgs[0]);
+		}
+
+		DDSEncoder.Format format = null;
+		try
+		{
+			format = parseFormat((String) parser.getOptionValue(formatO, "AUTO"));
+		}
+		catch (IllegalArgumentException e)
+		{
+			exitWithMessage(e.getMessage());
+		}
+		boolean mipmaps = !(Boolean) parser.getOptionValue(nomipmapsO, false);
+		boolean delete = (Boolean) parser.getOptionValue(deleteO, false);
+		int threads = (Integer) parser.getOptionValue(threadsO, Runtime.getRuntime().availableProcessors());
+		if (threads < 1)
+		{
+			exitWithMessage("Thread count must be at least 1");
+		}
+
+		try
+		{
+			bake(directory, otherArgs[1], format, mipmaps, delete, threads, new ConsoleProgressReporter());
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Parse a DDS format name (DXT1, DXT5 or AUTO).
+	 * 
+	 * @return Format, or null for AUTO
+	 * @throws IllegalArgumentException
+	 *             If the name is not recognised
+	 */
+	public static DDSEncoder.Format parseFormat(String name)
+	{
+		name = name.toUpperCase();
+		if (name.equals("AUTO"))
+		{
+			return null;
+		}
+		for (DDSEncoder.Format format : DDSEncoder.Format.values())
+		{
+			if (format.name().equals(name))
+			{
+				return format;
+			}
+		}
+		throw new IllegalArgumentException("Unknown DDS format: " + name);
+	}
+
+	/**
+	 * Bake each image tile in a tileset to a DDS tile next to it.
+	 * 
+	 * @param directory
+	 *            Tileset directory
+	 * @param extension
+	 *            Extension of the image tiles to bake
+	 * @param format
+	 *            DXT compression format, or null to choose per tile
+	 * @param mipmaps
+	 *            Include mipmaps in the DDS tiles?
+	 * @param deleteTiles
+	 *            Delete the image tiles once they have been baked
+	 * @param threads
+	 *            Number of threads to bake with
+	 * @param progress
+	 *            Object to report progress
+	 */
+	public static void bake(File directory, String extension, final DDSEncoder.Format format,
+			final boolean mipmaps, final boolean deleteTiles, int threads, final ProgressReporter progress)
+			throws IOException
+	{
+		final List<File> tiles = findTiles(directory, extension);
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger count = new AtomicInteger(0);
+		final AtomicInteger baked = new AtomicInteger(0);
+		final AtomicLong bytes = new AtomicLong(0);
+		long start = System.currentTimeMillis();
+
+		threads = Math.max(1, Math.min(threads, tiles.size()));
+		progress.getLogger().info(
+				"Baking " + tiles.size() + " tiles in " + directory + " to DDS using " + threads + " threads");
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < threads; i++)
+		{
+			futures.add(executor.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					int index;
+					while (!progress.isCancelled() && (index = next.getAndIncrement()) < tiles.size())
+					{
+						long size = bakeTile(tiles.get(index), format, mipmaps, deleteTiles, progress);
+						if (size >= 0)
+						{
+							baked.incrementAndGet();
+							bytes.addAndGet(size);
+						}
+						int c = count.incrementAndGet();
+						synchronized (progress)
+						{
+							progress.progress(c / (double) tiles.size());
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		try
+		{
+			for (Future<Void> future : futures)
+			{
+				future.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			progress.cancel();
+			executor.shutdownNow();
+		}
+		catch (ExecutionException e)
+		{
+			progress.cancel();
+			executor.shutdownNow();
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			if (cause instanceof IOException)
+			{
+				throw (IOException) cause;
+			}
+			throw new IOException("Error baking DDS tiles: " + cause.getMessage());
+		}
+
+		progress.getLogger().info(
+				"Baked " + baked.get() + " DDS tiles (" + bytes.get() + " bytes) in "
+						+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Bake a single tile.
+	 * 
+	 * @return Size of the DDS tile written, or -1 if the tile was skipped
+	 */
+	private static long bakeTile(File tile, DDSEncoder.Format format, boolean mipmaps, boolean deleteTile,
+			ProgressReporter progress) throws IOException
+	{
+		String name = tile.getName();
+		File dds =
+				new File(tile.getParentFile(), name.substring(0, name.lastIndexOf('.') + 1) + DDSEncoder.EXTENSION);
+		if (dds.exists() && dds.lastModified() >= tile.lastModified())
+		{
+			if (deleteTile)
+			{
+				tile.delete();
+			}
+			return -1;
+		}
+
+		BufferedImage image = ImageIO.read(tile);
+		if (image == null)
+		{
+			progress.getLogger().warning("Could not read tile image: " + tile);
+			return -1;
+		}
+		byte[] data = DDSEncoder.encode(image, format, mipmaps);
+
+		//write to a temporary file first, so a partially written tile is never mistaken for a baked tile
+		File temp = FileUtil.tempFile(dds);
+		FileOutputStream fos = new FileOutputStream(temp);
+		try
+		{
+			fos.write(data);
+		}
+		finally
+		{
+			fos.close();
+		}
+		FileUtil.replace(temp, dds);
+
+		if (deleteTile)
+		{
+			tile.delete();
+		}
+		return data.length;
+	}
+
+	/**
+	 * @return The tile files with the given extension in each level of the
+	 *         tileset
+	 */
+	private static List<File> findTiles(File directory, String extension)
+	{
+		Pattern pattern = Pattern.compile("\\d+_\\d+\\." + Pattern.quote(extension), Pattern.CASE_INSENSITIVE);
+		List<File> tiles = new ArrayList<File>();
+		for (Integer level : TilePacker.findLevels(directory))
+		{
+			File[] rowDirs = new File(directory, String.valueOf(level)).listFiles();
+			if (rowDirs == null)
+			{
+				continue;
+			}
+			for (File rowDir : rowDirs)
+			{
+				File[] files = rowDir.isDirectory() ? rowDir.listFiles() : null;
+				if (files == null)
+				{
+					continue;
+				}
+				for (File file : files)
+				{
+					if (pattern.matcher(file.getName()).matches() && file.isFile())
+					{
+						tiles.add(file);
+					}
+				}
+			}
+		}
+		return tiles;
+	}
+
+	private static void exitWithMessage(String message)
+	{
+		System.err.println(message);
+		System.exit(2);
+	}
+}
@@ -0,0 +1,496 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import au.gov.ga.worldwind.tiler.util.NullableNumberArray;
+
+/**
+ * Reduces a 2x2 block of elevation tiles into a single overview tile. There
+ * is a kernel for each primitive sample type, which copies rows of samples
+ * between typed views of the tile buffers and primitive arrays, so no values
+ * are boxed. Kernels hold no per-tile state, and can be shared between
+ * threads.
+ * <p/>
+ * A destination sample is set to the outside value (if any) when any of the
+ * source samples it is averaged from equal the outside value. Floating point
+ * values are compared by their bits, so a NaN outside value is matched.
+ */
+abstract class ElevationOverviewKernel
+{
+	protected final boolean bilinear;
+
+	protected ElevationOverviewKernel(boolean bilinear)
+	{
+		this.bilinear = bilinear;
+	}
+
+	/**
+	 * Create a kernel for a single band.
+	 * 
+	 * @param bufferTypeSize
+	 *            Size of each sample in bytes (1, 2, 4 or 8)
+	 * @param floatingPoint
+	 *            Are the samples floating point?
+	 * @param outsideValues
+	 *            Values outside the dataset extents for each band (can be null)
+	 * @param band
+	 *            Band the kernel is used for
+	 * @param bilinear
+	 *            Average each 2x2 block of source samples? If false, the top
+	 *            left sample of each block is used.
+	 */
+	public static ElevationOverviewKernel create(int bufferTypeSize, boolean floatingPoint,
+			NullableNumberArray outsideValues, int band, boolean bilinear)
+	{
+		switch (bufferTypeSize)
+		{
+		case 1:
+			return new ByteKernel(outsideValues == null ? null : outsideValues.getByte(band), bilinear);
+		case 2:
+			return new ShortKernel(outsideValues == null ? null : outsideValues.getShort(band), bilinear);
+		case 4:
+			return floatingPoint ? new FloatKernel(outsideValues == null ? null : outsideValues.getFloat(band),
+					bilinear) : new IntKernel(outsideValues == null ? null : outsideValues.getInt(band), bilinear);
+		case 8:
+			return new DoubleKernel(outsideValues == null ? null : outsideValues.getDouble(band), bilinear);
+		}
+		throw new IllegalArgumentException("Illegal buffer type size: " + bufferTypeSize);
+	}
+
+	/**
+	 * Reduce a source tile into one quadrant of the destination tile. Both
+	 * buffers must be positioned at 0, and have the same byte order.
+	 * 
+	 * @param src
+	 *            Source tile, or null if the source tile doesn't exist (the
+	 *            quadrant is set to the outside value, if any)
+	 * @param dst
+	 *            Destination tile
+	 * @param width
+	 *            Width of each tile
+	 * @param height
+	 *            Height of each tile
+	 * @param offset
+	 *            Offset of the band in both tiles (in samples)
+	 * @param dstX
+	 *            X offset of the quadrant in the destination tile
+	 * @param dstY
+	 *            Y offset of the quadrant in the destination tile
+	 */
+	public abstract void reduce(ByteBuffer src, ByteBuffer dst, int width, int height, int offset, int dstX, int dstY);
+
+	private static class ByteKernel extends ElevationOverviewKernel
+	{
+		private final boolean hasOutside;
+		private final byte outside;
+
+		public ByteKernel(Byte outsideValue, boolean bilinear)
+		{
+			super(bilinear);
+			hasOutside = outsideValue != null;
+			outside = hasOutside ? outsideValue : (byte) 0;
+		}
+
+		private boolean isOutside(byte v)
+		{
+			return v == outside;
+		}
+
+		@Override
+		public void reduce(ByteBuffer src, ByteBuffer dst, int width, int height, int offset, int dstX, int dstY)
+		{
+			int w2 = width / 2;
+			int h2 = height / 2;
+			ByteBuffer d = dst.duplicate();
+			byte[] row = new byte[w2];
+			if (src == null)
+			{
+				if (hasOutside)
+				{
+					Arrays.fill(row, outside);
+					for (int y = 0; y < h2; y++)
+					{
+						d.position(offset + (dstY + y) * width + dstX);
+						d.put(row);
+					}
+				}
+				return;
+			}
+
+			ByteBuffer s = src.duplicate();
+			byte[] row0 = new byte[width];
+			byte[] row1 = new byte[width];
+			for (int y = 0; y < h2; y++)
+			{
+				s.position(offset + (y * 2) * width);
+				s.get(row0);
+				if (bilinear)
+				{
+					s.get(row1);
+					for (int x = 0, sx = 0; x < w2; x++, sx += 2)
+					{
+						byte v0 = row0[sx];
+						byte v1 = row0[sx + 1];
+						byte v2 = row1[sx];
+						byte v3 = row1[sx + 1];
+						if (hasOutside && (isOutside(v0) || isOutside(v1) || isOutside(v2) || isOutside(v3)))
+						{
+							row[x] = outside;
+						}
+						else
+						{
+							row[x] = (byte) ((v0 + v1 + v2 + v3) / 4);
+						}
+					}
+				}
+				else
+				{
+					for (int x = 0, sx = 0; x < w2; x++, sx += 2)
+					{
+						row[x] = row0[sx];
+					}
+				}
+				d.position(offset + (dstY + y) * width + dstX);
+				d.put(row);
+			}
+		}
+	}
+
+	private static class ShortKernel extends ElevationOverviewKernel
+	{
+		private final boolean hasOutside;
+		private final short outside;
+
+		public ShortKernel(Short outsideValue, boolean bilinear)
+		{
+			super(bilinear);
+			hasOutside = outsideValue != null;
+			outside = hasOutside ? outsideValue : (short) 0;
+		}
+
+		private boolean isOutside(short v)
+		{
+			return v == outside;
+		}
+
+		@Override
+		public void reduce(ByteBuffer src, ByteBuffer dst, int width, int height, int offset, int dstX, int dstY)
+		{
+			int w2 = width / 2;
+			int h2 = height / 2;
+			ShortBuffer d = dst.asShortBuffer();
+			short[] row = new short[w2];
+			if (src == null)
+			{
+				if (hasOutside)
+				{
+					Arrays.fill(row, outside);
+					for (int y = 0; y < h2; y++)
+					{
+						d.position(offset + (dstY + y) * width + dstX);
+						d.put(row);
+					}
+				}
+				return;
+			}
+
+			ShortBuffer s = src.asShortBuffer();
+			short[] row0 = new short[width];
+			short[] row1 = new short[width];
+			for (int y = 0; y < h2; y++)
+			{
+				s.position(offset + (y * 2) * width);
+				s.get(row0);
+				if (bilinear)
+				{
+					s.get(row1);
+					for (int x = 0, sx = 0; x < w2; x++, sx += 2)
+					{
+						short v0 = row0[sx];
+						short v1 = row0[sx + 1];
+						short v2 = row1[sx];
+						short v3 = row1[sx + 1];
+						if (hasOutside && (isOutside(v0) || isOutside(v1) || isOutside(v2) || isOutside(v3)))
+						{
+							row[x] = outside;
+						}
+						else
+						{
+							row[x] = (short) ((v0 + v1 + v2 + v3) / 4);
+						}
+					}
+				}
+				else
+				{
+					for (int x = 0, sx = 0; x < w2; x++, sx += 2)
+					{
+						row[x] = row0[sx];
+					}
+				}
+				d.position(offset + (dstY + y) * width + dstX);
+				d.put(row);
+			}
+		}
+	}
+
+	private static class IntKernel extends ElevationOverviewKernel
+	{
+		private final boolean hasOutside;
+		private final int outside;
+
+		public IntKernel(Integer outsideValue, boolean bilinear)
+		{
+			super(bilinear);
+			hasOutside = outsideValue != null;
+			outside = hasOutside ? outsideValue : 0;
+		}
+
+		private boolean isOutside(int v)
+		{
+			return v == outside;
+		}
+
+		@Override
+		public void reduce(ByteBuffer src, ByteBuffer dst, int width, int height, int offset, int dstX, int dstY)
+		{
+			int w2 = width / 2;
+			int h2 = height / 2;
+			IntBuffer d = dst.asIntBuffer();
+			int[] row = new int[w2];
+			if (src == null)
+			{
+				if (hasOutside)
+				{
+					Arrays.fill(row, outside);
+					for (int y = 0; y < h2; y++)
+					{
+						d.position(offset + (dstY + y) * width + dstX);
+						d.put(row);
+					}
+				}
+				return;
+			}
+
+			IntBuffer s = src.asIntBuffer();
+			int[] row0 = new int[width];
+			int[] row1 = new int[width];
+			for (int y = 0; y < h2; y++)
+			{
+				s.position(offset + (y * 2) * width);
+				s.get(row0);
+				if (bilinear)
+				{
+					s.get(row1);
+					for (int x = 0, sx = 0; x < w2; x++, sx += 2)
+					{
+						int v0 = row0[sx];
+						int v1 = row0[sx + 1];
+						int v2 = row1[sx];
+						int v3 = row1[sx + 1];
+						if (hasOutside && (isOutside(v0) || isOutside(v1) || isOutside(v2) || isOutside(v3)))
+						{
+							row[x] = outside;
+						}
+						else
+						{
+							row[x] = (int) (((long) v0 + v1 + v2 + v3) / 4l);
+						}
+					}
+				}
+				else
+				{
+					for (int x = 0, sx = 0; x < w2; x++, sx += 2)
+					{
+						row[x] = row0[sx];
+					}
+				}
+				d.position(offset + (dstY + y) * width + dstX);
+				d.put(row);
+			}
+		}
+	}
+
+	private static class FloatKernel extends ElevationOverviewKernel
+	{
+		private final boolean hasOutside;
+		private final boolean outsideNaN;
+		private final float outside;
+		private final int outsideBits;
+
+		public FloatKernel(Float outsideValue, boolean bilinear)
+		{
+			super(bilinear);
+			hasOutside = outsideValue != null;
+			outside = hasOutside ? outsideValue : 0;
+			outsideNaN = Float.isNaN(outside);
+			outsideBits = Float.floatToRawIntBits(outside);
+		}
+
+		private boolean isOutside(float v)
+		{
+			//same as Float.equals(), without the NaN canonicalization for each value
+			return outsideNaN ? v != v : Float.floatToRawIntBits(v) == outsideBits;
+		}
+
+		@Override
+		public void reduce(ByteBuffer src, ByteBuffer dst, int width, int height, int offset, int dstX, int dstY)
+		{
+			int w2 = width / 2;
+			int h2 = height / 2;
+			FloatBuffer d = dst.asFloatBuffer();
+			float[] row = new float[w2];
+			if (src == null)
+			{
+				if (hasOutside)
+				{
+					Arrays.fill(row, outside);
+					for (int y = 0; y < h2; y++)
+					{
+						d.position(offset + (dstY + y) * width + dstX);
+						d.put(row);
+					}
+				}
+				return;
+			}
+
+			FloatBuffer s = src.asFloatBuffer();
+			float[] row0 = new float[width];
+			float[] row1 = new float[width];
+			for (int y = 0; y < h2; y++)
+			{
+				s.position(offset + (y * 2) * width);
+				s.get(row0);
+				if (bilinear)
+				{
+					s.get(row1);
+					for (int x = 0, sx = 0; x < w2; x++, sx += 2)
+					{
+						float v0 = row0[sx];
+						float v1 = row0[sx + 1];
+						float v2 = row1[sx];
+						float v3 = row1[sx + 1];
+						if (hasOutside && (isOutside(v0) || isOutside(v1) || isOutside(v2) || isOutside(v3)))
+						{
+							row[x] = outside;
+						}
+						else
+						{
+							row[x] = (float) (((double) v0 + v1 + v2 + v3) / 4d);
+						}
+					}
+				}
+				else
+				{
+					for (int x = 0, sx = 0; x < w2; x++, sx += 2)
+					{
+						row[x] = row0[sx];
+					}
+				}
+				d.position(offset + (dstY + y) * width + dstX);
+				d.put(row);
+			}
+		}
+	}
+
+	private static class DoubleKernel extends ElevationOverviewKernel
+	{
+		private final boolean hasOutside;
+		private final boolean outsideNaN;
+		private final double outside;
+		private final long outsideBits;
+
+		public DoubleKernel(Double outsideValue, boolean bilinear)
+		{
+			super(bilinear);
+			hasOutside = outsideValue != null;
+			outside = hasOutside ? outsideValue : 0;
+			outsideNaN = Double.isNaN(outside);
+			outsideBits = Double.doubleToRawLongBits(outside);
+		}
+
+		private boolean isOutside(double v)
+		{
+			//same as Double.equals(), without the NaN canonicalization for each value
+			return outsideNaN ? v != v : Double.doubleToRawLongBits(v) == outsideBits;
+		}
+
+		@Override
+		public void reduce(ByteBuffer src, ByteBuffer dst, int width, int height, int offset, int dstX, int dstY)
+		{
+			int w2 = width / 2;
+			int h2 = height / 2;
+			DoubleBuffer d = dst.asDoubleBuffer();
+			double[] row = new double[w2];
+			if (src == null)
+			{
+				if (hasOutside)
+				{
+					Arrays.fill(row, outside);
+					for (int y = 0; y < h2; y++)
+					{
+						d.position(offset + (dstY + y) * width + dstX);
+						d.put(row);
+					}
+				}
+				return;
+			}
+
+			DoubleBuffer s = src.asDoubleBuffer();
+			double[] row0 = new double[width];
+			double[] row1 = new double[width];
+			for (int y = 0; y < h2; y++)
+			{
+				s.position(offset + (y * 2) * width);
+				s.get(row0);
+				if (bilinear)
+				{
+					s.get(row1);
+					for (int x = 0, sx = 0; x < w2; x++, sx += 2)
+					{
+						double v0 = row0[sx];
+						double v1 = row0[sx + 1];
+						double v2 = row1[sx];
+						double v3 = row1[sx + 1];
+						if (hasOutside && (isOutside(v0) || isOutside(v1) || isOutside(v2) || isOutside(v3)))
+						{
+							row[x] = outside;
+						}
+						else
+						{
+							row[x] = (v0 + v1 + v2 + v3) / 4d;
+						}
+					}
+				}
+				else
+				{
+					for (int x = 0, sx = 0; x < w2; x++, sx += 2)
+					{
+						row[x] = row0[sx];
+					}
+				}
+				d.position(offset + (dstY + y) * width + dstX);
+				d.put(row);
+			}
+		}
+	}
+}
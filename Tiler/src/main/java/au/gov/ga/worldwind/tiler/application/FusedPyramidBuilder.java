@@ -0,0 +1,718 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import javax.imageio.ImageIO;
+
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.gdal;
+
+import au.gov.ga.worldwind.tiler.application.Tiler.TilingType;
+import au.gov.ga.worldwind.tiler.gdal.GDALTile;
+import au.gov.ga.worldwind.tiler.gdal.GDALUtil;
+import au.gov.ga.worldwind.tiler.util.LatLon;
+import au.gov.ga.worldwind.tiler.util.NumberArray;
+import au.gov.ga.worldwind.tiler.util.ProgressReporter;
+import au.gov.ga.worldwind.tiler.util.Sector;
+import au.gov.ga.worldwind.tiler.util.Util;
+
+/**
+ * Builds a complete tile pyramid in a single pass. The base level is tiled in
+ * quadtree order; as each tile is generated, it is reduced in memory into its
+ * parent tile, and once all the children of a parent have been reduced the
+ * parent is written and reduced into its own parent, up to level 0. No tiles
+ * are read back from disk, except existing tiles when resuming.
+ * <p/>
+ * Each parent tile that is being built is held in memory until its last child
+ * is complete. As the tiles are generated in quadtree order, this is about one
+ * tile per level for each worker thread.
+ * <p/>
+ * The output is the same as tiling the base level and then running the
+ * {@link Overviewer}, except that the overviews of JPEG tilesets are mixed from
+ * the uncompressed child tiles, rather than from the decoded JPEGs.
+ */
+class FusedPyramidBuilder
+{
+	/**
+	 * Byte order of the elevation tiles; same as the order passed to the
+	 * {@link Overviewer} by the console and application.
+	 */
+	private static final ByteOrder ELEVATION_BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	private final TileGenerator generator;
+	private final Dataset dataset;
+	private final NumberArray minMax;
+	private final boolean floatingPoint;
+	private final TilingOptions options;
+	private final ProgressReporter progress;
+	private final File outputDirectory;
+	private final int baseLevel;
+
+	//tile grid of each level (inclusive)
+	private final int[] minX;
+	private final int[] maxX;
+	private final int[] minY;
+	private final int[] maxY;
+
+	//completion journal of each level (the base level's journal belongs to the generator)
+	private final TileJournal[] journals;
+
+	//parent tiles that are waiting for children, for each level
+	private final List<Map<Long, ParentTile>> parents = new ArrayList<Map<Long, ParentTile>>();
+
+	private final AtomicInteger completed = new AtomicInteger(0);
+	private final int size;
+
+	//image overview state
+	private BufferedImage outsideImage;
+
+	//elevation overview state
+	private ElevationOverviewKernel kernel;
+	private int bufferTypeSize;
+
+	public FusedPyramidBuilder(TileGenerator generator, Dataset dataset, NumberArray minMax, Sector sector,
+			LatLon origin, int level, double lzts, File outputDirectory, TilingOptions options,
+			ProgressReporter progress)
+	{
+		if (generator.type == TilingType.Mapnik)
+		{
+			throw new IllegalArgumentException("Mapnik tilesets cannot be built in a single pass");
+		}
+		if (generator.tilesize % 2 != 0)
+		{
+			throw new IllegalArgumentException("Tile size must be a multiple of 2");
+		}
+
+		this.generator = generator;
+		this.dataset = dataset;
+		this.minMax = minMax;
+		this.floatingPoint =
+				generator.type == TilingType.Elevations && GDALTile.isTypeFloatingPoint(generator.bufferType);
+		this.options = options;
+		this.progress = progress;
+		this.outputDirectory = outputDirectory;
+		this.baseLevel = level;
+
+		journals = new TileJournal[level + 1];
+		minX = new int[level + 1];
+		maxX = new int[level + 1];
+		minY = new int[level + 1];
+		maxY = new int[level + 1];
+		for (int l = 0; l <= level; l++)
+		{
+			minX[l] = Util.getTileX(sector.getMinLongitude() + 1e-10, origin, l, lzts);
+			maxX[l] = Util.getTileX(sector.getMaxLongitude() - 1e-10, origin, l, lzts);
+			minY[l] = Util.getTileY(sector.getMinLatitude() + 1e-10, origin, l, lzts);
+			maxY[l] = Util.getTileY(sector.getMaxLatitude() - 1e-10, origin, l, lzts);
+			parents.add(new HashMap<Long, ParentTile>());
+		}
+		size = (maxX[level] - minX[level] + 1) * (maxY[level] - minY[level] + 1);
+
+		if (generator.type == TilingType.Elevations)
+		{
+			bufferTypeSize = gdal.GetDataTypeSize(generator.bufferType) / 8;
+			kernel =
+					ElevationOverviewKernel.create(bufferTypeSize, floatingPoint, generator.outsideValues, 0,
+							options.bilinearOverviews);
+		}
+		else
+		{
+			outsideImage =
+					Overviewer.createOutsideImage(generator.tilesize, generator.tilesize, generator.outsideValues);
+		}
+	}
+
+	/**
+	 * Generate the base level tiles and all the overview levels. If a worker
+	 * fails, the remaining workers are stopped and the progress reporter is
+	 * cancelled.
+	 * 
+	 * @return False if a worker failed
+	 */
+	public boolean run()
+	{
+		progress.getLogger().info("Generating tiles and overviews...");
+
+		//split the pyramid into subtrees at the first level with enough tiles to keep the workers busy
+		int threads = Math.max(1, options.threads);
+		int splitLevel = 0;
+		while (splitLevel < baseLevel && tileCount(splitLevel) < threads * 4)
+		{
+			splitLevel++;
+		}
+		List<int[]> roots = new ArrayList<int[]>();
+		for (int Y = minY[splitLevel]; Y <= maxY[splitLevel]; Y++)
+		{
+			for (int X = minX[splitLevel]; X <= maxX[splitLevel]; X++)
+			{
+				roots.add(new int[] { X, Y });
+			}
+		}
+
+		boolean succeeded = true;
+		openJournals();
+		try
+		{
+			if (threads == 1)
+			{
+				for (int[] root : roots)
+				{
+					if (progress.isCancelled())
+						break;
+					visit(splitLevel, root[0], root[1], dataset, minMax);
+				}
+			}
+			else
+			{
+				succeeded = runParallel(splitLevel, roots, threads);
+			}
+		}
+		finally
+		{
+			closeJournals();
+		}
+
+		progress.getLogger().info(
+				"Tile and overview generation "
+						+ (!succeeded ? "failed" : progress.isCancelled() ? "cancelled" : "complete"));
+		return succeeded;
+	}
+
+	private void openJournals()
+	{
+		journals[baseLevel] = generator.journal;
+		for (int l = 0; l < baseLevel; l++)
+		{
+			File levelDir = new File(outputDirectory, String.valueOf(l));
+			levelDir.mkdirs();
+			try
+			{
+				journals[l] = TileJournal.open(levelDir, minX[l], maxX[l], minY[l], maxY[l]);
+			}
+			catch (IOException e)
+			{
+				progress.getLogger().warning(
+						"Error opening tile journal for level " + l + ", tiles will not be journaled: "
+								+ e.getMessage());
+			}
+		}
+	}
+
+	private void closeJournals()
+	{
+		for (int l = 0; l < baseLevel; l++)
+		{
+			if (journals[l] != null)
+			{
+				try
+				{
+					journals[l].close();
+				}
+				catch (IOException e)
+				{
+					progress.getLogger().warning("Error closing tile journal: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private boolean runParallel(final int splitLevel, final List<int[]> roots, int threads)
+	{
+		final AtomicInteger nextRoot = new AtomicInteger(0);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		try
+		{
+			for (int i = 0; i < threads; i++)
+			{
+				futures.add(executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						//GDAL datasets are not thread safe, so each worker needs its own handle
+						Dataset workerDataset = GDALUtil.reopen(dataset);
+						NumberArray workerMinMax = minMax != null ? new NumberArray(minMax.length()) : null;
+						if (workerMinMax != null)
+						{
+							Tiler.copyMinMax(minMax, workerMinMax, floatingPoint);
+						}
+						try
+						{
+							int index;
+							while (!failed.get() && (index = nextRoot.getAndIncrement()) < roots.size()
+									&& !progress.isCancelled())
+							{
+								int[] root = roots.get(index);
+								visit(splitLevel, root[0], root[1], workerDataset, workerMinMax);
+							}
+						}
+						finally
+						{
+							generator.closeReaders(workerDataset);
+							workerDataset.delete();
+							if (workerMinMax != null)
+							{
+								synchronized (minMax)
+								{
+									Tiler.mergeMinMax(workerMinMax, minMax, floatingPoint);
+								}
+							}
+						}
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Void> future : futures)
+			{
+				try
+				{
+					future.get();
+				}
+				catch (ExecutionException e)
+				{
+					Throwable cause = e.getCause() != null ? e.getCause() : e;
+					progress.getLogger().log(Level.SEVERE, "Tiling worker failed: " + cause.getMessage(), cause);
+					if (!failed.getAndSet(true))
+					{
+						//stop the other workers; their futures are still waited on so their datasets are closed
+						progress.cancel();
+						executor.shutdownNow();
+					}
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			progress.cancel();
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		return !failed.get();
+	}
+
+	/**
+	 * Build the subtree of the given tile in quadtree order, and pass the
+	 * tile to its parent once complete. Tiles that already exist are read
+	 * from disk, and their subtree is skipped.
+	 */
+	private void visit(int level, int X, int Y, Dataset dataset, NumberArray minMax)
+	{
+		if (X < minX[level] || X > maxX[level] || Y < minY[level] || Y > maxY[level] || progress.isCancelled())
+		{
+			return;
+		}
+
+		File dst = tileFile(level, X, Y);
+		TileJournal journal = journals[level];
+		if (isJournaled(level))
+		{
+			if (journal.isComplete(X, Y))
+			{
+				tilesDone(baseTileCount(level, X, Y));
+				childComplete(level, X, Y, journal.isBlank(X, Y) ? null : readExisting(dst));
+				return;
+			}
+		}
+		else if (dst.exists())
+		{
+			progress.getLogger().log(generator.resume ? Level.FINE : Level.WARNING,
+					dst.getAbsolutePath() + " already exists");
+			tilesDone(baseTileCount(level, X, Y));
+			childComplete(level, X, Y, readExisting(dst));
+			return;
+		}
+
+		if (level < baseLevel)
+		{
+			//children complete the parent tile through childComplete()
+			visit(level + 1, X * 2, Y * 2, dataset, minMax);
+			visit(level + 1, X * 2 + 1, Y * 2, dataset, minMax);
+			visit(level + 1, X * 2, Y * 2 + 1, dataset, minMax);
+			visit(level + 1, X * 2 + 1, Y * 2 + 1, dataset, minMax);
+			return;
+		}
+
+		progress.getLogger().fine("Tile (" + X + "," + Y + ")");
+		Object raster = null;
+		try
+		{
+			dst.getParentFile().mkdirs();
+			GDALTile tile = generator.readTile(X, Y, dataset);
+			if (generator.type == TilingType.Elevations)
+			{
+				ByteBuffer data = generator.transformElevations(tile, minMax);
+				generator.writeTile(X, Y, dst, data);
+				raster = data;
+			}
+			else
+			{
+				BufferedImage image = generator.transformImage(tile);
+				if (image != null)
+				{
+					generator.writeTile(X, Y, dst, ByteBuffer.wrap(generator.encodeImage(image)));
+				}
+				else
+				{
+					generator.blankTile(X, Y);
+				}
+				raster = image;
+			}
+		}
+		catch (Exception e)
+		{
+			generator.logTileError(e, progress);
+		}
+		tilesDone(1);
+		childComplete(level, X, Y, raster);
+	}
+
+	/**
+	 * Reduce a completed tile into its parent. If it was the parent's last
+	 * child, the parent is written and passed on to its own parent.
+	 *
+	 * @param raster
+	 *            Tile image or elevation data, or null if the tile is blank
+	 */
+	private void childComplete(int level, int X, int Y, Object raster)
+	{
+		while (level > 0)
+		{
+			int parentLevel = level - 1;
+			int PX = X / 2;
+			int PY = Y / 2;
+
+			ParentTile parent;
+			Map<Long, ParentTile> levelParents = parents.get(parentLevel);
+			Long key = ((long) PY << 32) | (PX & 0xffffffffL);
+			synchronized (levelParents)
+			{
+				parent = levelParents.get(key);
+				if (parent == null)
+				{
+					parent = new ParentTile(childCount(level, PX, PY));
+					levelParents.put(key, parent);
+				}
+			}
+
+			Object parentRaster;
+			synchronized (parent)
+			{
+				if (raster != null)
+				{
+					parent.reduce(X, Y, raster);
+				}
+				if (--parent.remaining > 0)
+				{
+					return;
+				}
+				synchronized (levelParents)
+				{
+					levelParents.remove(key);
+				}
+				parentRaster = parent.finish();
+			}
+
+			writeParent(parentLevel, PX, PY, parentRaster);
+
+			level = parentLevel;
+			X = PX;
+			Y = PY;
+			raster = parentRaster;
+		}
+	}
+
+	/**
+	 * Write a completed parent tile (unless it already exists and there is no
+	 * journal to say it is complete), and record it in the level's journal.
+	 */
+	private void writeParent(int level, int X, int Y, Object raster)
+	{
+		TileJournal journal = journals[level];
+		File dst = tileFile(level, X, Y);
+		try
+		{
+			if (raster == null)
+			{
+				if (journal != null)
+				{
+					journal.tileBlank(X, Y);
+				}
+				return;
+			}
+
+			if (!isJournaled(level) && dst.exists())
+			{
+				progress.getLogger().log(generator.resume ? Level.FINE : Level.WARNING,
+						dst.getAbsolutePath() + " already exists");
+				return;
+			}
+
+			dst.getParentFile().mkdirs();
+			ByteBuffer data;
+			if (generator.type == TilingType.Elevations)
+			{
+				data = (ByteBuffer) raster;
+			}
+			else
+			{
+				data = ByteBuffer.wrap(generator.encodeImage((BufferedImage) raster));
+			}
+			generator.writeFile(dst, data);
+			if (journal != null)
+			{
+				journal.tileWritten(X, Y, dst);
+			}
+		}
+		catch (IOException e)
+		{
+			progress.getLogger().severe(e.getMessage());
+		}
+	}
+
+	/**
+	 * @return True if the given level's completed tiles should be read from its
+	 *         journal, rather than checking which tile files exist
+	 */
+	private boolean isJournaled(int level)
+	{
+		return generator.resume && journals[level] != null && journals[level].existed();
+	}
+
+	private Object readExisting(File file)
+	{
+		try
+		{
+			if (generator.type == TilingType.Elevations)
+			{
+				return TileGenerator.readFile(file);
+			}
+			return ImageIO.read(file);
+		}
+		catch (Exception e)
+		{
+			progress.getLogger().severe("Error reading " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void tilesDone(int count)
+	{
+		int c = completed.addAndGet(count);
+		synchronized (progress)
+		{
+			progress.progress(c / (double) size);
+		}
+	}
+
+	private File tileFile(int level, int X, int Y)
+	{
+		return new File(outputDirectory, level + File.separator + Util.paddedInt(Y, 4) + File.separator
+				+ Util.paddedInt(Y, 4) + "_" + Util.paddedInt(X, 4) + "." + generator.outputExt);
+	}
+
+	private int tileCount(int level)
+	{
+		return (maxX[level] - minX[level] + 1) * (maxY[level] - minY[level] + 1);
+	}
+
+	/**
+	 * @return Number of children of the given parent tile within the grid of
+	 *         the child level
+	 */
+	private int childCount(int childLevel, int PX, int PY)
+	{
+		int count = 0;
+		for (int Y = PY * 2; Y <= PY * 2 + 1; Y++)
+		{
+			for (int X = PX * 2; X <= PX * 2 + 1; X++)
+			{
+				if (X >= minX[childLevel] && X <= maxX[childLevel] && Y >= minY[childLevel] && Y <= maxY[childLevel])
+				{
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return Number of base level tiles below the given tile
+	 */
+	private int baseTileCount(int level, int X, int Y)
+	{
+		int scale = 1 << (baseLevel - level);
+		int x0 = Math.max(X * scale, minX[baseLevel]);
+		int x1 = Math.min((X + 1) * scale - 1, maxX[baseLevel]);
+		int y0 = Math.max(Y * scale, minY[baseLevel]);
+		int y1 = Math.min((Y + 1) * scale - 1, maxY[baseLevel]);
+		return Math.max(0, x1 - x0 + 1) * Math.max(0, y1 - y0 + 1);
+	}
+
+	/**
+	 * Parent tile that is being built from its children. Each child is
+	 * reduced into its quadrant as it completes, so that the children don't
+	 * need to be kept in memory.
+	 */
+	private class ParentTile
+	{
+		public int remaining;
+		private final boolean[] reduced = new boolean[4];
+		private BufferedImage image;
+		private Graphics2D graphics;
+		private ByteBuffer data;
+
+		public ParentTile(int children)
+		{
+			this.remaining = children;
+		}
+
+		/**
+		 * Reduce the child tile at the given coordinates into this tile.
+		 */
+		public void reduce(int X, int Y, Object raster)
+		{
+			int w2 = generator.tilesize / 2;
+			int h2 = generator.tilesize / 2;
+
+			// +--+--+ 0
+			// |i1|i3|
+			// +--+--+ h2
+			// |i0|i2|
+			// +--+--+ h
+			// 0 w2 w
+			int quadrant = (X % 2) * 2 + (Y % 2);
+			int dstX = (X % 2) * w2;
+			int dstY = (Y % 2) == 0 ? h2 : 0;
+			reduced[quadrant] = true;
+
+			if (generator.type == TilingType.Elevations)
+			{
+				if (data == null)
+				{
+					data = ByteBuffer.allocate(generator.tilesize * generator.tilesize * bufferTypeSize);
+					data.order(ELEVATION_BYTE_ORDER);
+				}
+				ByteBuffer src = ((ByteBuffer) raster).duplicate();
+				src.order(ELEVATION_BYTE_ORDER);
+				src.rewind();
+				kernel.reduce(src, data, generator.tilesize, generator.tilesize, 0, dstX, dstY);
+			}
+			else
+			{
+				BufferedImage child = (BufferedImage) raster;
+				if (image == null)
+				{
+					createImage(child);
+				}
+				graphics.drawImage(child, dstX, dstY, dstX + w2, dstY + h2, 0, 0, generator.tilesize,
+						generator.tilesize, null);
+			}
+		}
+
+		/**
+		 * Fill the quadrants of any children that didn't exist, and return the
+		 * completed tile.
+		 *
+		 * @return Completed tile, or null if none of the children existed
+		 */
+		public Object finish()
+		{
+			if (image == null && data == null)
+			{
+				return null;
+			}
+
+			int w2 = generator.tilesize / 2;
+			int h2 = generator.tilesize / 2;
+			for (int quadrant = 0; quadrant < 4; quadrant++)
+			{
+				if (reduced[quadrant])
+				{
+					continue;
+				}
+				int dstX = (quadrant / 2) * w2;
+				int dstY = (quadrant % 2) == 0 ? h2 : 0;
+				if (data != null)
+				{
+					kernel.reduce(null, data, generator.tilesize, generator.tilesize, 0, dstX, dstY);
+				}
+				else if (outsideImage != null)
+				{
+					graphics.drawImage(outsideImage, dstX, dstY, dstX + w2, dstY + h2, 0, 0, generator.tilesize,
+							generator.tilesize, null);
+				}
+			}
+
+			if (graphics != null)
+			{
+				graphics.dispose();
+				return image;
+			}
+			return data;
+		}
+
+		private void createImage(BufferedImage child)
+		{
+			int w = generator.tilesize;
+			int h = generator.tilesize;
+			int type = child.getType() != 0 ? child.getType() : BufferedImage.TYPE_INT_ARGB;
+			image = new BufferedImage(w, h, type);
+			graphics = image.createGraphics();
+			if (options.bilinearOverviews)
+				graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+						RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			else
+				graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+						RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+
+			if (outsideImage == null && child.getColorModel().hasAlpha())
+			{
+				Composite c = graphics.getComposite();
+				graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.CLEAR, 0.0f));
+				graphics.fillRect(0, 0, w, h);
+				graphics.setComposite(c);
+			}
+		}
+	}
+}
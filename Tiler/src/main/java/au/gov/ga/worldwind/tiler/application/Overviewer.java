@@ -18,6 +18,7 @@ package au.gov.ga.worldwind.tiler.application;
 import java.awt.AlphaComposite;
 import java.awt.Composite;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.ComponentSampleModel;
@@ -30,16 +31,21 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 import javax.imageio.ImageIO;
 
@@ -47,8 +53,8 @@ import org.gdal.gdal.gdal;
 
 import au.gov.ga.worldwind.tiler.gdal.GDALTile;
 import au.gov.ga.worldwind.tiler.util.FileFilters.DirectoryFileFilter;
-import au.gov.ga.worldwind.tiler.util.FileFilters.ExtensionFileFilter;
 import au.gov.ga.worldwind.tiler.util.FileUtil;
+import au.gov.ga.worldwind.tiler.util.ImageEncoder;
 import au.gov.ga.worldwind.tiler.util.LatLon;
 import au.gov.ga.worldwind.tiler.util.NullableNumberArray;
 import au.gov.ga.worldwind.tiler.util.ProgressReporter;
@@ -95,9 +101,26 @@ public class Overviewer
 	public static void createImageOverviews(File directory, String extension, int width, int height,
 			NullableNumberArray outsideValues, Sector sector, LatLon origin, double lzts, boolean bilinear,
 			boolean ignoreBlank, float jpegQuality, ProgressReporter reporter)
+	{
+		createImageOverviews(directory, extension, width, height, outsideValues, sector, origin, lzts, bilinear,
+				ignoreBlank, jpegQuality, new TilingOptions(), reporter);
+	}
+
+	/**
+	 * Create the overviews of a set of image tiles, using the worker threads
+	 * and block size in the given options.
+	 * 
+	 * @see #createImageOverviews(File, String, int, int, NullableNumberArray,
+	 *      Sector, LatLon, double, boolean, boolean, float, ProgressReporter)
+	 * @param options
+	 *            Tiling engine options
+	 */
+	public static void createImageOverviews(File directory, String extension, int width, int height,
+			NullableNumberArray outsideValues, Sector sector, LatLon origin, double lzts, boolean bilinear,
+			boolean ignoreBlank, float jpegQuality, TilingOptions options, ProgressReporter reporter)
 	{
 		OverviewCreator overviewCreator = new ImageOverviewCreator(width, height, outsideValues, bilinear, jpegQuality);
-		createOverviews(overviewCreator, directory, extension, sector, origin, lzts, ignoreBlank, reporter);
+		createOverviews(overviewCreator, directory, extension, sector, origin, lzts, ignoreBlank, options, reporter);
 	}
 
 	/**
@@ -132,17 +155,51 @@ public class Overviewer
 	public static void createElevationOverviews(File directory, int width, int height, int bufferType,
 			ByteOrder byteOrder, NullableNumberArray outsideValues, Sector sector, LatLon origin, double lzts,
 			boolean bilinear, boolean ignoreBlank, ProgressReporter reporter)
+	{
+		createElevationOverviews(directory, width, height, bufferType, byteOrder, outsideValues, sector, origin, lzts,
+				bilinear, ignoreBlank, new TilingOptions(), reporter);
+	}
+
+	/**
+	 * Create the overviews of a set of elevation tiles, using the worker
+	 * threads and block size in the given options.
+	 * 
+	 * @see #createElevationOverviews(File, int, int, int, ByteOrder,
+	 *      NullableNumberArray, Sector, LatLon, double, boolean, boolean,
+	 *      ProgressReporter)
+	 * @param options
+	 *            Tiling engine options
+	 */
+	public static void createElevationOverviews(File directory, int width, int height, int bufferType,
+			ByteOrder byteOrder, NullableNumberArray outsideValues, Sector sector, LatLon origin, double lzts,
+			boolean bilinear, boolean ignoreBlank, TilingOptions options, ProgressReporter reporter)
 	{
 		int bands = 1;
 		OverviewCreator overviewCreator =
 				new ElevationOverviewCreator(width, height, bands, bufferType, byteOrder, outsideValues, bilinear);
-		createOverviews(overviewCreator, directory, "bil", sector, origin, lzts, ignoreBlank, reporter);
+		createOverviews(overviewCreator, directory, "bil", sector, origin, lzts, ignoreBlank, options, reporter);
 	}
 
-	private static void createOverviews(OverviewCreator overviewCreator, File directory, String extension,
-			Sector sector, LatLon origin, double lzts, boolean ignoreBlank, ProgressReporter progress)
+	/**
+	 * Create the overviews level by level, from the highest level up to level
+	 * 0. The parent tiles of each level are enumerated from the tile grid of
+	 * the sector, and each parent is mixed from its 2x2 block of child tiles.
+	 * If the options contain an update sector, only the parents intersecting
+	 * it are recomputed, replacing the existing parents.
+	 * The parents are split into row (or block) work units, which are
+	 * processed concurrently if more than one thread is configured. All work
+	 * units of a level are completed before the next level is started, as the
+	 * next level is generated from their output. If a work unit fails, the
+	 * progress reporter is cancelled (stopping the level's other work units),
+	 * and no further levels are generated from the incomplete level.
+	 */
+	private static void createOverviews(final OverviewCreator overviewCreator, File directory, String extension,
+			Sector sector, LatLon origin, double lzts, final boolean ignoreBlank, TilingOptions options,
+			final ProgressReporter progress)
 	{
 		progress.getLogger().info("Generating overviews...");
+		ImageEncoder.Statistics encoding = ImageEncoder.getStatistics();
+		final AtomicBoolean failed = new AtomicBoolean(false);
 
 		if (directory.isDirectory())
 		{
@@ -151,6 +208,7 @@ public class Overviewer
 			{
 				extension = extension.substring(1);
 			}
+			final String ext = extension;
 
 			File[] dirs = directory.listFiles(new DirectoryFileFilter());
 			int maxlevel = Integer.MIN_VALUE;
@@ -169,80 +227,220 @@ public class Overviewer
 				}
 			}
 
-			int count = 0;
+			final AtomicInteger count = new AtomicInteger(0);
 			int size = 0;
 			for (int i = 0; i < maxlevel; i++)
 			{
-				size += Util.tileCount(sector, origin, i, lzts);
+				Rectangle range = tileRange(sector, origin, i, lzts, options.updateSector);
+				size += range != null ? range.width * range.height : 0;
 			}
+			final int totalSize = size;
+			final boolean overwrite = options.updateSector != null;
 
-			for (int level = maxlevel; level > 0; level--)
+			ExecutorService executor = options.threads > 1 ? Executors.newFixedThreadPool(options.threads) : null;
+			try
 			{
-				if (progress.isCancelled())
-					break;
-
-				// level directory
-				File dir = new File(directory.getAbsolutePath() + "/" + level);
-
-				// create a list of files to process
-				ExtensionFileFilter fileFilter = new ExtensionFileFilter(extension);
-				Set<File> sourceFiles = new HashSet<File>();
-				FileUtil.recursivelyAddFiles(sourceFiles, dir, fileFilter);
-
-				while (!sourceFiles.isEmpty())
+				for (int level = maxlevel; level > 0; level--)
 				{
 					if (progress.isCancelled())
 						break;
 
-					count++;
-					progress.getLogger().fine("Overview " + count + "/" + size + " (" + (count * 100 / size) + "%)");
-					progress.progress(count / (double) size);
-
-					File file = sourceFiles.iterator().next();
-					String path = file.getName();
-					Pattern pattern = Pattern.compile("\\d+");
-					Matcher matcher = pattern.matcher(path);
-					matcher.find();
-					int row = Integer.parseInt(matcher.group());
-					matcher.find(matcher.end());
-					int col = Integer.parseInt(matcher.group());
-
-					int rowabove = row / 2;
-					int colabove = col / 2;
-
-					final File src0 = tileFile(dir, extension, rowabove * 2, colabove * 2);
-					final File src1 = tileFile(dir, extension, rowabove * 2 + 1, colabove * 2);
-					final File src2 = tileFile(dir, extension, rowabove * 2, colabove * 2 + 1);
-					final File src3 = tileFile(dir, extension, rowabove * 2 + 1, colabove * 2 + 1);
-
-					sourceFiles.remove(src0);
-					sourceFiles.remove(src1);
-					sourceFiles.remove(src2);
-					sourceFiles.remove(src3);
-
-					final File dst =
-							tileFile(new File(dir.getParent() + "/" + (level - 1)), extension, rowabove, colabove);
-					dst.getParentFile().mkdirs();
-					if (dst.exists())
+					// child level directory, and the parent level's tile grid
+					final File dir = new File(directory.getAbsolutePath() + "/" + level);
+					final File parentDir = new File(directory.getAbsolutePath() + "/" + (level - 1));
+					Rectangle range = tileRange(sector, origin, level - 1, lzts, options.updateSector);
+					if (range == null)
+						continue;
+					List<Rectangle> units =
+							Tiler.createWorkUnits(range.x, range.x + range.width - 1, range.y, range.y
+									+ range.height - 1, options.blockSize);
+
+					if (executor == null)
 					{
-						progress.getLogger().warning(dst.getAbsolutePath() + " already exists");
+						for (Rectangle unit : units)
+						{
+							createOverviews(overviewCreator, dir, parentDir, ext, unit, ignoreBlank, overwrite,
+									count, totalSize, progress);
+						}
+						continue;
 					}
-					else
+
+					List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(units.size());
+					for (final Rectangle unit : units)
+					{
+						tasks.add(new Callable<Void>()
+						{
+							@Override
+							public Void call() throws Exception
+							{
+								try
+								{
+									createOverviews(overviewCreator, dir, parentDir, ext, unit, ignoreBlank,
+											overwrite, count, totalSize, progress);
+								}
+								catch (RuntimeException e)
+								{
+									//stop the level's other work units, as the level can't be completed
+									failed.set(true);
+									progress.cancel();
+									throw e;
+								}
+								return null;
+							}
+						});
+					}
+
+					// invokeAll acts as the barrier between levels
+					for (Future<Void> future : executor.invokeAll(tasks))
 					{
 						try
 						{
-							overviewCreator.mix(src0, src1, src2, src3, dst, ignoreBlank);
+							future.get();
+						}
+						catch (ExecutionException e)
+						{
+							Throwable cause = e.getCause() != null ? e.getCause() : e;
+							progress.getLogger().log(Level.SEVERE, "Overview worker failed: " + cause.getMessage(),
+									cause);
+							if (!failed.getAndSet(true))
+							{
+								progress.cancel();
+							}
+						}
+					}
+					if (failed.get())
+						break;
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				progress.cancel();
+			}
+			finally
+			{
+				if (executor != null)
+				{
+					executor.shutdownNow();
+				}
+			}
+		}
+
+		Tiler.logEncoding(encoding, progress);
+		progress.getLogger().info(
+				"Overview generation " + (failed.get() ? "failed" : progress.isCancelled() ? "cancelled" : "complete"));
+	}
+
+	/**
+	 * Create the parent tiles within the given work unit (in parent tile
+	 * coordinates) from the child tiles in dir. Parents with no existing
+	 * children are skipped. If overwrite is true, existing parents are
+	 * replaced, and deleted if they no longer have any children (or are now
+	 * blank).
+	 */
+	private static void createOverviews(OverviewCreator overviewCreator, File dir, File parentDir, String extension,
+			Rectangle unit, boolean ignoreBlank, boolean overwrite, AtomicInteger count, int size,
+			ProgressReporter progress)
+	{
+		for (int rowabove = unit.y; rowabove < unit.y + unit.height; rowabove++)
+		{
+			// skip the existence checks if neither child row directory exists
+			boolean childRowsExist =
+					new File(dir, FileUtil.paddedInt(rowabove * 2, 4)).isDirectory()
+							|| new File(dir, FileUtil.paddedInt(rowabove * 2 + 1, 4)).isDirectory();
+
+			for (int colabove = unit.x; colabove < unit.x + unit.width; colabove++)
+			{
+				if (progress.isCancelled())
+					return;
+
+				int c = count.incrementAndGet();
+				progress.getLogger().fine("Overview " + c + "/" + size + " (" + (c * 100 / size) + "%)");
+				synchronized (progress)
+				{
+					progress.progress(c / (double) size);
+				}
+
+				final File dst = tileFile(parentDir, extension, rowabove, colabove);
+				if (!childRowsExist)
+				{
+					if (overwrite)
+					{
+						//the children of this parent no longer exist
+						dst.delete();
+					}
+					continue;
+				}
+
+				final File src0 = tileFile(dir, extension, rowabove * 2, colabove * 2);
+				final File src1 = tileFile(dir, extension, rowabove * 2 + 1, colabove * 2);
+				final File src2 = tileFile(dir, extension, rowabove * 2, colabove * 2 + 1);
+				final File src3 = tileFile(dir, extension, rowabove * 2 + 1, colabove * 2 + 1);
+
+				if (!(src0.exists() || src1.exists() || src2.exists() || src3.exists()))
+				{
+					if (overwrite)
+					{
+						dst.delete();
+					}
+					continue;
+				}
+
+				dst.getParentFile().mkdirs();
+				if (dst.exists() && !overwrite)
+				{
+					progress.getLogger().warning(dst.getAbsolutePath() + " already exists");
+				}
+				else
+				{
+					try
+					{
+						//mix into a temporary file, which atomically replaces an existing parent
+						File target = dst.exists() ? FileUtil.tempFile(dst) : dst;
+						if (target != dst)
+						{
+							target.delete();
 						}
-						catch (IOException e)
+						overviewCreator.mix(src0, src1, src2, src3, target, ignoreBlank);
+						if (target != dst)
 						{
-							progress.getLogger().severe(e.getMessage());
+							if (target.exists())
+							{
+								FileUtil.replace(target, dst);
+							}
+							else
+							{
+								//parent is now blank
+								dst.delete();
+							}
 						}
 					}
+					catch (IOException e)
+					{
+						progress.getLogger().severe(e.getMessage());
+					}
 				}
 			}
 		}
+	}
 
-		progress.getLogger().info("Overview generation " + (progress.isCancelled() ? "cancelled" : "complete"));
+	/**
+	 * Calculate the tile grid of the sector at the given level, restricted to
+	 * the tiles intersecting the update sector (if not null).
+	 * 
+	 * @return Tile grid, or null if no tiles intersect the update sector
+	 */
+	private static Rectangle tileRange(Sector sector, LatLon origin, int level, double lzts, Sector update)
+	{
+		int minX = Util.getTileX(sector.getMinLongitude() + 1e-10, origin, level, lzts);
+		int maxX = Util.getTileX(sector.getMaxLongitude() - 1e-10, origin, level, lzts);
+		int minY = Util.getTileY(sector.getMinLatitude() + 1e-10, origin, level, lzts);
+		int maxY = Util.getTileY(sector.getMaxLatitude() - 1e-10, origin, level, lzts);
+		if (update != null)
+		{
+			return Tiler.updateRange(minX, maxX, minY, maxY, update, origin, level, lzts);
+		}
+		return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
 	}
 
 	private static File tileFile(File dir, String extension, int row, int col)
@@ -251,6 +449,49 @@ public class Overviewer
 				+ "_" + FileUtil.paddedInt(col, 4) + "." + extension);
 	}
 
+	/**
+	 * Create an image filled with the given outside values, used in place of
+	 * child tiles that don't exist.
+	 * 
+	 * @return Outside image, or null if outsideValues is null
+	 */
+	static BufferedImage createOutsideImage(int width, int height, NullableNumberArray outsideValues)
+	{
+		if (outsideValues == null)
+		{
+			return null;
+		}
+
+		int bandCount = outsideValues.length();
+		int[] offsets = new int[bandCount];
+
+		byte[] bytes = new byte[bandCount * width * height];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+		for (int b = 0; b < bandCount; b++)
+		{
+			if (outsideValues.getByte(b) == null)
+				continue;
+
+			offsets[b] = b * width * height; // * bufferTypeSize;
+			for (int i = 0; i < width * height; i++)
+			{
+				int index = offsets[b] + i;
+				buffer.put(index, outsideValues.getByte(b));
+			}
+		}
+
+		DataBuffer db = new DataBufferByte(bytes, bytes.length);
+		SampleModel sampleModel = new ComponentSampleModel(DataBuffer.TYPE_BYTE, width, height, 1, width, offsets);
+		WritableRaster raster = Raster.createWritableRaster(sampleModel, db, null);
+		int imageType =
+				bandCount == 1 ? BufferedImage.TYPE_BYTE_GRAY : bandCount == 3 ? BufferedImage.TYPE_INT_RGB
+						: BufferedImage.TYPE_INT_ARGB_PRE;
+		BufferedImage outsideImage = new BufferedImage(width, height, imageType);
+		outsideImage.setData(raster);
+		return outsideImage;
+	}
+
 	private interface OverviewCreator
 	{
 		void mix(File src0, File src1, File src2, File src3, File dst, boolean ignoreBlank) throws IOException;
@@ -274,38 +515,7 @@ public class Overviewer
 
 			// create image for tiles outside extents (tiles that don't
 			// exist)
-
-			if (outsideValues != null)
-			{
-				int bandCount = outsideValues.length();
-				int[] offsets = new int[bandCount];
-
-				byte[] bytes = new byte[bandCount * width * height];
-				ByteBuffer buffer = ByteBuffer.wrap(bytes);
-
-				for (int b = 0; b < bandCount; b++)
-				{
-					if (outsideValues.getByte(b) == null)
-						continue;
-
-					offsets[b] = b * width * height; // * bufferTypeSize;
-					for (int i = 0; i < width * height; i++)
-					{
-						int index = offsets[b] + i;
-						buffer.put(index, outsideValues.getByte(b));
-					}
-				}
-
-				DataBuffer db = new DataBufferByte(bytes, bytes.length);
-				SampleModel sampleModel =
-						new ComponentSampleModel(DataBuffer.TYPE_BYTE, width, height, 1, width, offsets);
-				WritableRaster raster = Raster.createWritableRaster(sampleModel, db, null);
-				int imageType =
-						bandCount == 1 ? BufferedImage.TYPE_BYTE_GRAY : bandCount == 3 ? BufferedImage.TYPE_INT_RGB
-								: BufferedImage.TYPE_INT_ARGB_PRE;
-				outsideImage = new BufferedImage(width, height, imageType);
-				outsideImage.setData(raster);
-			}
+			outsideImage = createOutsideImage(width, height, outsideValues);
 		}
 
 		@Override
@@ -419,13 +629,11 @@ public class Overviewer
 	{
 		private boolean floatingPoint;
 		private int bufferTypeSize;
-		private NullableNumberArray outsideValues;
 		private ByteOrder byteOrder;
 		private int width;
 		private int height;
 		private int bands;
-		private TypeHandler typeHandler;
-		private boolean bilinear;
+		private ElevationOverviewKernel[] kernels;
 
 		public ElevationOverviewCreator(int width, int height, int bands, int bufferType, ByteOrder byteOrder,
 				NullableNumberArray outsideValues, boolean bilinear)
@@ -444,30 +652,16 @@ public class Overviewer
 			if (outsideValues != null && outsideValues.length() != bands)
 				throw new IllegalArgumentException("Outside values array length doesn't equal the number of bands");
 
-			typeHandler = createTypeHandler();
+			kernels = new ElevationOverviewKernel[bands];
+			for (int b = 0; b < bands; b++)
+			{
+				kernels[b] = ElevationOverviewKernel.create(bufferTypeSize, floatingPoint, outsideValues, b, bilinear);
+			}
 
-			this.outsideValues = outsideValues;
 			this.byteOrder = byteOrder;
 			this.width = width;
 			this.height = height;
 			this.bands = bands;
-			this.bilinear = bilinear;
-		}
-
-		private TypeHandler createTypeHandler()
-		{
-			switch (bufferTypeSize)
-			{
-			case 1:
-				return new ByteTypeHandler();
-			case 2:
-				return new ShortTypeHandler();
-			case 4:
-				return floatingPoint ? new FloatTypeHandler() : new IntTypeHandler();
-			case 8:
-				return new DoubleTypeHandler();
-			}
-			return null;
 		}
 
 		@Override
@@ -526,56 +720,23 @@ public class Overviewer
 						src3fis != null ? getFileChannelAsByteBuffer(src3fis.getChannel(), (int) src3.length(),
 								byteOrder) : null;
 
+				// +--+--+ 0
+				// |s1|s3|
+				// +--+--+ h/2
+				// |s0|s2|
+				// +--+--+ h
+				// 0 w/2  w
+
+				int w2 = width / 2;
+				int h2 = height / 2;
 				for (int b = 0; b < bands; b++)
 				{
-					int offset = b * width * height * bufferTypeSize;
-					Object outsideValue =
-							outsideValues == null ? null : typeHandler.getNumberArrayValue(b, outsideValues);
-
-					for (int y = 0; y < height; y++)
-					{
-						int sy = y % (height / 2);
-						for (int x = 0; x < width; x++)
-						{
-							int sx = x % (width / 2);
-							ByteBuffer buffer = selectBuffer(src0bb, src1bb, src2bb, src3bb, x, y, width, height);
-							Object value = outsideValue;
-							if (buffer != null)
-							{
-								int index0 = ((sy * 2) * width + (sx * 2)) * bufferTypeSize + offset;
-								Object v0 = typeHandler.getBufferValue(index0, buffer);
-
-								if (bilinear)
-								{
-									int index1 = ((sy * 2) * width + (sx * 2 + 1)) * bufferTypeSize + offset;
-									int index2 = ((sy * 2 + 1) * width + sx * 2) * bufferTypeSize + offset;
-									int index3 = ((sy * 2 + 1) * width + (sx * 2 + 1)) * bufferTypeSize + offset;
-
-									Object v1 = typeHandler.getBufferValue(index1, buffer);
-									Object v2 = typeHandler.getBufferValue(index2, buffer);
-									Object v3 = typeHandler.getBufferValue(index3, buffer);
-
-									if (outsideValue == null
-											|| !(v0.equals(outsideValue) || v1.equals(outsideValue)
-													|| v2.equals(outsideValue) || v3.equals(outsideValue)))
-									{
-										value = typeHandler.average(v0, v1, v2, v3);
-									}
-								}
-								else
-								{
-									if (outsideValue == null || !v0.equals(outsideValue))
-									{
-										value = v0;
-									}
-								}
-							}
-							if (value == null)
-								dstbb.position(dstbb.position() + bufferTypeSize);
-							else
-								typeHandler.putBufferValue(dstbb, value);
-						}
-					}
+					int offset = b * width * height;
+					ElevationOverviewKernel kernel = kernels[b];
+					kernel.reduce(src0bb, dstbb, width, height, offset, 0, h2);
+					kernel.reduce(src1bb, dstbb, width, height, offset, 0, 0);
+					kernel.reduce(src2bb, dstbb, width, height, offset, w2, h2);
+					kernel.reduce(src3bb, dstbb, width, height, offset, w2, 0);
 				}
 			}
 			finally
@@ -602,145 +763,5 @@ public class Overviewer
 			bb.rewind();
 			return bb;
 		}
-
-		private <E extends Buffer> E selectBuffer(E src0, E src1, E src2, E src3, int x, int y, int w, int h)
-		{
-			// +--+--+
-			// |i1|i3|
-			// +--+--+
-			// |i0|i2|
-			// +--+--+
-			return (x < w / 2) ? (y < h / 2 ? src1 : src0) : (y < h / 2 ? src3 : src2);
-		}
-	}
-
-	private interface TypeHandler
-	{
-		public Object getNumberArrayValue(int index, NullableNumberArray na);
-
-		public Object getBufferValue(int index, ByteBuffer buffer);
-
-		public void putBufferValue(ByteBuffer buffer, Object value);
-
-		public Object average(Object v0, Object v1, Object v2, Object v3);
-	}
-
-	private static class ByteTypeHandler implements TypeHandler
-	{
-		public Object getNumberArrayValue(int index, NullableNumberArray na)
-		{
-			return na.getByte(index);
-		}
-
-		public Object getBufferValue(int index, ByteBuffer buffer)
-		{
-			return buffer.get(index);
-		}
-
-		public void putBufferValue(ByteBuffer buffer, Object value)
-		{
-			buffer.put((Byte) value);
-		}
-
-		public Object average(Object v0, Object v1, Object v2, Object v3)
-		{
-			return (byte) ((((Byte) v0).shortValue() + ((Byte) v1).shortValue() + ((Byte) v2).shortValue() + ((Byte) v3)
-					.shortValue()) / (short) 4);
-		}
-	}
-
-	private static class ShortTypeHandler implements TypeHandler
-	{
-		public Object getNumberArrayValue(int index, NullableNumberArray na)
-		{
-			return na.getShort(index);
-		}
-
-		public Object getBufferValue(int index, ByteBuffer buffer)
-		{
-			return buffer.getShort(index);
-		}
-
-		public void putBufferValue(ByteBuffer buffer, Object value)
-		{
-			buffer.putShort((Short) value);
-		}
-
-		public Object average(Object v0, Object v1, Object v2, Object v3)
-		{
-			return (short) ((((Short) v0).intValue() + ((Short) v1).intValue() + ((Short) v2).intValue() + ((Short) v3)
-					.intValue()) / 4);
-		}
-	}
-
-	private static class IntTypeHandler implements TypeHandler
-	{
-		public Object getNumberArrayValue(int index, NullableNumberArray na)
-		{
-			return na.getInt(index);
-		}
-
-		public Object getBufferValue(int index, ByteBuffer buffer)
-		{
-			return buffer.getInt(index);
-		}
-
-		public void putBufferValue(ByteBuffer buffer, Object value)
-		{
-			buffer.putInt((Integer) value);
-		}
-
-		public Object average(Object v0, Object v1, Object v2, Object v3)
-		{
-			return (int) ((((Integer) v0).longValue() + ((Integer) v1).longValue() + ((Integer) v2).longValue() + ((Integer) v3)
-					.longValue()) / 4l);
-		}
-	}
-
-	private static class FloatTypeHandler implements TypeHandler
-	{
-		public Object getNumberArrayValue(int index, NullableNumberArray na)
-		{
-			return na.getFloat(index);
-		}
-
-		public Object getBufferValue(int index, ByteBuffer buffer)
-		{
-			return buffer.getFloat(index);
-		}
-
-		public void putBufferValue(ByteBuffer buffer, Object value)
-		{
-			buffer.putFloat((Float) value);
-		}
-
-		public Object average(Object v0, Object v1, Object v2, Object v3)
-		{
-			return (float) ((((Float) v0).doubleValue() + ((Float) v1).doubleValue() + ((Float) v2).doubleValue() + ((Float) v3)
-					.doubleValue()) / 4d);
-		}
-	}
-
-	private static class DoubleTypeHandler implements TypeHandler
-	{
-		public Object getNumberArrayValue(int index, NullableNumberArray na)
-		{
-			return na.getDouble(index);
-		}
-
-		public Object getBufferValue(int index, ByteBuffer buffer)
-		{
-			return buffer.getDouble(index);
-		}
-
-		public void putBufferValue(ByteBuffer buffer, Object value)
-		{
-			buffer.putDouble((Double) value);
-		}
-
-		public Object average(Object v0, Object v1, Object v2, Object v3)
-		{
-			return ((Double) v0 + (Double) v1 + (Double) v2 + (Double) v3) / 4d;
-		}
 	}
 }
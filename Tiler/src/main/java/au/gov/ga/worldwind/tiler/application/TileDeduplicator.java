@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import au.gov.ga.worldwind.tiler.util.FileUtil;
+
+/**
+ * Deduplicates identical tiles as they are written. Each encoded tile is
+ * hashed (SHA-1); if a tile with the same contents has already been written,
+ * the new tile file is created as a hard link to the existing file instead of
+ * writing the contents again. A report of the duplicates found can be logged
+ * once tiling is complete.
+ * <p/>
+ * Hard links are created using <code>java.nio.file.Files</code>, which is only
+ * available when running on Java 7 or later. If links are not supported (by
+ * the JRE or the file system), duplicate tiles are written normally, and are
+ * only counted in the report. Tile packs written by the {@link TilePacker}
+ * store duplicate tiles once regardless.
+ */
+class TileDeduplicator
+{
+	private static final int REPORT_COUNT = 10;
+
+	private static Method toPath;
+	private static Method createLink;
+
+	static
+	{
+		try
+		{
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			Class<?> filesClass = Class.forName("java.nio.file.Files");
+			toPath = File.class.getMethod("toPath");
+			createLink = filesClass.getMethod("createLink", pathClass, pathClass);
+		}
+		catch (Exception e)
+		{
+			//hard links not supported by this JRE
+			toPath = null;
+			createLink = null;
+		}
+	}
+
+	private final Map<Digest, Content> contents = new HashMap<Digest, Content>();
+	private long tileCount;
+	private long duplicateCount;
+	private long linkedCount;
+	private long totalBytes;
+	private long duplicateBytes;
+	private long linkedBytes;
+
+	/**
+	 * Write a tile file, or link it to an identical tile that has already been
+	 * written.
+	 * 
+	 * @param data
+	 *            Tile contents (the position is not changed)
+	 */
+	public void write(File dst, ByteBuffer data) throws IOException
+	{
+		Digest digest = new Digest(hash(data));
+		int size = data.remaining();
+
+		Content existing;
+		synchronized (this)
+		{
+			tileCount++;
+			totalBytes += size;
+			existing = contents.get(digest);
+			if (existing != null)
+			{
+				existing.count++;
+				duplicateCount++;
+				duplicateBytes += size;
+			}
+		}
+
+		if (existing != null && link(existing.file, dst))
+		{
+			synchronized (this)
+			{
+				linkedCount++;
+				linkedBytes += size;
+			}
+			return;
+		}
+
+		TileGenerator.write(dst, data.duplicate());
+
+		if (existing == null)
+		{
+			synchronized (this)
+			{
+				if (!contents.containsKey(digest))
+				{
+					contents.put(digest, new Content(dst, size));
+				}
+			}
+		}
+	}
+
+	private static byte[] hash(ByteBuffer data)
+	{
+		MessageDigest md;
+		try
+		{
+			md = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		md.update(data.duplicate());
+		return md.digest();
+	}
+
+	/**
+	 * Create a hard link to an existing file.
+	 * 
+	 * @return True if the link was created
+	 */
+	private static boolean link(File existing, File link)
+	{
+		if (createLink == null || !existing.isFile())
+		{
+			return false;
+		}
+		try
+		{
+			if (link.exists())
+			{
+				//replace the existing file with the link, rather than deleting it first
+				File temp = FileUtil.tempFile(link);
+				temp.delete();
+				createLink.invoke(null, toPath.invoke(temp), toPath.invoke(existing));
+				FileUtil.replace(temp, link);
+				return true;
+			}
+			createLink.invoke(null, toPath.invoke(link), toPath.invoke(existing));
+			return true;
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Log a report of the duplicate tiles found.
+	 */
+	public synchronized void report(Logger logger)
+	{
+		if (tileCount == 0)
+		{
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Deduplication: " + tileCount + " tiles, " + contents.size() + " unique, " + duplicateCount
+				+ " duplicates (" + percent(duplicateCount, tileCount) + "%)\n");
+		sb.append("  " + totalBytes + " bytes of tiles, " + duplicateBytes + " bytes duplicated ("
+				+ percent(duplicateBytes, totalBytes) + "%), " + linkedBytes + " bytes saved by linking "
+				+ linkedCount + " tiles");
+		if (createLink == null)
+		{
+			sb.append(" (hard links require Java 7)");
+		}
+
+		List<Content> repeated = new ArrayList<Content>();
+		for (Content content : contents.values())
+		{
+			if (content.count > 1)
+			{
+				repeated.add(content);
+			}
+		}
+		Collections.sort(repeated, new Comparator<Content>()
+		{
+			@Override
+			public int compare(Content o1, Content o2)
+			{
+				return o1.count > o2.count ? -1 : o1.count == o2.count ? 0 : 1;
+			}
+		});
+		if (!repeated.isEmpty())
+		{
+			sb.append("\n  Most repeated tiles:");
+		}
+		for (int i = 0; i < repeated.size() && i < REPORT_COUNT; i++)
+		{
+			Content content = repeated.get(i);
+			sb.append("\n    " + content.count + " x " + content.size + " bytes: " + content.file);
+		}
+		logger.info(sb.toString());
+	}
+
+	private static long percent(long value, long total)
+	{
+		return total == 0 ? 0 : value * 100 / total;
+	}
+
+	/**
+	 * Hash of a tile's contents, used as a map key.
+	 */
+	private static class Digest
+	{
+		private final byte[] hash;
+		private final int hashCode;
+
+		public Digest(byte[] hash)
+		{
+			this.hash = hash;
+			this.hashCode = Arrays.hashCode(hash);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return obj instanceof Digest && Arrays.equals(hash, ((Digest) obj).hash);
+		}
+	}
+
+	/**
+	 * The first file written with a particular content, and the number of
+	 * tiles with that content.
+	 */
+	private static class Content
+	{
+		private final File file;
+		private final int size;
+		private int count = 1;
+
+		public Content(File file, int size)
+		{
+			this.file = file;
+			this.size = size;
+		}
+	}
+}
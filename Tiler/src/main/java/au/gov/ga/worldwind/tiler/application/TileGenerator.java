@@ -0,0 +1,517 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.gdal.gdal.Dataset;
+
+import au.gov.ga.worldwind.tiler.application.Tiler.TilingType;
+import au.gov.ga.worldwind.tiler.gdal.GDALException;
+import au.gov.ga.worldwind.tiler.gdal.GDALStripReader;
+import au.gov.ga.worldwind.tiler.gdal.GDALTile;
+import au.gov.ga.worldwind.tiler.gdal.GDALTileKernel;
+import au.gov.ga.worldwind.tiler.gdal.GDALTileParameters;
+import au.gov.ga.worldwind.tiler.gdal.GDALWarpPlan;
+import au.gov.ga.worldwind.tiler.mapnik.MapnikRenderer;
+import au.gov.ga.worldwind.tiler.mapnik.MapnikUtil;
+import au.gov.ga.worldwind.tiler.util.FileUtil;
+import au.gov.ga.worldwind.tiler.util.LatLon;
+import au.gov.ga.worldwind.tiler.util.MinMaxArray;
+import au.gov.ga.worldwind.tiler.util.NullableNumberArray;
+import au.gov.ga.worldwind.tiler.util.NumberArray;
+import au.gov.ga.worldwind.tiler.util.ProgressReporter;
+import au.gov.ga.worldwind.tiler.util.Sector;
+import au.gov.ga.worldwind.tiler.util.TilerException;
+import au.gov.ga.worldwind.tiler.util.Util;
+
+/**
+ * Generates the individual tiles of a single tiling job. Stores the tiling
+ * parameters shared by every tile; the dataset and min/max array are passed
+ * to each call so that each worker thread can use its own.
+ * <p/>
+ * Tile generation is split into read, transform, encode and write steps, so
+ * that the steps can either be run one after the other ({@link #generate}),
+ * or as separate stages of a {@link TilingPipeline}.
+ */
+class TileGenerator
+{
+	TilingType type;
+	boolean reprojectIfRequired;
+	boolean linearInterpolationIfRequired;
+	File mapFile;
+	LatLon origin;
+	int tilesize;
+	double tilesizedegrees;
+	String imageFormat;
+	String outputExt;
+	boolean addAlpha;
+	float jpegQuality;
+	int bufferType;
+	int band;
+	NullableNumberArray outsideValues;
+	boolean ignoreBlank;
+	MinMaxArray[] replaceMinMaxs;
+	NullableNumberArray replace;
+	NullableNumberArray otherwise;
+	File levelDir;
+	boolean resume;
+	boolean overwrite;
+	TileJournal journal;
+	TileDeduplicator deduplicator;
+	long stripSize;
+	boolean warpPlan;
+	MapnikRenderer.Pool mapnikRenderers;
+
+	private final Map<Dataset, GDALStripReader> stripReaders = new IdentityHashMap<Dataset, GDALStripReader>();
+	private int stripCount;
+	private int stripHitCount;
+	private int stripMissCount;
+	private long stripReadTime;
+	private final Map<Dataset, GDALWarpPlan> warpPlans = new IdentityHashMap<Dataset, GDALWarpPlan>();
+	private int warpCount;
+	private long warpTime;
+	private final GDALTileKernel.Cache kernels = new GDALTileKernel.Cache();
+
+	public File rowDirectory(int Y)
+	{
+		return new File(levelDir, Util.paddedInt(Y, 4));
+	}
+
+	public File tileFile(int X, int Y)
+	{
+		return new File(rowDirectory(Y), Util.paddedInt(Y, 4) + "_" + Util.paddedInt(X, 4) + "." + outputExt);
+	}
+
+	public Sector tileSector(int X, int Y)
+	{
+		final double lat1 = (Y * tilesizedegrees) + origin.getLatitude();
+		final double lon1 = (X * tilesizedegrees) + origin.getLongitude();
+		final double lat2 = lat1 + tilesizedegrees;
+		final double lon2 = lon1 + tilesizedegrees;
+		return new Sector(lat1, lon1, lat2, lon2);
+	}
+
+	/**
+	 * Check if the tile has already been generated. When resuming from a
+	 * journal that existed before tiling started, only the journal is checked;
+	 * otherwise the tile is skipped if the tile file exists, logging a message.
+	 * Tiles are never skipped when overwriting existing tiles.
+	 * 
+	 * @return True if the tile should be skipped
+	 */
+	public boolean skip(int X, int Y, File dst, ProgressReporter progress)
+	{
+		if (overwrite)
+		{
+			return false;
+		}
+		if (resume && journal != null && journal.existed())
+		{
+			return journal.isComplete(X, Y);
+		}
+		if (dst.exists())
+		{
+			progress.getLogger().log(resume ? Level.FINE : Level.WARNING, dst.getAbsolutePath() + " already exists");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Generate the tile at the given coordinates, running each step in turn on
+	 * the calling thread.
+	 */
+	public void generate(int X, int Y, Dataset dataset, NumberArray minMax, ProgressReporter progress)
+	{
+		final File dst = tileFile(X, Y);
+		if (skip(X, Y, dst, progress))
+		{
+			return;
+		}
+
+		try
+		{
+			if (type == TilingType.Mapnik)
+			{
+				if (overwrite)
+				{
+					dst.delete();
+				}
+				if (mapnikRenderers != null)
+				{
+					MapnikUtil.tile(mapnikRenderers, tileSector(X, Y), tilesize, tilesize, ignoreBlank, dst);
+				}
+				else
+				{
+					MapnikUtil.tile(tileSector(X, Y), tilesize, tilesize, ignoreBlank, reprojectIfRequired, mapFile,
+							dst, progress.getLogger());
+				}
+				if (journal != null)
+				{
+					if (dst.exists())
+					{
+						journal.tileWritten(X, Y, dst);
+					}
+					else
+					{
+						journal.tileBlank(X, Y);
+					}
+				}
+			}
+			else
+			{
+				GDALTile tile = readTile(X, Y, dataset);
+				if (type == TilingType.Elevations)
+				{
+					writeTile(X, Y, dst, transformElevations(tile, minMax));
+				}
+				else
+				{
+					BufferedImage image = transformImage(tile);
+					if (image != null)
+					{
+						writeTile(X, Y, dst, ByteBuffer.wrap(encodeImage(image)));
+					}
+					else
+					{
+						blankTile(X, Y);
+					}
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			logTileError(e, progress);
+		}
+	}
+
+	/**
+	 * Read step: read the tile from the dataset. Value replacement, blank
+	 * detection and filling of the area outside the dataset are deferred to
+	 * the transform step, so that they aren't done on the reader threads
+	 * (except for magnified tiles, whose values are replaced before they are
+	 * interpolated).
+	 */
+	public GDALTile readTile(int X, int Y, Dataset dataset) throws GDALException, TilerException
+	{
+		GDALTileParameters parameters =
+				new GDALTileParameters(dataset, new Dimension(tilesize, tilesize), tileSector(X, Y));
+		parameters.addAlpha = addAlpha;
+		parameters.selectedBand = band;
+		parameters.reprojectIfRequired = reprojectIfRequired;
+		parameters.bilinearInterpolationIfRequired = linearInterpolationIfRequired;
+		parameters.noData = outsideValues;
+		parameters.minMaxs = replaceMinMaxs;
+		parameters.replacement = replace;
+		parameters.otherwise = otherwise;
+		parameters.stripReader = stripReader(dataset);
+		parameters.warpPlan = warpPlan(dataset);
+		parameters.kernels = kernels;
+		parameters.deferProcessing = true;
+		return new GDALTile(parameters);
+	}
+
+	/**
+	 * Get the strip reader for a dataset handle. Each thread reads from its
+	 * own dataset handle, so each thread gets its own strip reader.
+	 * 
+	 * @return Strip reader, or null if strip reads are disabled
+	 */
+	private GDALStripReader stripReader(Dataset dataset)
+	{
+		if (stripSize <= 0)
+		{
+			return null;
+		}
+		synchronized (stripReaders)
+		{
+			GDALStripReader reader = stripReaders.get(dataset);
+			if (reader == null)
+			{
+				reader = new GDALStripReader(dataset, band, stripSize);
+				stripReaders.put(dataset, reader);
+			}
+			return reader;
+		}
+	}
+
+	/**
+	 * Get the warp plan for a dataset handle. Like strip readers, each thread
+	 * gets its own warp plan. As a generator tiles a single level, the plan is
+	 * created once per dataset handle and level.
+	 * 
+	 * @return Warp plan, or null if warp plans are disabled
+	 */
+	private GDALWarpPlan warpPlan(Dataset dataset) throws GDALException
+	{
+		if (!warpPlan || !reprojectIfRequired)
+		{
+			return null;
+		}
+		synchronized (warpPlans)
+		{
+			GDALWarpPlan plan = warpPlans.get(dataset);
+			if (plan == null)
+			{
+				plan = new GDALWarpPlan(dataset, band);
+				warpPlans.put(dataset, plan);
+			}
+			return plan;
+		}
+	}
+
+	/**
+	 * Release the strips read from a dataset handle, and its warp plan. Must
+	 * be called before the dataset handle is deleted.
+	 */
+	public void closeReaders(Dataset dataset)
+	{
+		GDALStripReader reader;
+		synchronized (stripReaders)
+		{
+			reader = stripReaders.remove(dataset);
+			if (reader != null)
+			{
+				stripCount += reader.getStripCount();
+				stripHitCount += reader.getHitCount();
+				stripMissCount += reader.getMissCount();
+				stripReadTime += reader.getReadTime();
+			}
+		}
+		if (reader != null)
+		{
+			reader.close();
+		}
+
+		GDALWarpPlan plan;
+		synchronized (warpPlans)
+		{
+			plan = warpPlans.remove(dataset);
+			if (plan != null)
+			{
+				warpCount += plan.getTileCount();
+				warpTime += plan.getWarpTime();
+			}
+		}
+		if (plan != null)
+		{
+			plan.close();
+		}
+	}
+
+	/**
+	 * Release the strips and warp plans of all dataset handles, stop any
+	 * Mapnik renderer processes, and log the strip read and warp statistics.
+	 */
+	public void closeReaders(ProgressReporter progress)
+	{
+		if (mapnikRenderers != null)
+		{
+			mapnikRenderers.close();
+		}
+
+		List<Dataset> datasets;
+		synchronized (stripReaders)
+		{
+			datasets = new ArrayList<Dataset>(stripReaders.keySet());
+		}
+		synchronized (warpPlans)
+		{
+			datasets.addAll(warpPlans.keySet());
+		}
+		for (Dataset dataset : datasets)
+		{
+			closeReaders(dataset);
+		}
+		if (stripCount > 0 || stripMissCount > 0)
+		{
+			progress.getLogger().info(
+					"Read " + stripCount + " strips for " + stripHitCount + " tiles in "
+							+ (stripReadTime / 1000000) + "ms (" + stripMissCount
+							+ " tiles too large for a strip were read directly)");
+		}
+		if (warpCount > 0)
+		{
+			progress.getLogger().info(
+					"Reprojected " + warpCount + " tiles using warp plans in " + (warpTime / 1000000) + "ms");
+		}
+	}
+
+	/**
+	 * Transform step for elevation tiles: replace values and fill the area
+	 * outside the dataset, convert the tile to the output type and update the
+	 * min/max elevations.
+	 * 
+	 * @return Rewound buffer containing the elevation data to write
+	 */
+	public ByteBuffer transformElevations(GDALTile tile, NumberArray minMax)
+	{
+		tile.process();
+		tile = tile.convertToType(bufferType);
+		tile.updateMinMax(minMax, outsideValues);
+		ByteBuffer bb = tile.getBuffer();
+		bb.rewind();
+		return bb;
+	}
+
+	/**
+	 * Transform step for image tiles: replace values and fill the area outside
+	 * the dataset, and convert the tile to an image.
+	 * 
+	 * @return Tile image, or null if the tile is blank and should be ignored
+	 */
+	public BufferedImage transformImage(GDALTile tile) throws TilerException
+	{
+		tile.process();
+		if (ignoreBlank && tile.isBlank())
+		{
+			return null;
+		}
+		return tile.getAsImage();
+	}
+
+	/**
+	 * Encode step for image tiles.
+	 */
+	public byte[] encodeImage(BufferedImage image) throws IOException
+	{
+		return Tiler.encodeImage(image, imageFormat, jpegQuality);
+	}
+
+	/**
+	 * Write step: write the encoded tile data to the tile file, and record the
+	 * tile in the journal.
+	 * 
+	 * @param data
+	 *            Tile data (the position is not changed)
+	 */
+	public void writeTile(int X, int Y, File dst, ByteBuffer data) throws IOException
+	{
+		writeFile(dst, data);
+		if (journal != null)
+		{
+			journal.tileWritten(X, Y, dst);
+		}
+	}
+
+	/**
+	 * Record a tile that was not written because it is blank. When
+	 * overwriting, any existing tile file is deleted.
+	 */
+	public void blankTile(int X, int Y) throws IOException
+	{
+		if (overwrite)
+		{
+			tileFile(X, Y).delete();
+		}
+		if (journal != null)
+		{
+			journal.tileBlank(X, Y);
+		}
+	}
+
+	/**
+	 * Write encoded tile data to a tile file, linking it to an identical tile
+	 * if deduplication is enabled.
+	 * 
+	 * @param data
+	 *            Tile data (the position is not changed)
+	 */
+	public void writeFile(File dst, ByteBuffer data) throws IOException
+	{
+		if (deduplicator != null)
+		{
+			deduplicator.write(dst, data);
+		}
+		else
+		{
+			write(dst, data.duplicate());
+		}
+	}
+
+	public static void write(File dst, ByteBuffer data) throws IOException
+	{
+		//replace, rather than overwrite, in case the file is linked to other tiles or is being read
+		boolean replace = dst.exists();
+		File file = replace ? FileUtil.tempFile(dst) : dst;
+		FileOutputStream fos = null;
+		try
+		{
+			fos = new FileOutputStream(file);
+			FileChannel channel = fos.getChannel();
+			while (data.hasRemaining())
+			{
+				channel.write(data);
+			}
+		}
+		finally
+		{
+			if (fos != null)
+				fos.close();
+		}
+		if (replace)
+		{
+			FileUtil.replace(file, dst);
+		}
+	}
+
+	public static ByteBuffer readFile(File file) throws IOException
+	{
+		FileInputStream fis = null;
+		try
+		{
+			fis = new FileInputStream(file);
+			FileChannel channel = fis.getChannel();
+			ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+			while (data.hasRemaining() && channel.read(data) >= 0)
+			{
+			}
+			data.flip();
+			return data;
+		}
+		finally
+		{
+			if (fis != null)
+				fis.close();
+		}
+	}
+
+	public void logTileError(Exception e, ProgressReporter progress)
+	{
+		progress.getLogger().severe(e.getMessage());
+		try
+		{
+			Thread.sleep(1);
+		}
+		catch (InterruptedException e1)
+		{
+			e1.printStackTrace();
+		}
+	}
+}
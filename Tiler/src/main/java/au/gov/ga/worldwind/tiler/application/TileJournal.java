@@ -0,0 +1,365 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the tiles completed in a level directory. A record
+ * (tile coordinates, tile file size and a CRC32 checksum of the record) is
+ * appended after each tile is written, and a blank record for tiles that were
+ * skipped because they are blank. When resuming, the completed tiles are read
+ * from the journal instead of probing the file system for each tile, which
+ * also works when tiles were completed out of order.
+ * <p/>
+ * Records are written in batches of {@value #FORCE_INTERVAL} (and when the
+ * journal is closed): the batch's tile files are forced to disk, then its
+ * records are appended and the journal is forced. The journal therefore never
+ * records a tile whose data was lost when the system crashed, without forcing
+ * the journal for every tile; at most the tiles completed since the last
+ * batch are regenerated. A tile that was being written when tiling was
+ * interrupted is regenerated. Reading stops at the first partially written record, or record
+ * that doesn't match its checksum, and the rest of the journal is discarded.
+ */
+public class TileJournal
+{
+	public static final String FILENAME = "tiles.journal";
+
+	private static final int MAGIC = 0x544A4E4C; //TJNL
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_SIZE = 16;
+	private static final int BLANK = -1;
+	static final int FORCE_INTERVAL = 1024;
+
+	private final int minX;
+	private final int maxX;
+	private final int minY;
+	private final int maxY;
+	private final int xsize;
+	private final BitSet complete = new BitSet();
+	private final BitSet blank = new BitSet();
+	private final boolean existed;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final CRC32 crc = new CRC32();
+	//tiles completed since the last batch was written, and not yet in the journal file
+	private List<Completed> pending = new ArrayList<Completed>();
+
+	/**
+	 * Open (or create) the journal in the given directory, and read the tiles
+	 * within the given tile grid (inclusive) that have already been completed.
+	 */
+	public static TileJournal open(File directory, int minX, int maxX, int minY, int maxY) throws IOException
+	{
+		return new TileJournal(new File(directory, FILENAME), minX, maxX, minY, maxY);
+	}
+
+	private TileJournal(File file, int minX, int maxX, int minY, int maxY) throws IOException
+	{
+		this.minX = minX;
+		this.maxX = maxX;
+		this.minY = minY;
+		this.maxY = maxY;
+		this.xsize = maxX - minX + 1;
+		if ((long) xsize * (maxY - minY + 1) > Integer.MAX_VALUE)
+		{
+			throw new IOException("Tile grid is too large to journal: " + xsize + "x" + (maxY - minY + 1));
+		}
+
+		long validLength = file.exists() && file.length() >= HEADER_SIZE ? read(file) : 0;
+		this.existed = validLength >= HEADER_SIZE;
+
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		if (validLength < HEADER_SIZE)
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			channel.truncate(0);
+			channel.write(header, 0);
+			validLength = HEADER_SIZE;
+		}
+		//discard any partially written record
+		channel.truncate(validLength);
+		channel.position(validLength);
+	}
+
+	/**
+	 * Read the records in the journal file. A journal written by another
+	 * version is ignored, and will be replaced.
+	 *
+	 * @return Length of the valid part of the file (0 if the journal is from
+	 *         another version)
+	 */
+	private long read(File file) throws IOException
+	{
+		FileInputStream fis = new FileInputStream(file);
+		try
+		{
+			FileChannel fc = fis.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 4096);
+			buffer.limit(HEADER_SIZE);
+			while (buffer.hasRemaining() && fc.read(buffer) >= 0)
+			{
+			}
+			buffer.flip();
+			if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+			{
+				throw new IOException("Invalid tile journal: " + file);
+			}
+			if (buffer.getInt() != VERSION)
+			{
+				return 0;
+			}
+
+			long length = HEADER_SIZE;
+			buffer.clear();
+			while (fc.read(buffer) >= 0)
+			{
+				buffer.flip();
+				while (buffer.remaining() >= RECORD_SIZE)
+				{
+					int X = buffer.getInt();
+					int Y = buffer.getInt();
+					int size = buffer.getInt();
+					int checksum = buffer.getInt();
+					if (checksum != checksum(X, Y, size))
+					{
+						//record was not completely written before the system crashed
+						return length;
+					}
+					if (inGrid(X, Y))
+					{
+						int index = index(X, Y);
+						complete.set(index);
+						blank.set(index, size == BLANK);
+					}
+					length += RECORD_SIZE;
+				}
+				buffer.compact();
+			}
+			return length;
+		}
+		finally
+		{
+			fis.close();
+		}
+	}
+
+	/**
+	 * @return True if the journal file existed before it was opened. If not,
+	 *         the journal doesn't know about tiles written by earlier runs.
+	 */
+	public boolean existed()
+	{
+		return existed;
+	}
+
+	/**
+	 * @return True if the tile has been completed (written, or skipped because
+	 *         it is blank)
+	 */
+	public synchronized boolean isComplete(int X, int Y)
+	{
+		return inGrid(X, Y) && complete.get(index(X, Y));
+	}
+
+	/**
+	 * @return True if the tile has been completed, and was skipped because it
+	 *         is blank
+	 */
+	public synchronized boolean isBlank(int X, int Y)
+	{
+		return inGrid(X, Y) && blank.get(index(X, Y));
+	}
+
+	/**
+	 * @return Number of completed tiles in the journal
+	 */
+	public synchronized int getCompleteCount()
+	{
+		return complete.cardinality();
+	}
+
+	/**
+	 * Record that a tile has been written. Call this after the tile file has
+	 * been completely written (and not modified afterwards); the file is
+	 * forced to disk before its record is written.
+	 *
+	 * @param file
+	 *            Tile file
+	 */
+	public void tileWritten(int X, int Y, File file) throws IOException
+	{
+		append(new Completed(X, Y, file));
+	}
+
+	/**
+	 * Record that a tile was not written because it is blank.
+	 */
+	public void tileBlank(int X, int Y) throws IOException
+	{
+		append(new Completed(X, Y, null));
+	}
+
+	private void append(Completed tile) throws IOException
+	{
+		List<Completed> batch = null;
+		synchronized (this)
+		{
+			if (inGrid(tile.X, tile.Y))
+			{
+				int index = index(tile.X, tile.Y);
+				complete.set(index);
+				blank.set(index, tile.file == null);
+			}
+			pending.add(tile);
+			if (pending.size() >= FORCE_INTERVAL)
+			{
+				batch = pending;
+				pending = new ArrayList<Completed>();
+			}
+		}
+		if (batch != null)
+		{
+			write(batch);
+		}
+	}
+
+	/**
+	 * Force a batch of tile files to disk, then append their records and force
+	 * the journal. The tile files are forced outside the lock, so other
+	 * threads can continue completing tiles.
+	 */
+	private void write(List<Completed> batch) throws IOException
+	{
+		ByteBuffer records = ByteBuffer.allocate(batch.size() * RECORD_SIZE);
+		for (Completed tile : batch)
+		{
+			int size = BLANK;
+			if (tile.file != null)
+			{
+				RandomAccessFile raf;
+				try
+				{
+					raf = new RandomAccessFile(tile.file, "r");
+				}
+				catch (FileNotFoundException e)
+				{
+					//the tile has been removed since it was written, so it isn't complete
+					continue;
+				}
+				try
+				{
+					raf.getChannel().force(false);
+					size = (int) raf.length();
+				}
+				finally
+				{
+					raf.close();
+				}
+			}
+			records.putInt(tile.X).putInt(tile.Y).putInt(size).putInt(checksum(tile.X, tile.Y, size));
+		}
+		records.flip();
+
+		synchronized (this)
+		{
+			while (records.hasRemaining())
+			{
+				channel.write(records);
+			}
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Write the remaining records, force the journal to disk and close it.
+	 */
+	public void close() throws IOException
+	{
+		List<Completed> batch;
+		synchronized (this)
+		{
+			batch = pending;
+			pending = new ArrayList<Completed>();
+		}
+		try
+		{
+			write(batch);
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				raf.close();
+			}
+		}
+	}
+
+	private int checksum(int X, int Y, int size)
+	{
+		ByteBuffer fields = ByteBuffer.allocate(12);
+		fields.putInt(X).putInt(Y).putInt(size);
+		synchronized (crc)
+		{
+			crc.reset();
+			crc.update(fields.array());
+			return (int) crc.getValue();
+		}
+	}
+
+	private boolean inGrid(int X, int Y)
+	{
+		return X >= minX && X <= maxX && Y >= minY && Y <= maxY;
+	}
+
+	private int index(int X, int Y)
+	{
+		return (int) ((long) (Y - minY) * xsize + (X - minX));
+	}
+
+	/**
+	 * A completed tile whose record hasn't been written yet.
+	 */
+	private static class Completed
+	{
+		public final int X;
+		public final int Y;
+		/**
+		 * Tile file (null if the tile is blank)
+		 */
+		public final File file;
+
+		public Completed(int X, int Y, File file)
+		{
+			this.X = X;
+			this.Y = Y;
+			this.file = file;
+		}
+	}
+}
@@ -15,28 +15,30 @@
  ******************************************************************************/
 package au.gov.ga.worldwind.tiler.application;
 
-import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel.MapMode;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
-import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
-import javax.imageio.stream.FileImageOutputStream;
 
 import org.gdal.gdal.Dataset;
 
 import au.gov.ga.worldwind.tiler.gdal.GDALTile;
-import au.gov.ga.worldwind.tiler.gdal.GDALTileParameters;
-import au.gov.ga.worldwind.tiler.mapnik.MapnikUtil;
+import au.gov.ga.worldwind.tiler.gdal.GDALUtil;
+import au.gov.ga.worldwind.tiler.mapnik.MapnikRenderer;
+import au.gov.ga.worldwind.tiler.util.BufferManager;
+import au.gov.ga.worldwind.tiler.util.ImageEncoder;
 import au.gov.ga.worldwind.tiler.util.LatLon;
 import au.gov.ga.worldwind.tiler.util.MinMaxArray;
 import au.gov.ga.worldwind.tiler.util.NullableNumberArray;
@@ -120,10 +122,32 @@ public class Tiler
 			float jpegQuality, NullableNumberArray outsideValues, boolean ignoreBlank, MinMaxArray[] replaceMinMaxs,
 			NullableNumberArray replace, NullableNumberArray otherwise, File outputDirectory, boolean resume,
 			ProgressReporter progress)
+	{
+		tileImages(dataset, reprojectIfRequired, linearInterpolationIfRequired, sector, origin, level, tilesize, lzts,
+				imageFormat, addAlpha, jpegQuality, outsideValues, ignoreBlank, replaceMinMaxs, replace, otherwise,
+				outputDirectory, resume, new TilingOptions(), progress);
+	}
+
+	/**
+	 * Tile the given image dataset at the given level, using the given tiling
+	 * engine options.
+	 * 
+	 * @see #tileImages(Dataset, boolean, boolean, Sector, LatLon, int, int,
+	 *      double, String, boolean, float, NullableNumberArray, boolean,
+	 *      MinMaxArray[], NullableNumberArray, NullableNumberArray, File,
+	 *      boolean, ProgressReporter)
+	 * @param options
+	 *            Tiling engine options (worker count, work unit size)
+	 */
+	public static void tileImages(Dataset dataset, boolean reprojectIfRequired, boolean linearInterpolationIfRequired,
+			Sector sector, LatLon origin, int level, int tilesize, double lzts, String imageFormat, boolean addAlpha,
+			float jpegQuality, NullableNumberArray outsideValues, boolean ignoreBlank, MinMaxArray[] replaceMinMaxs,
+			NullableNumberArray replace, NullableNumberArray otherwise, File outputDirectory, boolean resume,
+			TilingOptions options, ProgressReporter progress)
 	{
 		tile(TilingType.Images, dataset, reprojectIfRequired, linearInterpolationIfRequired, null, sector, origin,
 				level, tilesize, lzts, imageFormat, addAlpha, jpegQuality, -1, -1, outsideValues, ignoreBlank,
-				replaceMinMaxs, replace, otherwise, null, outputDirectory, resume, progress);
+				replaceMinMaxs, replace, otherwise, null, outputDirectory, resume, options, progress);
 	}
 
 	/**
@@ -179,10 +203,32 @@ public class Tiler
 			int bufferType, int band, NullableNumberArray outsideValues, MinMaxArray[] replaceMinMaxs,
 			NullableNumberArray replace, NullableNumberArray otherwise, NumberArray minMax, File outputDirectory,
 			boolean resume, ProgressReporter progress)
+	{
+		tileElevations(dataset, reprojectIfRequired, linearInterpolationIfRequired, sector, origin, level, tilesize,
+				lzts, bufferType, band, outsideValues, replaceMinMaxs, replace, otherwise, minMax, outputDirectory,
+				resume, new TilingOptions(), progress);
+	}
+
+	/**
+	 * Tile the given elevation dataset at the given level, using the given
+	 * tiling engine options.
+	 * 
+	 * @see #tileElevations(Dataset, boolean, boolean, Sector, LatLon, int, int,
+	 *      double, int, int, NullableNumberArray, MinMaxArray[],
+	 *      NullableNumberArray, NullableNumberArray, NumberArray, File,
+	 *      boolean, ProgressReporter)
+	 * @param options
+	 *            Tiling engine options (worker count, work unit size)
+	 */
+	public static void tileElevations(Dataset dataset, boolean reprojectIfRequired,
+			boolean linearInterpolationIfRequired, Sector sector, LatLon origin, int level, int tilesize, double lzts,
+			int bufferType, int band, NullableNumberArray outsideValues, MinMaxArray[] replaceMinMaxs,
+			NullableNumberArray replace, NullableNumberArray otherwise, NumberArray minMax, File outputDirectory,
+			boolean resume, TilingOptions options, ProgressReporter progress)
 	{
 		tile(TilingType.Elevations, dataset, reprojectIfRequired, linearInterpolationIfRequired, null, sector, origin,
 				level, tilesize, lzts, null, false, -1, bufferType, band, outsideValues, false, replaceMinMaxs,
-				replace, otherwise, minMax, outputDirectory, resume, progress);
+				replace, otherwise, minMax, outputDirectory, resume, options, progress);
 	}
 
 	/**
@@ -219,10 +265,26 @@ public class Tiler
 	public static void tileMapnik(File mapFile, Sector sector, LatLon origin, int level, int tilesize, double lzts,
 			String imageFormat, boolean ignoreBlank, boolean reprojectIfRequired, File outputDirectory, boolean resume,
 			ProgressReporter progress)
+	{
+		tileMapnik(mapFile, sector, origin, level, tilesize, lzts, imageFormat, ignoreBlank, reprojectIfRequired,
+				outputDirectory, resume, new TilingOptions(), progress);
+	}
+
+	/**
+	 * Tile the given Mapnik XML dataset, using the given tiling engine options.
+	 * 
+	 * @see #tileMapnik(File, Sector, LatLon, int, int, double, String,
+	 *      boolean, boolean, File, boolean, ProgressReporter)
+	 * @param options
+	 *            Tiling engine options (worker count, work unit size)
+	 */
+	public static void tileMapnik(File mapFile, Sector sector, LatLon origin, int level, int tilesize, double lzts,
+			String imageFormat, boolean ignoreBlank, boolean reprojectIfRequired, File outputDirectory, boolean resume,
+			TilingOptions options, ProgressReporter progress)
 	{
 		tile(TilingType.Mapnik, null, reprojectIfRequired, false, mapFile, sector, origin, level, tilesize, lzts,
 				imageFormat, false, -1, -1, -1, null, ignoreBlank, null, null, null, null, outputDirectory, resume,
-				progress);
+				options, progress);
 	}
 
 	private static void tile(TilingType type, Dataset dataset, boolean reprojectIfRequired,
@@ -230,7 +292,7 @@ public class Tiler
 			double lzts, String imageFormat, boolean addAlpha, float jpegQuality, int bufferType, int band,
 			NullableNumberArray outsideValues, boolean ignoreBlank, MinMaxArray[] replaceMinMaxs,
 			NullableNumberArray replace, NullableNumberArray otherwise, NumberArray minMax, File outputDirectory,
-			boolean resume, ProgressReporter progress)
+			boolean resume, TilingOptions options, ProgressReporter progress)
 	{
 		progress.getLogger().info("Generating tiles...");
 
@@ -244,174 +306,440 @@ public class Tiler
 
 		File levelDir = new File(outputDirectory, String.valueOf(level));
 
-		int startX = minX;
-		int startY = minY;
-		if (resume)
+		TileGenerator generator = new TileGenerator();
+		generator.type = type;
+		generator.reprojectIfRequired = reprojectIfRequired;
+		generator.linearInterpolationIfRequired = linearInterpolationIfRequired;
+		generator.mapFile = mapFile;
+		generator.origin = origin;
+		generator.tilesize = tilesize;
+		generator.tilesizedegrees = tilesizedegrees;
+		generator.imageFormat = imageFormat;
+		generator.outputExt = outputExt;
+		generator.addAlpha = addAlpha;
+		generator.jpegQuality = jpegQuality;
+		generator.bufferType = bufferType;
+		generator.band = band;
+		generator.outsideValues = outsideValues;
+		generator.ignoreBlank = ignoreBlank;
+		generator.replaceMinMaxs = replaceMinMaxs;
+		generator.replace = replace;
+		generator.otherwise = otherwise;
+		generator.levelDir = levelDir;
+		//when updating, the tiles are regenerated regardless of whether they exist
+		boolean update = options.updateSector != null;
+		generator.resume = resume && !update;
+		generator.overwrite = update;
+		generator.stripSize = options.stripSize;
+		generator.warpPlan = options.warpPlan;
+		if (options.deduplicate)
 		{
-			//check if this data has been tiled before; if so, start from previous position
-			for (int Y = minY; Y <= maxY; Y++)
+			generator.deduplicator = new TileDeduplicator();
+		}
+
+		levelDir.mkdirs();
+		try
+		{
+			generator.journal = TileJournal.open(levelDir, minX, maxX, minY, maxY);
+			if (resume && generator.journal.existed())
 			{
-				File rowDir = new File(levelDir, Util.paddedInt(Y, 4));
-				if (rowDir.exists())
-				{
-					startY = Y;
-				}
+				progress.getLogger().info(
+						"Resuming from tile journal, " + generator.journal.getCompleteCount() + " tiles complete");
 			}
+		}
+		catch (IOException e)
+		{
+			progress.getLogger().warning("Error opening tile journal, tiles will not be journaled: " + e.getMessage());
+		}
 
-			File rowDir = new File(levelDir, Util.paddedInt(startY, 4));
-			if (rowDir.exists())
+		if (update)
+		{
+			Rectangle range = updateRange(minX, maxX, minY, maxY, options.updateSector, origin, level, lzts);
+			if (range == null)
 			{
-				for (int X = minX; X <= maxX; X++)
-				{
-					final File dst =
-							new File(rowDir, Util.paddedInt(startY, 4) + "_" + Util.paddedInt(X, 4) + "." + outputExt);
-					if (dst.exists())
-					{
-						startX = X + 1;
-					}
-				}
+				progress.getLogger().info("No tiles intersect the update sector " + options.updateSector);
+				closeJournal(generator, progress);
+				return;
 			}
+			progress.getLogger().info(
+					"Updating " + (range.width * range.height) + " of " + ((maxX - minX + 1) * (maxY - minY + 1))
+							+ " tiles intersecting " + options.updateSector);
+			minX = range.x;
+			maxX = range.x + range.width - 1;
+			minY = range.y;
+			maxY = range.y + range.height - 1;
 		}
 
-		int xsize = maxX - minX + 1;
-		int ysize = maxY - minY + 1;
-		int size = xsize * ysize;
-		int count = (startY - minY) * xsize + (startX - minX);
-		for (int Y = startY; Y <= maxY; Y++)
+		if (type == TilingType.Mapnik && options.mapnikRenderer != null)
 		{
-			if (progress.isCancelled())
-				break;
+			//each worker thread renders with its own renderer process from the pool
+			generator.mapnikRenderers =
+					new MapnikRenderer.Pool(options.mapnikRenderer, mapFile, reprojectIfRequired, null,
+							progress.getLogger());
+		}
 
-			File rowDir = new File(levelDir, Util.paddedInt(Y, 4));
-			if (!rowDir.exists())
+		ImageEncoder.Statistics encoding = ImageEncoder.getStatistics();
+		try
+		{
+			if (options.fusedOverviews && type != TilingType.Mapnik && !update)
 			{
-				rowDir.mkdirs();
+				FusedPyramidBuilder builder =
+						new FusedPyramidBuilder(generator, dataset, minMax, sector, origin, level, lzts, outputDirectory,
+								options, progress);
+				builder.run();
+				return;
+			}
+			else if (options.pipeline && type != TilingType.Mapnik)
+			{
+				TilingPipeline pipeline = new TilingPipeline(generator, dataset, minMax, options, progress);
+				boolean succeeded = pipeline.run(minX, maxX, minY, maxY);
+				progress.getLogger().info(
+						"Tile generation " + (!succeeded ? "failed" : progress.isCancelled() ? "cancelled" : "complete"));
+				return;
+			}
+			else if (options.threads > 1)
+			{
+				boolean succeeded = tileParallel(generator, dataset, minX, maxX, minY, maxY, minMax, options, progress);
+				progress.getLogger().info(
+						"Tile generation " + (!succeeded ? "failed" : progress.isCancelled() ? "cancelled" : "complete"));
+				return;
+			}
+
+			int startX = minX;
+			int startY = minY;
+			if (generator.resume && (generator.journal == null || !generator.journal.existed()))
+			{
+				//check if this data has been tiled before; if so, start from previous position
+				//(if there is a journal, generate() skips the tiles completed in the journal instead)
+				for (int Y = minY; Y <= maxY; Y++)
+				{
+					File rowDir = generator.rowDirectory(Y);
+					if (rowDir.exists())
+					{
+						startY = Y;
+					}
+				}
+
+				File rowDir = generator.rowDirectory(startY);
+				if (rowDir.exists())
+				{
+					for (int X = minX; X <= maxX; X++)
+					{
+						final File dst = generator.tileFile(X, startY);
+						if (dst.exists())
+						{
+							startX = X + 1;
+						}
+					}
+				}
 			}
 
-			for (int X = (Y == startY ? startX : minX); X <= maxX; X++)
+			int xsize = maxX - minX + 1;
+			int ysize = maxY - minY + 1;
+			int size = xsize * ysize;
+			int count = (startY - minY) * xsize + (startX - minX);
+			for (int Y = startY; Y <= maxY; Y++)
 			{
 				if (progress.isCancelled())
 					break;
 
-				count++;
-				progress.getLogger().fine(
-						"Tile (" + X + "," + Y + "), " + count + "/" + size + " (" + (count * 100 / size)
-								+ "%) (column " + (X - minX + 1) + "/" + xsize + ", row " + (Y - minY + 1) + "/"
-								+ ysize + ")");
-				progress.progress(count / (double) size);
-
-				final double lat1 = (Y * tilesizedegrees) + origin.getLatitude();
-				final double lon1 = (X * tilesizedegrees) + origin.getLongitude();
-				final double lat2 = lat1 + tilesizedegrees;
-				final double lon2 = lon1 + tilesizedegrees;
-				Sector s = new Sector(lat1, lon1, lat2, lon2);
-
-				final File dst = new File(rowDir, Util.paddedInt(Y, 4) + "_" + Util.paddedInt(X, 4) + "." + outputExt);
-				if (dst.exists())
+				File rowDir = generator.rowDirectory(Y);
+				if (!rowDir.exists())
 				{
-					progress.getLogger().warning(dst.getAbsolutePath() + " already exists");
+					rowDir.mkdirs();
 				}
-				else
+
+				for (int X = (Y == startY ? startX : minX); X <= maxX; X++)
+				{
+					if (progress.isCancelled())
+						break;
+
+					count++;
+					progress.getLogger().fine(
+							"Tile (" + X + "," + Y + "), " + count + "/" + size + " (" + (count * 100 / size)
+									+ "%) (column " + (X - minX + 1) + "/" + xsize + ", row " + (Y - minY + 1) + "/"
+									+ ysize + ")");
+					progress.progress(count / (double) size);
+
+					generator.generate(X, Y, dataset, minMax, progress);
+				}
+			}
+
+			progress.getLogger().info("Tile generation " + (progress.isCancelled() ? "cancelled" : "complete"));
+		}
+		finally
+		{
+			generator.closeReaders(progress);
+			logEncoding(encoding, progress);
+			progress.getLogger().fine(BufferManager.getStatistics());
+			if (generator.deduplicator != null)
+			{
+				generator.deduplicator.report(progress.getLogger());
+			}
+			closeJournal(generator, progress);
+		}
+	}
+
+	private static void closeJournal(TileGenerator generator, ProgressReporter progress)
+	{
+		if (generator.journal != null)
+		{
+			try
+			{
+				generator.journal.close();
+			}
+			catch (IOException e)
+			{
+				progress.getLogger().warning("Error closing tile journal: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Restrict a tile grid (inclusive coordinates) to the tiles that intersect
+	 * the given update sector.
+	 * 
+	 * @return Tiles to update, in tile coordinates, or null if no tiles in the
+	 *         grid intersect the sector
+	 */
+	static Rectangle updateRange(int minX, int maxX, int minY, int maxY, Sector update, LatLon origin, int level,
+			double lzts)
+	{
+		int x0 = Math.max(minX, Util.getTileX(update.getMinLongitude() + 1e-10, origin, level, lzts));
+		int x1 = Math.min(maxX, Util.getTileX(update.getMaxLongitude() - 1e-10, origin, level, lzts));
+		int y0 = Math.max(minY, Util.getTileY(update.getMinLatitude() + 1e-10, origin, level, lzts));
+		int y1 = Math.min(maxY, Util.getTileY(update.getMaxLatitude() - 1e-10, origin, level, lzts));
+		if (x0 > x1 || y0 > y1)
+		{
+			return null;
+		}
+		return new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+	}
+
+	/**
+	 * Generate the tiles between the given tile coordinates (inclusive) using
+	 * multiple worker threads. The tile grid is split into row (or block) work
+	 * units, which the workers take from a shared queue. Each worker reads from
+	 * its own handle to the dataset, as GDAL dataset handles cannot be shared
+	 * between threads.
+	 * <p>
+	 * When resuming, tiles are completed out of order, so every tile in the
+	 * grid is visited and existing tiles are skipped.
+	 * <p>
+	 * If a worker fails, the remaining workers are stopped and the progress
+	 * reporter is cancelled, so callers don't continue with an incomplete
+	 * level.
+	 * 
+	 * @return False if a worker failed
+	 */
+	private static boolean tileParallel(final TileGenerator generator, final Dataset dataset, final int minX,
+			final int maxX, final int minY, final int maxY, final NumberArray minMax, TilingOptions options,
+			final ProgressReporter progress)
+	{
+		final List<Rectangle> units = createWorkUnits(minX, maxX, minY, maxY, options.blockSize);
+		final AtomicInteger nextUnit = new AtomicInteger(0);
+		final AtomicInteger count = new AtomicInteger(0);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final int xsize = maxX - minX + 1;
+		final int ysize = maxY - minY + 1;
+		final int size = xsize * ysize;
+		final boolean floatingPoint =
+				generator.type == TilingType.Elevations && GDALTile.isTypeFloatingPoint(generator.bufferType);
+
+		int threads = Math.min(options.threads, units.size());
+		progress.getLogger().info(
+				"Tiling " + size + " tiles in " + units.size() + " work units using " + threads + " threads");
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < threads; i++)
+		{
+			futures.add(executor.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
 				{
+					//GDAL datasets are not thread safe, so each worker needs its own handle
+					Dataset workerDataset = dataset != null ? GDALUtil.reopen(dataset) : null;
+					NumberArray workerMinMax = null;
+					if (minMax != null)
+					{
+						workerMinMax = new NumberArray(minMax.length());
+						copyMinMax(minMax, workerMinMax, floatingPoint);
+					}
+
 					try
 					{
-						if (type == TilingType.Mapnik)
-						{
-							MapnikUtil.tile(s, tilesize, tilesize, ignoreBlank, reprojectIfRequired, mapFile, dst,
-									progress.getLogger());
-						}
-						else
+						int index;
+						while (!failed.get() && !progress.isCancelled()
+								&& (index = nextUnit.getAndIncrement()) < units.size())
 						{
-							GDALTileParameters parameters =
-									new GDALTileParameters(dataset, new Dimension(tilesize, tilesize), s);
-							parameters.addAlpha = addAlpha;
-							parameters.selectedBand = band;
-							parameters.reprojectIfRequired = reprojectIfRequired;
-							parameters.bilinearInterpolationIfRequired = linearInterpolationIfRequired;
-							parameters.noData = outsideValues;
-							parameters.minMaxs = replaceMinMaxs;
-							parameters.replacement = replace;
-							parameters.otherwise = otherwise;
-
-							GDALTile tile = new GDALTile(parameters);
-							if (type == TilingType.Elevations)
+							Rectangle unit = units.get(index);
+							for (int Y = unit.y; Y < unit.y + unit.height; Y++)
 							{
-								tile = tile.convertToType(bufferType);
-
-								tile.updateMinMax(minMax, outsideValues);
-
-								ByteBuffer bb = tile.getBuffer();
-								bb.rewind();
-								RandomAccessFile raf = null;
-								try
+								File rowDir = generator.rowDirectory(Y);
+								if (!rowDir.exists())
 								{
-									raf = new RandomAccessFile(dst, "rw");
-									MappedByteBuffer mbb = raf.getChannel().map(MapMode.READ_WRITE, 0, bb.limit());
-									mbb.order(bb.order());
-									mbb.put(bb);
+									rowDir.mkdirs();
 								}
-								finally
-								{
-									if (raf != null)
-										raf.close();
-								}
-							}
-							else
-							{
-								if (!(ignoreBlank && tile.isBlank()))
+
+								for (int X = unit.x; X < unit.x + unit.width; X++)
 								{
-									BufferedImage image = tile.getAsImage();
-									writeImage(image, imageFormat, dst, jpegQuality);
+									if (failed.get() || progress.isCancelled())
+										break;
+
+									int c = count.incrementAndGet();
+									progress.getLogger().fine(
+											"Tile (" + X + "," + Y + "), " + c + "/" + size + " ("
+													+ (c * 100 / size) + "%) (column " + (X - minX + 1) + "/"
+													+ xsize + ", row " + (Y - minY + 1) + "/" + ysize + ")");
+									synchronized (progress)
+									{
+										progress.progress(c / (double) size);
+									}
+
+									generator.generate(X, Y, workerDataset, workerMinMax, progress);
 								}
 							}
 						}
 					}
-					catch (Exception e)
+					finally
 					{
-						progress.getLogger().severe(e.getMessage());
-						try
+						if (workerDataset != null)
 						{
-							Thread.sleep(1);
+							generator.closeReaders(workerDataset);
+							workerDataset.delete();
 						}
-						catch (InterruptedException e1)
+						if (workerMinMax != null)
 						{
-							e1.printStackTrace();
+							synchronized (minMax)
+							{
+								mergeMinMax(workerMinMax, minMax, floatingPoint);
+							}
 						}
 					}
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		for (Future<Void> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				progress.cancel();
+				executor.shutdownNow();
+				break;
+			}
+			catch (ExecutionException e)
+			{
+				Throwable cause = e.getCause() != null ? e.getCause() : e;
+				progress.getLogger().log(Level.SEVERE, "Tiling worker failed: " + cause.getMessage(), cause);
+				if (!failed.getAndSet(true))
+				{
+					//stop the other workers; their futures are still waited on so their datasets are closed
+					progress.cancel();
+					executor.shutdownNow();
 				}
 			}
 		}
+		return !failed.get();
+	}
 
-		progress.getLogger().info("Tile generation " + (progress.isCancelled() ? "cancelled" : "complete"));
+	/**
+	 * Split the given tile grid (inclusive coordinates) into work units. Each
+	 * unit is a rectangle in tile coordinates; either a whole row, or a square
+	 * block of tiles if blockSize is greater than 0.
+	 */
+	static List<Rectangle> createWorkUnits(int minX, int maxX, int minY, int maxY, int blockSize)
+	{
+		List<Rectangle> units = new ArrayList<Rectangle>();
+		if (blockSize < 1)
+		{
+			for (int Y = minY; Y <= maxY; Y++)
+			{
+				units.add(new Rectangle(minX, Y, maxX - minX + 1, 1));
+			}
+		}
+		else
+		{
+			for (int Y = minY; Y <= maxY; Y += blockSize)
+			{
+				for (int X = minX; X <= maxX; X += blockSize)
+				{
+					units.add(new Rectangle(X, Y, Math.min(blockSize, maxX - X + 1), Math.min(blockSize, maxY - Y
+							+ 1)));
+				}
+			}
+		}
+		return units;
 	}
 
-	public static void writeImage(BufferedImage image, String format, File file, float jpegQuality) throws IOException
+	static void copyMinMax(NumberArray from, NumberArray to, boolean floatingPoint)
 	{
-		if ("jpg".equalsIgnoreCase(format))
+		for (int i = 0; i < from.length(); i++)
 		{
-			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
-			ImageWriter writer = writers.next();
-			JPEGImageWriteParam iwp = (JPEGImageWriteParam) writer.getDefaultWriteParam();
-			iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-			iwp.setCompressionQuality(jpegQuality);
-			iwp.setOptimizeHuffmanTables(true);
-			FileImageOutputStream ios = null;
-			try
+			if (floatingPoint)
 			{
-				ios = new FileImageOutputStream(file);
-				writer.setOutput(ios);
-				IIOImage iioimage = new IIOImage(image, null, null);
-				writer.write(null, iioimage, iwp);
+				to.setDouble(i, from.getDouble(i));
 			}
-			finally
+			else
 			{
-				if (ios != null)
-					ios.close();
+				to.setLong(i, from.getLong(i));
 			}
 		}
+	}
+
+	static void mergeMinMax(NumberArray from, NumberArray to, boolean floatingPoint)
+	{
+		if (floatingPoint)
+		{
+			to.setDouble(0, Math.min(to.getDouble(0), from.getDouble(0)));
+			to.setDouble(1, Math.max(to.getDouble(1), from.getDouble(1)));
+		}
 		else
 		{
-			ImageIO.write(image, format, file);
+			to.setLong(0, Math.min(to.getLong(0), from.getLong(0)));
+			to.setLong(1, Math.max(to.getLong(1), from.getLong(1)));
 		}
 	}
+
+	/**
+	 * Log the image encoding statistics since the given snapshot, if any
+	 * images were encoded.
+	 */
+	static void logEncoding(ImageEncoder.Statistics start, ProgressReporter progress)
+	{
+		ImageEncoder.Statistics statistics = ImageEncoder.getStatistics().since(start);
+		if (statistics.count > 0)
+		{
+			progress.getLogger().info(statistics.toString());
+		}
+	}
+
+	/**
+	 * Encode the image, and write it to a file. Uses a pooled
+	 * {@link ImageEncoder}.
+	 */
+	public static void writeImage(BufferedImage image, String format, File file, float jpegQuality) throws IOException
+	{
+		ImageEncoder.write(image, format, jpegQuality, file);
+	}
+
+	/**
+	 * Encode the image in memory, using the same settings as
+	 * {@link #writeImage(BufferedImage, String, File, float)}.
+	 * 
+	 * @return Encoded image bytes
+	 */
+	public static byte[] encodeImage(BufferedImage image, String format, float jpegQuality) throws IOException
+	{
+		return ImageEncoder.encode(image, format, jpegQuality);
+	}
 }
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import java.util.List;
+
+import au.gov.ga.worldwind.tiler.mapnik.MapnikRenderer;
+import au.gov.ga.worldwind.tiler.util.Sector;
+
+/**
+ * Container class which stores the settings used by the {@link Tiler} engine
+ * itself (as opposed to the dataset and tileset parameters, which are passed
+ * to the tiling functions directly). The defaults reproduce the original
+ * single threaded behaviour.
+ */
+public class TilingOptions
+{
+	/**
+	 * Number of worker threads to generate tiles with. Each worker opens its
+	 * own handle to the source dataset. Defaults to 1 (serial tiling).
+	 */
+	public int threads = 1;
+
+	/**
+	 * Width/height (in tiles) of the square blocks of tiles handed to each
+	 * worker. If this is less than 1, each work unit is a single row of tiles.
+	 * Defaults to 0 (row work units).
+	 */
+	public int blockSize = 0;
+
+	/**
+	 * Generate tiles using a {@link TilingPipeline}, with separate read,
+	 * transform, encode and write stages. If false, each worker thread
+	 * generates whole tiles. Not supported for Mapnik tiling.
+	 */
+	public boolean pipeline = false;
+
+	/**
+	 * Number of pipeline threads reading tiles from the source dataset.
+	 */
+	public int readThreads = 1;
+
+	/**
+	 * Number of pipeline threads converting tiles to images/elevation data.
+	 */
+	public int transformThreads = 1;
+
+	/**
+	 * Number of pipeline threads encoding images (not used for elevations).
+	 */
+	public int encodeThreads = 1;
+
+	/**
+	 * Number of pipeline threads writing tiles to disk.
+	 */
+	public int writeThreads = 1;
+
+	/**
+	 * Capacity of the queue in front of each pipeline stage. This limits the
+	 * number of tiles held in memory between stages.
+	 */
+	public int queueSize = 16;
+
+	/**
+	 * Interval (in seconds) between logging the pipeline stage statistics. If
+	 * less than 1, statistics are only logged once tiling is complete.
+	 */
+	public int statisticsInterval = 30;
+
+	/**
+	 * Generate the overview levels at the same time as the base level, using a
+	 * {@link FusedPyramidBuilder}, instead of running the {@link Overviewer}
+	 * afterwards. Not supported for Mapnik tiling.
+	 */
+	public boolean fusedOverviews = false;
+
+	/**
+	 * Use bilinear minification when generating fused overviews.
+	 */
+	public boolean bilinearOverviews = true;
+
+	/**
+	 * Maximum size (in bytes) of the strips of source rows that each reading
+	 * thread holds in memory, so that neighbouring tiles can be cut from the
+	 * same strip instead of reading the source blocks again. If less than 1,
+	 * each tile is read from the dataset directly. When reprojecting, only
+	 * used with {@link #warpPlan}.
+	 */
+	public long stripSize = 0;
+
+	/**
+	 * Hash each encoded tile, and write tiles with the same contents as a tile
+	 * already written as hard links to that tile. A report of the duplicates
+	 * found is logged once tiling is complete.
+	 */
+	public boolean deduplicate = false;
+
+	/**
+	 * When reprojecting, transform the tiles using a warp plan created once
+	 * per dataset handle and level, instead of calling GDAL's ReprojectImage
+	 * (which creates a new coordinate transformer) for every tile.
+	 */
+	public boolean warpPlan = false;
+
+	/**
+	 * Sector of the source data that has changed since the tileset was last
+	 * generated. If not null, only the tiles intersecting this sector are
+	 * regenerated, replacing the existing tiles, and only their ancestor
+	 * overviews are recomputed. Fused overviews are not used when updating.
+	 * Defaults to null (tile the whole sector).
+	 */
+	public Sector updateSector = null;
+
+	/**
+	 * Command (and arguments) of a batch Mapnik renderer, which is started
+	 * once per worker thread and renders many tiles, instead of starting
+	 * Nik2Img for every tile. See {@link MapnikRenderer} for the protocol the
+	 * renderer must support; mapnik/batch_render.py implements it using the
+	 * Mapnik Python bindings. Defaults to null (Nik2Img per tile).
+	 */
+	public List<String> mapnikRenderer = null;
+}
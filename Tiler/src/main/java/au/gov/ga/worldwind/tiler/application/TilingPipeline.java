@@ -0,0 +1,572 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.gdal.gdal.Dataset;
+
+import au.gov.ga.worldwind.tiler.application.Tiler.TilingType;
+import au.gov.ga.worldwind.tiler.gdal.GDALTile;
+import au.gov.ga.worldwind.tiler.gdal.GDALUtil;
+import au.gov.ga.worldwind.tiler.util.NumberArray;
+import au.gov.ga.worldwind.tiler.util.ProgressReporter;
+
+/**
+ * Splits tile generation into read, transform, encode and write stages, each
+ * running on its own threads and joined by bounded queues. This allows GDAL
+ * reads, per-pixel processing (value replacement, nodata fill and image
+ * conversion), encoding and file writes to overlap, so that a slow
+ * encoder doesn't stall reading, and a slow output volume doesn't stall
+ * encoding. The bounded queues limit the number of tiles held in memory.
+ * <p/>
+ * The queue depth and processing time of each stage is logged to the
+ * {@link ProgressReporter} periodically, and once tiling is complete.
+ */
+class TilingPipeline
+{
+	/**
+	 * Marker placed on a stage's queue (once per worker) to signal that there
+	 * is no more work.
+	 */
+	private static final TileWork END = new TileWork(0, 0, null);
+
+	private final TileGenerator generator;
+	private final Dataset dataset;
+	private final NumberArray minMax;
+	private final boolean floatingPoint;
+	private final TilingOptions options;
+	private final ProgressReporter progress;
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final AtomicInteger completed = new AtomicInteger(0);
+	private final AtomicBoolean failed = new AtomicBoolean(false);
+	private int size;
+
+	public TilingPipeline(TileGenerator generator, Dataset dataset, NumberArray minMax, TilingOptions options,
+			ProgressReporter progress)
+	{
+		if (generator.type == TilingType.Mapnik)
+		{
+			throw new IllegalArgumentException("Mapnik tiling cannot be pipelined");
+		}
+
+		this.generator = generator;
+		this.dataset = dataset;
+		this.minMax = minMax;
+		this.floatingPoint =
+				generator.type == TilingType.Elevations && GDALTile.isTypeFloatingPoint(generator.bufferType);
+		this.options = options;
+		this.progress = progress;
+
+		stages.add(new ReadStage(options.readThreads));
+		stages.add(new TransformStage(options.transformThreads));
+		if (generator.type == TilingType.Images)
+		{
+			//elevation data is written raw, so doesn't need encoding
+			stages.add(new EncodeStage(options.encodeThreads));
+		}
+		stages.add(new WriteStage(options.writeThreads));
+		for (int i = 0; i < stages.size() - 1; i++)
+		{
+			stages.get(i).next = stages.get(i + 1);
+		}
+	}
+
+	/**
+	 * Generate the tiles between the given tile coordinates (inclusive). Blocks
+	 * until all the tiles have been written, or the tiling is cancelled. If a
+	 * stage worker can't be started, the tiling is cancelled.
+	 * 
+	 * @return False if a stage worker failed to start
+	 */
+	public boolean run(int minX, int maxX, int minY, int maxY)
+	{
+		int xsize = maxX - minX + 1;
+		int ysize = maxY - minY + 1;
+		size = xsize * ysize;
+
+		StringBuilder sb = new StringBuilder();
+		for (Stage stage : stages)
+		{
+			sb.append(sb.length() > 0 ? ", " : "").append(stage.name).append(" x").append(stage.threads);
+		}
+		progress.getLogger().info(
+				"Tiling " + size + " tiles using pipeline stages (" + sb + "), queue size " + options.queueSize);
+
+		for (Stage stage : stages)
+		{
+			stage.start();
+		}
+
+		ScheduledExecutorService statistics = null;
+		if (options.statisticsInterval > 0)
+		{
+			statistics = Executors.newSingleThreadScheduledExecutor();
+			statistics.scheduleAtFixedRate(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					logStatistics();
+				}
+			}, options.statisticsInterval, options.statisticsInterval, TimeUnit.SECONDS);
+		}
+
+		Stage first = stages.get(0);
+		Stage last = stages.get(stages.size() - 1);
+		try
+		{
+			int count = 0;
+			for (int Y = minY; Y <= maxY && !progress.isCancelled(); Y++)
+			{
+				File rowDir = generator.rowDirectory(Y);
+				if (!rowDir.exists())
+				{
+					rowDir.mkdirs();
+				}
+
+				for (int X = minX; X <= maxX && !progress.isCancelled(); X++)
+				{
+					count++;
+					progress.getLogger().fine(
+							"Tile (" + X + "," + Y + "), " + count + "/" + size + " (" + (count * 100 / size)
+									+ "%) (column " + (X - minX + 1) + "/" + xsize + ", row " + (Y - minY + 1) + "/"
+									+ ysize + ")");
+
+					File dst = generator.tileFile(X, Y);
+					if (generator.skip(X, Y, dst, progress))
+					{
+						tileDone();
+						continue;
+					}
+					first.queue.put(new TileWork(X, Y, dst));
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			progress.cancel();
+		}
+		finally
+		{
+			first.finishInput();
+			last.awaitWorkers();
+			if (statistics != null)
+			{
+				statistics.shutdownNow();
+			}
+			logStatistics();
+		}
+		return !failed.get();
+	}
+
+	private void tileDone()
+	{
+		int c = completed.incrementAndGet();
+		synchronized (progress)
+		{
+			progress.progress(c / (double) size);
+		}
+	}
+
+	private void logStatistics()
+	{
+		StringBuilder sb = new StringBuilder("Pipeline: ");
+		for (int i = 0; i < stages.size(); i++)
+		{
+			Stage stage = stages.get(i);
+			long processed = stage.processed.get();
+			double busy = processed > 0 ? stage.busyNanos.get() / 1e6 / processed : 0;
+			double blocked = processed > 0 ? stage.blockedNanos.get() / 1e6 / processed : 0;
+			if (i > 0)
+			{
+				sb.append("; ");
+			}
+			sb.append(stage.name).append(" queue ").append(stage.queue.size()).append("/").append(options.queueSize)
+					.append(", ").append(processed).append(" tiles, ").append(String.format("%.1f", busy))
+					.append(" ms/tile");
+			if (stage.next != null)
+			{
+				sb.append(", ").append(String.format("%.1f", blocked)).append(" ms/tile blocked");
+			}
+		}
+		sb.append(" (").append(completed.get()).append("/").append(size).append(" complete)");
+		progress.getLogger().info(sb.toString());
+	}
+
+	/**
+	 * Work item that is passed down the pipeline for each tile.
+	 */
+	private static class TileWork
+	{
+		public final int X;
+		public final int Y;
+		public final File dst;
+		public GDALTile tile;
+		public BufferedImage image;
+		public ByteBuffer data;
+
+		public TileWork(int X, int Y, File dst)
+		{
+			this.X = X;
+			this.Y = Y;
+			this.dst = dst;
+		}
+	}
+
+	/**
+	 * Processes tiles for a single worker thread of a {@link Stage}. Each
+	 * thread creates its own processor, which can hold per-thread state (such
+	 * as a dataset handle).
+	 */
+	private interface StageProcessor
+	{
+		/**
+		 * @return True if the tile should be passed on to the next stage, false
+		 *         if it is complete (or should be discarded)
+		 */
+		boolean process(TileWork work) throws Exception;
+
+		void close();
+	}
+
+	/**
+	 * A single pipeline stage. Takes work from its bounded queue, processes it
+	 * on its own worker threads, and passes it to the next stage's queue.
+	 */
+	private abstract class Stage
+	{
+		public final String name;
+		public final int threads;
+		public final BlockingQueue<TileWork> queue;
+		public Stage next;
+
+		public final AtomicLong processed = new AtomicLong();
+		public final AtomicLong busyNanos = new AtomicLong();
+		public final AtomicLong blockedNanos = new AtomicLong();
+
+		private final AtomicInteger running;
+		private final List<Thread> workers = new ArrayList<Thread>();
+
+		public Stage(String name, int threads)
+		{
+			this.name = name;
+			this.threads = Math.max(1, threads);
+			this.queue = new ArrayBlockingQueue<TileWork>(Math.max(1, options.queueSize));
+			this.running = new AtomicInteger(this.threads);
+		}
+
+		protected abstract StageProcessor createProcessor() throws Exception;
+
+		public void start()
+		{
+			for (int i = 0; i < threads; i++)
+			{
+				Thread thread = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						work();
+					}
+				}, "Tiler " + name + " " + (i + 1));
+				thread.setDaemon(true);
+				workers.add(thread);
+				thread.start();
+			}
+		}
+
+		public void finishInput()
+		{
+			for (int i = 0; i < threads; i++)
+			{
+				putUninterruptibly(END);
+			}
+		}
+
+		public void awaitWorkers()
+		{
+			for (Thread worker : workers)
+			{
+				try
+				{
+					worker.join();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+
+		private void work()
+		{
+			StageProcessor processor = null;
+			try
+			{
+				processor = createProcessor();
+			}
+			catch (Exception e)
+			{
+				//cancel the other stages, and keep draining the queue (discarding the work) so they don't block
+				progress.getLogger().log(Level.SEVERE, "Error starting " + name + " stage: " + e.getMessage(), e);
+				failed.set(true);
+				progress.cancel();
+			}
+
+			try
+			{
+				while (true)
+				{
+					TileWork work = queue.take();
+					if (work == END)
+					{
+						break;
+					}
+
+					boolean pass = false;
+					if (processor != null && !progress.isCancelled())
+					{
+						long start = System.nanoTime();
+						try
+						{
+							pass = processor.process(work);
+						}
+						catch (Exception e)
+						{
+							generator.logTileError(e, progress);
+						}
+						busyNanos.addAndGet(System.nanoTime() - start);
+						processed.incrementAndGet();
+					}
+
+					if (pass && next != null)
+					{
+						long start = System.nanoTime();
+						next.queue.put(work);
+						blockedNanos.addAndGet(System.nanoTime() - start);
+					}
+					else
+					{
+						tileDone();
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				if (processor != null)
+				{
+					processor.close();
+				}
+				if (running.decrementAndGet() == 0 && next != null)
+				{
+					next.finishInput();
+				}
+			}
+		}
+
+		private void putUninterruptibly(TileWork work)
+		{
+			boolean interrupted = false;
+			while (true)
+			{
+				try
+				{
+					queue.put(work);
+					break;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private class ReadStage extends Stage
+	{
+		public ReadStage(int threads)
+		{
+			super("read", threads);
+		}
+
+		@Override
+		protected StageProcessor createProcessor() throws Exception
+		{
+			//GDAL datasets are not thread safe, so each reader needs its own handle
+			final Dataset readerDataset = GDALUtil.reopen(dataset);
+			return new StageProcessor()
+			{
+				@Override
+				public boolean process(TileWork work) throws Exception
+				{
+					work.tile = generator.readTile(work.X, work.Y, readerDataset);
+					return true;
+				}
+
+				@Override
+				public void close()
+				{
+					generator.closeReaders(readerDataset);
+					readerDataset.delete();
+				}
+			};
+		}
+	}
+
+	private class TransformStage extends Stage
+	{
+		public TransformStage(int threads)
+		{
+			super("transform", threads);
+		}
+
+		@Override
+		protected StageProcessor createProcessor() throws Exception
+		{
+			if (generator.type == TilingType.Elevations)
+			{
+				final NumberArray workerMinMax = minMax != null ? new NumberArray(minMax.length()) : null;
+				if (workerMinMax != null)
+				{
+					Tiler.copyMinMax(minMax, workerMinMax, floatingPoint);
+				}
+				return new StageProcessor()
+				{
+					@Override
+					public boolean process(TileWork work) throws Exception
+					{
+						work.data = generator.transformElevations(work.tile, workerMinMax);
+						work.tile = null;
+						return true;
+					}
+
+					@Override
+					public void close()
+					{
+						if (workerMinMax != null)
+						{
+							synchronized (minMax)
+							{
+								Tiler.mergeMinMax(workerMinMax, minMax, floatingPoint);
+							}
+						}
+					}
+				};
+			}
+
+			return new StageProcessor()
+			{
+				@Override
+				public boolean process(TileWork work) throws Exception
+				{
+					work.image = generator.transformImage(work.tile);
+					work.tile = null;
+					if (work.image == null)
+					{
+						generator.blankTile(work.X, work.Y);
+						return false;
+					}
+					return true;
+				}
+
+				@Override
+				public void close()
+				{
+				}
+			};
+		}
+	}
+
+	private class EncodeStage extends Stage
+	{
+		public EncodeStage(int threads)
+		{
+			super("encode", threads);
+		}
+
+		@Override
+		protected StageProcessor createProcessor() throws Exception
+		{
+			return new StageProcessor()
+			{
+				@Override
+				public boolean process(TileWork work) throws Exception
+				{
+					work.data = ByteBuffer.wrap(generator.encodeImage(work.image));
+					work.image = null;
+					return true;
+				}
+
+				@Override
+				public void close()
+				{
+				}
+			};
+		}
+	}
+
+	private class WriteStage extends Stage
+	{
+		public WriteStage(int threads)
+		{
+			super("write", threads);
+		}
+
+		@Override
+		protected StageProcessor createProcessor() throws Exception
+		{
+			return new StageProcessor()
+			{
+				@Override
+				public boolean process(TileWork work) throws Exception
+				{
+					generator.writeTile(work.X, work.Y, work.dst, work.data);
+					work.data = null;
+					return false;
+				}
+
+				@Override
+				public void close()
+				{
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,386 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.gdal;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.gdal.gdal.Band;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.Driver;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconstConstants;
+
+/**
+ * Reads strips of source rows from a dataset into memory, so that the tiles
+ * in a row of tiles can be cut from the same strip instead of each tile
+ * reading (and decompressing) the same source blocks again.
+ * <p/>
+ * A strip covers the source rows required by a tile, plus a margin for
+ * resampling, rounded out to the dataset's natural block height. It spans as
+ * many columns (rounded to the block width) as fit within the maximum strip
+ * size, starting at the first tile that requires it. Strips are held in
+ * in-memory GDAL datasets. Recently used strips are kept until the maximum size
+ * is reached.
+ * <p/>
+ * Strips are only used for tiles that don't decimate the source (see
+ * {@link #canReadFromStrip(Rectangle, int, int)}). When decimating, a direct
+ * read from the source dataset uses the dataset's overviews, which a strip
+ * doesn't have, so reading from a strip would both change the output and read
+ * far more source data.
+ * <p/>
+ * Instances are not thread safe; like GDAL dataset handles, each thread
+ * should use its own reader.
+ */
+public class GDALStripReader
+{
+	/**
+	 * Number of extra source rows read above and below the rows required by
+	 * the tile that causes a strip to be read. Neighbouring tiles can require
+	 * a slightly different set of rows due to rounding.
+	 */
+	public static final int MARGIN = 2;
+
+	private final Dataset dataset;
+	private final int selectedBand;
+	private final long maxSize;
+	private final LinkedList<Strip> strips = new LinkedList<Strip>();
+	private long size;
+
+	private int stripCount;
+	private int hitCount;
+	private int missCount;
+	private long readTime;
+
+	/**
+	 * Create a new strip reader.
+	 * 
+	 * @param dataset
+	 *            Dataset to read strips from
+	 * @param selectedBand
+	 *            Band (0-based) to read, or -1 for all bands
+	 * @param maxSize
+	 *            Maximum size (in bytes) of the strips held in memory
+	 */
+	public GDALStripReader(Dataset dataset, int selectedBand, long maxSize)
+	{
+		this.dataset = dataset;
+		this.selectedBand = selectedBand;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Can a tile be read from a strip with the same result as from the source
+	 * dataset? This is only the case if the source window is no larger than
+	 * the destination in either dimension; otherwise GDAL would read a
+	 * decimated source window from the dataset's overviews.
+	 * 
+	 * @param srcRect
+	 *            Source window of the tile
+	 * @param dstWidth
+	 *            Width of the destination the window is read into
+	 * @param dstHeight
+	 *            Height of the destination the window is read into
+	 */
+	public static boolean canReadFromStrip(Rectangle srcRect, int dstWidth, int dstHeight)
+	{
+		return !srcRect.isEmpty() && srcRect.width <= dstWidth && srcRect.height <= dstHeight;
+	}
+
+	/**
+	 * @return The dataset that strips are read from
+	 */
+	public Dataset getDataset()
+	{
+		return dataset;
+	}
+
+	/**
+	 * Find (or read) a strip that contains the given source rectangle.
+	 * 
+	 * @param srcRect
+	 *            Source rectangle, within the dataset extents
+	 * @return Strip containing the rectangle, or null if a strip containing
+	 *         the rectangle would be larger than the maximum size (in which
+	 *         case the tile should be read from the dataset directly)
+	 */
+	public Strip getStrip(Rectangle srcRect) throws GDALException
+	{
+		for (Iterator<Strip> iterator = strips.iterator(); iterator.hasNext();)
+		{
+			Strip strip = iterator.next();
+			if (strip.rectangle.contains(srcRect))
+			{
+				//move to the front of the list (most recently used)
+				iterator.remove();
+				strips.addFirst(strip);
+				hitCount++;
+				return strip;
+			}
+		}
+
+		int bandCount = selectedBand >= 0 ? 1 : dataset.getRasterCount();
+		Band first = dataset.GetRasterBand(selectedBand >= 0 ? selectedBand + 1 : 1);
+		int pixelSize = 0;
+		for (int i = 0; i < bandCount; i++)
+		{
+			pixelSize += gdal.GetDataTypeSize(sourceBand(i).getDataType()) / 8;
+		}
+
+		Rectangle rectangle =
+				calculateStrip(srcRect, dataset.getRasterXSize(), dataset.getRasterYSize(), first.GetBlockXSize(),
+						first.GetBlockYSize(), pixelSize, maxSize);
+		if (rectangle == null)
+		{
+			missCount++;
+			return null;
+		}
+
+		long stripSize = (long) rectangle.width * rectangle.height * pixelSize;
+		while (!strips.isEmpty() && size + stripSize > maxSize)
+		{
+			Strip evicted = strips.removeLast();
+			size -= evicted.size;
+			evicted.dataset.delete();
+		}
+
+		long start = System.nanoTime();
+		Strip strip = readStrip(rectangle, bandCount, stripSize);
+		readTime += System.nanoTime() - start;
+
+		strips.addFirst(strip);
+		size += stripSize;
+		stripCount++;
+		hitCount++;
+		return strip;
+	}
+
+	private Band sourceBand(int index)
+	{
+		return dataset.GetRasterBand(selectedBand >= 0 ? selectedBand + 1 : index + 1);
+	}
+
+	private Strip readStrip(Rectangle rectangle, int bandCount, long stripSize) throws GDALException
+	{
+		Driver memDriver = gdal.GetDriverByName("MEM");
+		Dataset mem = memDriver.Create("strip", rectangle.width, rectangle.height, 0);
+		try
+		{
+			ByteBuffer buffer = null;
+			for (int i = 0; i < bandCount; i++)
+			{
+				Band src = sourceBand(i);
+				int type = src.getDataType();
+				int typeSize = gdal.GetDataTypeSize(type) / 8;
+				int bandSize = rectangle.width * rectangle.height * typeSize;
+				if (buffer == null || buffer.capacity() < bandSize)
+				{
+					buffer = ByteBuffer.allocateDirect(bandSize);
+					buffer.order(ByteOrder.LITTLE_ENDIAN);
+				}
+				buffer.clear();
+
+				int returnVal =
+						src.ReadRaster_Direct(rectangle.x, rectangle.y, rectangle.width, rectangle.height,
+								rectangle.width, rectangle.height, type, buffer, typeSize, typeSize * rectangle.width);
+				if (returnVal != gdalconstConstants.CE_None)
+				{
+					throw new GDALException();
+				}
+
+				mem.AddBand(type);
+				Band dst = mem.GetRasterBand(i + 1);
+				returnVal =
+						dst.WriteRaster_Direct(0, 0, rectangle.width, rectangle.height, rectangle.width,
+								rectangle.height, type, buffer, typeSize, typeSize * rectangle.width);
+				if (returnVal != gdalconstConstants.CE_None)
+				{
+					throw new GDALException();
+				}
+			}
+			return new Strip(mem, rectangle, stripSize);
+		}
+		catch (GDALException e)
+		{
+			mem.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Calculate the source rectangle of the strip to read for a tile.
+	 * 
+	 * @param srcRect
+	 *            Source rectangle required by the tile
+	 * @param rasterWidth
+	 *            Dataset width
+	 * @param rasterHeight
+	 *            Dataset height
+	 * @param blockWidth
+	 *            Dataset block width
+	 * @param blockHeight
+	 *            Dataset block height
+	 * @param pixelSize
+	 *            Size (in bytes) of a pixel (all bands)
+	 * @param maxSize
+	 *            Maximum strip size (in bytes)
+	 * @return Strip rectangle, or null if the strip would be larger than the
+	 *         maximum size
+	 */
+	static Rectangle calculateStrip(Rectangle srcRect, int rasterWidth, int rasterHeight, int blockWidth,
+			int blockHeight, int pixelSize, long maxSize)
+	{
+		blockWidth = Math.max(1, blockWidth);
+		blockHeight = Math.max(1, blockHeight);
+
+		int y0 = Math.max(0, srcRect.y - MARGIN);
+		int y1 = Math.min(rasterHeight, srcRect.y + srcRect.height + MARGIN);
+		int alignedY0 = y0 / blockHeight * blockHeight;
+		int alignedY1 = Math.min(rasterHeight, roundUp(y1, blockHeight));
+		if (maxSize / ((long) (alignedY1 - alignedY0) * pixelSize) >= srcRect.width)
+		{
+			//only align to block rows if the aligned strip can still cover the tile
+			y0 = alignedY0;
+			y1 = alignedY1;
+		}
+		int height = y1 - y0;
+
+		long maxWidth = maxSize / ((long) height * pixelSize);
+		int x0 = srcRect.x / blockWidth * blockWidth;
+		int requiredWidth = srcRect.x + srcRect.width - x0;
+		if (maxWidth < requiredWidth)
+		{
+			//try without aligning the start column
+			x0 = srcRect.x;
+			requiredWidth = srcRect.width;
+			if (maxWidth < requiredWidth)
+			{
+				return null;
+			}
+		}
+
+		int width = (int) Math.min(rasterWidth - x0, maxWidth);
+		if (x0 + width < rasterWidth)
+		{
+			//end the strip on a block boundary, if that still covers the tile
+			int aligned = (x0 + width) / blockWidth * blockWidth - x0;
+			if (aligned >= requiredWidth)
+			{
+				width = aligned;
+			}
+		}
+		return new Rectangle(x0, y0, width, height);
+	}
+
+	private static int roundUp(int value, int multiple)
+	{
+		return (value + multiple - 1) / multiple * multiple;
+	}
+
+	/**
+	 * Delete all strips held in memory.
+	 */
+	public void close()
+	{
+		for (Strip strip : strips)
+		{
+			strip.dataset.delete();
+		}
+		strips.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return Number of strips read from the dataset
+	 */
+	public int getStripCount()
+	{
+		return stripCount;
+	}
+
+	/**
+	 * @return Number of tiles read from a strip
+	 */
+	public int getHitCount()
+	{
+		return hitCount;
+	}
+
+	/**
+	 * @return Number of tiles that were too large to read from a strip
+	 */
+	public int getMissCount()
+	{
+		return missCount;
+	}
+
+	/**
+	 * @return Total time (in nanoseconds) spent reading strips
+	 */
+	public long getReadTime()
+	{
+		return readTime;
+	}
+
+	/**
+	 * A strip of the dataset held in memory.
+	 */
+	public static class Strip
+	{
+		private final Dataset dataset;
+		private final Rectangle rectangle;
+		private final long size;
+
+		private Strip(Dataset dataset, Rectangle rectangle, long size)
+		{
+			this.dataset = dataset;
+			this.rectangle = rectangle;
+			this.size = size;
+		}
+
+		/**
+		 * @return In-memory dataset containing the strip
+		 */
+		public Dataset getDataset()
+		{
+			return dataset;
+		}
+
+		/**
+		 * @return Rectangle of the source dataset covered by this strip
+		 */
+		public Rectangle getRectangle()
+		{
+			return rectangle;
+		}
+
+		/**
+		 * Get the strip band containing the data for a band of the source
+		 * dataset.
+		 * 
+		 * @param band
+		 *            Source band (0-based); ignored if a single band was
+		 *            selected when creating the reader
+		 */
+		public Band getBand(int band)
+		{
+			return dataset.getRasterCount() == 1 ? dataset.GetRasterBand(1) : dataset.GetRasterBand(band + 1);
+		}
+	}
+}
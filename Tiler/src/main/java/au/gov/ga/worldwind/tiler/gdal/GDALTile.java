@@ -78,6 +78,10 @@ public class GDALTile
 	private boolean indexed;
 	private IndexColorModel indexColorModel;
 
+	//kernel to process the tile with in process(), if processing was deferred
+	private GDALTileKernel deferredKernel;
+	private boolean deferredReplace;
+
 	public GDALTile(GDALTileParameters parameters) throws GDALException, TilerException
 	{
 		validateParameters(parameters);
@@ -148,7 +152,22 @@ public class GDALTile
 
 	protected void readDataset() throws GDALException, TilerException
 	{
-		if (parameters.reprojectIfRequired)
+		if (parameters.reprojectIfRequired && parameters.warpPlan != null
+				&& parameters.warpPlan.getDataset() == parameters.dataset && parameters.sector != null)
+		{
+			if (parameters.warpPlan.isRequired())
+			{
+				Dataset dst =
+						parameters.warpPlan.warp(parameters.sector, parameters.size,
+								parameters.bilinearInterpolationIfRequired, parameters.stripReader);
+				readRectangle(dst, null);
+			}
+			else
+			{
+				readDatasetNormal();
+			}
+		}
+		else if (parameters.reprojectIfRequired)
 		{
 			SpatialReference dstSR = new SpatialReference();
 			dstSR.ImportFromEPSG(4326); // WGS84
@@ -247,14 +266,22 @@ public class GDALTile
 		dst.SetGeoTransform(geoTransformArray);
 		dst.SetProjection(dstSR.ExportToWkt());
 
-		int returnVal =
-				gdal.ReprojectImage(parameters.dataset, dst, null, null, parameters.bilinearInterpolationIfRequired
-						? gdalconst.GRA_Bilinear : gdalconst.GRA_NearestNeighbour);
-		if (returnVal != gdalconstConstants.CE_None)
+		try
+		{
+			int returnVal =
+					gdal.ReprojectImage(parameters.dataset, dst, null, null,
+							parameters.bilinearInterpolationIfRequired ? gdalconst.GRA_Bilinear
+									: gdalconst.GRA_NearestNeighbour);
+			if (returnVal != gdalconstConstants.CE_None)
+			{
+				throw new GDALException();
+			}
+			readRectangle(dst, null);
+		}
+		finally
 		{
-			throw new GDALException();
+			dst.delete();
 		}
-		readRectangle(dst, null);
 	}
 
 	protected void readRectangle(Dataset dataset, Rectangle srcRect) throws GDALException, TilerException
@@ -311,6 +338,11 @@ public class GDALTile
 		bufferTypeSize = dataTypeSize / 8; // in bytes
 		floatingPoint = isTypeFloatingPoint(bufferType);
 
+		//compiled value replacement, nodata fill and blank detection
+		GDALTileKernel kernel =
+				kernel(parameters.minMaxs, parameters.replacement, parameters.otherwise, parameters.noData);
+		boolean replace = false;
+
 		ByteBuffer directBuffer = null;
 		try
 		{
@@ -353,6 +385,27 @@ public class GDALTile
 			//check if alpha needs to be filled
 			boolean fillAlpha = bufferBandCount != dataBandCount && bufferBandCount == 4;
 
+			//if a strip reader is available, read from a strip of the dataset held in memory (unless the
+			//source is decimated, in which case a direct read uses the dataset's overviews)
+			Band[] readBands = bands;
+			int readX = srcRect.x;
+			int readY = srcRect.y;
+			if (parameters.stripReader != null && parameters.stripReader.getDataset() == dataset
+					&& GDALStripReader.canReadFromStrip(srcRect, dataRectangle.width, dataRectangle.height))
+			{
+				GDALStripReader.Strip strip = parameters.stripReader.getStrip(srcRect);
+				if (strip != null)
+				{
+					readBands = new Band[dataBandCount];
+					for (int b = 0; b < dataBandCount; b++)
+					{
+						readBands[b] = strip.getBand(parameters.selectedBand >= 0 ? parameters.selectedBand : b);
+					}
+					readX -= strip.getRectangle().x;
+					readY -= strip.getRectangle().y;
+				}
+			}
+
 			// read image data
 			if (!srcRect.isEmpty())
 			{
@@ -366,7 +419,8 @@ public class GDALTile
 					{
 						int smallBandSize = srcRect.width * srcRect.height * bufferTypeSize;
 						//ByteBuffer small = ByteBuffer.allocateDirect(smallBandSize * bufferBandCount);
-						small = takeByteBuffer(smallBandSize * bufferBandCount);
+						//every band (including any alpha band) is written below, so no need to clear
+						small = takeByteBuffer(smallBandSize * bufferBandCount, false);
 						small.order(ByteOrder.LITTLE_ENDIAN);
 
 						//fill the alpha channel if required
@@ -385,7 +439,7 @@ public class GDALTile
 							ByteBuffer sliced = small.slice();
 
 							int returnVal =
-									bands[b].ReadRaster_Direct(srcRect.x, srcRect.y, srcRect.width, srcRect.height,
+									readBands[b].ReadRaster_Direct(readX, readY, srcRect.width, srcRect.height,
 											srcRect.width, srcRect.height, bufferType, sliced, bufferTypeSize,
 											bufferTypeSize * srcRect.width);
 							if (returnVal != gdalconstConstants.CE_None)
@@ -395,8 +449,7 @@ public class GDALTile
 						}
 
 						//replace any values
-						replaceValues(small, srcSize, zeroSrcRect, bufferBandCount, bufferType, bufferTypeSize,
-								floatingPoint, parameters.minMaxs, parameters.replacement, parameters.otherwise);
+						kernel.replace(small, srcSize.width, srcSize.height, zeroSrcRect);
 
 						//interpolate
 						enlarge(small, srcRect, directBuffer, dataRectangle, parameters.size, bufferType,
@@ -421,7 +474,7 @@ public class GDALTile
 
 						// read band into buffer
 						int returnVal =
-								bands[b].ReadRaster_Direct(srcRect.x, srcRect.y, srcRect.width, srcRect.height,
+								readBands[b].ReadRaster_Direct(readX, readY, srcRect.width, srcRect.height,
 										dataRectangle.width, dataRectangle.height, bufferType, sliced, bufferTypeSize,
 										bufferTypeSize * width);
 						if (returnVal != gdalconstConstants.CE_None)
@@ -436,9 +489,8 @@ public class GDALTile
 						fillAlpha = false;
 					}
 
-					replaceValues(directBuffer, parameters.size, dataRectangle, bufferBandCount, bufferType,
-							bufferTypeSize, floatingPoint, parameters.minMaxs, parameters.replacement,
-							parameters.otherwise);
+					//values are replaced below, in the same pass as blank detection
+					replace = true;
 				}
 			}
 
@@ -448,10 +500,16 @@ public class GDALTile
 				fillAlphaChannel(directBuffer, parameters.size, dataRectangle, bufferTypeSize);
 			}
 
-			isBlank = isEqual(directBuffer, parameters.noData);
-
-			//fill the pixels outside the dataset extents
-			fillOutside(directBuffer, parameters.noData);
+			//replace any values, check if the tile is blank, and fill the pixels outside the dataset extents
+			if (parameters.deferProcessing)
+			{
+				deferredKernel = kernel;
+				deferredReplace = replace;
+			}
+			else
+			{
+				isBlank = kernel.process(directBuffer, width, height, dataRectangle, replace);
+			}
 
 			// rewind the buffer
 			directBuffer.rewind();
@@ -722,252 +780,18 @@ public class GDALTile
 		return img;
 	}
 
-	private boolean isEqual(ByteBuffer buffer, NullableNumberArray values)
-	{
-		if (values == null)
-		{
-			return false;
-		}
-
-		if (values.length() != bufferBandCount)
-		{
-			throw new IllegalArgumentException("Array size does not equal band count");
-		}
-
-		boolean allNull = true;
-		for (int b = 0; b < bufferBandCount; b++)
-		{
-			if (floatingPoint)
-			{
-				if (values.getDouble(b) == null)
-				{
-					continue;
-				}
-			}
-			else
-			{
-				if (values.getLong(b) == null)
-				{
-					continue;
-				}
-			}
-
-			allNull = false;
-			break;
-		}
-
-		if (allNull)
-		{
-			return false;
-		}
-
-		for (int b = 0; b < bufferBandCount; b++)
-		{
-			if (floatingPoint)
-			{
-				if (values.getDouble(b) == null)
-				{
-					continue;
-				}
-			}
-			else
-			{
-				if (values.getLong(b) == null)
-				{
-					continue;
-				}
-			}
-
-			for (int x = 0; x < dataRectangle.width; x++)
-			{
-				for (int y = 0; y < dataRectangle.height; y++)
-				{
-					int index = getBufferIndex(x, y, b, dataRectangle.width, dataRectangle.height) * bufferTypeSize;
-					if (floatingPoint)
-					{
-						if (getDoubleValue(index, buffer, bufferType) != values.getDouble(b))
-						{
-							return false;
-						}
-					}
-					else
-					{
-						if (getLongValue(index, buffer, bufferType) != values.getLong(b))
-						{
-							return false;
-						}
-					}
-				}
-			}
-		}
-
-		return true;
-	}
-
-	private void fillOutside(ByteBuffer buffer, NullableNumberArray values)
-	{
-		if (values == null)
-		{
-			return;
-		}
-
-		if (values.length() != bufferBandCount)
-		{
-			throw new IllegalArgumentException("Array size does not equal band count");
-		}
-
-		int width = parameters.size.width;
-		int height = parameters.size.height;
-
-		if (dataRectangle.x == 0 && dataRectangle.y == 0 && dataRectangle.width == width
-				&& dataRectangle.height == height)
-		{
-			return;
-		}
-
-		for (int b = 0; b < bufferBandCount; b++)
-		{
-			if (floatingPoint)
-			{
-				if (values.getDouble(b) == null)
-				{
-					continue;
-				}
-			}
-			else
-			{
-				if (values.getLong(b) == null)
-				{
-					continue;
-				}
-			}
-
-			for (int x = 0; x < width; x++)
-			{
-				for (int y = 0; y < height; y++)
-				{
-					if (!dataRectangle.contains(x, y))
-					{
-						int index = getBufferIndex(x, y, b, width, height) * bufferTypeSize;
-						if (floatingPoint)
-						{
-							putDoubleValue(index, buffer, bufferType, values.getDouble(b));
-						}
-						else
-						{
-							putLongValue(index, buffer, bufferType, values.getLong(b));
-						}
-					}
-				}
-			}
-		}
-	}
-
-	private void replaceValues(ByteBuffer buffer, Dimension bufferSize, Rectangle replaceRegion, int bufferBandCount,
-			int bufferType, int bufferTypeSize, boolean floatingPoint, MinMaxArray[] minMaxs,
-			NullableNumberArray replacement, NullableNumberArray otherwise) throws TilerException
+	/**
+	 * Get the kernel for this tile's buffer type and band count, from the
+	 * job's cache if available.
+	 */
+	private GDALTileKernel kernel(MinMaxArray[] minMaxs, NullableNumberArray replacement,
+			NullableNumberArray otherwise, NullableNumberArray noData)
 	{
-		if (minMaxs == null || minMaxs.length == 0)
-		{
-			return;
-		}
-		if (replacement == null && otherwise == null)
-		{
-			return;
-		}
-
-		for (int i = 0; i < minMaxs.length; i++)
+		if (parameters.kernels != null)
 		{
-			if (minMaxs[i].length() != bufferBandCount)
-			{
-				throw new IllegalArgumentException("Array size must equal band count");
-			}
-		}
-
-		if ((replacement != null && replacement.length() != bufferBandCount)
-				|| (otherwise != null && otherwise.length() != bufferBandCount))
-		{
-			throw new IllegalArgumentException("Array size must equal band count");
-		}
-
-		boolean allNull = true;
-		for (int b = 0; b < bufferBandCount; b++)
-		{
-			if ((replacement != null && replacement.getDouble(b) != null)
-					|| (otherwise != null && otherwise.getDouble(b) != null))
-			{
-				allNull = false;
-				break;
-			}
-		}
-		if (allNull)
-		{
-			// replacement values are all null, so nothing will happen
-			return;
-		}
-
-		double[] doubleValues = new double[bufferBandCount];
-		long[] longValues = new long[bufferBandCount];
-		int[] indices = new int[bufferBandCount];
-
-		for (int y = replaceRegion.y; y < replaceRegion.y + replaceRegion.height; y++)
-		{
-			for (int x = replaceRegion.x; x < replaceRegion.x + replaceRegion.width; x++)
-			{
-				boolean between = false;
-
-				for (int b = 0; b < bufferBandCount; b++)
-				{
-					indices[b] = getBufferIndex(x, y, b, bufferSize.width, bufferSize.height) * bufferTypeSize;
-					if (floatingPoint)
-					{
-						doubleValues[b] = getDoubleValue(indices[b], buffer, bufferType);
-					}
-					else
-					{
-						longValues[b] = getLongValue(indices[b], buffer, bufferType);
-					}
-				}
-
-				for (int i = 0; i < minMaxs.length; i++)
-				{
-					if (minMaxs[i] != null)
-					{
-						if (floatingPoint)
-						{
-							between = minMaxs[i].isBetweenDouble(doubleValues);
-						}
-						else
-						{
-							between = minMaxs[i].isBetweenLong(longValues);
-						}
-						if (between)
-						{
-							break;
-						}
-					}
-				}
-
-				NullableNumberArray values = between ? replacement : otherwise;
-				if (values != null)
-				{
-					for (int b = 0; b < bufferBandCount; b++)
-					{
-						if (values.getDouble(b) != null)
-						{
-							if (floatingPoint)
-							{
-								putDoubleValue(indices[b], buffer, bufferType, values.getDouble(b));
-							}
-							else
-							{
-								putLongValue(indices[b], buffer, bufferType, values.getLong(b));
-							}
-						}
-					}
-				}
-			}
+			return parameters.kernels.get(bufferType, bufferBandCount, minMaxs, replacement, otherwise, noData);
 		}
+		return GDALTileKernel.create(bufferType, bufferBandCount, minMaxs, replacement, otherwise, noData);
 	}
 
 	public void updateMinMax(NumberArray minmax, NullableNumberArray outsideValues)
@@ -982,55 +806,8 @@ public class GDALTile
 			outsideValues = null; // just in case
 		}
 
-		int width = parameters.size.width;
-		int height = parameters.size.height;
-
-		for (int y = 0; y < height; y++)
-		{
-			for (int x = 0; x < width; x++)
-			{
-				for (int b = 0; b < bufferBandCount; b++)
-				{
-					int index = getBufferIndex(x, y, b, width, height) * bufferTypeSize;
-					if (floatingPoint)
-					{
-						double value = getDoubleValue(index, buffer, bufferType);
-						if (outsideValues != null && outsideValues.getDouble(b) != null
-								&& value == outsideValues.getDouble(b))
-						{
-							continue;
-						}
-
-						if (value < minmax.getDouble(0))
-						{
-							minmax.setDouble(0, value);
-						}
-						if (value > minmax.getDouble(1))
-						{
-							minmax.setDouble(1, value);
-						}
-					}
-					else
-					{
-						Long value = getLongValue(index, buffer, bufferType);
-						if (outsideValues != null && outsideValues.getLong(b) != null
-								&& value == outsideValues.getLong(b))
-						{
-							continue;
-						}
-
-						if (value < minmax.getLong(0))
-						{
-							minmax.setLong(0, value);
-						}
-						if (value > minmax.getLong(1))
-						{
-							minmax.setLong(1, value);
-						}
-					}
-				}
-			}
-		}
+		kernel(null, null, null, outsideValues).updateMinMax(buffer, parameters.size.width, parameters.size.height,
+				minmax);
 	}
 
 	protected static int getBufferIndex(int x, int y, int b, int width, int height)
@@ -1038,6 +815,25 @@ public class GDALTile
 		return b * width * height + y * width + x;
 	}
 
+	/**
+	 * Replace any values, check if the tile is blank, and fill the pixels
+	 * outside the dataset extents, if this was deferred when the tile was read
+	 * (see {@link GDALTileParameters#deferProcessing}). Must be called before
+	 * the tile is used. Does nothing if the tile has already been processed.
+	 */
+	public void process()
+	{
+		if (deferredKernel != null)
+		{
+			ByteBuffer bb = buffer.duplicate();
+			bb.order(ByteOrder.LITTLE_ENDIAN);
+			isBlank =
+					deferredKernel.process(bb, parameters.size.width, parameters.size.height, dataRectangle,
+							deferredReplace);
+			deferredKernel = null;
+		}
+	}
+
 	public boolean isBlank()
 	{
 		return isBlank;
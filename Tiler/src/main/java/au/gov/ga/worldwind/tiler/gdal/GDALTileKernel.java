@@ -0,0 +1,1060 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.gdal;
+
+import java.awt.Rectangle;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gdal.gdalconst.gdalconstConstants;
+
+import au.gov.ga.worldwind.tiler.util.BufferUtil;
+import au.gov.ga.worldwind.tiler.util.MinMaxArray;
+import au.gov.ga.worldwind.tiler.util.NullableNumberArray;
+import au.gov.ga.worldwind.tiler.util.NumberArray;
+
+/**
+ * Applies the value replacement rules, nodata fill, blank detection and
+ * min/max calculation to the buffer of a {@link GDALTile}. The rules are
+ * compiled once into primitive arrays for a buffer type and band count, and
+ * there is a kernel for each primitive sample type, which reads rows of
+ * samples through a typed view of the buffer, so no values are boxed and the
+ * buffer type is not checked for each sample. Replacement and blank detection
+ * are done in the same pass over the tile. Kernels hold no per-tile state, and
+ * can be shared between threads.
+ * <p/>
+ * Samples are read and written with the same conversions as
+ * {@link BufferUtil}; complex types use the real part only.
+ */
+public abstract class GDALTileKernel
+{
+	static final int BYTE = 0;
+	static final int SHORT = 1;
+	static final int USHORT = 2;
+	static final int INT = 3;
+	static final int UINT = 4;
+	static final int FLOAT = 5;
+	static final int DOUBLE = 6;
+
+	protected final int sampleType;
+	protected final int stride;
+	protected final int bandCount;
+
+	protected final boolean replaces;
+	protected final MinMaxArray[] rules;
+	protected final int ruleCount;
+	protected final boolean[][] hasMin;
+	protected final boolean[][] hasMax;
+	protected final boolean[] hasReplacement;
+	protected final boolean[] hasOtherwise;
+	protected final boolean anyReplacement;
+	protected final boolean anyOtherwise;
+
+	protected final int noDataLength;
+	protected final boolean[] hasNoData;
+	protected final boolean anyNoData;
+
+	/**
+	 * Create a kernel for the given buffer type.
+	 * 
+	 * @param bufferType
+	 *            Buffer type (see {@link gdalconstConstants} for values)
+	 * @param bandCount
+	 *            Number of bands in the buffer
+	 * @param minMaxs
+	 *            Ranges between which to replace values (can be null)
+	 * @param replacement
+	 *            Values to use for samples within the ranges (can be null)
+	 * @param otherwise
+	 *            Values to use for samples outside the ranges (can be null)
+	 * @param noData
+	 *            Nodata values for each band (can be null)
+	 * @see GDALTileParameters
+	 */
+	public static GDALTileKernel create(int bufferType, int bandCount, MinMaxArray[] minMaxs,
+			NullableNumberArray replacement, NullableNumberArray otherwise, NullableNumberArray noData)
+	{
+		int sampleType;
+		int stride = 1;
+		if (bufferType == gdalconstConstants.GDT_Byte)
+		{
+			sampleType = BYTE;
+		}
+		else if (bufferType == gdalconstConstants.GDT_Int16 || bufferType == gdalconstConstants.GDT_CInt16)
+		{
+			sampleType = SHORT;
+			stride = bufferType == gdalconstConstants.GDT_CInt16 ? 2 : 1;
+		}
+		else if (bufferType == gdalconstConstants.GDT_UInt16)
+		{
+			sampleType = USHORT;
+		}
+		else if (bufferType == gdalconstConstants.GDT_Int32 || bufferType == gdalconstConstants.GDT_CInt32)
+		{
+			sampleType = INT;
+			stride = bufferType == gdalconstConstants.GDT_CInt32 ? 2 : 1;
+		}
+		else if (bufferType == gdalconstConstants.GDT_UInt32)
+		{
+			sampleType = UINT;
+		}
+		else if (bufferType == gdalconstConstants.GDT_Float32 || bufferType == gdalconstConstants.GDT_CFloat32)
+		{
+			sampleType = FLOAT;
+			stride = bufferType == gdalconstConstants.GDT_CFloat32 ? 2 : 1;
+		}
+		else if (bufferType == gdalconstConstants.GDT_Float64 || bufferType == gdalconstConstants.GDT_CFloat64)
+		{
+			sampleType = DOUBLE;
+			stride = bufferType == gdalconstConstants.GDT_CFloat64 ? 2 : 1;
+		}
+		else
+		{
+			throw new IllegalStateException("Unknown buffer type");
+		}
+		return create(sampleType, stride, bandCount, minMaxs, replacement, otherwise, noData);
+	}
+
+	/**
+	 * Create a kernel for the given sample type.
+	 * 
+	 * @param sampleType
+	 *            Sample type ({@link #BYTE}, {@link #SHORT}, etc)
+	 * @param stride
+	 *            Number of samples in each value (2 for complex types)
+	 * @see #create(int, int, MinMaxArray[], NullableNumberArray,
+	 *      NullableNumberArray, NullableNumberArray)
+	 */
+	static GDALTileKernel create(int sampleType, int stride, int bandCount, MinMaxArray[] minMaxs,
+			NullableNumberArray replacement, NullableNumberArray otherwise, NullableNumberArray noData)
+	{
+		switch (sampleType)
+		{
+		case BYTE:
+			return new ByteKernel(stride, bandCount, minMaxs, replacement, otherwise, noData);
+		case SHORT:
+		case USHORT:
+			return new ShortKernel(sampleType, stride, bandCount, minMaxs, replacement, otherwise, noData);
+		case INT:
+		case UINT:
+			return new IntKernel(sampleType, stride, bandCount, minMaxs, replacement, otherwise, noData);
+		case FLOAT:
+			return new FloatKernel(stride, bandCount, minMaxs, replacement, otherwise, noData);
+		case DOUBLE:
+			return new DoubleKernel(stride, bandCount, minMaxs, replacement, otherwise, noData);
+		}
+		throw new IllegalArgumentException("Illegal sample type: " + sampleType);
+	}
+
+	protected GDALTileKernel(int sampleType, int stride, int bandCount, MinMaxArray[] minMaxs,
+			NullableNumberArray replacement, NullableNumberArray otherwise, NullableNumberArray noData)
+	{
+		this.sampleType = sampleType;
+		this.stride = stride;
+		this.bandCount = bandCount;
+
+		boolean replaces = minMaxs != null && minMaxs.length > 0 && (replacement != null || otherwise != null);
+		if (replaces)
+		{
+			for (int i = 0; i < minMaxs.length; i++)
+			{
+				if (minMaxs[i] != null && minMaxs[i].length() != bandCount)
+				{
+					throw new IllegalArgumentException("Array size must equal band count");
+				}
+			}
+			if ((replacement != null && replacement.length() != bandCount)
+					|| (otherwise != null && otherwise.length() != bandCount))
+			{
+				throw new IllegalArgumentException("Array size must equal band count");
+			}
+		}
+
+		hasReplacement = new boolean[bandCount];
+		hasOtherwise = new boolean[bandCount];
+		boolean anyReplacement = false;
+		boolean anyOtherwise = false;
+		if (replaces)
+		{
+			for (int b = 0; b < bandCount; b++)
+			{
+				hasReplacement[b] = replacement != null && replacement.getDouble(b) != null;
+				hasOtherwise[b] = otherwise != null && otherwise.getDouble(b) != null;
+				anyReplacement |= hasReplacement[b];
+				anyOtherwise |= hasOtherwise[b];
+			}
+		}
+		//if the replacement values are all null, nothing will happen
+		this.replaces = replaces && (anyReplacement || anyOtherwise);
+		this.anyReplacement = anyReplacement;
+		this.anyOtherwise = anyOtherwise;
+
+		//ranges that are null, or have no min or max for any band, never match
+		List<MinMaxArray> rules = new ArrayList<MinMaxArray>();
+		if (this.replaces)
+		{
+			for (MinMaxArray minMax : minMaxs)
+			{
+				if (minMax == null)
+				{
+					continue;
+				}
+				for (int b = 0; b < bandCount; b++)
+				{
+					if (minMax.getMinLong(b) != null || minMax.getMaxLong(b) != null)
+					{
+						rules.add(minMax);
+						break;
+					}
+				}
+			}
+		}
+		this.rules = rules.toArray(new MinMaxArray[rules.size()]);
+		ruleCount = this.rules.length;
+		hasMin = new boolean[ruleCount][bandCount];
+		hasMax = new boolean[ruleCount][bandCount];
+		for (int r = 0; r < ruleCount; r++)
+		{
+			for (int b = 0; b < bandCount; b++)
+			{
+				hasMin[r][b] = this.rules[r].getMinLong(b) != null;
+				hasMax[r][b] = this.rules[r].getMaxLong(b) != null;
+			}
+		}
+
+		if (noData != null && noData.length() < bandCount)
+		{
+			throw new IllegalArgumentException("Array size is less than band count");
+		}
+		noDataLength = noData == null ? -1 : noData.length();
+		hasNoData = new boolean[bandCount];
+		boolean anyNoData = false;
+		for (int b = 0; b < bandCount && noData != null; b++)
+		{
+			hasNoData[b] = isFloatingPoint() ? noData.getDouble(b) != null : noData.getLong(b) != null;
+			anyNoData |= hasNoData[b];
+		}
+		this.anyNoData = anyNoData;
+	}
+
+	/**
+	 * @return Does this kernel process floating point samples?
+	 */
+	public boolean isFloatingPoint()
+	{
+		return sampleType == FLOAT || sampleType == DOUBLE;
+	}
+
+	/**
+	 * @return Does this kernel replace any values?
+	 */
+	public boolean isReplacing()
+	{
+		return replaces;
+	}
+
+	/**
+	 * Replace the values within a region of a buffer.
+	 * 
+	 * @param buffer
+	 *            Band-sequential buffer
+	 * @param width
+	 *            Width of the buffer
+	 * @param height
+	 *            Height of the buffer
+	 * @param region
+	 *            Region to replace values within
+	 */
+	public void replace(ByteBuffer buffer, int width, int height, Rectangle region)
+	{
+		if (replaces)
+		{
+			process(buffer, width, height, region, true, false, false);
+		}
+	}
+
+	/**
+	 * Process a tile in a single pass: replace the values within the data
+	 * rectangle, detect whether the data rectangle only contains nodata, and
+	 * fill the pixels outside the data rectangle with nodata.
+	 * 
+	 * @param buffer
+	 *            Band-sequential tile buffer
+	 * @param width
+	 *            Tile width
+	 * @param height
+	 *            Tile height
+	 * @param dataRectangle
+	 *            Rectangle of the tile containing data from the dataset
+	 * @param replace
+	 *            Should values within the data rectangle be replaced?
+	 * @return True if the tile is blank (every band with a nodata value only
+	 *         contains nodata within the data rectangle)
+	 */
+	public boolean process(ByteBuffer buffer, int width, int height, Rectangle dataRectangle, boolean replace)
+	{
+		if (noDataLength >= 0 && noDataLength != bandCount)
+		{
+			throw new IllegalArgumentException("Array size does not equal band count");
+		}
+		return process(buffer, width, height, dataRectangle, replace && replaces, anyNoData, anyNoData);
+	}
+
+	/**
+	 * Update the min/max of a tile's values, ignoring nodata values.
+	 * 
+	 * @param buffer
+	 *            Band-sequential tile buffer
+	 * @param width
+	 *            Tile width
+	 * @param height
+	 *            Tile height
+	 * @param minmax
+	 *            Array of length 2 containing the current min and max
+	 */
+	public abstract void updateMinMax(ByteBuffer buffer, int width, int height, NumberArray minmax);
+
+	protected abstract boolean process(ByteBuffer buffer, int width, int height, Rectangle dataRectangle,
+			boolean replace, boolean detectBlank, boolean fill);
+
+	/**
+	 * Create a typed view of the given buffer, starting at its first byte.
+	 */
+	protected Buffer view(ByteBuffer buffer)
+	{
+		ByteBuffer bb = buffer.duplicate();
+		ByteOrder order = buffer.order();
+		if (sampleType == USHORT || sampleType == UINT)
+		{
+			//BufferUtil reads unsigned values with the byte order reversed
+			order = order == ByteOrder.LITTLE_ENDIAN ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		}
+		bb.order(order);
+		bb.position(0);
+		switch (sampleType)
+		{
+		case BYTE:
+			return bb;
+		case SHORT:
+		case USHORT:
+			return bb.asShortBuffer();
+		case INT:
+		case UINT:
+			return bb.asIntBuffer();
+		case FLOAT:
+			return bb.asFloatBuffer();
+		case DOUBLE:
+			return bb.asDoubleBuffer();
+		}
+		throw new IllegalStateException("Unknown sample type");
+	}
+
+	/**
+	 * Call the given row visitor for each row segment outside the data
+	 * rectangle.
+	 */
+	protected void visitOutside(int width, int height, Rectangle dataRectangle, RowVisitor visitor)
+	{
+		int x0 = Math.max(0, dataRectangle.x);
+		int x1 = Math.min(width, dataRectangle.x + dataRectangle.width);
+		int y0 = Math.max(0, dataRectangle.y);
+		int y1 = Math.min(height, dataRectangle.y + dataRectangle.height);
+		for (int y = 0; y < height; y++)
+		{
+			if (y < y0 || y >= y1 || x0 >= x1)
+			{
+				visitor.visit(y * width, width);
+			}
+			else
+			{
+				if (x0 > 0)
+				{
+					visitor.visit(y * width, x0);
+				}
+				if (x1 < width)
+				{
+					visitor.visit(y * width + x1, width - x1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visits a row segment of a band.
+	 */
+	protected static interface RowVisitor
+	{
+		/**
+		 * @param offset
+		 *            Offset of the first pixel in the band (in pixels)
+		 * @param length
+		 *            Number of pixels in the segment
+		 */
+		void visit(int offset, int length);
+	}
+
+	/**
+	 * Kernel for integer samples, which are processed as longs. Subclasses
+	 * convert rows of samples to and from longs.
+	 */
+	private static abstract class IntegerKernel extends GDALTileKernel
+	{
+		private final long[][] min;
+		private final long[][] max;
+		private final long[] replacementValues;
+		private final long[] otherwiseValues;
+		private final long[] noDataValues;
+
+		public IntegerKernel(int sampleType, int stride, int bandCount, MinMaxArray[] minMaxs,
+				NullableNumberArray replacement, NullableNumberArray otherwise, NullableNumberArray noData)
+		{
+			super(sampleType, stride, bandCount, minMaxs, replacement, otherwise, noData);
+
+			min = new long[ruleCount][bandCount];
+			max = new long[ruleCount][bandCount];
+			for (int r = 0; r < ruleCount; r++)
+			{
+				for (int b = 0; b < bandCount; b++)
+				{
+					min[r][b] = hasMin[r][b] ? rules[r].getMinLong(b) : 0;
+					max[r][b] = hasMax[r][b] ? rules[r].getMaxLong(b) : 0;
+				}
+			}
+			replacementValues = new long[bandCount];
+			otherwiseValues = new long[bandCount];
+			noDataValues = new long[bandCount];
+			for (int b = 0; b < bandCount; b++)
+			{
+				replacementValues[b] = hasReplacement[b] ? longValue(replacement, b) : 0;
+				otherwiseValues[b] = hasOtherwise[b] ? longValue(otherwise, b) : 0;
+				noDataValues[b] = hasNoData[b] ? noData.getLong(b) : 0;
+			}
+		}
+
+		private static long longValue(NullableNumberArray values, int i)
+		{
+			Long l = values.getLong(i);
+			return l != null ? l : values.getDouble(i).longValue();
+		}
+
+		/**
+		 * Read a row of samples from a view of the buffer.
+		 * 
+		 * @param offset
+		 *            Offset of the first sample (in values)
+		 */
+		protected abstract void read(Buffer view, int offset, long[] row, int length);
+
+		/**
+		 * Write a row of samples to a view of the buffer.
+		 * 
+		 * @param offset
+		 *            Offset of the first sample (in values)
+		 */
+		protected abstract void write(Buffer view, int offset, long[] row, int length);
+
+		@Override
+		protected boolean process(ByteBuffer buffer, int width, int height, Rectangle dataRectangle,
+				boolean replace, boolean detectBlank, boolean fill)
+		{
+			final Buffer view = view(buffer);
+			int bandSize = width * height;
+			int rowLength = dataRectangle.width;
+			long[][] rows = new long[bandCount][rowLength];
+			boolean blank = detectBlank;
+
+			for (int y = dataRectangle.y; y < dataRectangle.y + dataRectangle.height && (replace || blank); y++)
+			{
+				int offset = y * width + dataRectangle.x;
+				for (int b = 0; b < bandCount; b++)
+				{
+					read(view, b * bandSize + offset, rows[b], rowLength);
+				}
+
+				if (replace)
+				{
+					replaceRow(rows, rowLength);
+					for (int b = 0; b < bandCount; b++)
+					{
+						write(view, b * bandSize + offset, rows[b], rowLength);
+					}
+				}
+
+				for (int b = 0; b < bandCount && blank; b++)
+				{
+					if (hasNoData[b])
+					{
+						long[] row = rows[b];
+						long value = noDataValues[b];
+						for (int i = 0; i < rowLength; i++)
+						{
+							if (row[i] != value)
+							{
+								blank = false;
+								break;
+							}
+						}
+					}
+				}
+			}
+
+			if (fill && (dataRectangle.x > 0 || dataRectangle.y > 0 || dataRectangle.width < width
+					|| dataRectangle.height < height))
+			{
+				final long[] fillRow = new long[width];
+				for (int b = 0; b < bandCount; b++)
+				{
+					if (hasNoData[b])
+					{
+						final int bandOffset = b * bandSize;
+						Arrays.fill(fillRow, noDataValues[b]);
+						visitOutside(width, height, dataRectangle, new RowVisitor()
+						{
+							@Override
+							public void visit(int offset, int length)
+							{
+								write(view, bandOffset + offset, fillRow, length);
+							}
+						});
+					}
+				}
+			}
+
+			return blank;
+		}
+
+		private void replaceRow(long[][] rows, int length)
+		{
+			for (int i = 0; i < length; i++)
+			{
+				boolean between = false;
+				for (int r = 0; r < ruleCount && !between; r++)
+				{
+					between = true;
+					for (int b = 0; b < bandCount; b++)
+					{
+						long value = rows[b][i];
+						if ((hasMin[r][b] && value < min[r][b]) || (hasMax[r][b] && value > max[r][b]))
+						{
+							between = false;
+							break;
+						}
+					}
+				}
+
+				if (between ? anyReplacement : anyOtherwise)
+				{
+					boolean[] set = between ? hasReplacement : hasOtherwise;
+					long[] values = between ? replacementValues : otherwiseValues;
+					for (int b = 0; b < bandCount; b++)
+					{
+						if (set[b])
+						{
+							rows[b][i] = values[b];
+						}
+					}
+				}
+			}
+		}
+
+		@Override
+		public void updateMinMax(ByteBuffer buffer, int width, int height, NumberArray minmax)
+		{
+			Buffer view = view(buffer);
+			int bandSize = width * height;
+			long[] row = new long[width];
+			long min = Long.MAX_VALUE;
+			long max = Long.MIN_VALUE;
+			boolean any = false;
+			for (int b = 0; b < bandCount; b++)
+			{
+				boolean skip = hasNoData[b];
+				long noData = noDataValues[b];
+				for (int y = 0; y < height; y++)
+				{
+					read(view, b * bandSize + y * width, row, width);
+					for (int x = 0; x < width; x++)
+					{
+						long value = row[x];
+						if (skip && value == noData)
+						{
+							continue;
+						}
+						any = true;
+						if (value < min)
+						{
+							min = value;
+						}
+						if (value > max)
+						{
+							max = value;
+						}
+					}
+				}
+			}
+
+			if (any)
+			{
+				if (min < minmax.getLong(0))
+				{
+					minmax.setLong(0, min);
+				}
+				if (max > minmax.getLong(1))
+				{
+					minmax.setLong(1, max);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Kernel for floating point samples, which are processed as doubles.
+	 * Subclasses convert rows of samples to and from doubles.
+	 */
+	private static abstract class FloatingPointKernel extends GDALTileKernel
+	{
+		private final double[][] min;
+		private final double[][] max;
+		private final double[] replacementValues;
+		private final double[] otherwiseValues;
+		private final double[] noDataValues;
+
+		public FloatingPointKernel(int sampleType, int stride, int bandCount, MinMaxArray[] minMaxs,
+				NullableNumberArray replacement, NullableNumberArray otherwise, NullableNumberArray noData)
+		{
+			super(sampleType, stride, bandCount, minMaxs, replacement, otherwise, noData);
+
+			min = new double[ruleCount][bandCount];
+			max = new double[ruleCount][bandCount];
+			for (int r = 0; r < ruleCount; r++)
+			{
+				for (int b = 0; b < bandCount; b++)
+				{
+					min[r][b] = hasMin[r][b] ? rules[r].getMinDouble(b) : 0;
+					max[r][b] = hasMax[r][b] ? rules[r].getMaxDouble(b) : 0;
+				}
+			}
+			replacementValues = new double[bandCount];
+			otherwiseValues = new double[bandCount];
+			noDataValues = new double[bandCount];
+			for (int b = 0; b < bandCount; b++)
+			{
+				replacementValues[b] = hasReplacement[b] ? replacement.getDouble(b) : 0;
+				otherwiseValues[b] = hasOtherwise[b] ? otherwise.getDouble(b) : 0;
+				noDataValues[b] = hasNoData[b] ? noData.getDouble(b) : 0;
+			}
+		}
+
+		/**
+		 * @see IntegerKernel#read(Buffer, int, long[], int)
+		 */
+		protected abstract void read(Buffer view, int offset, double[] row, int length);
+
+		/**
+		 * @see IntegerKernel#write(Buffer, int, long[], int)
+		 */
+		protected abstract void write(Buffer view, int offset, double[] row, int length);
+
+		@Override
+		protected boolean process(ByteBuffer buffer, int width, int height, Rectangle dataRectangle,
+				boolean replace, boolean detectBlank, boolean fill)
+		{
+			final Buffer view = view(buffer);
+			int bandSize = width * height;
+			int rowLength = dataRectangle.width;
+			double[][] rows = new double[bandCount][rowLength];
+			boolean blank = detectBlank;
+
+			for (int y = dataRectangle.y; y < dataRectangle.y + dataRectangle.height && (replace || blank); y++)
+			{
+				int offset = y * width + dataRectangle.x;
+				for (int b = 0; b < bandCount; b++)
+				{
+					read(view, b * bandSize + offset, rows[b], rowLength);
+				}
+
+				if (replace)
+				{
+					replaceRow(rows, rowLength);
+					for (int b = 0; b < bandCount; b++)
+					{
+						write(view, b * bandSize + offset, rows[b], rowLength);
+					}
+				}
+
+				for (int b = 0; b < bandCount && blank; b++)
+				{
+					if (hasNoData[b])
+					{
+						double[] row = rows[b];
+						double value = noDataValues[b];
+						for (int i = 0; i < rowLength; i++)
+						{
+							if (row[i] != value)
+							{
+								blank = false;
+								break;
+							}
+						}
+					}
+				}
+			}
+
+			if (fill && (dataRectangle.x > 0 || dataRectangle.y > 0 || dataRectangle.width < width
+					|| dataRectangle.height < height))
+			{
+				final double[] fillRow = new double[width];
+				for (int b = 0; b < bandCount; b++)
+				{
+					if (hasNoData[b])
+					{
+						final int bandOffset = b * bandSize;
+						Arrays.fill(fillRow, noDataValues[b]);
+						visitOutside(width, height, dataRectangle, new RowVisitor()
+						{
+							@Override
+							public void visit(int offset, int length)
+							{
+								write(view, bandOffset + offset, fillRow, length);
+							}
+						});
+					}
+				}
+			}
+
+			return blank;
+		}
+
+		private void replaceRow(double[][] rows, int length)
+		{
+			for (int i = 0; i < length; i++)
+			{
+				boolean between = false;
+				for (int r = 0; r < ruleCount && !between; r++)
+				{
+					between = true;
+					for (int b = 0; b < bandCount; b++)
+					{
+						double value = rows[b][i];
+						if ((hasMin[r][b] && value < min[r][b]) || (hasMax[r][b] && value > max[r][b]))
+						{
+							between = false;
+							break;
+						}
+					}
+				}
+
+				if (between ? anyReplacement : anyOtherwise)
+				{
+					boolean[] set = between ? hasReplacement : hasOtherwise;
+					double[] values = between ? replacementValues : otherwiseValues;
+					for (int b = 0; b < bandCount; b++)
+					{
+						if (set[b])
+						{
+							rows[b][i] = values[b];
+						}
+					}
+				}
+			}
+		}
+
+		@Override
+		public void updateMinMax(ByteBuffer buffer, int width, int height, NumberArray minmax)
+		{
+			Buffer view = view(buffer);
+			int bandSize = width * height;
+			double[] row = new double[width];
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			boolean any = false;
+			for (int b = 0; b < bandCount; b++)
+			{
+				boolean skip = hasNoData[b];
+				double noData = noDataValues[b];
+				for (int y = 0; y < height; y++)
+				{
+					read(view, b * bandSize + y * width, row, width);
+					for (int x = 0; x < width; x++)
+					{
+						double value = row[x];
+						if (skip && value == noData)
+						{
+							continue;
+						}
+						any = true;
+						if (value < min)
+						{
+							min = value;
+						}
+						if (value > max)
+						{
+							max = value;
+						}
+					}
+				}
+			}
+
+			if (any)
+			{
+				if (min < minmax.getDouble(0))
+				{
+					minmax.setDouble(0, min);
+				}
+				if (max > minmax.getDouble(1))
+				{
+					minmax.setDouble(1, max);
+				}
+			}
+		}
+	}
+
+	private static class ByteKernel extends IntegerKernel
+	{
+		public ByteKernel(int stride, int bandCount, MinMaxArray[] minMaxs, NullableNumberArray replacement,
+				NullableNumberArray otherwise, NullableNumberArray noData)
+		{
+			super(BYTE, stride, bandCount, minMaxs, replacement, otherwise, noData);
+		}
+
+		@Override
+		protected void read(Buffer view, int offset, long[] row, int length)
+		{
+			ByteBuffer bb = (ByteBuffer) view;
+			for (int i = 0; i < length; i++)
+			{
+				row[i] = bb.get((offset + i) * stride) & 0xff;
+			}
+		}
+
+		@Override
+		protected void write(Buffer view, int offset, long[] row, int length)
+		{
+			ByteBuffer bb = (ByteBuffer) view;
+			for (int i = 0; i < length; i++)
+			{
+				bb.put((offset + i) * stride, (byte) row[i]);
+			}
+		}
+	}
+
+	private static class ShortKernel extends IntegerKernel
+	{
+		public ShortKernel(int sampleType, int stride, int bandCount, MinMaxArray[] minMaxs,
+				NullableNumberArray replacement, NullableNumberArray otherwise, NullableNumberArray noData)
+		{
+			super(sampleType, stride, bandCount, minMaxs, replacement, otherwise, noData);
+		}
+
+		@Override
+		protected void read(Buffer view, int offset, long[] row, int length)
+		{
+			ShortBuffer sb = (ShortBuffer) view;
+			if (sampleType == USHORT)
+			{
+				for (int i = 0; i < length; i++)
+				{
+					row[i] = sb.get((offset + i) * stride) & 0xffff;
+				}
+			}
+			else
+			{
+				for (int i = 0; i < length; i++)
+				{
+					row[i] = sb.get((offset + i) * stride);
+				}
+			}
+		}
+
+		@Override
+		protected void write(Buffer view, int offset, long[] row, int length)
+		{
+			ShortBuffer sb = (ShortBuffer) view;
+			for (int i = 0; i < length; i++)
+			{
+				sb.put((offset + i) * stride, (short) row[i]);
+			}
+		}
+	}
+
+	private static class IntKernel extends IntegerKernel
+	{
+		public IntKernel(int sampleType, int stride, int bandCount, MinMaxArray[] minMaxs,
+				NullableNumberArray replacement, NullableNumberArray otherwise, NullableNumberArray noData)
+		{
+			super(sampleType, stride, bandCount, minMaxs, replacement, otherwise, noData);
+		}
+
+		@Override
+		protected void read(Buffer view, int offset, long[] row, int length)
+		{
+			IntBuffer ib = (IntBuffer) view;
+			if (sampleType == UINT)
+			{
+				for (int i = 0; i < length; i++)
+				{
+					row[i] = ib.get((offset + i) * stride) & 0xffffffffL;
+				}
+			}
+			else
+			{
+				for (int i = 0; i < length; i++)
+				{
+					row[i] = ib.get((offset + i) * stride);
+				}
+			}
+		}
+
+		@Override
+		protected void write(Buffer view, int offset, long[] row, int length)
+		{
+			IntBuffer ib = (IntBuffer) view;
+			for (int i = 0; i < length; i++)
+			{
+				ib.put((offset + i) * stride, (int) row[i]);
+			}
+		}
+	}
+
+	private static class FloatKernel extends FloatingPointKernel
+	{
+		public FloatKernel(int stride, int bandCount, MinMaxArray[] minMaxs, NullableNumberArray replacement,
+				NullableNumberArray otherwise, NullableNumberArray noData)
+		{
+			super(FLOAT, stride, bandCount, minMaxs, replacement, otherwise, noData);
+		}
+
+		@Override
+		protected void read(Buffer view, int offset, double[] row, int length)
+		{
+			FloatBuffer fb = (FloatBuffer) view;
+			for (int i = 0; i < length; i++)
+			{
+				row[i] = fb.get((offset + i) * stride);
+			}
+		}
+
+		@Override
+		protected void write(Buffer view, int offset, double[] row, int length)
+		{
+			FloatBuffer fb = (FloatBuffer) view;
+			for (int i = 0; i < length; i++)
+			{
+				fb.put((offset + i) * stride, (float) row[i]);
+			}
+		}
+	}
+
+	private static class DoubleKernel extends FloatingPointKernel
+	{
+		public DoubleKernel(int stride, int bandCount, MinMaxArray[] minMaxs, NullableNumberArray replacement,
+				NullableNumberArray otherwise, NullableNumberArray noData)
+		{
+			super(DOUBLE, stride, bandCount, minMaxs, replacement, otherwise, noData);
+		}
+
+		@Override
+		protected void read(Buffer view, int offset, double[] row, int length)
+		{
+			DoubleBuffer db = (DoubleBuffer) view;
+			for (int i = 0; i < length; i++)
+			{
+				row[i] = db.get((offset + i) * stride);
+			}
+		}
+
+		@Override
+		protected void write(Buffer view, int offset, double[] row, int length)
+		{
+			DoubleBuffer db = (DoubleBuffer) view;
+			for (int i = 0; i < length; i++)
+			{
+				db.put((offset + i) * stride, row[i]);
+			}
+		}
+	}
+
+	/**
+	 * Kernels compiled for a tiling job, shared between the tiles of the job.
+	 * Kernels are looked up by buffer type, band count, and the identity of
+	 * the rule and nodata arrays.
+	 */
+	public static class Cache
+	{
+		private static final int MAX_SIZE = 16;
+
+		private final List<Entry> entries = new ArrayList<Entry>();
+
+		/**
+		 * Get (or create) a kernel.
+		 * 
+		 * @see GDALTileKernel#create(int, int, MinMaxArray[],
+		 *      NullableNumberArray, NullableNumberArray, NullableNumberArray)
+		 */
+		public synchronized GDALTileKernel get(int bufferType, int bandCount, MinMaxArray[] minMaxs,
+				NullableNumberArray replacement, NullableNumberArray otherwise, NullableNumberArray noData)
+		{
+			for (Entry entry : entries)
+			{
+				if (entry.bufferType == bufferType && entry.bandCount == bandCount && entry.minMaxs == minMaxs
+						&& entry.replacement == replacement && entry.otherwise == otherwise
+						&& entry.noData == noData)
+				{
+					return entry.kernel;
+				}
+			}
+
+			GDALTileKernel kernel = create(bufferType, bandCount, minMaxs, replacement, otherwise, noData);
+			if (entries.size() >= MAX_SIZE)
+			{
+				entries.remove(0);
+			}
+			entries.add(new Entry(bufferType, bandCount, minMaxs, replacement, otherwise, noData, kernel));
+			return kernel;
+		}
+
+		private static class Entry
+		{
+			private final int bufferType;
+			private final int bandCount;
+			private final MinMaxArray[] minMaxs;
+			private final NullableNumberArray replacement;
+			private final NullableNumberArray otherwise;
+			private final NullableNumberArray noData;
+			private final GDALTileKernel kernel;
+
+			public Entry(int bufferType, int bandCount, MinMaxArray[] minMaxs, NullableNumberArray replacement,
+					NullableNumberArray otherwise, NullableNumberArray noData, GDALTileKernel kernel)
+			{
+				this.bufferType = bufferType;
+				this.bandCount = bandCount;
+				this.minMaxs = minMaxs;
+				this.replacement = replacement;
+				this.otherwise = otherwise;
+				this.noData = noData;
+				this.kernel = kernel;
+			}
+		}
+	}
+}
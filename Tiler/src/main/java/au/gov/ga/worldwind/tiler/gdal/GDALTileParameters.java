@@ -122,4 +122,36 @@ public class GDALTileParameters
 	 * the original values are used.
 	 */
 	public NullableNumberArray otherwise;
+
+	/**
+	 * Reader used to read the tile from a strip of the dataset held in memory,
+	 * which is shared with the neighbouring tiles. If null (the default), the
+	 * tile is read from the dataset directly. When reprojecting, only used with
+	 * a {@link #warpPlan}.
+	 */
+	public GDALStripReader stripReader;
+
+	/**
+	 * Warp plan used to reproject the tile, if reprojection is required. If
+	 * null (the default), the tile is reprojected using
+	 * {@link org.gdal.gdal.gdal#ReprojectImage}.
+	 */
+	public GDALWarpPlan warpPlan;
+
+	/**
+	 * Cache of the kernels used to replace values, fill nodata and calculate
+	 * min/max, shared between the tiles of a job so that the rules are only
+	 * compiled once. If null (the default), kernels are created for each tile.
+	 */
+	public GDALTileKernel.Cache kernels;
+
+	/**
+	 * Should value replacement, blank detection and filling of the pixels
+	 * outside the dataset extents be left until {@link GDALTile#process()} is
+	 * called, so that this per-pixel work can be done on a different thread to
+	 * the read? Values are still replaced as the tile is read if it is
+	 * magnified, as they must be replaced before interpolation. Defaults to
+	 * false.
+	 */
+	public boolean deferProcessing = false;
 }
@@ -16,6 +16,7 @@
 package au.gov.ga.worldwind.tiler.gdal;
 
 import java.io.File;
+import java.util.Vector;
 
 import org.gdal.gdal.Band;
 import org.gdal.gdal.Dataset;
@@ -110,6 +111,27 @@ public class GDALUtil
 		return dataset;
 	}
 
+	/**
+	 * Open a second, independent handle to the given dataset. GDAL dataset
+	 * handles are not thread safe, so each thread reading a dataset must use
+	 * its own handle.
+	 * 
+	 * @param dataset
+	 *            Dataset to reopen
+	 * @return New read-only {@link Dataset} handle
+	 * @throws GDALException
+	 *             When the open fails
+	 */
+	public static Dataset reopen(Dataset dataset) throws GDALException
+	{
+		Dataset copy = (Dataset) gdal.Open(dataset.GetDescription(), gdalconst.GA_ReadOnly);
+		if (copy == null)
+		{
+			throw new GDALException();
+		}
+		return copy;
+	}
+
 	/**
 	 * Calculate the sector of the given dataset.
 	 * 
@@ -207,6 +229,63 @@ public class GDALUtil
 		return new Sector(minlat, minlon, maxlat, maxlon);
 	}
 
+	/**
+	 * Calculate the sector covered by the source files of the given dataset
+	 * that have been modified since the given time. Each modified file is
+	 * opened as a dataset to find its extents; files that can't be opened or
+	 * aren't georeferenced (such as auxiliary files) are ignored. For mosaics
+	 * (such as VRTs), only the source files are checked, not the mosaic file
+	 * itself.
+	 * 
+	 * @param dataset
+	 * @param since
+	 *            Time (in milliseconds since the epoch) to find modifications
+	 *            after
+	 * @return Sector covered by the modified files, or null if no files have
+	 *         been modified
+	 */
+	public static Sector getChangedSector(Dataset dataset, long since)
+	{
+		Vector<?> files = dataset.GetFileList();
+		if (files == null)
+		{
+			return null;
+		}
+
+		Sector changed = null;
+		for (Object name : files)
+		{
+			File file = new File(name.toString());
+			if (!file.isFile() || file.lastModified() <= since
+					|| (files.size() > 1 && name.toString().equals(dataset.GetDescription())))
+			{
+				continue;
+			}
+
+			gdal.PushErrorHandler("CPLQuietErrorHandler");
+			Dataset source = (Dataset) gdal.Open(file.getAbsolutePath(), gdalconst.GA_ReadOnly);
+			gdal.PopErrorHandler();
+			if (source == null)
+			{
+				continue;
+			}
+			try
+			{
+				Sector sector = getSector(source);
+				changed = changed == null ? sector : changed.union(sector);
+			}
+			catch (TilerException e)
+			{
+				//not georeferenced
+			}
+			finally
+			{
+				source.delete();
+			}
+		}
+		return changed;
+	}
+
 	/**
 	 * Generate a string containing information about the given dataset.
 	 * 
@@ -0,0 +1,477 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.gdal;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import org.gdal.gdal.Band;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.Driver;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconstConstants;
+import org.gdal.osr.CoordinateTransformation;
+import org.gdal.osr.SpatialReference;
+
+import au.gov.ga.worldwind.tiler.util.Sector;
+
+/**
+ * Reprojects tiles from a dataset in a projected coordinate system to WGS84,
+ * without the per-tile setup of {@link gdal#ReprojectImage}. The coordinate
+ * transformation and inverse geotransform are created once per dataset, and
+ * the destination dataset and buffers are reused for every tile.
+ * <p/>
+ * For each tile, only a coarse grid of points (every {@value #GRID_STEP}
+ * pixels) is transformed to the source coordinate system; the source pixel
+ * coordinates of the other pixels are interpolated from the grid. The source
+ * window covering the tile is read in a single call (from a
+ * {@link GDALStripReader} strip if available, so that a row of tiles shares
+ * the same source read), and resampled using nearest neighbour or bilinear
+ * interpolation. Source windows much larger than the tile (at the lower
+ * levels) are read at a reduced resolution.
+ * <p/>
+ * As with {@link gdal#ReprojectImage}, NODATA values are not taken into
+ * account, and pixels outside the dataset are set to 0.
+ * <p/>
+ * Instances are not thread safe; like GDAL dataset handles, each thread
+ * should use its own plan.
+ */
+public class GDALWarpPlan
+{
+	/**
+	 * Spacing (in destination pixels) of the grid of transformed points.
+	 */
+	public static final int GRID_STEP = 16;
+
+	private final Dataset dataset;
+	private final int selectedBand;
+	private final boolean required;
+	private CoordinateTransformation transformation;
+	private final double[] inverseGeoTransform = new double[6];
+
+	private Dataset destination;
+	private double[][] grid;
+	private float[] sourceX;
+	private float[] sourceY;
+	private double[] sourceData;
+	private double[] destinationData;
+
+	private int tileCount;
+	private long warpTime;
+
+	/**
+	 * Create a warp plan for a dataset.
+	 * 
+	 * @param dataset
+	 *            Dataset to reproject
+	 * @param selectedBand
+	 *            Band (0-based) to reproject, or -1 for all bands
+	 */
+	public GDALWarpPlan(Dataset dataset, int selectedBand) throws GDALException
+	{
+		this.dataset = dataset;
+		this.selectedBand = selectedBand;
+
+		String projection = dataset.GetProjection();
+		SpatialReference srcSR =
+				(projection == null || projection.length() == 0) ? null : new SpatialReference(projection);
+		SpatialReference dstSR = new SpatialReference();
+		dstSR.ImportFromEPSG(4326); // WGS84
+		try
+		{
+			required = srcSR != null && srcSR.IsSame(dstSR) != 1;
+			if (required)
+			{
+				transformation = new CoordinateTransformation(dstSR, srcSR);
+				double[] geoTransform = new double[6];
+				dataset.GetGeoTransform(geoTransform);
+				if (gdal.InvGeoTransform(geoTransform, inverseGeoTransform) == 0)
+				{
+					throw new GDALException();
+				}
+			}
+		}
+		finally
+		{
+			if (srcSR != null)
+			{
+				srcSR.delete();
+			}
+			dstSR.delete();
+		}
+	}
+
+	/**
+	 * @return The dataset that this plan reprojects
+	 */
+	public Dataset getDataset()
+	{
+		return dataset;
+	}
+
+	/**
+	 * @return Does the dataset require reprojection (is it in a coordinate
+	 *         system other than WGS84)?
+	 */
+	public boolean isRequired()
+	{
+		return required;
+	}
+
+	/**
+	 * Reproject a tile of the dataset.
+	 * 
+	 * @param sector
+	 *            Tile sector
+	 * @param size
+	 *            Tile size
+	 * @param bilinear
+	 *            Use bilinear interpolation (otherwise nearest neighbour)
+	 * @param stripReader
+	 *            Strip reader to read the source window from (can be null)
+	 * @return In-memory dataset containing the reprojected tile, with the same
+	 *         bands as the source dataset; only valid until the next call
+	 */
+	public Dataset warp(Sector sector, Dimension size, boolean bilinear, GDALStripReader stripReader)
+			throws GDALException
+	{
+		long start = System.nanoTime();
+		int width = size.width;
+		int height = size.height;
+		allocate(width, height);
+
+		//transform the grid points to source pixel coordinates
+		int gridWidth = gridSize(width);
+		int gridHeight = gridSize(height);
+		double[][] points = grid;
+		double pixelWidth = sector.getDeltaLongitude() / width;
+		double pixelHeight = sector.getDeltaLatitude() / height;
+		for (int j = 0; j < gridHeight; j++)
+		{
+			double lat = sector.getMaxLatitude() - (gridPosition(j, height) + 0.5) * pixelHeight;
+			for (int i = 0; i < gridWidth; i++)
+			{
+				double[] point = points[j * gridWidth + i];
+				point[0] = sector.getMinLongitude() + (gridPosition(i, width) + 0.5) * pixelWidth;
+				point[1] = lat;
+				point[2] = 0;
+			}
+		}
+		transformation.TransformPoints(points);
+		double[] gridX = new double[gridWidth * gridHeight];
+		double[] gridY = new double[gridWidth * gridHeight];
+		for (int i = 0; i < gridX.length; i++)
+		{
+			double x = points[i][0];
+			double y = points[i][1];
+			gridX[i] = inverseGeoTransform[0] + inverseGeoTransform[1] * x + inverseGeoTransform[2] * y;
+			gridY[i] = inverseGeoTransform[3] + inverseGeoTransform[4] * x + inverseGeoTransform[5] * y;
+		}
+		interpolateGrid(gridX, gridY, width, height, sourceX, sourceY);
+
+		//calculate the source window, and the resolution to read it at
+		int rasterWidth = dataset.getRasterXSize();
+		int rasterHeight = dataset.getRasterYSize();
+		Rectangle window = sourceWindow(sourceX, sourceY, rasterWidth, rasterHeight);
+		int readWidth = window.width;
+		int readHeight = window.height;
+		double scale = Math.max(1, Math.min(window.width / (2.0 * width), window.height / (2.0 * height)));
+		if (scale > 1)
+		{
+			readWidth = Math.max(1, (int) Math.ceil(window.width / scale));
+			readHeight = Math.max(1, (int) Math.ceil(window.height / scale));
+		}
+		double scaleX = window.width / (double) Math.max(1, readWidth);
+		double scaleY = window.height / (double) Math.max(1, readHeight);
+		if (!window.isEmpty())
+		{
+			//convert source pixel coordinates to read buffer coordinates
+			for (int i = 0; i < sourceX.length; i++)
+			{
+				float x = sourceX[i];
+				float y = sourceY[i];
+				if (x < 0 || y < 0 || x >= rasterWidth || y >= rasterHeight)
+				{
+					sourceX[i] = Float.NaN;
+					continue;
+				}
+				sourceX[i] = (float) ((x - window.x) / scaleX);
+				sourceY[i] = (float) ((y - window.y) / scaleY);
+			}
+		}
+
+		//read from a strip if reading at full resolution
+		GDALStripReader.Strip strip = null;
+		if (!window.isEmpty() && scale <= 1 && stripReader != null && stripReader.getDataset() == dataset)
+		{
+			strip = stripReader.getStrip(window);
+		}
+
+		int bandCount = dataset.getRasterCount();
+		for (int b = 0; b < bandCount; b++)
+		{
+			if (selectedBand >= 0 && b != selectedBand)
+			{
+				continue;
+			}
+
+			Arrays.fill(destinationData, 0, width * height, 0);
+			if (!window.isEmpty())
+			{
+				if (sourceData == null || sourceData.length < readWidth * readHeight)
+				{
+					sourceData = new double[readWidth * readHeight];
+				}
+				Band src = strip != null ? strip.getBand(b) : dataset.GetRasterBand(b + 1);
+				int x = strip != null ? window.x - strip.getRectangle().x : window.x;
+				int y = strip != null ? window.y - strip.getRectangle().y : window.y;
+				int returnVal =
+						src.ReadRaster(x, y, window.width, window.height, readWidth, readHeight,
+								gdalconstConstants.GDT_Float64, sourceData);
+				if (returnVal != gdalconstConstants.CE_None)
+				{
+					throw new GDALException();
+				}
+				resample(sourceData, readWidth, readHeight, sourceX, sourceY, destinationData, bilinear);
+			}
+
+			Band dst = destination.GetRasterBand(b + 1);
+			int returnVal =
+					dst.WriteRaster(0, 0, width, height, width, height, gdalconstConstants.GDT_Float64,
+							destinationData);
+			if (returnVal != gdalconstConstants.CE_None)
+			{
+				throw new GDALException();
+			}
+		}
+
+		tileCount++;
+		warpTime += System.nanoTime() - start;
+		return destination;
+	}
+
+	private void allocate(int width, int height)
+	{
+		if (destination != null && destination.getRasterXSize() == width && destination.getRasterYSize() == height)
+		{
+			return;
+		}
+		if (destination != null)
+		{
+			destination.delete();
+		}
+
+		//create a dataset with the same data types as the source bands
+		Driver memDriver = gdal.GetDriverByName("MEM");
+		destination = memDriver.Create("warp", width, height, 0);
+		for (int i = 0; i < dataset.getRasterCount(); i++)
+		{
+			destination.AddBand(dataset.GetRasterBand(i + 1).getDataType());
+		}
+
+		int points = gridSize(width) * gridSize(height);
+		grid = new double[points][3];
+		sourceX = new float[width * height];
+		sourceY = new float[width * height];
+		destinationData = new double[width * height];
+	}
+
+	/**
+	 * @return Number of grid points across a tile of the given size
+	 */
+	static int gridSize(int size)
+	{
+		return (size - 1 + GRID_STEP - 1) / GRID_STEP + 1;
+	}
+
+	/**
+	 * @return Pixel position of the given grid point
+	 */
+	static int gridPosition(int index, int size)
+	{
+		return Math.min(index * GRID_STEP, size - 1);
+	}
+
+	/**
+	 * Bilinearly interpolate the source pixel coordinates of every tile pixel
+	 * from the coordinates of the grid points. Pixels in a grid cell with a
+	 * corner that could not be transformed are set to NaN.
+	 */
+	static void interpolateGrid(double[] gridX, double[] gridY, int width, int height, float[] sourceX,
+			float[] sourceY)
+	{
+		int gridWidth = gridSize(width);
+		int gridHeight = gridSize(height);
+		for (int y = 0; y < height; y++)
+		{
+			int j = Math.min(y / GRID_STEP, Math.max(0, gridHeight - 2));
+			int j1 = Math.min(j + 1, gridHeight - 1);
+			int y0 = gridPosition(j, height);
+			double v = j1 == j ? 0 : (y - y0) / (double) (gridPosition(j1, height) - y0);
+			for (int x = 0; x < width; x++)
+			{
+				int i = Math.min(x / GRID_STEP, Math.max(0, gridWidth - 2));
+				int i1 = Math.min(i + 1, gridWidth - 1);
+				int x0 = gridPosition(i, width);
+				double u = i1 == i ? 0 : (x - x0) / (double) (gridPosition(i1, width) - x0);
+
+				int p00 = j * gridWidth + i, p10 = j * gridWidth + i1;
+				int p01 = j1 * gridWidth + i, p11 = j1 * gridWidth + i1;
+				double sx = lerp(lerp(gridX[p00], gridX[p10], u), lerp(gridX[p01], gridX[p11], u), v);
+				double sy = lerp(lerp(gridY[p00], gridY[p10], u), lerp(gridY[p01], gridY[p11], u), v);
+				int index = y * width + x;
+				if (Double.isNaN(sx) || Double.isInfinite(sx) || Double.isNaN(sy) || Double.isInfinite(sy))
+				{
+					sourceX[index] = Float.NaN;
+					sourceY[index] = Float.NaN;
+				}
+				else
+				{
+					sourceX[index] = (float) sx;
+					sourceY[index] = (float) sy;
+				}
+			}
+		}
+	}
+
+	private static double lerp(double a, double b, double t)
+	{
+		return t == 0 ? a : a + (b - a) * t;
+	}
+
+	/**
+	 * Calculate the source window covering the given source pixel coordinates,
+	 * including a single pixel margin for interpolation, and clipped to the
+	 * dataset extents.
+	 */
+	static Rectangle sourceWindow(float[] sourceX, float[] sourceY, int rasterWidth, int rasterHeight)
+	{
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < sourceX.length; i++)
+		{
+			float x = sourceX[i];
+			float y = sourceY[i];
+			if (x != x || y != y)
+			{
+				continue; //NaN
+			}
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+		}
+		if (minX > maxX)
+		{
+			return new Rectangle();
+		}
+		int x0 = Math.max(0, (int) Math.floor(minX) - 1);
+		int y0 = Math.max(0, (int) Math.floor(minY) - 1);
+		int x1 = Math.min(rasterWidth, (int) Math.ceil(maxX) + 1);
+		int y1 = Math.min(rasterHeight, (int) Math.ceil(maxY) + 1);
+		if (x1 <= x0 || y1 <= y0)
+		{
+			return new Rectangle();
+		}
+		return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/**
+	 * Resample the source data into the destination tile.
+	 * 
+	 * @param source
+	 *            Source window data (row-major)
+	 * @param sourceX
+	 *            Source x pixel coordinate (within the source window) for each
+	 *            destination pixel, or NaN if outside the source
+	 * @param sourceY
+	 *            Source y pixel coordinate for each destination pixel
+	 * @param destination
+	 *            Destination data; pixels outside the source are not modified
+	 */
+	static void resample(double[] source, int sourceWidth, int sourceHeight, float[] sourceX, float[] sourceY,
+			double[] destination, boolean bilinear)
+	{
+		for (int i = 0; i < sourceX.length; i++)
+		{
+			float sx = sourceX[i];
+			float sy = sourceY[i];
+			if (sx != sx || sy != sy)
+			{
+				continue; //NaN
+			}
+			if (!bilinear)
+			{
+				int x = Math.min(sourceWidth - 1, Math.max(0, (int) sx));
+				int y = Math.min(sourceHeight - 1, Math.max(0, (int) sy));
+				destination[i] = source[y * sourceWidth + x];
+				continue;
+			}
+
+			//pixel centres are at +0.5
+			double fx = sx - 0.5;
+			double fy = sy - 0.5;
+			int x0 = (int) Math.floor(fx);
+			int y0 = (int) Math.floor(fy);
+			double u = fx - x0;
+			double v = fy - y0;
+			int x1 = Math.min(sourceWidth - 1, x0 + 1);
+			int y1 = Math.min(sourceHeight - 1, y0 + 1);
+			x0 = Math.max(0, Math.min(sourceWidth - 1, x0));
+			y0 = Math.max(0, Math.min(sourceHeight - 1, y0));
+			x1 = Math.max(0, x1);
+			y1 = Math.max(0, y1);
+
+			double top = source[y0 * sourceWidth + x0] * (1 - u) + source[y0 * sourceWidth + x1] * u;
+			double bottom = source[y1 * sourceWidth + x0] * (1 - u) + source[y1 * sourceWidth + x1] * u;
+			destination[i] = top * (1 - v) + bottom * v;
+		}
+	}
+
+	/**
+	 * Delete the destination dataset and coordinate transformation.
+	 */
+	public void close()
+	{
+		if (destination != null)
+		{
+			destination.delete();
+			destination = null;
+		}
+		if (transformation != null)
+		{
+			transformation.delete();
+			transformation = null;
+		}
+	}
+
+	/**
+	 * @return Number of tiles reprojected
+	 */
+	public int getTileCount()
+	{
+		return tileCount;
+	}
+
+	/**
+	 * @return Total time (in nanoseconds) spent reprojecting tiles
+	 */
+	public long getWarpTime()
+	{
+		return warpTime;
+	}
+}
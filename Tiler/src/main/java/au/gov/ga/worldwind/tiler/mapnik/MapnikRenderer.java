@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.mapnik;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import au.gov.ga.worldwind.tiler.util.InputStreamHandler;
+import au.gov.ga.worldwind.tiler.util.Sector;
+import au.gov.ga.worldwind.tiler.util.TilerException;
+
+/**
+ * A long-lived Mapnik renderer process, which renders many tiles from a
+ * single mapfile. Starting Nik2Img for every tile means paying for the process
+ * start and the loading of the mapfile for every tile; a batch renderer loads
+ * the mapfile once, and then renders tiles on request.
+ * <p/>
+ * The renderer process is started with the renderer command followed by
+ * <code>-m &lt;mapfile&gt;</code>, and <code>-s epsg:4326</code> if the map
+ * should be reprojected (the same arguments as Nik2Img). Tiles are requested
+ * by writing a line to the process' standard input:
+ * 
+ * <pre>
+ * minlon minlat maxlon maxlat width height format
+ * </pre>
+ * 
+ * where format is <code>png</code> or <code>jpg</code>. For each request, the
+ * renderer writes a frame to its standard output, starting with a 4 byte big
+ * endian length. A positive (or zero) length is followed by that many bytes of
+ * the encoded image; a negative length is followed by -length bytes of a UTF-8
+ * error message. The renderer should exit when its standard input is closed.
+ * Anything written to standard error is logged.
+ * <p/>
+ * A renderer can only render one tile at a time; use a {@link Pool} to render
+ * tiles from multiple threads.
+ */
+public class MapnikRenderer
+{
+	private final Process process;
+	private final OutputStream requests;
+	private final DataInputStream responses;
+	private boolean broken = false;
+
+	/**
+	 * Start a renderer process.
+	 * 
+	 * @param command
+	 *            Renderer command and any arguments
+	 * @param mapFile
+	 *            Mapnik XML mapfile to render
+	 * @param reproject
+	 *            Should the map be reprojected to WGS84 if not already?
+	 * @param directory
+	 *            Working directory of the renderer process (null for the
+	 *            current directory)
+	 * @param logger
+	 *            Logger which logs the renderer's error output
+	 * @throws TilerException
+	 *             If the process cannot be started
+	 */
+	public MapnikRenderer(List<String> command, File mapFile, boolean reproject, File directory, final Logger logger)
+			throws TilerException
+	{
+		List<String> arguments = new ArrayList<String>(command);
+		arguments.add("-m");
+		arguments.add(mapFile.getAbsolutePath());
+		if (reproject)
+		{
+			arguments.add("-s");
+			arguments.add("epsg:4326");
+		}
+
+		try
+		{
+			ProcessBuilder builder = new ProcessBuilder(arguments);
+			builder.directory(directory);
+			process = builder.start();
+		}
+		catch (IOException e)
+		{
+			throw new TilerException("Error starting Mapnik renderer " + command + ": " + e.getLocalizedMessage());
+		}
+
+		requests = new BufferedOutputStream(process.getOutputStream());
+		responses = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+		new InputStreamHandler(process.getErrorStream())
+		{
+			@Override
+			public void handle(String string)
+			{
+				logger.severe(string);
+			}
+		};
+	}
+
+	/**
+	 * Render a tile.
+	 * 
+	 * @param sector
+	 *            Extents of the tile
+	 * @param width
+	 *            Width of the tile
+	 * @param height
+	 *            Height of the tile
+	 * @param format
+	 *            Image format (png or jpg)
+	 * @return Encoded tile image
+	 * @throws TilerException
+	 *             If the renderer fails to render the tile
+	 */
+	public byte[] render(Sector sector, int width, int height, String format) throws TilerException
+	{
+		if (broken)
+		{
+			throw new TilerException("Mapnik renderer has failed");
+		}
+
+		int length;
+		byte[] data;
+		try
+		{
+			String request =
+					sector.getMinLongitude() + " " + sector.getMinLatitude() + " " + sector.getMaxLongitude() + " "
+							+ sector.getMaxLatitude() + " " + width + " " + height + " " + format + "\n";
+			requests.write(request.getBytes("UTF-8"));
+			requests.flush();
+
+			length = responses.readInt();
+			data = new byte[length >= 0 ? length : -length];
+			responses.readFully(data);
+		}
+		catch (EOFException e)
+		{
+			broken = true;
+			throw new TilerException("Mapnik renderer exited unexpectedly");
+		}
+		catch (IOException e)
+		{
+			broken = true;
+			throw new TilerException("Error communicating with Mapnik renderer: " + e.getLocalizedMessage());
+		}
+
+		if (length < 0)
+		{
+			String message;
+			try
+			{
+				message = new String(data, "UTF-8");
+			}
+			catch (IOException e)
+			{
+				message = e.getLocalizedMessage();
+			}
+			throw new TilerException("Mapnik renderer error: " + message);
+		}
+		return data;
+	}
+
+	/**
+	 * @return True if communication with the renderer process has failed
+	 */
+	public boolean isBroken()
+	{
+		return broken;
+	}
+
+	/**
+	 * Close the renderer's standard input, and wait for it to exit. The
+	 * process is destroyed if it has failed.
+	 */
+	public void close()
+	{
+		if (broken)
+		{
+			process.destroy();
+			return;
+		}
+		try
+		{
+			requests.close();
+			process.waitFor();
+		}
+		catch (IOException e)
+		{
+			process.destroy();
+		}
+		catch (InterruptedException e)
+		{
+			process.destroy();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Pool of renderer processes for a single mapfile. Renderers are started
+	 * as they are required, so the pool grows to the number of threads
+	 * rendering concurrently.
+	 */
+	public static class Pool
+	{
+		private final List<String> command;
+		private final File mapFile;
+		private final boolean reproject;
+		private final File directory;
+		private final Logger logger;
+		private final LinkedList<MapnikRenderer> idle = new LinkedList<MapnikRenderer>();
+		private final List<MapnikRenderer> all = new ArrayList<MapnikRenderer>();
+		private final AtomicLong renderCount = new AtomicLong();
+		private final AtomicLong renderTime = new AtomicLong();
+
+		/**
+		 * @see MapnikRenderer#MapnikRenderer(List, File, boolean, File,
+		 *      Logger)
+		 */
+		public Pool(List<String> command, File mapFile, boolean reproject, File directory, Logger logger)
+		{
+			this.command = command;
+			this.mapFile = mapFile;
+			this.reproject = reproject;
+			this.directory = directory;
+			this.logger = logger;
+		}
+
+		/**
+		 * Render a tile using an idle renderer from this pool.
+		 * 
+		 * @see MapnikRenderer#render(Sector, int, int, String)
+		 */
+		public byte[] render(Sector sector, int width, int height, String format) throws TilerException
+		{
+			MapnikRenderer renderer = acquire();
+			try
+			{
+				long start = System.nanoTime();
+				byte[] data = renderer.render(sector, width, height, format);
+				renderTime.addAndGet(System.nanoTime() - start);
+				renderCount.incrementAndGet();
+				return data;
+			}
+			finally
+			{
+				release(renderer);
+			}
+		}
+
+		private MapnikRenderer acquire() throws TilerException
+		{
+			synchronized (idle)
+			{
+				if (!idle.isEmpty())
+				{
+					return idle.removeFirst();
+				}
+			}
+			MapnikRenderer renderer = new MapnikRenderer(command, mapFile, reproject, directory, logger);
+			synchronized (idle)
+			{
+				all.add(renderer);
+			}
+			return renderer;
+		}
+
+		/**
+		 * Return a renderer to the pool. Failed renderers are closed instead,
+		 * and replaced by a new process when next required.
+		 */
+		private void release(MapnikRenderer renderer)
+		{
+			if (renderer.isBroken())
+			{
+				renderer.close();
+				synchronized (idle)
+				{
+					all.remove(renderer);
+				}
+				return;
+			}
+			synchronized (idle)
+			{
+				idle.addFirst(renderer);
+			}
+		}
+
+		/**
+		 * @return Number of renderer processes currently running
+		 */
+		public int size()
+		{
+			synchronized (idle)
+			{
+				return all.size();
+			}
+		}
+
+		/**
+		 * Close all of the renderers in this pool, and log the number of tiles
+		 * rendered.
+		 */
+		public void close()
+		{
+			List<MapnikRenderer> renderers;
+			synchronized (idle)
+			{
+				renderers = new ArrayList<MapnikRenderer>(all);
+				all.clear();
+				idle.clear();
+			}
+			for (MapnikRenderer renderer : renderers)
+			{
+				renderer.close();
+			}
+			if (renderCount.get() > 0)
+			{
+				logger.info("Rendered " + renderCount.get() + " tiles in " + (renderTime.get() / 1000000)
+						+ "ms using " + renderers.size() + " Mapnik renderer processes");
+			}
+		}
+	}
+}
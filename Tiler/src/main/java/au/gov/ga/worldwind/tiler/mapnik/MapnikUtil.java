@@ -16,7 +16,9 @@
 package au.gov.ga.worldwind.tiler.mapnik;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -182,4 +184,62 @@ public class MapnikUtil
 			}
 		}
 	}
+
+	/**
+	 * Generate a tile within the given sector extents using a pool of batch
+	 * renderer processes, instead of starting Nik2Img for the tile.
+	 * 
+	 * @param renderers
+	 *            Pool of renderers for the Mapnik XML mapfile
+	 * @param sector
+	 *            Dataset extents contained within the tile
+	 * @param width
+	 *            Width of the tile
+	 * @param height
+	 *            Height of the tile
+	 * @param ignoreBlank
+	 *            Should blank (transparent) tiles be ignored? (Only works for
+	 *            PNG output.)
+	 * @param dst
+	 *            Output image file
+	 * @throws TilerException
+	 *             If generating the tile fails for some reason
+	 * @see MapnikRenderer
+	 */
+	public static void tile(MapnikRenderer.Pool renderers, Sector sector, int width, int height, boolean ignoreBlank,
+			File dst) throws TilerException
+	{
+		String format = dst.getName().toLowerCase().endsWith("jpg") ? "jpg" : "png";
+		byte[] data = renderers.render(sector, width, height, format);
+
+		try
+		{
+			if (ignoreBlank)
+			{
+				BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+				if (image == null)
+				{
+					throw new TilerException("Mapnik renderer returned an unreadable image");
+				}
+				if (Util.isEmpty(image))
+				{
+					return;
+				}
+			}
+
+			FileOutputStream fos = new FileOutputStream(dst);
+			try
+			{
+				fos.write(data);
+			}
+			finally
+			{
+				fos.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new TilerException(e.getLocalizedMessage());
+		}
+	}
 }
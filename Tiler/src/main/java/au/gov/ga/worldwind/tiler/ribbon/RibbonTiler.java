@@ -22,7 +22,16 @@ import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 
@@ -67,7 +76,7 @@ public class RibbonTiler
 		new RibbonTiler().tileRibbon(context);
 	}
 
-	public void tileRibbon(RibbonTilingContext context) throws Exception
+	public void tileRibbon(final RibbonTilingContext context) throws Exception
 	{
 		if (context == null)
 		{
@@ -80,8 +89,8 @@ public class RibbonTiler
 
 		Dataset dataset = GDALUtil.open(context.getSourceFile());
 
-		int width = dataset.GetRasterXSize() - context.getInsets().left - context.getInsets().right;
-		int height = dataset.GetRasterYSize() - context.getInsets().top - context.getInsets().bottom;
+		final int width = dataset.GetRasterXSize() - context.getInsets().left - context.getInsets().right;
+		final int height = dataset.GetRasterYSize() - context.getInsets().top - context.getInsets().bottom;
 		context.setSourceImageSize(new Dimension(width, height));
 
 		int levels = levelCount(width, height, context.getTilesize());
@@ -109,55 +118,8 @@ public class RibbonTiler
 			{
 				constantPixelsFromTop = new int[width];
 				constantPixelsFromBottom = new int[width];
-
-				int constantWidth = Math.max(1, 10 * context.getTilesize() * context.getTilesize() / height);
-				for (int startX = 0; startX < width; startX += constantWidth)
-				{
-					int w = Math.min(constantWidth, width - startX);
-
-					//get an image of the full height, 1 pixel wide at column x
-					Rectangle src =
-							new Rectangle(context.getInsets().left + startX, context.getInsets().top, w, height);
-					GDALTileParameters parameters = new GDALTileParameters(dataset, src.getSize(), src);
-					GDALTile tile = new GDALTile(parameters);
-					BufferedImage image = tile.getAsImage();
-
-					log(context, (100 * (startX + 1) / width) + "% done", false);
-
-					for (int x = 0; x < w; x++)
-					{
-						int fromTop = 0;
-						int fromBottom = 0;
-						int lastColor = 0;
-						for (int y = 0; y < height; y++)
-						{
-							int thisColor = image.getRGB(x, y);
-							if (y > 0 && lastColor != thisColor)
-							{
-								break;
-							}
-							lastColor = thisColor;
-							fromTop++;
-						}
-
-						if (fromTop < height)
-						{
-							for (int y = height - 1; y >= 0; y--)
-							{
-								int thisColor = image.getRGB(x, y);
-								if (y < height - 1 && lastColor != thisColor)
-								{
-									break;
-								}
-								lastColor = thisColor;
-								fromBottom++;
-							}
-						}
-
-						constantPixelsFromTop[startX + x] = fromTop;
-						constantPixelsFromBottom[startX + x] = fromBottom;
-					}
-				}
+				calculateConstantColumns(context, dataset, width, height, constantPixelsFromTop,
+						constantPixelsFromBottom);
 
 				RibbonTilerUtils.saveIntArrayToFile(constantPixelsFromTop, topFile);
 				RibbonTilerUtils.saveIntArrayToFile(constantPixelsFromBottom, bottomFile);
@@ -173,40 +135,25 @@ public class RibbonTiler
 
 		//create top level tiles
 		log(context, "Creating top level tiles...", false);
-		for (int y = 0, row = 0; y < height; y += context.getTilesize() * xStrips, row++)
+		for (int row = 0; row < rows; row++)
 		{
-			//create row directory
-			String rowPadded = Util.paddedInt(row, 4);
-			File rowDir = new File(levelDir, rowPadded);
-			rowDir.mkdirs();
-
-			int h = Math.min(context.getTilesize() * xStrips / yStrips, height - y);
-
-			for (int x = 0, col = 0; x < width; x += context.getTilesize() * yStrips, col++)
+			new File(levelDir, Util.paddedInt(row, 4)).mkdirs();
+		}
+		final File topLevelDir = levelDir;
+		final int topCols = cols;
+		final int topXStrips = xStrips;
+		final int topYStrips = yStrips;
+		final int[] fromTop = constantPixelsFromTop;
+		final int[] fromBottom = constantPixelsFromBottom;
+		runParallel(context, dataset, rows * cols, new Task()
+		{
+			@Override
+			public void run(Dataset dataset, int index) throws Exception
 			{
-				File imageFile = tileFile(levelDir, row, col, context.getFormat());
-				if (imageFile.exists())
-				{
-					continue;
-				}
-
-				int w = Math.min(context.getTilesize() * yStrips / xStrips, width - x);
-
-				Rectangle src = new Rectangle(x + context.getInsets().left, y + context.getInsets().top, w, h);
-				GDALTileParameters parameters = new GDALTileParameters(dataset, src.getSize(), src);
-				GDALTile tile = new GDALTile(parameters);
-				BufferedImage image = tile.getAsImage();
-
-				if (context.isRemoveConstantColumns())
-				{
-					image =
-							removeConstantColumns(image, constantPixelsFromTop, constantPixelsFromBottom, x, y, width,
-									height, context.isMask());
-				}
-
-				ImageIO.write(image, context.getFormat(), imageFile);
+				createTile(context, dataset, topLevelDir, index / topCols, index % topCols, topXStrips, topYStrips,
+						width, height, fromTop, fromBottom);
 			}
-		}
+		});
 
 		//create overviews
 		for (int level = levels - 2; level >= 0; level--)
@@ -239,101 +186,24 @@ public class RibbonTiler
 			levelDir = new File(context.getTilesetRoot(), String.valueOf(level));
 			levelDir.mkdirs();
 
-			int rowMultiplier = lastRows == 1 ? 0 : 1;
-			int rowDivisor = lastCols == 1 ? 1 : 2;
-			int colMultiplier = lastCols == 1 ? 0 : 1;
-			int colDelta = lastRows == 1 ? 2 : 0;
-
 			for (int row = 0; row < rows; row++)
 			{
-				//if lastRows == 1: 0,0,0,0 / 0,0,0,0
-				//if lastCols == 1: 0,1,2,3 / 4,5,6,7
-				//            else: 0,0,1,1 / 2,2,3,3
-
-				String rowPadded = Util.paddedInt(row, 4);
-				File rowDir = new File(levelDir, rowPadded);
-				rowDir.mkdirs();
-
-				int firstRow = row * 4;
-				int r0 = rowMultiplier * (firstRow + 0) / rowDivisor;
-				int r1 = rowMultiplier * (firstRow + 1) / rowDivisor;
-				int r2 = rowMultiplier * (firstRow + 2) / rowDivisor;
-				int r3 = rowMultiplier * (firstRow + 3) / rowDivisor;
-
-				for (int col = 0; col < cols; col++)
+				new File(levelDir, Util.paddedInt(row, 4)).mkdirs();
+			}
+			final File srcLevelDir = lastLevelDir;
+			final File dstLevelDir = levelDir;
+			final int levelCols = cols;
+			final int srcRows = lastRows;
+			final int srcCols = lastCols;
+			runParallel(context, null, rows * cols, new Task()
+			{
+				@Override
+				public void run(Dataset dataset, int index) throws Exception
 				{
-					//if lastCols == 1: 0,0,0,0 / 0,0,0,0
-					//if lastRows == 1: 0,1,2,3 / 4,5,6,7
-					//            else: 0,1,0,1 / 2,3,2,3
-
-					File imageFile = tileFile(levelDir, row, col, context.getFormat());
-					if (imageFile.exists())
-					{
-						continue;
-					}
-
-					int firstCol = col * (lastRows == 1 ? 4 : 2);
-					int c0 = colMultiplier * (firstCol);
-					int c1 = colMultiplier * (firstCol + 1);
-					int c2 = colMultiplier * (firstCol + colDelta);
-					int c3 = colMultiplier * (firstCol + colDelta + 1);
-
-					File src0 = tileFile(lastLevelDir, r0, c0, context.getFormat());
-					File src1 = tileFile(lastLevelDir, r1, c1, context.getFormat());
-					File src2 = tileFile(lastLevelDir, r2, c2, context.getFormat());
-					File src3 = tileFile(lastLevelDir, r3, c3, context.getFormat());
-
-					BufferedImage img0 = src0.exists() ? ImageIO.read(src0) : null;
-					BufferedImage img1 = src1.exists() ? ImageIO.read(src1) : null;
-					BufferedImage img2 = src2.exists() ? ImageIO.read(src2) : null;
-					BufferedImage img3 = src3.exists() ? ImageIO.read(src3) : null;
-
-					int w0 = img0 == null ? 0 : (img0.getWidth() + 1) / 2;
-					int w1 = img1 == null ? 0 : (img1.getWidth() + 1) / 2;
-					int w2 = img2 == null ? 0 : (img2.getWidth() + 1) / 2;
-					int w3 = img3 == null ? 0 : (img3.getWidth() + 1) / 2;
-					int h0 = img0 == null ? 0 : (img0.getHeight() + 1) / 2;
-					int h1 = img1 == null ? 0 : (img1.getHeight() + 1) / 2;
-					int h2 = img2 == null ? 0 : (img2.getHeight() + 1) / 2;
-					int h3 = img3 == null ? 0 : (img3.getHeight() + 1) / 2;
-
-					int w = w0 + (lastCols == 1 ? 0 : w1) + (lastRows == 1 ? w2 + w3 : 0);
-					int h = h0 + (lastRows == 1 ? 0 : h2) + (lastCols == 1 ? h1 + h3 : 0);
-
-					int type = context.isMask() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
-					BufferedImage image = new BufferedImage(w, h, type);
-					Graphics2D g = image.createGraphics();
-					g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-
-					int x = 0;
-					int y = 0;
-					if (img0 != null)
-					{
-						g.drawImage(img0, x, y, w0, h0, null);
-					}
-					x += lastCols == 1 ? 0 : w0;
-					y += lastCols == 1 ? h0 : 0;
-					if (img1 != null)
-					{
-						g.drawImage(img1, x, y, w1, h1, null);
-					}
-					x += lastCols == 1 ? 0 : lastRows == 1 ? w1 : -w0;
-					y += lastCols == 1 ? h1 : lastRows == 1 ? 0 : h0;
-					if (img2 != null)
-					{
-						g.drawImage(img2, x, y, w2, h2, null);
-					}
-					x += lastCols == 1 ? 0 : w2;
-					y += lastCols == 1 ? h2 : 0;
-					if (img3 != null)
-					{
-						g.drawImage(img3, x, y, w3, h3, null);
-					}
-
-					g.dispose();
-					ImageIO.write(image, context.getFormat(), imageFile);
+					createOverviewTile(context, srcLevelDir, dstLevelDir, index / levelCols, index % levelCols,
+							srcRows, srcCols);
 				}
-			}
+			});
 		}
 
 		if (context.isCopySource())
@@ -358,6 +228,259 @@ public class RibbonTiler
 		}
 	}
 
+	/**
+	 * Calculate the number of constant pixels at the top and bottom of each
+	 * column of the source. The source is read in full height strips of
+	 * columns, which are scanned in parallel directly from the GDAL band
+	 * buffers.
+	 */
+	private static void calculateConstantColumns(final RibbonTilingContext context, Dataset dataset,
+			final int width, final int height, final int[] fromTop, final int[] fromBottom) throws Exception
+	{
+		final int constantWidth = Math.max(1, 10 * context.getTilesize() * context.getTilesize() / height);
+		final int strips = (width - 1) / constantWidth + 1;
+		final AtomicInteger done = new AtomicInteger(0);
+		runParallel(context, dataset, strips, new Task()
+		{
+			@Override
+			public void run(Dataset dataset, int index) throws Exception
+			{
+				int startX = index * constantWidth;
+				int w = Math.min(constantWidth, width - startX);
+
+				Rectangle src = new Rectangle(context.getInsets().left + startX, context.getInsets().top, w, height);
+				GDALTileParameters parameters = new GDALTileParameters(dataset, src.getSize(), src);
+				GDALTile tile = new GDALTile(parameters);
+				RibbonTilerUtils.countConstantPixels(tile.getBuffer(), tile.getBufferTypeSize(),
+						tile.getBandCount(), w, height, fromTop, fromBottom, startX);
+
+				log(context, (100 * done.incrementAndGet() / strips) + "% done", false);
+			}
+		});
+	}
+
+	/**
+	 * Create a tile of the top (most detailed) level from the source.
+	 */
+	private static void createTile(RibbonTilingContext context, Dataset dataset, File levelDir, int row, int col,
+			int xStrips, int yStrips, int width, int height, int[] constantPixelsFromTop,
+			int[] constantPixelsFromBottom) throws Exception
+	{
+		File imageFile = tileFile(levelDir, row, col, context.getFormat());
+		if (imageFile.exists())
+		{
+			return;
+		}
+
+		int x = col * context.getTilesize() * yStrips;
+		int y = row * context.getTilesize() * xStrips;
+		int w = Math.min(context.getTilesize() * yStrips / xStrips, width - x);
+		int h = Math.min(context.getTilesize() * xStrips / yStrips, height - y);
+
+		Rectangle src = new Rectangle(x + context.getInsets().left, y + context.getInsets().top, w, h);
+		GDALTileParameters parameters = new GDALTileParameters(dataset, src.getSize(), src);
+		GDALTile tile = new GDALTile(parameters);
+		BufferedImage image = tile.getAsImage();
+
+		if (context.isRemoveConstantColumns())
+		{
+			image =
+					removeConstantColumns(image, constantPixelsFromTop, constantPixelsFromBottom, x, y, width, height,
+							context.isMask());
+		}
+
+		ImageIO.write(image, context.getFormat(), imageFile);
+	}
+
+	/**
+	 * Create an overview tile by combining and scaling down up to 4 tiles of
+	 * the level below.
+	 */
+	private static void createOverviewTile(RibbonTilingContext context, File lastLevelDir, File levelDir, int row,
+			int col, int lastRows, int lastCols) throws IOException
+	{
+		File imageFile = tileFile(levelDir, row, col, context.getFormat());
+		if (imageFile.exists())
+		{
+			return;
+		}
+
+		//rows: if lastRows == 1: 0,0,0,0 / 0,0,0,0
+		//      if lastCols == 1: 0,1,2,3 / 4,5,6,7
+		//                  else: 0,0,1,1 / 2,2,3,3
+		int rowMultiplier = lastRows == 1 ? 0 : 1;
+		int rowDivisor = lastCols == 1 ? 1 : 2;
+		int firstRow = row * 4;
+		int r0 = rowMultiplier * (firstRow + 0) / rowDivisor;
+		int r1 = rowMultiplier * (firstRow + 1) / rowDivisor;
+		int r2 = rowMultiplier * (firstRow + 2) / rowDivisor;
+		int r3 = rowMultiplier * (firstRow + 3) / rowDivisor;
+
+		//cols: if lastCols == 1: 0,0,0,0 / 0,0,0,0
+		//      if lastRows == 1: 0,1,2,3 / 4,5,6,7
+		//                  else: 0,1,0,1 / 2,3,2,3
+		int colMultiplier = lastCols == 1 ? 0 : 1;
+		int colDelta = lastRows == 1 ? 2 : 0;
+		int firstCol = col * (lastRows == 1 ? 4 : 2);
+		int c0 = colMultiplier * (firstCol);
+		int c1 = colMultiplier * (firstCol + 1);
+		int c2 = colMultiplier * (firstCol + colDelta);
+		int c3 = colMultiplier * (firstCol + colDelta + 1);
+
+		File src0 = tileFile(lastLevelDir, r0, c0, context.getFormat());
+		File src1 = tileFile(lastLevelDir, r1, c1, context.getFormat());
+		File src2 = tileFile(lastLevelDir, r2, c2, context.getFormat());
+		File src3 = tileFile(lastLevelDir, r3, c3, context.getFormat());
+
+		BufferedImage img0 = src0.exists() ? ImageIO.read(src0) : null;
+		BufferedImage img1 = src1.exists() ? ImageIO.read(src1) : null;
+		BufferedImage img2 = src2.exists() ? ImageIO.read(src2) : null;
+		BufferedImage img3 = src3.exists() ? ImageIO.read(src3) : null;
+
+		int w0 = img0 == null ? 0 : (img0.getWidth() + 1) / 2;
+		int w1 = img1 == null ? 0 : (img1.getWidth() + 1) / 2;
+		int w2 = img2 == null ? 0 : (img2.getWidth() + 1) / 2;
+		int w3 = img3 == null ? 0 : (img3.getWidth() + 1) / 2;
+		int h0 = img0 == null ? 0 : (img0.getHeight() + 1) / 2;
+		int h1 = img1 == null ? 0 : (img1.getHeight() + 1) / 2;
+		int h2 = img2 == null ? 0 : (img2.getHeight() + 1) / 2;
+		int h3 = img3 == null ? 0 : (img3.getHeight() + 1) / 2;
+
+		int w = w0 + (lastCols == 1 ? 0 : w1) + (lastRows == 1 ? w2 + w3 : 0);
+		int h = h0 + (lastRows == 1 ? 0 : h2) + (lastCols == 1 ? h1 + h3 : 0);
+
+		int type = context.isMask() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage image = new BufferedImage(w, h, type);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+		int x = 0;
+		int y = 0;
+		if (img0 != null)
+		{
+			g.drawImage(img0, x, y, w0, h0, null);
+		}
+		x += lastCols == 1 ? 0 : w0;
+		y += lastCols == 1 ? h0 : 0;
+		if (img1 != null)
+		{
+			g.drawImage(img1, x, y, w1, h1, null);
+		}
+		x += lastCols == 1 ? 0 : lastRows == 1 ? w1 : -w0;
+		y += lastCols == 1 ? h1 : lastRows == 1 ? 0 : h0;
+		if (img2 != null)
+		{
+			g.drawImage(img2, x, y, w2, h2, null);
+		}
+		x += lastCols == 1 ? 0 : w2;
+		y += lastCols == 1 ? h2 : 0;
+		if (img3 != null)
+		{
+			g.drawImage(img3, x, y, w3, h3, null);
+		}
+
+		g.dispose();
+		ImageIO.write(image, context.getFormat(), imageFile);
+	}
+
+	/**
+	 * A unit of work run by {@link RibbonTiler#runParallel}.
+	 */
+	private static interface Task
+	{
+		/**
+		 * @param dataset
+		 *            Dataset handle owned by the calling thread (null if the
+		 *            task doesn't read the source)
+		 * @param index
+		 *            Index of the unit of work
+		 */
+		void run(Dataset dataset, int index) throws Exception;
+	}
+
+	/**
+	 * Run a task for each index from 0 to count - 1, using the number of
+	 * threads in the context. Each thread opens its own handle to the dataset
+	 * (if not null), as GDAL dataset handles cannot be shared between threads.
+	 * If a task fails, the remaining tasks are abandoned and the failure is
+	 * rethrown.
+	 */
+	private static void runParallel(RibbonTilingContext context, final Dataset dataset, final int count,
+			final Task task) throws Exception
+	{
+		int threads = Math.max(1, Math.min(context.getThreads(), count));
+		if (threads == 1)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				task.run(dataset, i);
+			}
+			return;
+		}
+
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < threads; i++)
+		{
+			futures.add(executor.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					Dataset workerDataset = dataset != null ? GDALUtil.reopen(dataset) : null;
+					try
+					{
+						int index;
+						while (!failed.get() && (index = next.getAndIncrement()) < count)
+						{
+							task.run(workerDataset, index);
+						}
+					}
+					catch (Exception e)
+					{
+						failed.set(true);
+						throw e;
+					}
+					finally
+					{
+						if (workerDataset != null)
+						{
+							workerDataset.delete();
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		try
+		{
+			for (Future<Void> future : futures)
+			{
+				future.get();
+			}
+		}
+		catch (ExecutionException e)
+		{
+			executor.shutdownNow();
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			if (cause instanceof Exception)
+			{
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+		catch (InterruptedException e)
+		{
+			failed.set(true);
+			executor.shutdownNow();
+			throw e;
+		}
+	}
+
 	private void printLevelsSummary(RibbonTilingContext context, int width, int height, int levels)
 	{
 		int printWidth = width, printHeight = height;
@@ -399,6 +522,7 @@ public class RibbonTiler
 		int height = image.getHeight();
 		int type = mask ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
 		BufferedImage newImage = new BufferedImage(width, height, type);
+		int[] rgbs = mask ? new int[width * height] : image.getRGB(0, 0, width, height, null, 0, width);
 
 		for (int x = 0; x < width; x++)
 		{
@@ -409,35 +533,41 @@ public class RibbonTiler
 			{
 				boolean withinTop = y + startY < fromTop;
 				boolean withinBottom = y + startY > totalHeight - 1 - fromBottom;
+				int i = y * width + x;
 				if (withinTop || withinBottom)
 				{
-					newImage.setRGB(x, y, mask ? 0 : 0xffffffff);
+					rgbs[i] = mask ? 0 : 0xffffffff;
 				}
-				else
+				else if (mask)
 				{
-					newImage.setRGB(x, y, mask ? 0xffffffff : image.getRGB(x, y));
+					rgbs[i] = 0xffffffff;
 				}
 			}
 		}
 
+		newImage.setRGB(0, 0, width, height, rgbs, 0, width);
 		return newImage;
 	}
 
 	private static void log(RibbonTilingContext context, String msg, boolean addToTilingLog)
 	{
-		try
+		//tiles are generated on multiple threads
+		synchronized (context)
 		{
-			context.getStdWriter().write(msg + System.getProperty("line.separator"));
-			if (addToTilingLog)
+			try
 			{
-				context.getLogWriter().write(msg + System.getProperty("line.separator"));
+				context.getStdWriter().write(msg + System.getProperty("line.separator"));
+				if (addToTilingLog)
+				{
+					context.getLogWriter().write(msg + System.getProperty("line.separator"));
+				}
+				context.getStdWriter().flush();
+				context.getLogWriter().flush();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
 			}
-			context.getStdWriter().flush();
-			context.getLogWriter().flush();
-		}
-		catch (IOException e)
-		{
-			e.printStackTrace();
 		}
 	}
 }
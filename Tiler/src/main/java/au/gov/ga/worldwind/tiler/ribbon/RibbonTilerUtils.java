@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Utility methods for the ribbon tiler
@@ -83,4 +84,92 @@ public class RibbonTilerUtils
 		}
 		return null;
 	}
+
+	/**
+	 * Count the pixels of constant value at the top and bottom of each column
+	 * of a raw GDAL band buffer. Pixels are compared on their raw values in
+	 * every band, so no image needs to be created.
+	 * <p/>
+	 * If a column is entirely constant, its whole height is counted from the
+	 * top, and 0 from the bottom.
+	 * 
+	 * @param buffer
+	 *            Band sequential buffer (as read by GDAL)
+	 * @param typeSize
+	 *            Size of each sample in bytes
+	 * @param bands
+	 *            Number of bands in the buffer
+	 * @param width
+	 *            Width of the buffer
+	 * @param height
+	 *            Height of the buffer
+	 * @param fromTop
+	 *            Array to store the count from the top of each column in
+	 * @param fromBottom
+	 *            Array to store the count from the bottom of each column in
+	 * @param offset
+	 *            Index in the arrays of the buffer's first column
+	 */
+	public static void countConstantPixels(ByteBuffer buffer, int typeSize, int bands, int width, int height,
+			int[] fromTop, int[] fromBottom, int offset)
+	{
+		for (int x = 0; x < width; x++)
+		{
+			int top = 1;
+			while (top < height && samePixel(buffer, typeSize, bands, width, height, x, top, top - 1))
+			{
+				top++;
+			}
+
+			int bottom = 0;
+			if (top < height)
+			{
+				bottom = 1;
+				while (samePixel(buffer, typeSize, bands, width, height, x, height - 1 - bottom, height - bottom))
+				{
+					bottom++;
+				}
+			}
+
+			fromTop[offset + x] = height > 0 ? top : 0;
+			fromBottom[offset + x] = bottom;
+		}
+	}
+
+	private static boolean samePixel(ByteBuffer buffer, int typeSize, int bands, int width, int height, int x,
+			int y1, int y2)
+	{
+		int bandSize = width * height;
+		for (int b = 0; b < bands; b++)
+		{
+			int i1 = (b * bandSize + y1 * width + x) * typeSize;
+			int i2 = (b * bandSize + y2 * width + x) * typeSize;
+			switch (typeSize)
+			{
+			case 1:
+				if (buffer.get(i1) != buffer.get(i2))
+					return false;
+				break;
+			case 2:
+				if (buffer.getShort(i1) != buffer.getShort(i2))
+					return false;
+				break;
+			case 4:
+				if (buffer.getInt(i1) != buffer.getInt(i2))
+					return false;
+				break;
+			case 8:
+				if (buffer.getLong(i1) != buffer.getLong(i2))
+					return false;
+				break;
+			default:
+				for (int i = 0; i < typeSize; i++)
+				{
+					if (buffer.get(i1 + i) != buffer.get(i2 + i))
+						return false;
+				}
+			}
+		}
+		return true;
+	}
 }
@@ -63,6 +63,8 @@ public class RibbonTilingContext {
 	private boolean copySource = false; 
 	@Parameter(names="-mask", description="Generate a mask tileset?")
 	private boolean mask = false;
+	@Parameter(names="-threads", description="Number of threads used to read the source and generate tiles")
+	private int threads = Runtime.getRuntime().availableProcessors();
 	@Parameter(names="-noLog", description="Suppress the generation of a tiling log?")
 	private boolean suppressTilingLog = false;
 	@Parameter(names="-hideStdOut", description="Hide the standard console output?")
@@ -200,6 +202,14 @@ public class RibbonTilingContext {
 		this.mask = mask;
 	}
 
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 	public int getTilesize() {
 		return tilesize;
 	}
@@ -15,6 +15,14 @@
  ******************************************************************************/
 package au.gov.ga.worldwind.tiler.shapefile;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -30,6 +38,14 @@ import com.vividsolutions.jump.feature.FeatureSchema;
  */
 public class Attributes
 {
+	private static final int NULL = 0;
+	private static final int STRING = 1;
+	private static final int INTEGER = 2;
+	private static final int LONG = 3;
+	private static final int DOUBLE = 4;
+	private static final int DATE = 5;
+	private static final int OBJECT = 6;
+
 	private final Map<String, Object> attributeMap = new HashMap<String, Object>();
 
 	/**
@@ -63,4 +79,121 @@ public class Attributes
 			destination.setAttribute(entry.getKey(), entry.getValue());
 		}
 	}
+
+	/**
+	 * Write these attributes to the given output.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 *             If an attribute value cannot be written
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeInt(attributeMap.size());
+		for (Entry<String, Object> entry : attributeMap.entrySet())
+		{
+			out.writeUTF(entry.getKey());
+			Object value = entry.getValue();
+			if (value == null)
+			{
+				out.writeByte(NULL);
+			}
+			else if (value instanceof String)
+			{
+				out.writeByte(STRING);
+				out.writeUTF((String) value);
+			}
+			else if (value instanceof Integer)
+			{
+				out.writeByte(INTEGER);
+				out.writeInt((Integer) value);
+			}
+			else if (value instanceof Long)
+			{
+				out.writeByte(LONG);
+				out.writeLong((Long) value);
+			}
+			else if (value instanceof Double)
+			{
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) value);
+			}
+			else if (value instanceof Date)
+			{
+				out.writeByte(DATE);
+				out.writeLong(((Date) value).getTime());
+			}
+			else
+			{
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				ObjectOutputStream oos = new ObjectOutputStream(baos);
+				oos.writeObject(value);
+				oos.close();
+				out.writeByte(OBJECT);
+				out.writeInt(baos.size());
+				out.write(baos.toByteArray());
+			}
+		}
+	}
+
+	/**
+	 * Read attributes previously written using {@link #write(DataOutput)}.
+	 * 
+	 * @param in
+	 * @return Attributes read
+	 * @throws IOException
+	 */
+	public static Attributes read(DataInput in) throws IOException
+	{
+		Attributes attributes = new Attributes();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++)
+		{
+			String name = in.readUTF();
+			Object value;
+			int type = in.readByte();
+			switch (type)
+			{
+			case NULL:
+				value = null;
+				break;
+			case STRING:
+				value = in.readUTF();
+				break;
+			case INTEGER:
+				value = in.readInt();
+				break;
+			case LONG:
+				value = in.readLong();
+				break;
+			case DOUBLE:
+				value = in.readDouble();
+				break;
+			case DATE:
+				value = new Date(in.readLong());
+				break;
+			case OBJECT:
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+				try
+				{
+					value = ois.readObject();
+				}
+				catch (ClassNotFoundException e)
+				{
+					throw new IOException(e);
+				}
+				finally
+				{
+					ois.close();
+				}
+				break;
+			default:
+				throw new IOException("Unknown attribute type: " + type);
+			}
+			attributes.attributeMap.put(name, value);
+		}
+		return attributes;
+	}
 }
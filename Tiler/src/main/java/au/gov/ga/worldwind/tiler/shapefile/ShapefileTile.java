@@ -15,6 +15,9 @@
  ******************************************************************************/
 package au.gov.ga.worldwind.tiler.shapefile;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -43,6 +46,7 @@ import com.vividsolutions.jump.feature.FeatureSchema;
  */
 public class ShapefileTile
 {
+	public final int level;
 	public final int row;
 	public final int col;
 
@@ -61,9 +65,10 @@ public class ShapefileTile
 	private boolean filled = false;
 	private Attributes filledAttributes;
 
-	public ShapefileTile(Sector sector, int col, int row)
+	public ShapefileTile(Sector sector, int level, int col, int row)
 	{
 		this.sector = sector;
+		this.level = level;
 		this.row = row;
 		this.col = col;
 		centroid = new Coordinate(sector.getCenterLongitude(), sector.getCenterLatitude());
@@ -216,6 +221,146 @@ public class ShapefileTile
 		filledAttributes = attributes;
 	}
 
+	/**
+	 * @return True if no geometry has been added to this tile, and it has not
+	 *         been marked as filled
+	 */
+	public boolean isEmpty()
+	{
+		return records.isEmpty() && !filled;
+	}
+
+	/**
+	 * Append the records (and filled state) of the given tile, which must
+	 * cover the same sector, to this tile. This is the same as if the records
+	 * had been added to this tile directly, with the given offset added to
+	 * their shape ids.
+	 * 
+	 * @param tile
+	 *            Tile to merge into this tile
+	 * @param shapeIdOffset
+	 *            Offset to add to the shape ids of the merged records
+	 */
+	public void merge(ShapefileTile tile, int shapeIdOffset)
+	{
+		if (tile.filled)
+		{
+			markFilled(tile.filledAttributes);
+		}
+		for (TileRecord record : tile.records)
+		{
+			TileRecord merged =
+					new TileRecord(record.shapeId + shapeIdOffset, record.entered, record.attributes,
+							record.coordinates);
+			merged.exited = record.exited;
+			merged.holes.addAll(record.holes);
+			records.add(merged);
+		}
+		current = null;
+	}
+
+	/**
+	 * Write this tile's records (and filled state) to the given output. They
+	 * can be added to a tile for the same sector using
+	 * {@link #read(DataInput)}.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeBoolean(filled);
+		if (filled)
+		{
+			filledAttributes.write(out);
+		}
+		out.writeInt(records.size());
+		Attributes last = null;
+		for (TileRecord record : records)
+		{
+			last = writeRecord(out, record, last);
+		}
+	}
+
+	/**
+	 * Add the records previously written by {@link #write(DataOutput)} to this
+	 * tile. Records are added after any existing records, in the same way as
+	 * if they had been added to this tile directly.
+	 * 
+	 * @param in
+	 * @throws IOException
+	 */
+	public void read(DataInput in) throws IOException
+	{
+		if (in.readBoolean())
+		{
+			markFilled(Attributes.read(in));
+		}
+		int count = in.readInt();
+		Attributes last = null;
+		for (int i = 0; i < count; i++)
+		{
+			TileRecord record = readRecord(in, last);
+			records.add(record);
+			last = record.attributes;
+		}
+		current = null;
+	}
+
+	private static Attributes writeRecord(DataOutput out, TileRecord record, Attributes last) throws IOException
+	{
+		out.writeInt(record.shapeId);
+		out.writeBoolean(record.entered);
+		out.writeBoolean(record.exited);
+
+		//consecutive records usually come from the same feature, so only write changed attributes
+		out.writeBoolean(record.attributes == last);
+		if (record.attributes != last)
+		{
+			record.attributes.write(out);
+		}
+
+		out.writeInt(record.coordinates.size());
+		for (Coordinate c : record.coordinates)
+		{
+			out.writeDouble(c.x);
+			out.writeDouble(c.y);
+			out.writeDouble(c.z);
+		}
+
+		out.writeInt(record.holes.size());
+		for (TileRecord hole : record.holes)
+		{
+			writeRecord(out, hole, record.attributes);
+		}
+		return record.attributes;
+	}
+
+	private static TileRecord readRecord(DataInput in, Attributes last) throws IOException
+	{
+		int shapeId = in.readInt();
+		boolean entered = in.readBoolean();
+		boolean exited = in.readBoolean();
+		Attributes attributes = in.readBoolean() ? last : Attributes.read(in);
+
+		int count = in.readInt();
+		List<Coordinate> coordinates = new ArrayList<Coordinate>(count);
+		for (int i = 0; i < count; i++)
+		{
+			coordinates.add(new Coordinate(in.readDouble(), in.readDouble(), in.readDouble()));
+		}
+
+		TileRecord record = new TileRecord(shapeId, entered, attributes, coordinates);
+		record.exited = exited;
+
+		int holes = in.readInt();
+		for (int i = 0; i < holes; i++)
+		{
+			record.holes.add(readRecord(in, attributes));
+		}
+		return record;
+	}
+
 	/**
 	 * Does this tile's sector contain the given coordinate?
 	 * 
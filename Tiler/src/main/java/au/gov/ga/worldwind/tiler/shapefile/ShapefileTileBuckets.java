@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.shapefile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Temporary on-disk storage for clipped {@link ShapefileTile} records, used to
+ * tile shapefiles that are too large to hold in memory.
+ * <p/>
+ * As each feature is clipped, the tiles it touched are spilled to one of a
+ * fixed number of bucket files (chosen by the tile's index) and discarded.
+ * The tiles of multiple levels can share the same buckets.
+ * Once all features have been read, each bucket can be read back
+ * independently, merging the records of each tile in the order they were
+ * spilled. Only the tiles of the buckets being read need to be held in memory.
+ */
+public class ShapefileTileBuckets
+{
+	public static final int DEFAULT_BUCKET_COUNT = 256;
+
+	private final File directory;
+	private final File[] files;
+	private final DataOutputStream[] outputs;
+	private long spilled = 0;
+
+	/**
+	 * Create a set of empty buckets in a new temporary directory.
+	 * 
+	 * @param parent
+	 *            Directory in which to create the temporary bucket directory
+	 * @param count
+	 *            Number of buckets
+	 * @throws IOException
+	 */
+	public ShapefileTileBuckets(File parent, int count) throws IOException
+	{
+		if (count < 1)
+			throw new IllegalArgumentException("Bucket count must be positive");
+
+		if (!parent.exists())
+			parent.mkdirs();
+		directory = File.createTempFile("shapefile", ".buckets", parent);
+		if (!directory.delete() || !directory.mkdir())
+			throw new IOException("Could not create bucket directory " + directory);
+
+		files = new File[count];
+		outputs = new DataOutputStream[count];
+		try
+		{
+			for (int i = 0; i < count; i++)
+			{
+				files[i] = new File(directory, i + ".bucket");
+				outputs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[i]), 8192));
+			}
+		}
+		catch (IOException e)
+		{
+			delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Number of buckets
+	 */
+	public int getBucketCount()
+	{
+		return files.length;
+	}
+
+	/**
+	 * @return Number of tile entries spilled to the buckets so far
+	 */
+	public long getSpilledCount()
+	{
+		return spilled;
+	}
+
+	/**
+	 * Write all of the non-empty tiles in the grid to their buckets, and
+	 * remove all tiles from the grid.
+	 * 
+	 * @param grid
+	 * @throws IOException
+	 */
+	public void spill(ShapefileTileGrid grid) throws IOException
+	{
+		for (ShapefileTile tile : grid.getTiles())
+		{
+			if (tile.isEmpty())
+				continue;
+
+			DataOutputStream out = outputs[bucket(grid.index(tile.col, tile.row) + grid.level)];
+			out.writeInt(grid.level);
+			out.writeInt(tile.col);
+			out.writeInt(tile.row);
+			tile.write(out);
+			spilled++;
+		}
+		grid.clear();
+	}
+
+	/**
+	 * Finish writing to the buckets. Must be called before reading.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		IOException exception = null;
+		for (int i = 0; i < outputs.length; i++)
+		{
+			if (outputs[i] == null)
+				continue;
+
+			try
+			{
+				outputs[i].close();
+			}
+			catch (IOException e)
+			{
+				exception = e;
+			}
+			outputs[i] = null;
+		}
+		if (exception != null)
+			throw exception;
+	}
+
+	/**
+	 * Read the tiles in the given bucket. Each tile contains all the records
+	 * spilled for that tile.
+	 * 
+	 * @param bucket
+	 *            Bucket to read
+	 * @param grids
+	 *            Grids the buckets were spilled from (used to create the
+	 *            tiles)
+	 * @return Tiles in the bucket, sorted by level, row and column
+	 * @throws IOException
+	 */
+	public List<ShapefileTile> read(int bucket, ShapefileTileGrid... grids) throws IOException
+	{
+		Map<Integer, ShapefileTileGrid> levels = new HashMap<Integer, ShapefileTileGrid>();
+		Map<Integer, Map<Long, ShapefileTile>> levelTiles = new HashMap<Integer, Map<Long, ShapefileTile>>();
+		for (ShapefileTileGrid grid : grids)
+		{
+			levels.put(grid.level, grid);
+			levelTiles.put(grid.level, new HashMap<Long, ShapefileTile>());
+		}
+
+		List<ShapefileTile> list = new ArrayList<ShapefileTile>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(files[bucket])));
+		try
+		{
+			while (true)
+			{
+				int level;
+				try
+				{
+					level = in.readInt();
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				int col = in.readInt();
+				int row = in.readInt();
+
+				ShapefileTileGrid grid = levels.get(level);
+				if (grid == null)
+					throw new IOException("No grid for level " + level);
+
+				Map<Long, ShapefileTile> tiles = levelTiles.get(level);
+				Long index = grid.index(col, row);
+				ShapefileTile tile = tiles.get(index);
+				if (tile == null)
+				{
+					tile = grid.createTile(col, row);
+					tiles.put(index, tile);
+					list.add(tile);
+				}
+				tile.read(in);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		Collections.sort(list, ShapefileTileGrid.ROW_ORDER);
+		return list;
+	}
+
+	/**
+	 * Delete the given bucket's file, once its tiles have been read.
+	 */
+	public void delete(int bucket)
+	{
+		files[bucket].delete();
+	}
+
+	/**
+	 * Close and delete all buckets, and the temporary bucket directory.
+	 */
+	public void delete()
+	{
+		try
+		{
+			close();
+		}
+		catch (IOException e)
+		{
+			//ignore; the files are being deleted anyway
+		}
+		for (File file : files)
+		{
+			if (file != null)
+				file.delete();
+		}
+		directory.delete();
+	}
+
+	private int bucket(long index)
+	{
+		return (int) (index % files.length);
+	}
+}
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.shapefile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.gov.ga.worldwind.tiler.util.LatLon;
+import au.gov.ga.worldwind.tiler.util.Sector;
+import au.gov.ga.worldwind.tiler.util.Util;
+
+/**
+ * The grid of {@link ShapefileTile}s covering a shapefile's bounds at a single
+ * level. Tiles are created lazily when they are first requested, so tiles that
+ * receive no geometry are never allocated.
+ */
+public class ShapefileTileGrid
+{
+	/**
+	 * Sorts tiles by level, row, then column.
+	 */
+	public static final Comparator<ShapefileTile> ROW_ORDER = new Comparator<ShapefileTile>()
+	{
+		@Override
+		public int compare(ShapefileTile o1, ShapefileTile o2)
+		{
+			if (o1.level != o2.level)
+				return o1.level < o2.level ? -1 : 1;
+			if (o1.row != o2.row)
+				return o1.row < o2.row ? -1 : 1;
+			return o1.col < o2.col ? -1 : o1.col == o2.col ? 0 : 1;
+		}
+	};
+
+	public final int level;
+	public final double lzts;
+	public final LatLon origin;
+	public final int minX;
+	public final int maxX;
+	public final int minY;
+	public final int maxY;
+
+	private final double tileSize;
+	private final Map<Long, ShapefileTile> tiles = new HashMap<Long, ShapefileTile>();
+
+	/**
+	 * Create a grid of the tiles covering the given sector.
+	 * 
+	 * @param sector
+	 *            Sector to cover (usually the shapefile's bounds)
+	 * @param level
+	 *            Level of the tiles
+	 * @param lzts
+	 *            Level zero tile size (in degrees)
+	 * @param origin
+	 *            Tiling origin
+	 */
+	public ShapefileTileGrid(Sector sector, int level, double lzts, LatLon origin)
+	{
+		this.level = level;
+		this.lzts = lzts;
+		this.origin = origin;
+		this.tileSize = Math.pow(0.5, level) * lzts;
+		minX = Util.getTileX(sector.getMinLongitude() + 1e-10, origin, level, lzts);
+		maxX = Util.getTileX(sector.getMaxLongitude() - 1e-10, origin, level, lzts);
+		minY = Util.getTileY(sector.getMinLatitude() + 1e-10, origin, level, lzts);
+		maxY = Util.getTileY(sector.getMaxLatitude() - 1e-10, origin, level, lzts);
+	}
+
+	private ShapefileTileGrid(ShapefileTileGrid grid)
+	{
+		this.level = grid.level;
+		this.lzts = grid.lzts;
+		this.origin = grid.origin;
+		this.tileSize = grid.tileSize;
+		this.minX = grid.minX;
+		this.maxX = grid.maxX;
+		this.minY = grid.minY;
+		this.maxY = grid.maxY;
+	}
+
+	/**
+	 * @return A new empty grid with the same level and bounds as this grid
+	 */
+	public ShapefileTileGrid emptyCopy()
+	{
+		return new ShapefileTileGrid(this);
+	}
+
+	/**
+	 * Append the records of the tiles in the given grid (which must have the
+	 * same level and bounds) to the tiles in this grid.
+	 * 
+	 * @param grid
+	 *            Grid to merge into this grid
+	 * @param shapeIdOffset
+	 *            Offset to add to the shape ids of the merged records
+	 * @see ShapefileTile#merge(ShapefileTile, int)
+	 */
+	public void merge(ShapefileTileGrid grid, int shapeIdOffset)
+	{
+		for (ShapefileTile tile : grid.getTiles())
+		{
+			if (!tile.isEmpty())
+			{
+				get(tile.col, tile.row).merge(tile, shapeIdOffset);
+			}
+		}
+	}
+
+	/**
+	 * @return Size of this grid's tiles (in degrees)
+	 */
+	public double getTileSize()
+	{
+		return tileSize;
+	}
+
+	/**
+	 * @return Column of the tile containing the given longitude, limited to
+	 *         the grid
+	 */
+	public int tileX(double longitude)
+	{
+		//limit tile x on the edges
+		//(eg lon=180 will resolve to x=11 at level 0 lzts 36, but should be x=10)
+		return Util.clamp(Util.getTileX(longitude, origin, level, lzts), minX, maxX);
+	}
+
+	/**
+	 * @return Row of the tile containing the given latitude, limited to the
+	 *         grid
+	 */
+	public int tileY(double latitude)
+	{
+		return Util.clamp(Util.getTileY(latitude, origin, level, lzts), minY, maxY);
+	}
+
+	/**
+	 * @return Unique index of the tile at the given column and row within this
+	 *         grid
+	 */
+	public long index(int x, int y)
+	{
+		return (long) (y - minY) * (maxX - minX + 1) + (x - minX);
+	}
+
+	/**
+	 * Get the tile at the given column and row, creating it if it doesn't
+	 * exist.
+	 */
+	public ShapefileTile get(int x, int y)
+	{
+		Long index = index(x, y);
+		ShapefileTile tile = tiles.get(index);
+		if (tile == null)
+		{
+			tile = createTile(x, y);
+			tiles.put(index, tile);
+		}
+		return tile;
+	}
+
+	/**
+	 * Create a new tile at the given column and row. The tile is not added to
+	 * this grid.
+	 */
+	public ShapefileTile createTile(int x, int y)
+	{
+		double lat1 = origin.getLatitude() + y * tileSize;
+		double lon1 = origin.getLongitude() + x * tileSize;
+		Sector sector = new Sector(lat1, lon1, lat1 + tileSize, lon1 + tileSize);
+		return new ShapefileTile(sector, level, x, y);
+	}
+
+	/**
+	 * @return The tiles created in this grid, sorted by row and column
+	 */
+	public List<ShapefileTile> getTiles()
+	{
+		List<ShapefileTile> list = new ArrayList<ShapefileTile>(tiles.values());
+		Collections.sort(list, ROW_ORDER);
+		return list;
+	}
+
+	/**
+	 * @return Number of tiles created in this grid
+	 */
+	public int size()
+	{
+		return tiles.size();
+	}
+
+	/**
+	 * Remove all the created tiles from this grid.
+	 */
+	public void clear()
+	{
+		tiles.clear();
+	}
+}
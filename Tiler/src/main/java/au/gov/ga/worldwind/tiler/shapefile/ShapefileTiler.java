@@ -15,7 +15,6 @@
  ******************************************************************************/
 package au.gov.ga.worldwind.tiler.shapefile;
 
-import java.awt.Dimension;
 import java.awt.Point;
 import java.io.File;
 import java.io.FileInputStream;
@@ -25,8 +24,17 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -34,6 +42,8 @@ import java.util.zip.ZipOutputStream;
 import au.gov.ga.worldwind.tiler.util.LatLon;
 import au.gov.ga.worldwind.tiler.util.ProgressReporter;
 import au.gov.ga.worldwind.tiler.util.Sector;
+import au.gov.ga.worldwind.tiler.util.TilePack;
+import au.gov.ga.worldwind.tiler.util.TilePacker;
 import au.gov.ga.worldwind.tiler.util.Util;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -45,6 +55,7 @@ import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.MultiLineString;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
 import com.vividsolutions.jump.feature.Feature;
 import com.vividsolutions.jump.feature.FeatureCollection;
 import com.vividsolutions.jump.feature.FeatureSchema;
@@ -76,7 +87,124 @@ public class ShapefileTiler
 	 */
 	public static void tile(File input, File output, int level, double lzts, LatLon origin, ProgressReporter progress)
 	{
+		tile(input, output, level, lzts, origin, false, progress);
+	}
+
+	/**
+	 * Tile the given shapefile.
+	 * 
+	 * @param input
+	 *            Input shapefile
+	 * @param output
+	 *            Output directory
+	 * @param level
+	 *            Level at which to tile
+	 * @param lzts
+	 *            Level zero tile size (in degrees)
+	 * @param origin
+	 *            Origin to begin tiling at
+	 * @param pack
+	 *            Pack the tile zip files into a single {@link TilePack} file
+	 *            for the level once tiling is complete
+	 * @param progress
+	 *            Object to report progress
+	 */
+	public static void tile(File input, File output, int level, double lzts, LatLon origin, boolean pack,
+			ProgressReporter progress)
+	{
+		tile(input, output, level, lzts, origin, pack, false, 1, progress);
+	}
+
+	/**
+	 * Tile the given shapefile.
+	 * <p/>
+	 * If streaming, the clipped records of each feature are spilled to
+	 * temporary bucket files in the output directory as the shapefile is read,
+	 * instead of holding the geometry of every tile in memory until the end.
+	 * The tiles are then built and saved from the buckets in parallel, which
+	 * only requires the tiles of one bucket per thread to be in memory.
+	 * 
+	 * @param input
+	 *            Input shapefile
+	 * @param output
+	 *            Output directory
+	 * @param level
+	 *            Level at which to tile
+	 * @param lzts
+	 *            Level zero tile size (in degrees)
+	 * @param origin
+	 *            Origin to begin tiling at
+	 * @param pack
+	 *            Pack the tile zip files into a single {@link TilePack} file
+	 *            for the level once tiling is complete
+	 * @param stream
+	 *            Spill clipped records to temporary files on disk while
+	 *            reading, for shapefiles too large to tile in memory
+	 * @param threads
+	 *            Number of threads used to clip features, and to build and
+	 *            save the tiles when streaming
+	 * @param progress
+	 *            Object to report progress
+	 */
+	public static void tile(File input, File output, int level, double lzts, LatLon origin, boolean pack,
+			boolean stream, int threads, ProgressReporter progress)
+	{
+		tilePyramid(input, output, level, level, lzts, origin, 0, pack, stream, threads, progress);
+	}
+
+	/**
+	 * Tile the given shapefile into a pyramid of levels, reading and clipping
+	 * each feature into all levels in a single pass.
+	 * <p/>
+	 * Geometry in the maximum level is not simplified, so it is the same as
+	 * tiling that level alone. For each coarser level, the geometry of the
+	 * next finer level is simplified using the Douglas-Peucker algorithm, with
+	 * a tolerance proportional to the level's tile size. Features that
+	 * simplify to nothing are left out of that level (and all coarser levels).
+	 * <p/>
+	 * Features are read in order, but clipped concurrently using the given
+	 * number of threads. Each feature is clipped into its own empty grids, and
+	 * these are merged into the level grids in the order the features were
+	 * read, offsetting shape ids by the number used by the previous features.
+	 * The output is therefore the same as clipping the features one by one.
+	 * 
+	 * @param input
+	 *            Input shapefile
+	 * @param output
+	 *            Output directory
+	 * @param minLevel
+	 *            Coarsest level to tile
+	 * @param maxLevel
+	 *            Finest level to tile
+	 * @param lzts
+	 *            Level zero tile size (in degrees)
+	 * @param origin
+	 *            Origin to begin tiling at
+	 * @param simplify
+	 *            Simplification tolerance as a fraction of each level's tile
+	 *            size (eg 1/512 to simplify to the resolution of a 512 pixel
+	 *            tile); 0 disables simplification
+	 * @param pack
+	 *            Pack the tile zip files into a single {@link TilePack} file
+	 *            per level once tiling is complete
+	 * @param stream
+	 *            Spill clipped records to temporary files on disk while
+	 *            reading, for shapefiles too large to tile in memory
+	 * @param threads
+	 *            Number of threads used to clip features, and to build and
+	 *            save the tiles when streaming
+	 * @param progress
+	 *            Object to report progress
+	 */
+	public static void tilePyramid(File input, File output, int minLevel, int maxLevel, double lzts, LatLon origin,
+			double simplify, boolean pack, boolean stream, int threads, ProgressReporter progress)
+	{
+		if (minLevel > maxLevel)
+			throw new IllegalArgumentException("Minimum level is greater than maximum level");
+
 		ShapefileReader reader = null;
+		ShapefileTileBuckets buckets = null;
+		ExecutorService executor = null;
 		try
 		{
 			progress.getLogger().info("Parsing " + input);
@@ -89,40 +217,30 @@ public class ShapefileTiler
 			//TODO replace this schema with a customisable one, so users can select a subset of attributes
 			FeatureSchema schema = reader.getSchema();
 
-
-			double tilesizedegrees = Math.pow(0.5, level) * lzts;
-			int minX = Util.getTileX(sector.getMinLongitude() + 1e-10, origin, level, lzts);
-			int maxX = Util.getTileX(sector.getMaxLongitude() - 1e-10, origin, level, lzts);
-			int minY = Util.getTileY(sector.getMinLatitude() + 1e-10, origin, level, lzts);
-			int maxY = Util.getTileY(sector.getMaxLatitude() - 1e-10, origin, level, lzts);
-
-			java.awt.Point min = new java.awt.Point(minX, minY);
-			Dimension size = new Dimension(maxX - minX + 1, maxY - minY + 1);
-			ShapefileTile[] tiles = new ShapefileTile[size.width * size.height];
-
-			for (int y = minY; y <= maxY; y++)
+			ShapefileTileGrid[] grids = new ShapefileTileGrid[maxLevel - minLevel + 1];
+			for (int i = 0; i < grids.length; i++)
 			{
-				int y0 = y - minY;
-				for (int x = minX; x <= maxX; x++)
-				{
-					int x0 = x - minX;
-					double lat1 = (y * tilesizedegrees) - 90;
-					double lon1 = (x * tilesizedegrees) - 180;
-					double lat2 = lat1 + tilesizedegrees;
-					double lon2 = lon1 + tilesizedegrees;
-					Sector ts = new Sector(lat1, lon1, lat2, lon2);
-
-					ShapefileTile tile = new ShapefileTile(ts, x, y);
-					tiles[y0 * size.width + x0] = tile;
-				}
+				grids[i] = new ShapefileTileGrid(sector, minLevel + i, lzts, origin);
+			}
+			if (stream)
+			{
+				buckets = new ShapefileTileBuckets(output, ShapefileTileBuckets.DEFAULT_BUCKET_COUNT);
 			}
 
 			boolean anyPolygons = false;
 			Boolean lastPolygon = null;
 
+			if (threads > 1)
+			{
+				executor = Executors.newFixedThreadPool(threads);
+			}
+			//limit the number of clipped features waiting to be merged
+			int maxPending = threads * 4;
+			LinkedList<Future<ClippedFeature>> pending = new LinkedList<Future<ClippedFeature>>();
+
 			progress.getLogger().info("Reading records");
 			Feature feature;
-			int shapeId = 0;
+			int[] shapeIds = new int[grids.length];
 			while ((feature = reader.read()) != null)
 			{
 				if (progress.isCancelled())
@@ -141,63 +259,67 @@ public class ShapefileTiler
 				Attributes attributes = new Attributes();
 				attributes.loadAttributes(feature, schema);
 
-				if (geometry instanceof MultiPolygon)
-				{
-					MultiPolygon mp = (MultiPolygon) geometry;
-					shapeId = addMultiPolygon(shapeId, mp, attributes, tiles, level, lzts, origin, min, size, progress);
-				}
-				else if (geometry instanceof Polygon)
+				ClipTask task = new ClipTask(geometry, attributes, grids, simplify, progress);
+				if (executor == null)
 				{
-					Polygon p = (Polygon) geometry;
-					shapeId = addPolygon(shapeId, p, attributes, tiles, level, lzts, origin, min, size, progress);
+					merge(task.call(), grids, shapeIds, buckets);
+					continue;
 				}
-				else if (geometry instanceof LinearRing)
-				{
-					LinearRing lr = (LinearRing) geometry;
-					shapeId =
-							addLinearRing(shapeId, lr, attributes, tiles, level, lzts, origin, min, size, true,
-									progress);
-				}
-				else if (geometry instanceof MultiLineString)
-				{
-					MultiLineString mls = (MultiLineString) geometry;
-					shapeId =
-							addMultiLineString(shapeId, mls, attributes, tiles, level, lzts, origin, min, size,
-									progress);
-				}
-				else if (geometry instanceof LineString)
-				{
-					LineString ls = (LineString) geometry;
-					shapeId = addLineString(shapeId, ls, attributes, tiles, level, lzts, origin, min, size, progress);
-				}
-				else
+
+				pending.add(executor.submit(task));
+				if (pending.size() >= maxPending)
 				{
-					progress.getLogger().severe("Unsupported shape type: " + geometry);
+					merge(result(pending.removeFirst()), grids, shapeIds, buckets);
 				}
 			}
-
-			progress.getLogger().info("Saving tiles");
-
-			int amount = 0;
-			for (ShapefileTile tile : tiles)
+			while (!pending.isEmpty())
 			{
 				if (progress.isCancelled())
 					return;
 
-				amount++;
-				progress.progress(amount / (double) tiles.length);
+				merge(result(pending.removeFirst()), grids, shapeIds, buckets);
+			}
+
+			progress.getLogger().info("Saving tiles");
+
+			if (buckets != null)
+			{
+				buckets.close();
+				progress.getLogger().info(
+						"Spilled " + buckets.getSpilledCount() + " tile records to " + buckets.getBucketCount()
+								+ " buckets");
+				saveBuckets(buckets, grids, reader.getFactory(), schema, output, anyPolygons, threads, progress);
+			}
+			else
+			{
+				List<ShapefileTile> tiles = new ArrayList<ShapefileTile>();
+				for (ShapefileTileGrid grid : grids)
+				{
+					tiles.addAll(grid.getTiles());
+				}
+				int amount = 0;
+				for (ShapefileTile tile : tiles)
+				{
+					if (progress.isCancelled())
+						return;
 
-				if (anyPolygons)
-					tile.completePolygons();
+					amount++;
+					progress.progress(amount / (double) tiles.size());
 
-				File rowDir = new File(output, String.valueOf(level));
-				rowDir = new File(rowDir, Util.paddedInt(tile.row, 4));
-				if (!rowDir.exists())
-					rowDir.mkdirs();
+					saveTile(tile, reader.getFactory(), schema, output, anyPolygons, progress);
+				}
+			}
 
-				File dst = new File(rowDir, Util.paddedInt(tile.row, 4) + "_" + Util.paddedInt(tile.col, 4) + ".zip");
+			if (progress.isCancelled())
+				return;
 
-				saveShapefileZip(tile, reader.getFactory(), schema, dst, anyPolygons, progress);
+			if (pack)
+			{
+				for (int level = minLevel; level <= maxLevel; level++)
+				{
+					File packFile = new File(output, level + "." + TilePack.EXTENSION);
+					TilePacker.pack(packFile, output, Collections.singletonList(level), "zip", true, progress);
+				}
 			}
 
 			progress.done();
@@ -209,6 +331,10 @@ public class ShapefileTiler
 		}
 		finally
 		{
+			if (executor != null)
+				executor.shutdownNow();
+			if (buckets != null)
+				buckets.delete();
 			try
 			{
 				if (reader != null)
@@ -221,8 +347,237 @@ public class ShapefileTiler
 		}
 	}
 
+	/**
+	 * Merge a clipped feature into the level grids, and spill the grids to
+	 * the buckets if streaming.
+	 */
+	protected static void merge(ClippedFeature clipped, ShapefileTileGrid[] grids, int[] shapeIds,
+			ShapefileTileBuckets buckets) throws IOException
+	{
+		for (int i = 0; i < grids.length; i++)
+		{
+			grids[i].merge(clipped.grids[i], shapeIds[i]);
+			shapeIds[i] += clipped.shapeIds[i];
+
+			if (buckets != null)
+			{
+				buckets.spill(grids[i]);
+			}
+		}
+	}
+
+	private static ClippedFeature result(Future<ClippedFeature> future) throws Exception
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw e;
+		}
+	}
+
+	/**
+	 * The geometry of a single feature, clipped into its own grid for each
+	 * level.
+	 */
+	protected static class ClippedFeature
+	{
+		public final ShapefileTileGrid[] grids;
+		/**
+		 * Number of shape ids used in each level's grid
+		 */
+		public final int[] shapeIds;
+
+		public ClippedFeature(ShapefileTileGrid[] grids, int[] shapeIds)
+		{
+			this.grids = grids;
+			this.shapeIds = shapeIds;
+		}
+	}
+
+	/**
+	 * Task that clips a single feature into new empty copies of the level
+	 * grids. The feature is clipped into the finest level first, and the
+	 * geometry is simplified further for each coarser level.
+	 */
+	protected static class ClipTask implements Callable<ClippedFeature>
+	{
+		private final Geometry geometry;
+		private final Attributes attributes;
+		private final ShapefileTileGrid[] levels;
+		private final double simplify;
+		private final ProgressReporter progress;
+
+		public ClipTask(Geometry geometry, Attributes attributes, ShapefileTileGrid[] levels, double simplify,
+				ProgressReporter progress)
+		{
+			this.geometry = geometry;
+			this.attributes = attributes;
+			this.levels = levels;
+			this.simplify = simplify;
+			this.progress = progress;
+		}
+
+		@Override
+		public ClippedFeature call()
+		{
+			ShapefileTileGrid[] grids = new ShapefileTileGrid[levels.length];
+			int[] shapeIds = new int[levels.length];
+			Geometry geometry = this.geometry;
+			for (int i = levels.length - 1; i >= 0; i--)
+			{
+				grids[i] = levels[i].emptyCopy();
+				if (i < levels.length - 1 && simplify > 0 && !geometry.isEmpty())
+				{
+					geometry = DouglasPeuckerSimplifier.simplify(geometry, simplify * levels[i].getTileSize());
+				}
+				if (!geometry.isEmpty())
+				{
+					shapeIds[i] = addGeometry(0, geometry, attributes, grids[i], progress);
+				}
+			}
+			return new ClippedFeature(grids, shapeIds);
+		}
+	}
+
+	/**
+	 * Clip the given geometry into the tiles of the grid.
+	 * 
+	 * @return The next shape id
+	 */
+	protected static int addGeometry(int shapeId, Geometry geometry, Attributes attributes, ShapefileTileGrid grid,
+			ProgressReporter progress)
+	{
+		if (geometry instanceof MultiPolygon)
+		{
+			MultiPolygon mp = (MultiPolygon) geometry;
+			shapeId = addMultiPolygon(shapeId, mp, attributes, grid, progress);
+		}
+		else if (geometry instanceof Polygon)
+		{
+			Polygon p = (Polygon) geometry;
+			shapeId = addPolygon(shapeId, p, attributes, grid, progress);
+		}
+		else if (geometry instanceof LinearRing)
+		{
+			LinearRing lr = (LinearRing) geometry;
+			shapeId = addLinearRing(shapeId, lr, attributes, grid, true, progress);
+		}
+		else if (geometry instanceof MultiLineString)
+		{
+			MultiLineString mls = (MultiLineString) geometry;
+			shapeId = addMultiLineString(shapeId, mls, attributes, grid, progress);
+		}
+		else if (geometry instanceof LineString)
+		{
+			LineString ls = (LineString) geometry;
+			shapeId = addLineString(shapeId, ls, attributes, grid, progress);
+		}
+		else
+		{
+			progress.getLogger().severe("Unsupported shape type: " + geometry);
+		}
+		return shapeId;
+	}
+
+	/**
+	 * Build and save the tiles spilled to the given buckets, using multiple
+	 * threads. Each thread reads and saves one bucket at a time.
+	 */
+	protected static void saveBuckets(final ShapefileTileBuckets buckets, final ShapefileTileGrid[] grids,
+			final GeometryFactory factory, final FeatureSchema schema, final File output, final boolean polygon,
+			int threads, final ProgressReporter progress) throws IOException
+	{
+		final int count = buckets.getBucketCount();
+		final AtomicInteger nextBucket = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+		threads = Math.max(1, Math.min(threads, count));
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < threads; i++)
+		{
+			futures.add(executor.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					int bucket;
+					while (!progress.isCancelled() && (bucket = nextBucket.getAndIncrement()) < count)
+					{
+						for (ShapefileTile tile : buckets.read(bucket, grids))
+						{
+							if (progress.isCancelled())
+								break;
+
+							saveTile(tile, factory, schema, output, polygon, progress);
+						}
+						buckets.delete(bucket);
+
+						synchronized (progress)
+						{
+							progress.progress(done.incrementAndGet() / (double) count);
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		for (Future<Void> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				progress.cancel();
+				executor.shutdownNow();
+				break;
+			}
+			catch (ExecutionException e)
+			{
+				Throwable cause = e.getCause() != null ? e.getCause() : e;
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				throw new IOException(cause);
+			}
+		}
+	}
+
+	/**
+	 * Complete the given tile's polygons (if required), and save it to a zip
+	 * file in the tile's row directory.
+	 */
+	protected static void saveTile(ShapefileTile tile, GeometryFactory factory, FeatureSchema schema, File output,
+			boolean polygon, ProgressReporter progress) throws IOException
+	{
+		if (tile.isEmpty())
+			return;
+
+		if (polygon)
+			tile.completePolygons();
+
+		File rowDir = new File(output, String.valueOf(tile.level));
+		rowDir = new File(rowDir, Util.paddedInt(tile.row, 4));
+		if (!rowDir.exists())
+			rowDir.mkdirs();
+
+		File dst = new File(rowDir, Util.paddedInt(tile.row, 4) + "_" + Util.paddedInt(tile.col, 4) + ".zip");
+
+		saveShapefileZip(tile, factory, schema, dst, polygon, progress);
+	}
+
 	protected static void saveShapefileZip(ShapefileTile tile, GeometryFactory factory, FeatureSchema schema,
-			File file, boolean polygon, ProgressReporter progress) throws IOException
+			final File file, boolean polygon, ProgressReporter progress) throws IOException
 	{
 		if (file.exists())
 		{
@@ -259,13 +614,16 @@ public class ShapefileTiler
 				deleteZippedFiles = true;
 			}
 
-			//list all filenames with the same prefix (different extensions)
+			//list all filenames with the same name (different extensions); tiles in the same
+			//row may be saved concurrently, so don't match other tiles with the same prefix
 			File[] files = file.getParentFile().listFiles(new FilenameFilter()
 			{
 				@Override
 				public boolean accept(File dir, String name)
 				{
-					return name.toLowerCase().startsWith(filenameNoExt);
+					int indexOfDot = name.lastIndexOf('.');
+					return indexOfDot >= 0 && name.substring(0, indexOfDot).equalsIgnoreCase(filenameNoExt)
+							&& !name.equalsIgnoreCase(file.getName());
 				}
 			});
 
@@ -312,8 +670,7 @@ public class ShapefileTiler
 	}
 
 	protected static int addMultiPolygon(int shapeId, MultiPolygon polygon, Attributes attributes,
-			ShapefileTile[] tiles, int level, double lzts, LatLon origin, java.awt.Point min, Dimension size,
-			ProgressReporter progress)
+			ShapefileTileGrid grid, ProgressReporter progress)
 	{
 		for (int i = 0; i < polygon.getNumGeometries(); i++)
 		{
@@ -321,45 +678,42 @@ public class ShapefileTiler
 			if (g instanceof Polygon)
 			{
 				Polygon p = (Polygon) g;
-				shapeId = addPolygon(shapeId, p, attributes, tiles, level, lzts, origin, min, size, progress);
+				shapeId = addPolygon(shapeId, p, attributes, grid, progress);
 			}
 		}
 		return shapeId;
 	}
 
-	protected static int addPolygon(int shapeId, Polygon polygon, Attributes attributes, ShapefileTile[] tiles,
-			int level, double lzts, LatLon origin, java.awt.Point min, Dimension size, ProgressReporter progress)
+	protected static int addPolygon(int shapeId, Polygon polygon, Attributes attributes, ShapefileTileGrid grid,
+			ProgressReporter progress)
 	{
 		LineString shell = polygon.getExteriorRing();
-		shapeId = addLinearRing(shapeId, shell, attributes, tiles, level, lzts, origin, min, size, true, progress);
+		shapeId = addLinearRing(shapeId, shell, attributes, grid, true, progress);
 
 		for (int i = 0; i < polygon.getNumInteriorRing(); i++)
 		{
 			LineString hole = polygon.getInteriorRingN(i);
-			ShapefileTile containing = allPointsWithin(hole, tiles, level, lzts, origin, min, size);
+			ShapefileTile containing = allPointsWithin(hole, grid);
 			if (containing != null)
 			{
 				addHole(hole, containing, attributes);
 			}
 			else
 			{
-				shapeId =
-						addLinearRing(shapeId, hole, attributes, tiles, level, lzts, origin, min, size, false, progress);
+				shapeId = addLinearRing(shapeId, hole, attributes, grid, false, progress);
 			}
 		}
 		return shapeId;
 	}
 
-	protected static int addLinearRing(int shapeId, LineString ring, Attributes attributes, ShapefileTile[] tiles,
-			int level, double lzts, LatLon origin, java.awt.Point min, Dimension size, boolean fillInside,
-			ProgressReporter progress)
+	protected static int addLinearRing(int shapeId, LineString ring, Attributes attributes, ShapefileTileGrid grid,
+			boolean fillInside, ProgressReporter progress)
 	{
-		return addPoints(shapeId, ring, attributes, true, fillInside, tiles, level, lzts, origin, min, size, progress);
+		return addPoints(shapeId, ring, attributes, true, fillInside, grid, progress);
 	}
 
 	protected static int addMultiLineString(int shapeId, MultiLineString multiLineString, Attributes attributes,
-			ShapefileTile[] tiles, int level, double lzts, LatLon origin, java.awt.Point min, Dimension size,
-			ProgressReporter progress)
+			ShapefileTileGrid grid, ProgressReporter progress)
 	{
 		for (int i = 0; i < multiLineString.getNumGeometries(); i++)
 		{
@@ -367,26 +721,24 @@ public class ShapefileTiler
 			if (g instanceof LineString)
 			{
 				LineString ls = (LineString) g;
-				shapeId = addLineString(shapeId, ls, attributes, tiles, level, lzts, origin, min, size, progress);
+				shapeId = addLineString(shapeId, ls, attributes, grid, progress);
 			}
 		}
 		return shapeId;
 	}
 
 	protected static int addLineString(int shapeId, LineString lineString, Attributes attributes,
-			ShapefileTile[] tiles, int level, double lzts, LatLon origin, java.awt.Point min, Dimension size,
-			ProgressReporter progress)
+			ShapefileTileGrid grid, ProgressReporter progress)
 	{
-		return addPoints(shapeId, lineString, attributes, false, false, tiles, level, lzts, origin, min, size, progress);
+		return addPoints(shapeId, lineString, attributes, false, false, grid, progress);
 	}
 
 	protected static int addPoints(int shapeId, LineString lineString, Attributes attributes, boolean polygon,
-			boolean fillInside, ShapefileTile[] tiles, int level, double lzts, LatLon origin, java.awt.Point min,
-			Dimension size, ProgressReporter progress)
+			boolean fillInside, ShapefileTileGrid grid, ProgressReporter progress)
 	{
 		Coordinate lastCoordinate = null;
 		ShapefileTile lastTile = null;
-		int lastTileIndex = -1;
+		long lastTileIndex = -1;
 
 		List<ShapefileTile> tilesAffected = new ArrayList<ShapefileTile>();
 
@@ -394,18 +746,12 @@ public class ShapefileTiler
 		{
 			Coordinate coordinate = lineString.getCoordinateN(i);
 
-			int x = Util.getTileX(coordinate.x, origin, level, lzts);
-			int y = Util.getTileY(coordinate.y, origin, level, lzts);
-
-			//limit tile x/y on the edges
-			//(eg lon=180 will resolve to x=11 at level 0 lzts 36, but should be x=10)
-			x = Util.clamp(x, min.x, min.x + size.width - 1);
-			y = Util.clamp(y, min.y, min.y + size.height - 1);
+			//the grid limits tile x/y on the edges
+			int x = grid.tileX(coordinate.x);
+			int y = grid.tileY(coordinate.y);
 
-			int x0 = x - min.x;
-			int y0 = y - min.y;
-			int tileIndex = y0 * size.width + x0;
-			ShapefileTile tile = tiles[tileIndex];
+			long tileIndex = grid.index(x, y);
+			ShapefileTile tile = grid.get(x, y);
 
 			if (!tile.contains(coordinate))
 			{
@@ -433,18 +779,17 @@ public class ShapefileTiler
 					for (int j = 1; j < line.size() - 1; j++)
 					{
 						Point p = line.get(j);
-						p.x = Util.clamp(p.x, min.x, min.x + size.width - 1);
-						p.y = Util.clamp(p.y, min.y, min.y + size.height - 1);
+						p.x = Util.clamp(p.x, grid.minX, grid.maxX);
+						p.y = Util.clamp(p.y, grid.minY, grid.maxY);
 
-						int crossTileIndex = (p.y - min.y) * size.width + (p.x - min.x);
+						long crossTileIndex = grid.index(p.x, p.y);
 						//ignore first and last
 						if (crossTileIndex == tileIndex || crossTileIndex == lastTileIndex)
 							continue;
 
-						ShapefileTile crossTile = tiles[crossTileIndex];
+						ShapefileTile crossTile = grid.get(p.x, p.y);
 						if (crossTile == lastCrossTile) //not required?
 							continue;
-
 						Coordinate edge = edgePoint(lastCoordinate, coordinate, crossTile);
 						if (edge != null)
 						{
@@ -498,15 +843,14 @@ public class ShapefileTiler
 
 			if (fillInside)
 			{
-				markFilledTilesInside(tiles, tilesAffected, min, size, attributes);
+				markFilledTilesInside(grid, tilesAffected, attributes);
 			}
 		}
 
 		return shapeId + 1;
 	}
 
-	protected static ShapefileTile allPointsWithin(LineString lineString, ShapefileTile[] tiles, int level,
-			double lzts, LatLon origin, java.awt.Point min, Dimension size)
+	protected static ShapefileTile allPointsWithin(LineString lineString, ShapefileTileGrid grid)
 	{
 		if (lineString.isEmpty())
 			return null;
@@ -515,11 +859,8 @@ public class ShapefileTiler
 		for (int i = 0; i < lineString.getNumPoints(); i++)
 		{
 			Coordinate coordinate = lineString.getCoordinateN(i);
-			int x = Util.getTileX(coordinate.x, origin, level, lzts);
-			int y = Util.getTileY(coordinate.y, origin, level, lzts);
-
-			x = Util.clamp(x, min.x, min.x + size.width - 1);
-			y = Util.clamp(y, min.y, min.y + size.height - 1);
+			int x = grid.tileX(coordinate.x);
+			int y = grid.tileY(coordinate.y);
 
 			//if tile has changed
 			if (X != null && X != x)
@@ -531,10 +872,7 @@ public class ShapefileTiler
 			Y = y;
 		}
 
-		int x0 = X - min.x;
-		int y0 = Y - min.y;
-		int tileIndex = y0 * size.width + x0;
-		return tiles[tileIndex];
+		return grid.get(X, Y);
 	}
 
 	protected static void addHole(LineString lineString, ShapefileTile tile, Attributes attributes)
@@ -549,8 +887,8 @@ public class ShapefileTiler
 		tile.addHole(coordinates, attributes);
 	}
 
-	protected static void markFilledTilesInside(ShapefileTile[] tiles, List<ShapefileTile> tilesAffected,
-			java.awt.Point min, Dimension size, Attributes attributes)
+	protected static void markFilledTilesInside(ShapefileTileGrid grid, List<ShapefileTile> tilesAffected,
+			Attributes attributes)
 	{
 		if (tilesAffected.get(0) != tilesAffected.get(tilesAffected.size() - 1))
 		{
@@ -563,28 +901,26 @@ public class ShapefileTiler
 		//check that the list is not empty (ignoring the last tile)
 		if (count > 0)
 		{
-			Map<Integer, Integer> crossingsMap = new HashMap<Integer, Integer>();
-			int minx, miny, maxx, maxy;
-			minx = miny = Integer.MAX_VALUE;
-			maxx = maxy = Integer.MIN_VALUE;
+			//crossings for each tile affected, keyed by row, then (sorted) by column
+			Map<Integer, TreeMap<Integer, Integer>> crossingsMap = new HashMap<Integer, TreeMap<Integer, Integer>>();
 			for (int i = 0; i < count; i++)
 			{
 				//note: tiles may appear multiple tiles in the tilesAffected list;
 				//we need to increment crossings int rather than set it
 
 				ShapefileTile curr = tilesAffected.get(i);
-				int index = (curr.row - min.y) * size.width + (curr.col - min.x);
-
-				//update col/row bounds of tiles affected (to make loop below faster)
-				minx = Math.min(minx, curr.col);
-				maxx = Math.max(maxx, curr.col);
-				miny = Math.min(miny, curr.row);
-				maxy = Math.max(maxy, curr.row);
+				TreeMap<Integer, Integer> row = crossingsMap.get(curr.row);
+				if (row == null)
+				{
+					row = new TreeMap<Integer, Integer>();
+					crossingsMap.put(curr.row, row);
+				}
 
 				//has this tile appeared in the list before? retrieve the last value
 				int crossings = 0;
-				if (crossingsMap.containsKey(index))
-					crossings = crossingsMap.get(index);
+				Integer previous = row.get(curr.col);
+				if (previous != null)
+					crossings = previous;
 
 				//find out the spatial relationship between the prev/next tiles
 				ShapefileTile prev = tilesAffected.get((i - 1 + count) % count);
@@ -598,31 +934,34 @@ public class ShapefileTiler
 					crossings++;
 
 				//update the crossings map
-				crossingsMap.put(index, crossings);
+				row.put(curr.col, crossings);
 			}
 
-			//fill in the tiles within the polygon but not touched by the polygon
-			for (int y = miny; y <= maxy; y++)
+			//fill in the tiles within the polygon but not touched by the polygon; rather than
+			//testing every tile in the polygon's bounds, only the runs of tiles between the tiles
+			//affected on each scanline are visited, which are filled if the sum of crossings
+			//before the run is odd (rows with no tiles affected are never inside the polygon)
+			for (Entry<Integer, TreeMap<Integer, Integer>> row : crossingsMap.entrySet())
 			{
-				int y0 = y - min.y;
+				int y = row.getKey();
 				int crossings = 0;
-
-				//move along each scanline, filling in tiles for which the sum of crossings before the tile is odd
-				for (int x = minx; x <= maxx; x++)
+				int lastX = Integer.MAX_VALUE;
+				for (Entry<Integer, Integer> affected : row.getValue().entrySet())
 				{
-					int x0 = x - min.x;
-					int index = y0 * size.width + x0;
-					if (crossingsMap.containsKey(index))
-					{
-						//tile was entered by polygon, so don't need to fill
-						crossings += crossingsMap.get(index);
-					}
-					else if (crossings % 2 == 1)
+					int x = affected.getKey();
+					if (crossings % 2 == 1)
 					{
-						//crossings is odd, so fill in tile
-						ShapefileTile tile = tiles[index];
-						tile.markFilled(attributes);
+						//crossings is odd, so fill in the tiles between the last tile affected and this one
+						for (int fillX = lastX + 1; fillX < x; fillX++)
+						{
+							ShapefileTile tile = grid.get(fillX, y);
+							tile.markFilled(attributes);
+						}
 					}
+
+					//tile was entered by polygon, so don't need to fill
+					crossings += affected.getValue();
+					lastX = x;
 				}
 			}
 		}
@@ -16,53 +16,138 @@
 package au.gov.ga.worldwind.tiler.util;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A simple (and fairly naive) buffer manager that endeavours to re-use buffer objects
- * where possible in an attempt to avoid OOM errors. 
+ * A pool of direct buffers, which re-uses buffer objects where possible in an
+ * attempt to avoid OOM errors (direct buffers are only freed when garbage
+ * collected) and the cost of allocating them.
+ * <p/>
+ * Buffers are allocated in size classes (powers of two, with four classes
+ * between each power of two above {@value #MIN_SUB_CLASS_SIZE} bytes), and
+ * each class can hold several free buffers. A request is served from the
+ * smallest class with a free buffer that fits, up to twice the requested
+ * size. Each thread keeps a small cache
+ * of the buffers it has returned, so that the parallel tiling workers rarely
+ * contend on the shared pool. The shared pool holds at most
+ * {@link #getMaxPooledBytes()} bytes; buffers returned once the pool is full
+ * are left for the garbage collector.
  * 
  * @author Michael de Hoog (michael.dehoog@ga.gov.au)
  */
 public class BufferManager
 {
-	/** The map of available buffers. Capacity->Buffer */
-	private static NavigableMap<Integer, ByteBuffer> availableBuffers = new TreeMap<Integer, ByteBuffer>();
-	
+	/** Sizes above this have four size classes per power of two */
+	public static final int MIN_SUB_CLASS_SIZE = 1024;
+
+	/** Maximum number of buffers kept in each thread's cache */
+	public static final int THREAD_CACHE_SIZE = 4;
+
+	/** Shared pool of free buffers. Class capacity->Buffers */
+	private static final NavigableMap<Integer, ArrayDeque<ByteBuffer>> availableBuffers =
+			new TreeMap<Integer, ArrayDeque<ByteBuffer>>();
+	private static long pooledBytes = 0;
+	private static long maxPooledBytes = 256L * 1024L * 1024L;
+
+	/** Incremented on {@link #reset()}, so that threads drop their caches */
+	private static volatile int generation = 0;
+
+	private static final ThreadLocal<ThreadCache> threadCaches = new ThreadLocal<ThreadCache>()
+	{
+		@Override
+		protected ThreadCache initialValue()
+		{
+			return new ThreadCache();
+		}
+	};
+
+	private static final AtomicLong threadHits = new AtomicLong();
+	private static final AtomicLong poolHits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong discards = new AtomicLong();
+	private static final AtomicLong allocatedBytes = new AtomicLong();
+
+	private static final byte[] ZEROS = new byte[8192];
+
 	/** Clears the buffer pool */
 	public synchronized static void reset()
 	{
 		availableBuffers.clear();
+		pooledBytes = 0;
+		generation++;
 	}
-	
+
 	/**
-	 * Get a buffer of the given size, re-using an existing buffer if possible.
+	 * Get a cleared (zero-filled) buffer of the given size, re-using an
+	 * existing buffer if possible.
 	 * <p/>
-	 * When finished with the buffer it should be returned to the pool using {@link #returnByteBuffer(ByteBuffer)}.
+	 * When finished with the buffer it should be returned to the pool using
+	 * {@link #returnByteBuffer(ByteBuffer)}.
+	 */
+	public static ByteBuffer takeByteBuffer(int size)
+	{
+		return takeByteBuffer(size, true);
+	}
+
+	/**
+	 * Get a buffer of the given size, re-using an existing buffer if possible.
+	 * The returned buffer has a position of 0, a limit of the given size, and
+	 * big-endian byte order (the same as a newly allocated buffer).
+	 * 
+	 * @param clear
+	 *            Should a re-used buffer be zero-filled? Pass false if the
+	 *            caller overwrites the whole buffer anyway. Newly allocated
+	 *            buffers are always zero-filled.
 	 */
-	public synchronized static ByteBuffer takeByteBuffer(int size)
+	public static ByteBuffer takeByteBuffer(int size, boolean clear)
 	{
-		Entry<Integer, ByteBuffer> entry = availableBuffers.ceilingEntry(size);
-		if (entry != null)
+		int capacity = classCapacity(size);
+
+		ByteBuffer buffer = threadCaches.get().take(capacity);
+		if (buffer != null)
 		{
-			ByteBuffer buffer = entry.getValue();
-			availableBuffers.remove(entry.getKey());
-			
-			buffer.rewind();
+			threadHits.incrementAndGet();
+		}
+		else
+		{
+			buffer = takeFromPool(capacity);
+			if (buffer != null)
+			{
+				poolHits.incrementAndGet();
+			}
+		}
+
+		if (buffer == null)
+		{
+			misses.incrementAndGet();
+			allocatedBytes.addAndGet(capacity);
+			buffer = ByteBuffer.allocateDirect(capacity);
 			buffer.limit(size);
-			
+			return buffer;
+		}
+
+		buffer.clear();
+		buffer.limit(size);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		if (clear)
+		{
 			// Clear the buffer incase there's something in there...
-			for (int i = 0; i < size; i++)
+			while (buffer.hasRemaining())
 			{
-				buffer.put((byte)0);
+				buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
 			}
-			
 			buffer.rewind();
-			return buffer;
 		}
-		return ByteBuffer.allocateDirect(size);
+		return buffer;
 	}
 
 	/**
@@ -72,22 +157,228 @@ public class BufferManager
 	 * allocated to another object for another use. If another
 	 * buffer is required it should be obtained from {@link #takeByteBuffer(int)}.
 	 */
-	public synchronized static void returnByteBuffer(ByteBuffer buffer)
+	public static void returnByteBuffer(ByteBuffer buffer)
 	{
-		if (buffer != null)
+		if (buffer == null)
 		{
-			availableBuffers.put(buffer.capacity(), buffer);
+			return;
+		}
+		if (!buffer.isDirect() || buffer.capacity() != classCapacity(buffer.capacity()))
+		{
+			//not allocated by this pool
+			discards.incrementAndGet();
+			return;
+		}
+		ByteBuffer evicted = threadCaches.get().put(buffer);
+		if (evicted != null)
+		{
+			returnToPool(evicted);
 		}
 	}
-	
+
+	private synchronized static ByteBuffer takeFromPool(int capacity)
+	{
+		NavigableMap<Integer, ArrayDeque<ByteBuffer>> fits =
+				availableBuffers.subMap(capacity, true, maxReuseCapacity(capacity), true);
+		for (Entry<Integer, ArrayDeque<ByteBuffer>> entry : fits.entrySet())
+		{
+			ByteBuffer buffer = entry.getValue().pollFirst();
+			if (buffer != null)
+			{
+				pooledBytes -= buffer.capacity();
+				return buffer;
+			}
+		}
+		return null;
+	}
+
+	private synchronized static void returnToPool(ByteBuffer buffer)
+	{
+		if (pooledBytes + buffer.capacity() > maxPooledBytes)
+		{
+			discards.incrementAndGet();
+			return;
+		}
+		ArrayDeque<ByteBuffer> buffers = availableBuffers.get(buffer.capacity());
+		if (buffers == null)
+		{
+			buffers = new ArrayDeque<ByteBuffer>();
+			availableBuffers.put(buffer.capacity(), buffers);
+		}
+		buffers.addFirst(buffer);
+		pooledBytes += buffer.capacity();
+	}
+
 	/**
-	 * @return The buffer pool. For testing purposes only.
+	 * @return The largest buffer capacity that will be used for a request of
+	 *         the given class capacity; larger buffers are kept for larger
+	 *         requests
 	 */
-	static NavigableMap<Integer, ByteBuffer> getBuffers()
+	private static int maxReuseCapacity(int capacity)
 	{
-		return availableBuffers;
+		return capacity > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : capacity * 2;
 	}
-	
+
+	/**
+	 * Calculate the capacity of the size class for the given size.
+	 */
+	static int classCapacity(int size)
+	{
+		if (size <= 1)
+		{
+			return 1;
+		}
+		int power = Integer.highestOneBit(size - 1) << 1; //next power of two >= size
+		if (power <= MIN_SUB_CLASS_SIZE || power < 0)
+		{
+			return power < 0 ? size : power;
+		}
+		int base = power >>> 1;
+		int step = base >>> 2;
+		return base + ((size - base + step - 1) / step) * step;
+	}
+
+	/**
+	 * Set the maximum number of bytes held by the shared pool. Defaults to
+	 * 256MB.
+	 */
+	public synchronized static void setMaxPooledBytes(long maxPooledBytes)
+	{
+		BufferManager.maxPooledBytes = maxPooledBytes;
+	}
+
+	/**
+	 * @return The maximum number of bytes held by the shared pool
+	 */
+	public synchronized static long getMaxPooledBytes()
+	{
+		return maxPooledBytes;
+	}
+
+	/**
+	 * @return The number of bytes currently held by the shared pool
+	 */
+	public synchronized static long getPooledBytes()
+	{
+		return pooledBytes;
+	}
+
+	/**
+	 * @return The total number of bytes allocated by the pool
+	 */
+	public static long getAllocatedBytes()
+	{
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * @return The number of requests served from a thread's cache or the
+	 *         shared pool
+	 */
+	public static long getHitCount()
+	{
+		return threadHits.get() + poolHits.get();
+	}
+
+	/**
+	 * @return The number of requests that required a new buffer
+	 */
+	public static long getMissCount()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return Summary of the pool counters, for logging
+	 */
+	public static String getStatistics()
+	{
+		return "Buffer pool: " + threadHits.get() + " thread cache hits, " + poolHits.get() + " pool hits, "
+				+ misses.get() + " misses, " + discards.get() + " discarded, " + allocatedBytes.get()
+				+ " bytes allocated, " + getPooledBytes() + " bytes pooled";
+	}
+
+	/**
+	 * @return The free buffers in the shared pool and the calling thread's
+	 *         cache. For testing purposes only.
+	 */
+	static Collection<ByteBuffer> getBuffers()
+	{
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(threadCaches.get().buffers());
+		synchronized (BufferManager.class)
+		{
+			for (ArrayDeque<ByteBuffer> deque : availableBuffers.values())
+			{
+				buffers.addAll(deque);
+			}
+		}
+		return buffers;
+	}
+
+	/**
+	 * Small cache of free buffers owned by a single thread. Buffers are not
+	 * counted towards the shared pool's size until evicted into it.
+	 */
+	private static class ThreadCache
+	{
+		private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>(THREAD_CACHE_SIZE);
+		private int cacheGeneration = generation;
+
+		public ByteBuffer take(int capacity)
+		{
+			checkGeneration();
+			//smallest cached buffer that fits
+			ByteBuffer best = null;
+			for (ByteBuffer buffer : buffers)
+			{
+				if (buffer.capacity() >= capacity && buffer.capacity() <= maxReuseCapacity(capacity)
+						&& (best == null || buffer.capacity() < best.capacity()))
+				{
+					best = buffer;
+				}
+			}
+			if (best != null)
+			{
+				//compare identity, as buffers with equal contents are equal()
+				for (Iterator<ByteBuffer> iterator = buffers.iterator(); iterator.hasNext();)
+				{
+					if (iterator.next() == best)
+					{
+						iterator.remove();
+						break;
+					}
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * @return The least recently returned buffer if the cache is full,
+		 *         which should be returned to the shared pool
+		 */
+		public ByteBuffer put(ByteBuffer buffer)
+		{
+			checkGeneration();
+			buffers.addFirst(buffer);
+			return buffers.size() > THREAD_CACHE_SIZE ? buffers.pollLast() : null;
+		}
+
+		public Collection<ByteBuffer> buffers()
+		{
+			checkGeneration();
+			return buffers;
+		}
+
+		private void checkGeneration()
+		{
+			if (cacheGeneration != generation)
+			{
+				buffers.clear();
+				cacheGeneration = generation;
+			}
+		}
+	}
+
 	private BufferManager(){};
 	
 }
@@ -0,0 +1,504 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.util;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes images as DXT1 or DXT5 compressed DDS textures, optionally with a
+ * full chain of precomputed mipmaps. Tiles baked to DDS can be uploaded to
+ * the graphics card as they are, without being compressed when they are
+ * loaded.
+ * <p/>
+ * Block endpoints are chosen from the diagonal of the bounding box of the
+ * block's colors that best follows the colors (inset slightly to reduce the
+ * error of the interpolated colors), and each
+ * pixel is given the index of the nearest palette entry. This is not the
+ * highest quality compression available, but it is fast and deterministic.
+ * Mipmaps are created using a 2x2 box filter.
+ */
+public class DDSEncoder
+{
+	public static final String EXTENSION = "dds";
+
+	/**
+	 * DXT compression formats.
+	 */
+	public static enum Format
+	{
+		/**
+		 * Opaque (or 1-bit alpha) colors, 8 bytes per 4x4 block
+		 */
+		DXT1("DXT1", 8),
+		/**
+		 * Colors with interpolated alpha, 16 bytes per 4x4 block
+		 */
+		DXT5("DXT5", 16);
+
+		private final int fourCC;
+		private final int blockSize;
+
+		private Format(String fourCC, int blockSize)
+		{
+			this.fourCC = fourCC(fourCC);
+			this.blockSize = blockSize;
+		}
+	}
+
+	private static final int DDS_MAGIC = fourCC("DDS ");
+	private static final int HEADER_SIZE = 124;
+	private static final int PIXEL_FORMAT_SIZE = 32;
+	private static final int DDSD_CAPS = 0x1;
+	private static final int DDSD_HEIGHT = 0x2;
+	private static final int DDSD_WIDTH = 0x4;
+	private static final int DDSD_PIXELFORMAT = 0x1000;
+	private static final int DDSD_MIPMAPCOUNT = 0x20000;
+	private static final int DDSD_LINEARSIZE = 0x80000;
+	private static final int DDPF_FOURCC = 0x4;
+	private static final int DDSCAPS_COMPLEX = 0x8;
+	private static final int DDSCAPS_TEXTURE = 0x1000;
+	private static final int DDSCAPS_MIPMAP = 0x400000;
+
+	/**
+	 * Encode an image as a DDS texture.
+	 * 
+	 * @param image
+	 *            Image to encode
+	 * @param format
+	 *            Compression format, or null to choose using
+	 *            {@link #chooseFormat(BufferedImage)}
+	 * @param mipmaps
+	 *            Include a full chain of mipmaps (down to 1x1)?
+	 * @return DDS file contents
+	 */
+	public static byte[] encode(BufferedImage image, Format format, boolean mipmaps)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+		if (format == null)
+		{
+			format = chooseFormat(image, argb);
+		}
+
+		int levels = mipmaps ? mipmapCount(width, height) : 1;
+		int size = 4 + HEADER_SIZE;
+		for (int level = 0, w = width, h = height; level < levels; level++, w = Math.max(1, w / 2), h =
+				Math.max(1, h / 2))
+		{
+			size += linearSize(w, h, format);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		writeHeader(buffer, width, height, levels, format);
+
+		int w = width, h = height;
+		for (int level = 0; level < levels; level++)
+		{
+			if (level > 0)
+			{
+				int nw = Math.max(1, w / 2);
+				int nh = Math.max(1, h / 2);
+				argb = downsample(argb, w, h, nw, nh);
+				w = nw;
+				h = nh;
+			}
+			compress(argb, w, h, format, buffer);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * @return {@link Format#DXT5} if the image contains any pixels that are
+	 *         not fully opaque, otherwise {@link Format#DXT1}
+	 */
+	public static Format chooseFormat(BufferedImage image)
+	{
+		return chooseFormat(image,
+				image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()));
+	}
+
+	private static Format chooseFormat(BufferedImage image, int[] argb)
+	{
+		if (image.getColorModel().hasAlpha())
+		{
+			for (int pixel : argb)
+			{
+				if ((pixel >>> 24) != 0xff)
+				{
+					return Format.DXT5;
+				}
+			}
+		}
+		return Format.DXT1;
+	}
+
+	/**
+	 * @return Number of mipmap levels (including the full size image) down to
+	 *         1x1
+	 */
+	public static int mipmapCount(int width, int height)
+	{
+		int levels = 1;
+		for (int size = Math.max(width, height); size > 1; size /= 2)
+		{
+			levels++;
+		}
+		return levels;
+	}
+
+	private static int linearSize(int width, int height, Format format)
+	{
+		return Math.max(1, (width + 3) / 4) * Math.max(1, (height + 3) / 4) * format.blockSize;
+	}
+
+	private static void writeHeader(ByteBuffer buffer, int width, int height, int levels, Format format)
+	{
+		int flags = DDSD_CAPS | DDSD_HEIGHT | DDSD_WIDTH | DDSD_PIXELFORMAT | DDSD_LINEARSIZE;
+		int caps = DDSCAPS_TEXTURE;
+		if (levels > 1)
+		{
+			flags |= DDSD_MIPMAPCOUNT;
+			caps |= DDSCAPS_COMPLEX | DDSCAPS_MIPMAP;
+		}
+
+		buffer.putInt(DDS_MAGIC);
+		buffer.putInt(HEADER_SIZE);
+		buffer.putInt(flags);
+		buffer.putInt(height);
+		buffer.putInt(width);
+		buffer.putInt(linearSize(width, height, format));
+		buffer.putInt(0); //depth
+		buffer.putInt(levels);
+		for (int i = 0; i < 11; i++)
+		{
+			buffer.putInt(0); //reserved
+		}
+
+		//pixel format
+		buffer.putInt(PIXEL_FORMAT_SIZE);
+		buffer.putInt(DDPF_FOURCC);
+		buffer.putInt(format.fourCC);
+		for (int i = 0; i < 5; i++)
+		{
+			buffer.putInt(0); //bit count and masks
+		}
+
+		buffer.putInt(caps);
+		buffer.putInt(0); //caps2
+		buffer.putInt(0); //caps3
+		buffer.putInt(0); //caps4
+		buffer.putInt(0); //reserved
+	}
+
+	/**
+	 * Halve an image using a 2x2 box filter. Odd rows and columns are folded
+	 * into the last row or column.
+	 */
+	private static int[] downsample(int[] argb, int width, int height, int newWidth, int newHeight)
+	{
+		int[] result = new int[newWidth * newHeight];
+		for (int y = 0; y < newHeight; y++)
+		{
+			int y0 = Math.min(y * 2, height - 1);
+			int y1 = Math.min(y * 2 + 1, height - 1);
+			for (int x = 0; x < newWidth; x++)
+			{
+				int x0 = Math.min(x * 2, width - 1);
+				int x1 = Math.min(x * 2 + 1, width - 1);
+				int p0 = argb[y0 * width + x0];
+				int p1 = argb[y0 * width + x1];
+				int p2 = argb[y1 * width + x0];
+				int p3 = argb[y1 * width + x1];
+				int pixel = 0;
+				for (int shift = 0; shift < 32; shift += 8)
+				{
+					int sum =
+							((p0 >>> shift) & 0xff) + ((p1 >>> shift) & 0xff) + ((p2 >>> shift) & 0xff)
+									+ ((p3 >>> shift) & 0xff);
+					pixel |= ((sum + 2) / 4) << shift;
+				}
+				result[y * newWidth + x] = pixel;
+			}
+		}
+		return result;
+	}
+
+	private static void compress(int[] argb, int width, int height, Format format, ByteBuffer buffer)
+	{
+		int[] block = new int[16];
+		int blocksX = Math.max(1, (width + 3) / 4);
+		int blocksY = Math.max(1, (height + 3) / 4);
+		for (int by = 0; by < blocksY; by++)
+		{
+			for (int bx = 0; bx < blocksX; bx++)
+			{
+				//blocks overlapping the edge of the image repeat the edge pixels
+				for (int i = 0; i < 16; i++)
+				{
+					int x = Math.min(bx * 4 + (i & 3), width - 1);
+					int y = Math.min(by * 4 + (i >> 2), height - 1);
+					block[i] = argb[y * width + x];
+				}
+
+				if (format == Format.DXT5)
+				{
+					compressAlphaBlock(block, buffer);
+					compressColorBlock(block, false, buffer);
+				}
+				else
+				{
+					compressColorBlock(block, true, buffer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write an 8 byte DXT color block.
+	 * 
+	 * @param block
+	 *            16 ARGB pixels
+	 * @param oneBitAlpha
+	 *            Encode pixels with alpha below 128 as transparent (DXT1)
+	 */
+	private static void compressColorBlock(int[] block, boolean oneBitAlpha, ByteBuffer buffer)
+	{
+		boolean transparent = false;
+		int minR = 255, minG = 255, minB = 255, maxR = 0, maxG = 0, maxB = 0;
+		boolean any = false;
+		for (int pixel : block)
+		{
+			if (oneBitAlpha && (pixel >>> 24) < 128)
+			{
+				transparent = true;
+				continue;
+			}
+			int r = (pixel >> 16) & 0xff, g = (pixel >> 8) & 0xff, b = pixel & 0xff;
+			minR = Math.min(minR, r);
+			minG = Math.min(minG, g);
+			minB = Math.min(minB, b);
+			maxR = Math.max(maxR, r);
+			maxG = Math.max(maxG, g);
+			maxB = Math.max(maxB, b);
+			any = true;
+		}
+
+		if (!any)
+		{
+			//fully transparent block: 3 color mode, with every pixel using the transparent index
+			buffer.putShort((short) 0);
+			buffer.putShort((short) 0);
+			buffer.putInt(0xffffffff);
+			return;
+		}
+
+		//inset the bounding box by 1/16 of its size to reduce the interpolation error
+		int insetR = (maxR - minR) >> 4, insetG = (maxG - minG) >> 4, insetB = (maxB - minB) >> 4;
+		minR += insetR;
+		minG += insetG;
+		minB += insetB;
+		maxR -= insetR;
+		maxG -= insetG;
+		maxB -= insetB;
+
+		//use the diagonal of the bounding box that follows the colors: if green or blue decrease
+		//as red (or green) increases, swap their ends of the box
+		int sumR = 0, sumG = 0, sumB = 0, n = 0;
+		for (int pixel : block)
+		{
+			if (!oneBitAlpha || (pixel >>> 24) >= 128)
+			{
+				sumR += (pixel >> 16) & 0xff;
+				sumG += (pixel >> 8) & 0xff;
+				sumB += pixel & 0xff;
+				n++;
+			}
+		}
+		int covRG = 0, covRB = 0, covGB = 0;
+		for (int pixel : block)
+		{
+			if (!oneBitAlpha || (pixel >>> 24) >= 128)
+			{
+				int dr = ((pixel >> 16) & 0xff) * n - sumR;
+				int dg = ((pixel >> 8) & 0xff) * n - sumG;
+				int db = (pixel & 0xff) * n - sumB;
+				covRG += Integer.signum(dr * dg);
+				covRB += Integer.signum(dr * db);
+				covGB += Integer.signum(dg * db);
+			}
+		}
+		boolean swapG = maxR > minR ? covRG < 0 : false;
+		boolean swapB = maxR > minR ? covRB < 0 : covGB < 0;
+		if (swapG)
+		{
+			int temp = minG;
+			minG = maxG;
+			maxG = temp;
+		}
+		if (swapB)
+		{
+			int temp = minB;
+			minB = maxB;
+			maxB = temp;
+		}
+
+		int c0 = to565(maxR, maxG, maxB);
+		int c1 = to565(minR, minG, minB);
+
+		//c0 > c1 selects 4 color mode, c0 <= c1 selects 3 color mode with a transparent index
+		if (transparent ? c0 > c1 : c0 < c1)
+		{
+			int temp = c0;
+			c0 = c1;
+			c1 = temp;
+		}
+
+		int[] palette = new int[4];
+		palette[0] = from565(c0);
+		palette[1] = from565(c1);
+		int colors;
+		if (transparent)
+		{
+			palette[2] = mix(palette[0], palette[1], 1, 1);
+			colors = 3;
+		}
+		else
+		{
+			palette[2] = mix(palette[0], palette[1], 2, 1);
+			palette[3] = mix(palette[0], palette[1], 1, 2);
+			colors = c0 == c1 ? 1 : 4;
+		}
+
+		int indices = 0;
+		for (int i = 0; i < 16; i++)
+		{
+			int index;
+			if (transparent && (block[i] >>> 24) < 128)
+			{
+				index = 3;
+			}
+			else
+			{
+				index = nearestColor(block[i], palette, colors);
+			}
+			indices |= index << (i * 2);
+		}
+
+		buffer.putShort((short) c0);
+		buffer.putShort((short) c1);
+		buffer.putInt(indices);
+	}
+
+	/**
+	 * Write an 8 byte DXT5 interpolated alpha block.
+	 */
+	private static void compressAlphaBlock(int[] block, ByteBuffer buffer)
+	{
+		int min = 255, max = 0;
+		for (int pixel : block)
+		{
+			int a = pixel >>> 24;
+			min = Math.min(min, a);
+			max = Math.max(max, a);
+		}
+
+		buffer.put((byte) max);
+		buffer.put((byte) min);
+
+		long indices = 0;
+		if (max > min)
+		{
+			//8 alpha mode: a0, a1, then 6 values interpolated from a0 to a1
+			int[] palette = new int[8];
+			palette[0] = max;
+			palette[1] = min;
+			for (int i = 1; i <= 6; i++)
+			{
+				palette[i + 1] = ((7 - i) * max + i * min + 3) / 7;
+			}
+			for (int i = 0; i < 16; i++)
+			{
+				int a = block[i] >>> 24;
+				int best = 0, bestError = Integer.MAX_VALUE;
+				for (int j = 0; j < 8; j++)
+				{
+					int error = Math.abs(a - palette[j]);
+					if (error < bestError)
+					{
+						best = j;
+						bestError = error;
+					}
+				}
+				indices |= (long) best << (i * 3);
+			}
+		}
+
+		for (int i = 0; i < 6; i++)
+		{
+			buffer.put((byte) (indices >>> (i * 8)));
+		}
+	}
+
+	private static int nearestColor(int pixel, int[] palette, int colors)
+	{
+		int r = (pixel >> 16) & 0xff, g = (pixel >> 8) & 0xff, b = pixel & 0xff;
+		int best = 0, bestError = Integer.MAX_VALUE;
+		for (int i = 0; i < colors; i++)
+		{
+			int dr = r - ((palette[i] >> 16) & 0xff);
+			int dg = g - ((palette[i] >> 8) & 0xff);
+			int db = b - (palette[i] & 0xff);
+			int error = dr * dr + dg * dg + db * db;
+			if (error < bestError)
+			{
+				best = i;
+				bestError = error;
+			}
+		}
+		return best;
+	}
+
+	private static int to565(int r, int g, int b)
+	{
+		return ((r >> 3) << 11) | ((g >> 2) << 5) | (b >> 3);
+	}
+
+	private static int from565(int c)
+	{
+		int r = (c >> 11) & 0x1f, g = (c >> 5) & 0x3f, b = c & 0x1f;
+		return ((r << 3) | (r >> 2)) << 16 | ((g << 2) | (g >> 4)) << 8 | ((b << 3) | (b >> 2));
+	}
+
+	private static int mix(int c0, int c1, int w0, int w1)
+	{
+		int result = 0;
+		for (int shift = 0; shift < 24; shift += 8)
+		{
+			int v = (((c0 >> shift) & 0xff) * w0 + ((c1 >> shift) & 0xff) * w1) / (w0 + w1);
+			result |= v << shift;
+		}
+		return result;
+	}
+
+	private static int fourCC(String code)
+	{
+		//little endian, so the first character is in the lowest byte
+		return code.charAt(0) | code.charAt(1) << 8 | code.charAt(2) << 16 | code.charAt(3) << 24;
+	}
+}
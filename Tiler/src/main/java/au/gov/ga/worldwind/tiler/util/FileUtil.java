@@ -17,6 +17,7 @@ package au.gov.ga.worldwind.tiler.util;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.util.Collection;
 
 import au.gov.ga.worldwind.tiler.util.FileFilters.DirectoryFileFilter;
@@ -57,4 +58,38 @@ public class FileUtil
 		}
 		return str;
 	}
+
+	/**
+	 * @return Temporary file to write the new contents of the given file to,
+	 *         before replacing the file using {@link #replace(File, File)}
+	 */
+	public static File tempFile(File file)
+	{
+		return new File(file.getParentFile(), file.getName() + ".tmp");
+	}
+
+	/**
+	 * Replace a file with a temporary file. The temporary file is renamed over
+	 * the original, so readers see either the old or the new contents. Where
+	 * an existing file can't be renamed over (Windows), the original is
+	 * deleted first.
+	 * 
+	 * @param temp
+	 *            File containing the new contents
+	 * @param file
+	 *            File to replace
+	 */
+	public static void replace(File temp, File file) throws IOException
+	{
+		if (temp.renameTo(file))
+		{
+			return;
+		}
+		file.delete();
+		if (!temp.renameTo(file))
+		{
+			temp.delete();
+			throw new IOException("Could not replace " + file);
+		}
+	}
 }
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encodes images to tile files using a pool of reusable encoders. Looking up
+ * an {@link ImageWriter} and creating its write parameters for every tile is
+ * relatively expensive, so each encoder keeps its writer, write parameters and
+ * output buffer, and is returned to the pool once the image has been encoded.
+ * Encoders are pooled per format and JPEG quality, and the pool grows to the
+ * number of threads encoding concurrently.
+ * <p/>
+ * Images are always encoded into an in-memory buffer first, and written to the
+ * tile file using a single write.
+ * <p/>
+ * The number of images encoded, the encoded size, and the time spent encoding
+ * are recorded, and can be retrieved using {@link #getStatistics()}.
+ */
+public class ImageEncoder
+{
+	private static final Map<String, LinkedList<ImageEncoder>> pool = new HashMap<String, LinkedList<ImageEncoder>>();
+
+	private static final AtomicLong encodedCount = new AtomicLong();
+	private static final AtomicLong encodedBytes = new AtomicLong();
+	private static final AtomicLong encodeTime = new AtomicLong();
+	private static final AtomicLong writeTime = new AtomicLong();
+	private static final AtomicLong createdCount = new AtomicLong();
+
+	private final String key;
+	private final ImageWriter writer;
+	private final ImageWriteParam param;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+
+	/**
+	 * Encode an image in memory.
+	 * 
+	 * @param format
+	 *            Image format (eg jpg or png)
+	 * @param jpegQuality
+	 *            Compression quality (0 to 1), used for JPEG images only
+	 * @return Encoded image bytes
+	 */
+	public static byte[] encode(BufferedImage image, String format, float jpegQuality) throws IOException
+	{
+		ImageEncoder encoder = acquire(format, jpegQuality);
+		boolean success = false;
+		try
+		{
+			encoder.encode(image);
+			byte[] bytes = encoder.buffer.toByteArray();
+			success = true;
+			return bytes;
+		}
+		finally
+		{
+			release(encoder, success);
+		}
+	}
+
+	/**
+	 * Encode an image in memory, and write it to a file.
+	 * 
+	 * @see #encode(BufferedImage, String, float)
+	 */
+	public static void write(BufferedImage image, String format, float jpegQuality, File file) throws IOException
+	{
+		ImageEncoder encoder = acquire(format, jpegQuality);
+		boolean success = false;
+		try
+		{
+			encoder.encode(image);
+			success = true;
+
+			long start = System.nanoTime();
+			//replace, rather than overwrite, in case the file is linked to other tiles or is being read
+			boolean replace = file.exists();
+			File dst = replace ? FileUtil.tempFile(file) : file;
+			FileOutputStream fos = new FileOutputStream(dst);
+			try
+			{
+				encoder.buffer.writeTo(fos);
+			}
+			finally
+			{
+				fos.close();
+			}
+			if (replace)
+			{
+				FileUtil.replace(dst, file);
+			}
+			writeTime.addAndGet(System.nanoTime() - start);
+		}
+		finally
+		{
+			release(encoder, success);
+		}
+	}
+
+	/**
+	 * @return Statistics of the images encoded so far
+	 */
+	public static Statistics getStatistics()
+	{
+		return new Statistics(encodedCount.get(), encodedBytes.get(), encodeTime.get(), writeTime.get(),
+				createdCount.get());
+	}
+
+	private static String key(String format, float jpegQuality)
+	{
+		format = format.toLowerCase();
+		if (format.equals("jpg") || format.equals("jpeg"))
+		{
+			return "jpeg:" + jpegQuality;
+		}
+		return format;
+	}
+
+	private static ImageEncoder acquire(String format, float jpegQuality) throws IOException
+	{
+		String key = key(format, jpegQuality);
+		synchronized (pool)
+		{
+			LinkedList<ImageEncoder> encoders = pool.get(key);
+			if (encoders != null && !encoders.isEmpty())
+			{
+				return encoders.removeFirst();
+			}
+		}
+		createdCount.incrementAndGet();
+		return new ImageEncoder(key, format, jpegQuality);
+	}
+
+	/**
+	 * Return an encoder to the pool. Encoders that failed to encode an image
+	 * are disposed instead, as the writer may be left in an unknown state.
+	 */
+	private static void release(ImageEncoder encoder, boolean success)
+	{
+		if (!success)
+		{
+			encoder.writer.dispose();
+			return;
+		}
+		synchronized (pool)
+		{
+			LinkedList<ImageEncoder> encoders = pool.get(encoder.key);
+			if (encoders == null)
+			{
+				encoders = new LinkedList<ImageEncoder>();
+				pool.put(encoder.key, encoders);
+			}
+			encoders.addFirst(encoder);
+		}
+	}
+
+	private ImageEncoder(String key, String format, float jpegQuality) throws IOException
+	{
+		this.key = key;
+		boolean jpeg = key.startsWith("jpeg:");
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(jpeg ? "jpeg" : format);
+		if (!writers.hasNext())
+		{
+			throw new IOException("No image writer found for format: " + format);
+		}
+		writer = writers.next();
+		param = writer.getDefaultWriteParam();
+		if (jpeg)
+		{
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(jpegQuality);
+			if (param instanceof JPEGImageWriteParam)
+			{
+				((JPEGImageWriteParam) param).setOptimizeHuffmanTables(true);
+			}
+		}
+	}
+
+	private void encode(BufferedImage image) throws IOException
+	{
+		long start = System.nanoTime();
+		buffer.reset();
+		MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(buffer);
+		try
+		{
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(image, null, null), param);
+		}
+		finally
+		{
+			writer.setOutput(null);
+			ios.close();
+		}
+		encodeTime.addAndGet(System.nanoTime() - start);
+		encodedBytes.addAndGet(buffer.size());
+		encodedCount.incrementAndGet();
+	}
+
+	/**
+	 * Snapshot of the encoding statistics.
+	 */
+	public static class Statistics
+	{
+		public final long count;
+		public final long bytes;
+		public final long encodeTime;
+		public final long writeTime;
+		public final long encoders;
+
+		private Statistics(long count, long bytes, long encodeTime, long writeTime, long encoders)
+		{
+			this.count = count;
+			this.bytes = bytes;
+			this.encodeTime = encodeTime;
+			this.writeTime = writeTime;
+			this.encoders = encoders;
+		}
+
+		/**
+		 * @return Statistics of the images encoded since the given snapshot
+		 */
+		public Statistics since(Statistics start)
+		{
+			return new Statistics(count - start.count, bytes - start.bytes, encodeTime - start.encodeTime,
+					writeTime - start.writeTime, encoders - start.encoders);
+		}
+
+		@Override
+		public String toString()
+		{
+			double encodeMillis = encodeTime / 1e6;
+			return "Encoded " + count + " images (" + bytes + " bytes) in " + Math.round(encodeMillis) + "ms ("
+					+ (count > 0 ? Math.round(encodeMillis * 1000 / count) / 1000.0 : 0) + "ms per image), "
+					+ Math.round(writeTime / 1e6) + "ms writing, " + encoders + " encoders created";
+		}
+	}
+}
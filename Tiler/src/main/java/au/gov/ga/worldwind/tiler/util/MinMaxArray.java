@@ -107,6 +107,38 @@ public class MinMaxArray
 			setMinMaxDouble(i, min[i], max[i]);
 	}
 
+	/**
+	 * @return Minimum long value at the given index (null if no minimum)
+	 */
+	public Long getMinLong(int i)
+	{
+		return minLongs[i];
+	}
+
+	/**
+	 * @return Maximum long value at the given index (null if no maximum)
+	 */
+	public Long getMaxLong(int i)
+	{
+		return maxLongs[i];
+	}
+
+	/**
+	 * @return Minimum double value at the given index (null if no minimum)
+	 */
+	public Double getMinDouble(int i)
+	{
+		return minDoubles[i];
+	}
+
+	/**
+	 * @return Maximum double value at the given index (null if no maximum)
+	 */
+	public Double getMaxDouble(int i)
+	{
+		return maxDoubles[i];
+	}
+
 	private boolean allNull()
 	{
 		if (allNullDirty)
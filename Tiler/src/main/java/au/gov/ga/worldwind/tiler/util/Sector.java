@@ -83,6 +83,13 @@ public class Sector
 				&& longitude <= getMaxLongitude();
 	}
 
+	public Sector union(Sector sector)
+	{
+		return new Sector(Math.min(getMinLatitude(), sector.getMinLatitude()), Math.min(getMinLongitude(),
+				sector.getMinLongitude()), Math.max(getMaxLatitude(), sector.getMaxLatitude()), Math.max(
+				getMaxLongitude(), sector.getMaxLongitude()));
+	}
+
 	@Override
 	public String toString()
 	{
@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Reader for tile pack files. A tile pack stores the tiles of one or more
+ * levels of a tileset in a single file, instead of one file per tile. Packs
+ * are written by the {@link TilePacker}.
+ * <p/>
+ * The file layout (all values big-endian) is:
+ * <ul>
+ * <li>Header ({@value #HEADER_SIZE} bytes): magic, version, level count, a
+ * reserved int, and the tile file extension (ASCII, zero padded to 16
+ * bytes).</li>
+ * <li>Level table ({@value #LEVEL_SIZE} bytes per level): level, min row, min
+ * column, row count, column count, a reserved int, and the offset of the
+ * level's index.</li>
+ * <li>Index ({@value #ENTRY_SIZE} bytes per tile, one entry for every tile in
+ * the level's row/column grid, ordered by row then column): payload offset,
+ * payload length (0 if the tile doesn't exist), and CRC32 of the payload.</li>
+ * <li>Tile payloads (the unmodified tile file contents).</li>
+ * </ul>
+ * As the index has a fixed size, the entry for any tile is found in constant
+ * time. The header and index are memory mapped when the pack is opened.
+ */
+public class TilePack
+{
+	public static final String EXTENSION = "pack";
+
+	public static final int MAGIC = 0x47415450; //GATP
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+	public static final int LEVEL_SIZE = 32;
+	public static final int ENTRY_SIZE = 16;
+	public static final int EXTENSION_SIZE = 16;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final MappedByteBuffer index;
+	private final String extension;
+	private final int[] levels;
+	private final int[] minRows;
+	private final int[] minCols;
+	private final int[] rows;
+	private final int[] cols;
+	private final long[] indexOffsets;
+
+	/**
+	 * Open a tile pack file for reading.
+	 */
+	public static TilePack open(File file) throws IOException
+	{
+		return new TilePack(file);
+	}
+
+	private TilePack(File file) throws IOException
+	{
+		raf = new RandomAccessFile(file, "r");
+		try
+		{
+			channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+			{
+				throw new IOException("Invalid tile pack: " + file);
+			}
+			int levelCount = header.getInt();
+			header.getInt(); //reserved
+			byte[] ext = new byte[EXTENSION_SIZE];
+			header.get(ext);
+			int extLength = 0;
+			while (extLength < ext.length && ext[extLength] != 0)
+			{
+				extLength++;
+			}
+			extension = new String(ext, 0, extLength, "US-ASCII");
+
+			levels = new int[levelCount];
+			minRows = new int[levelCount];
+			minCols = new int[levelCount];
+			rows = new int[levelCount];
+			cols = new int[levelCount];
+			indexOffsets = new long[levelCount];
+
+			ByteBuffer table = ByteBuffer.allocate(levelCount * LEVEL_SIZE);
+			readFully(table, HEADER_SIZE);
+			table.flip();
+			long indexEnd = HEADER_SIZE + table.capacity();
+			for (int i = 0; i < levelCount; i++)
+			{
+				levels[i] = table.getInt();
+				minRows[i] = table.getInt();
+				minCols[i] = table.getInt();
+				rows[i] = table.getInt();
+				cols[i] = table.getInt();
+				table.getInt(); //reserved
+				indexOffsets[i] = table.getLong();
+				indexEnd = Math.max(indexEnd, indexOffsets[i] + (long) rows[i] * cols[i] * ENTRY_SIZE);
+			}
+			if (indexEnd > Integer.MAX_VALUE || indexEnd > channel.size())
+			{
+				throw new IOException("Invalid tile pack index: " + file);
+			}
+			index = channel.map(MapMode.READ_ONLY, 0, indexEnd);
+		}
+		catch (IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new IOException("Unexpected end of tile pack");
+			}
+		}
+	}
+
+	/**
+	 * @return Extension of the tile files stored in this pack
+	 */
+	public String getExtension()
+	{
+		return extension;
+	}
+
+	/**
+	 * @return Levels stored in this pack
+	 */
+	public int[] getLevels()
+	{
+		return levels.clone();
+	}
+
+	/**
+	 * @return True if this pack contains the given level
+	 */
+	public boolean hasLevel(int level)
+	{
+		return levelIndex(level) >= 0;
+	}
+
+	/**
+	 * @return True if this pack contains the given tile
+	 */
+	public boolean hasTile(int level, int row, int col)
+	{
+		int entry = entryPosition(level, row, col);
+		return entry >= 0 && index.getInt(entry + 8) > 0;
+	}
+
+	/**
+	 * @return CRC32 of the given tile's contents, or 0 if the tile doesn't
+	 *         exist
+	 */
+	public int getChecksum(int level, int row, int col)
+	{
+		int entry = entryPosition(level, row, col);
+		return entry >= 0 ? index.getInt(entry + 12) : 0;
+	}
+
+	/**
+	 * Read a tile from the pack.
+	 * 
+	 * @return Flipped buffer containing the tile contents, or null if the tile
+	 *         doesn't exist
+	 */
+	public ByteBuffer getTile(int level, int row, int col) throws IOException
+	{
+		int entry = entryPosition(level, row, col);
+		if (entry < 0)
+		{
+			return null;
+		}
+		long offset = index.getLong(entry);
+		int length = index.getInt(entry + 8);
+		if (length <= 0)
+		{
+			return null;
+		}
+		ByteBuffer data = ByteBuffer.allocate(length);
+		readFully(data, offset);
+		data.flip();
+		return data;
+	}
+
+	public void close() throws IOException
+	{
+		raf.close();
+	}
+
+	private int levelIndex(int level)
+	{
+		for (int i = 0; i < levels.length; i++)
+		{
+			if (levels[i] == level)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int entryPosition(int level, int row, int col)
+	{
+		int i = levelIndex(level);
+		if (i < 0)
+		{
+			return -1;
+		}
+		int r = row - minRows[i];
+		int c = col - minCols[i];
+		if (r < 0 || r >= rows[i] || c < 0 || c >= cols[i])
+		{
+			return -1;
+		}
+		return (int) (indexOffsets[i] + ((long) r * cols[i] + c) * ENTRY_SIZE);
+	}
+}
@@ -0,0 +1,424 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import au.gov.ga.worldwind.tiler.application.TileJournal;
+
+/**
+ * Packs the tiles in a tileset directory (<code>level/row/row_col.ext</code>)
+ * into {@link TilePack} files, either one pack per level (
+ * <code>tileset/level.pack</code>) or one pack for the whole tileset (
+ * <code>tileset.pack</code>, next to the tileset directory). These are the
+ * same locations that are searched for level and tileset zip files.
+ * <p/>
+ * The pack is written to a temporary file, which is renamed once it is
+ * complete. If requested, the tile files are deleted after the pack has been
+ * written. Tiles with identical contents (common for empty or constant areas)
+ * are stored once, with all of their index entries pointing to the same
+ * payload.
+ */
+public class TilePacker
+{
+	/**
+	 * Pack each level of the tileset into its own pack file.
+	 * 
+	 * @param directory
+	 *            Tileset directory
+	 * @param extension
+	 *            Extension of the tile files to pack
+	 * @param deleteTiles
+	 *            Delete the tile files once they have been packed
+	 * @param progress
+	 *            Object to report progress
+	 */
+	public static void packLevels(File directory, String extension, boolean deleteTiles, ProgressReporter progress)
+			throws IOException
+	{
+		List<Integer> levels = findLevels(directory);
+		for (Integer level : levels)
+		{
+			if (progress.isCancelled())
+			{
+				return;
+			}
+			File pack = new File(directory, level + "." + TilePack.EXTENSION);
+			pack(pack, directory, Collections.singletonList(level), extension, deleteTiles, progress);
+		}
+	}
+
+	/**
+	 * Pack every level of the tileset into a single pack file next to the
+	 * tileset directory.
+	 * 
+	 * @see #packLevels(File, String, boolean, ProgressReporter)
+	 */
+	public static void packTileset(File directory, String extension, boolean deleteTiles, ProgressReporter progress)
+			throws IOException
+	{
+		directory = directory.getAbsoluteFile();
+		File pack = new File(directory.getParentFile(), directory.getName() + "." + TilePack.EXTENSION);
+		pack(pack, directory, findLevels(directory), extension, deleteTiles, progress);
+	}
+
+	/**
+	 * Pack the given levels of a tileset into a pack file.
+	 */
+	public static void pack(File pack, File directory, List<Integer> levels, String extension, boolean deleteTiles,
+			ProgressReporter progress) throws IOException
+	{
+		byte[] ext = extension.getBytes("US-ASCII");
+		if (ext.length > TilePack.EXTENSION_SIZE)
+		{
+			throw new IllegalArgumentException("Extension too long: " + extension);
+		}
+
+		progress.getLogger().info("Packing " + directory + " into " + pack);
+
+		List<LevelTiles> tiles = new ArrayList<LevelTiles>();
+		int tileCount = 0;
+		for (Integer level : levels)
+		{
+			LevelTiles lt = LevelTiles.find(new File(directory, String.valueOf(level)), level, extension);
+			if (lt != null)
+			{
+				tiles.add(lt);
+				tileCount += lt.files.size();
+			}
+		}
+
+		long offset = TilePack.HEADER_SIZE + (long) tiles.size() * TilePack.LEVEL_SIZE;
+		for (LevelTiles lt : tiles)
+		{
+			lt.indexOffset = offset;
+			offset += (long) lt.rows * lt.cols * TilePack.ENTRY_SIZE;
+		}
+		if (offset > Integer.MAX_VALUE)
+		{
+			throw new IOException("Tile pack index is too large; pack each level separately");
+		}
+
+		File temp = new File(pack.getParentFile(), pack.getName() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		boolean complete = false;
+		int duplicates = 0;
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+
+			ByteBuffer header = ByteBuffer.allocate((int) offset);
+			header.putInt(TilePack.MAGIC).putInt(TilePack.VERSION).putInt(tiles.size()).putInt(0);
+			header.put(ext);
+			header.position(TilePack.HEADER_SIZE);
+			for (LevelTiles lt : tiles)
+			{
+				header.putInt(lt.level).putInt(lt.minRow).putInt(lt.minCol).putInt(lt.rows).putInt(lt.cols).putInt(0);
+				header.putLong(lt.indexOffset);
+			}
+
+			CRC32 crc = new CRC32();
+			Map<Long, List<Long>> payloads = new HashMap<Long, List<Long>>();
+			int done = 0;
+			for (LevelTiles lt : tiles)
+			{
+				for (TileFile tile : lt.files)
+				{
+					if (progress.isCancelled())
+					{
+						return;
+					}
+
+					ByteBuffer data = readFile(tile.file);
+					crc.reset();
+					crc.update(data.array(), 0, data.limit());
+
+					int position = (int) (lt.indexOffset + ((long) (tile.row - lt.minRow) * lt.cols
+							+ (tile.col - lt.minCol)) * TilePack.ENTRY_SIZE);
+					header.putInt(position + 8, data.limit());
+					header.putInt(position + 12, (int) crc.getValue());
+
+					//payloads are keyed by length and CRC, and compared before being shared
+					Long key = ((long) data.limit() << 32) | (crc.getValue() & 0xffffffffL);
+					List<Long> candidates = payloads.get(key);
+					long existing = findPayload(channel, data, candidates);
+					if (existing >= 0)
+					{
+						header.putLong(position, existing);
+						duplicates++;
+					}
+					else
+					{
+						if (candidates == null)
+						{
+							candidates = new ArrayList<Long>(1);
+							payloads.put(key, candidates);
+						}
+						candidates.add(offset);
+						header.putLong(position, offset);
+						write(channel, data, offset);
+						offset += data.limit();
+					}
+
+					progress.progress(++done / (double) tileCount);
+				}
+			}
+
+			header.clear();
+			write(channel, header, 0);
+			channel.force(true);
+			complete = true;
+		}
+		finally
+		{
+			raf.close();
+			if (!complete)
+			{
+				temp.delete();
+			}
+		}
+
+		//rename over the existing pack, so readers see either the old or the new pack
+		FileUtil.replace(temp, pack);
+		progress.getLogger().info(
+				"Packed " + tileCount + " tiles into " + pack + " (" + duplicates + " duplicate tiles stored once)");
+
+		if (deleteTiles)
+		{
+			for (LevelTiles lt : tiles)
+			{
+				lt.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return Sorted list of levels (numerically named subdirectories) in a
+	 *         tileset directory
+	 */
+	public static List<Integer> findLevels(File directory)
+	{
+		List<Integer> levels = new ArrayList<Integer>();
+		File[] dirs = directory.listFiles();
+		if (dirs != null)
+		{
+			for (File dir : dirs)
+			{
+				if (dir.isDirectory() && dir.getName().matches("\\d+"))
+				{
+					levels.add(Integer.valueOf(dir.getName()));
+				}
+			}
+		}
+		Collections.sort(levels);
+		return levels;
+	}
+
+	private static ByteBuffer readFile(File file) throws IOException
+	{
+		FileInputStream fis = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = fis.getChannel();
+			ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+			while (data.hasRemaining() && channel.read(data) >= 0)
+			{
+			}
+			data.flip();
+			return data;
+		}
+		finally
+		{
+			fis.close();
+		}
+	}
+
+	/**
+	 * Find a payload already written to the pack with the same contents as the
+	 * given data.
+	 * 
+	 * @param candidates
+	 *            Offsets of the payloads with the same length and CRC (can be
+	 *            null)
+	 * @return Offset of the matching payload, or -1 if none match
+	 */
+	private static long findPayload(FileChannel channel, ByteBuffer data, List<Long> candidates) throws IOException
+	{
+		if (candidates == null)
+		{
+			return -1;
+		}
+		ByteBuffer existing = ByteBuffer.allocate(data.limit());
+		for (Long candidate : candidates)
+		{
+			existing.clear();
+			long position = candidate;
+			while (existing.hasRemaining())
+			{
+				int read = channel.read(existing, position);
+				if (read < 0)
+				{
+					break;
+				}
+				position += read;
+			}
+			existing.flip();
+			if (existing.equals(data))
+			{
+				return candidate;
+			}
+		}
+		return -1;
+	}
+
+	private static void write(FileChannel channel, ByteBuffer data, long position) throws IOException
+	{
+		while (data.hasRemaining())
+		{
+			position += channel.write(data, position);
+		}
+	}
+
+	/**
+	 * The tile files found in a level directory, and the row/column grid
+	 * containing them.
+	 */
+	private static class LevelTiles
+	{
+		private final int level;
+		private final File directory;
+		private final List<TileFile> files = new ArrayList<TileFile>();
+		private int minRow = Integer.MAX_VALUE;
+		private int minCol = Integer.MAX_VALUE;
+		private int rows;
+		private int cols;
+		private long indexOffset;
+
+		private LevelTiles(int level, File directory)
+		{
+			this.level = level;
+			this.directory = directory;
+		}
+
+		public static LevelTiles find(File directory, int level, String extension)
+		{
+			File[] rowDirs = directory.listFiles();
+			if (rowDirs == null)
+			{
+				return null;
+			}
+
+			Pattern pattern = Pattern.compile("(\\d+)_(\\d+)\\." + Pattern.quote(extension));
+			LevelTiles lt = new LevelTiles(level, directory);
+			int maxRow = Integer.MIN_VALUE, maxCol = Integer.MIN_VALUE;
+			for (File rowDir : rowDirs)
+			{
+				File[] files = rowDir.isDirectory() ? rowDir.listFiles() : null;
+				if (files == null)
+				{
+					continue;
+				}
+				for (File file : files)
+				{
+					Matcher matcher = pattern.matcher(file.getName());
+					if (matcher.matches() && file.isFile())
+					{
+						TileFile tile =
+								new TileFile(file, Integer.parseInt(matcher.group(1)),
+										Integer.parseInt(matcher.group(2)));
+						lt.files.add(tile);
+						lt.minRow = Math.min(lt.minRow, tile.row);
+						lt.minCol = Math.min(lt.minCol, tile.col);
+						maxRow = Math.max(maxRow, tile.row);
+						maxCol = Math.max(maxCol, tile.col);
+					}
+				}
+			}
+			if (lt.files.isEmpty())
+			{
+				return null;
+			}
+			lt.rows = maxRow - lt.minRow + 1;
+			lt.cols = maxCol - lt.minCol + 1;
+			//write the payloads in index order
+			Collections.sort(lt.files);
+			return lt;
+		}
+
+		/**
+		 * Delete the packed tile files (and the level's tile journal), and any
+		 * directories left empty.
+		 */
+		public void delete()
+		{
+			for (TileFile tile : files)
+			{
+				tile.file.delete();
+			}
+			new File(directory, TileJournal.FILENAME).delete();
+			File[] rowDirs = directory.listFiles();
+			if (rowDirs != null)
+			{
+				for (File rowDir : rowDirs)
+				{
+					if (rowDir.isDirectory())
+					{
+						rowDir.delete(); //only succeeds if empty
+					}
+				}
+			}
+			directory.delete();
+		}
+	}
+
+	private static class TileFile implements Comparable<TileFile>
+	{
+		private final File file;
+		private final int row;
+		private final int col;
+
+		private TileFile(File file, int row, int col)
+		{
+			this.file = file;
+			this.row = row;
+			this.col = col;
+		}
+
+		@Override
+		public int compareTo(TileFile o)
+		{
+			if (row != o.row)
+			{
+				return row < o.row ? -1 : 1;
+			}
+			return col < o.col ? -1 : col == o.col ? 0 : 1;
+		}
+	}
+}
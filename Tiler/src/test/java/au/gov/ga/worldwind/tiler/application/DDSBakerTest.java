@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import au.gov.ga.worldwind.tiler.util.ProgressReporter;
+import au.gov.ga.worldwind.tiler.util.ProgressReporterImpl;
+
+/**
+ * Unit tests for the {@link DDSBaker} class
+ */
+public class DDSBakerTest
+{
+	private File directory;
+	private ProgressReporter progress;
+
+	@Before
+	public void setup() throws Exception
+	{
+		directory = File.createTempFile("tileset", "");
+		directory.delete();
+		directory.mkdirs();
+		progress = new ProgressReporterImpl(Logger.getLogger(DDSBakerTest.class.getName()))
+		{
+			@Override
+			public void progress(double percent)
+			{
+			}
+
+			@Override
+			public void done()
+			{
+			}
+		};
+
+		for (int level = 0; level < 2; level++)
+		{
+			for (int row = 0; row <= level; row++)
+			{
+				for (int col = 0; col <= level * 2; col++)
+				{
+					BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+					image.setRGB(row, col, 0xffff0000);
+					ImageIO.write(image, "png", tile(level, row, col, "png"));
+				}
+			}
+		}
+	}
+
+	@After
+	public void teardown()
+	{
+		delete(directory);
+	}
+
+	@Test
+	public void testBakeAlongside() throws Exception
+	{
+		DDSBaker.bake(directory, "png", null, true, false, 3, progress);
+		for (int level = 0; level < 2; level++)
+		{
+			for (int row = 0; row <= level; row++)
+			{
+				for (int col = 0; col <= level * 2; col++)
+				{
+					assertTrue(tile(level, row, col, "png").exists());
+					File dds = tile(level, row, col, "dds");
+					assertTrue(dds.exists());
+					assertEquals(128 + (64 + 16 + 4 + 1 + 1 + 1) * 16, dds.length());
+				}
+			}
+		}
+		assertFalse(new File(tile(1, 1, 2, "dds").getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void testBakeInsteadAndResume() throws Exception
+	{
+		File dds = tile(1, 0, 1, "dds");
+		DDSBaker.bake(directory, "png", null, false, false, 2, progress);
+		long modified = dds.lastModified();
+
+		//already baked tiles are skipped, but their sources are still deleted
+		DDSBaker.bake(directory, "png", null, false, true, 2, progress);
+		assertEquals(modified, dds.lastModified());
+		assertFalse(tile(1, 0, 1, "png").exists());
+		assertFalse(tile(0, 0, 0, "png").exists());
+		assertTrue(tile(0, 0, 0, "dds").exists());
+	}
+
+	private File tile(int level, int row, int col, String extension)
+	{
+		String r = String.format("%04d", row);
+		File rowDir = new File(new File(directory, String.valueOf(level)), r);
+		rowDir.mkdirs();
+		return new File(rowDir, r + "_" + String.format("%04d", col) + "." + extension);
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import au.gov.ga.worldwind.tiler.util.NullableNumberArray;
+
+/**
+ * Benchmark comparing the {@link ElevationOverviewKernel} with the previous
+ * boxed implementation of the elevation overview mixing, for 512x512 float32
+ * tiles with a no-data value, using bilinear minification. Not a unit test;
+ * run the main method directly.
+ */
+public class ElevationOverviewBenchmark
+{
+	private static final int SIZE = 512;
+	private static final int ITERATIONS = 200;
+	private static final float OUTSIDE = -9999f;
+
+	public static void main(String[] args)
+	{
+		Random random = new Random(0);
+		ByteBuffer[] sources = new ByteBuffer[4];
+		for (int i = 0; i < sources.length; i++)
+		{
+			sources[i] = ByteBuffer.allocate(SIZE * SIZE * 4).order(ByteOrder.LITTLE_ENDIAN);
+			for (int j = 0; j < SIZE * SIZE; j++)
+			{
+				sources[i].putFloat(j * 4, random.nextInt(100) == 0 ? OUTSIDE : random.nextFloat() * 1000f);
+			}
+		}
+		ByteBuffer boxedDst = ByteBuffer.allocateDirect(SIZE * SIZE * 4).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer kernelDst = ByteBuffer.allocateDirect(SIZE * SIZE * 4).order(ByteOrder.LITTLE_ENDIAN);
+
+		NullableNumberArray outside = new NullableNumberArray(1);
+		outside.setFloat(0, OUTSIDE);
+		ElevationOverviewKernel kernel = ElevationOverviewKernel.create(4, true, outside, 0, true);
+
+		//warm up
+		for (int i = 0; i < ITERATIONS / 4; i++)
+		{
+			mixBoxed(sources, boxedDst);
+			mixKernel(kernel, sources, kernelDst);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+		{
+			mixBoxed(sources, boxedDst);
+		}
+		double boxedMs = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+		{
+			mixKernel(kernel, sources, kernelDst);
+		}
+		double kernelMs = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+
+		boxedDst.rewind();
+		kernelDst.rewind();
+		boolean equal = boxedDst.equals(kernelDst);
+
+		System.out.println(String.format("Boxed:  %.2f ms/tile", boxedMs));
+		System.out.println(String.format("Kernel: %.2f ms/tile", kernelMs));
+		System.out.println(String.format("Speedup: %.1fx, identical output: %b", boxedMs / kernelMs, equal));
+	}
+
+	private static void mixKernel(ElevationOverviewKernel kernel, ByteBuffer[] sources, ByteBuffer dst)
+	{
+		int half = SIZE / 2;
+		kernel.reduce(sources[0], dst, SIZE, SIZE, 0, 0, half);
+		kernel.reduce(sources[1], dst, SIZE, SIZE, 0, 0, 0);
+		kernel.reduce(sources[2], dst, SIZE, SIZE, 0, half, half);
+		kernel.reduce(sources[3], dst, SIZE, SIZE, 0, half, 0);
+	}
+
+	/**
+	 * The previous per-sample implementation, which boxed every value.
+	 */
+	private static void mixBoxed(ByteBuffer[] sources, ByteBuffer dst)
+	{
+		Object outsideValue = Float.valueOf(OUTSIDE);
+		dst.rewind();
+		for (int y = 0; y < SIZE; y++)
+		{
+			int sy = y % (SIZE / 2);
+			for (int x = 0; x < SIZE; x++)
+			{
+				int sx = x % (SIZE / 2);
+				ByteBuffer buffer =
+						(x < SIZE / 2) ? (y < SIZE / 2 ? sources[1] : sources[0]) : (y < SIZE / 2 ? sources[3]
+								: sources[2]);
+				int index0 = ((sy * 2) * SIZE + (sx * 2)) * 4;
+				int index1 = ((sy * 2) * SIZE + (sx * 2 + 1)) * 4;
+				int index2 = ((sy * 2 + 1) * SIZE + sx * 2) * 4;
+				int index3 = ((sy * 2 + 1) * SIZE + (sx * 2 + 1)) * 4;
+				Object v0 = buffer.getFloat(index0);
+				Object v1 = buffer.getFloat(index1);
+				Object v2 = buffer.getFloat(index2);
+				Object v3 = buffer.getFloat(index3);
+				Object value = outsideValue;
+				if (!(v0.equals(outsideValue) || v1.equals(outsideValue) || v2.equals(outsideValue) || v3
+						.equals(outsideValue)))
+				{
+					value =
+							(float) ((((Float) v0).doubleValue() + ((Float) v1).doubleValue()
+									+ ((Float) v2).doubleValue() + ((Float) v3).doubleValue()) / 4d);
+				}
+				dst.putFloat((Float) value);
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import au.gov.ga.worldwind.tiler.util.NullableNumberArray;
+
+/**
+ * Unit tests for the {@link ElevationOverviewKernel} class
+ */
+public class ElevationOverviewKernelTest
+{
+	private static final int SIZE = 4;
+
+	@Test
+	public void testFloatBilinearAverage()
+	{
+		ByteBuffer src = floats(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16);
+		ByteBuffer dst = buffer(4);
+
+		ElevationOverviewKernel kernel = ElevationOverviewKernel.create(4, true, null, 0, true);
+		kernel.reduce(src, dst, SIZE, SIZE, 0, 0, 0);
+
+		assertEquals(3.5f, dst.getFloat(index(0, 0, 4)), 0f);
+		assertEquals(5.5f, dst.getFloat(index(1, 0, 4)), 0f);
+		assertEquals(11.5f, dst.getFloat(index(0, 1, 4)), 0f);
+		assertEquals(13.5f, dst.getFloat(index(1, 1, 4)), 0f);
+		//other quadrants are untouched
+		assertEquals(0f, dst.getFloat(index(2, 0, 4)), 0f);
+		assertEquals(0f, dst.getFloat(index(0, 2, 4)), 0f);
+	}
+
+	@Test
+	public void testFloatNaNOutsideValue()
+	{
+		ByteBuffer src = floats(1, 2, 3, 4, 5, Float.NaN, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16);
+		ByteBuffer dst = buffer(4);
+
+		ElevationOverviewKernel kernel = ElevationOverviewKernel.create(4, true, outside(Float.NaN), 0, true);
+		kernel.reduce(src, dst, SIZE, SIZE, 0, 2, 2);
+
+		assertEquals(Float.NaN, dst.getFloat(index(2, 2, 4)), 0f);
+		assertEquals(5.5f, dst.getFloat(index(3, 2, 4)), 0f);
+		assertEquals(11.5f, dst.getFloat(index(2, 3, 4)), 0f);
+		assertEquals(13.5f, dst.getFloat(index(3, 3, 4)), 0f);
+	}
+
+	@Test
+	public void testNearestUsesTopLeftSample()
+	{
+		ByteBuffer src = floats(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16);
+		ByteBuffer dst = buffer(4);
+
+		ElevationOverviewKernel kernel = ElevationOverviewKernel.create(4, true, outside(1), 0, false);
+		kernel.reduce(src, dst, SIZE, SIZE, 0, 0, 2);
+
+		assertEquals(1f, dst.getFloat(index(0, 2, 4)), 0f);
+		assertEquals(3f, dst.getFloat(index(1, 2, 4)), 0f);
+		assertEquals(9f, dst.getFloat(index(0, 3, 4)), 0f);
+		assertEquals(11f, dst.getFloat(index(1, 3, 4)), 0f);
+	}
+
+	@Test
+	public void testMissingSourceWithOutsideValue()
+	{
+		ByteBuffer dst = buffer(2);
+
+		ElevationOverviewKernel kernel = ElevationOverviewKernel.create(2, false, outside(-9999), 0, true);
+		kernel.reduce(null, dst, SIZE, SIZE, 0, 2, 0);
+
+		assertEquals(-9999, dst.getShort(index(2, 0, 2)));
+		assertEquals(-9999, dst.getShort(index(3, 1, 2)));
+		assertEquals(0, dst.getShort(index(1, 0, 2)));
+		assertEquals(0, dst.getShort(index(2, 2, 2)));
+	}
+
+	@Test
+	public void testMissingSourceWithoutOutsideValue()
+	{
+		ByteBuffer dst = buffer(2);
+		dst.putShort(index(2, 0, 2), (short) 7);
+
+		ElevationOverviewKernel kernel = ElevationOverviewKernel.create(2, false, null, 0, true);
+		kernel.reduce(null, dst, SIZE, SIZE, 0, 2, 0);
+
+		assertEquals(7, dst.getShort(index(2, 0, 2)));
+	}
+
+	@Test
+	public void testSignedByteAverageTruncates()
+	{
+		ByteBuffer src = buffer(1);
+		src.put(0, (byte) -1);
+		src.put(1, (byte) -2);
+		src.put(SIZE, (byte) -3);
+		src.put(SIZE + 1, (byte) -4);
+		ByteBuffer dst = buffer(1);
+
+		ElevationOverviewKernel.create(1, false, null, 0, true).reduce(src, dst, SIZE, SIZE, 0, 0, 0);
+
+		assertEquals(-2, dst.get(0));
+	}
+
+	@Test
+	public void testIntAverageDoesNotOverflow()
+	{
+		ByteBuffer src = buffer(4);
+		for (int i = 0; i < SIZE * SIZE; i++)
+		{
+			src.putInt(i * 4, Integer.MAX_VALUE);
+		}
+		ByteBuffer dst = buffer(4);
+
+		ElevationOverviewKernel.create(4, false, null, 0, true).reduce(src, dst, SIZE, SIZE, 0, 0, 0);
+
+		assertEquals(Integer.MAX_VALUE, dst.getInt(0));
+	}
+
+	@Test
+	public void testDoubleSecondBand()
+	{
+		ByteBuffer src = ByteBuffer.allocate(SIZE * SIZE * 2 * 8).order(ByteOrder.LITTLE_ENDIAN);
+		int offset = SIZE * SIZE;
+		for (int i = 0; i < SIZE * SIZE; i++)
+		{
+			src.putDouble((offset + i) * 8, i + 1);
+		}
+		ByteBuffer dst = ByteBuffer.allocate(SIZE * SIZE * 2 * 8).order(ByteOrder.LITTLE_ENDIAN);
+
+		ElevationOverviewKernel.create(8, true, null, 1, true).reduce(src, dst, SIZE, SIZE, offset, 0, 0);
+
+		assertEquals(0d, dst.getDouble(0), 0d);
+		assertEquals(3.5d, dst.getDouble(offset * 8), 0d);
+	}
+
+	private static ByteBuffer buffer(int typeSize)
+	{
+		return ByteBuffer.allocate(SIZE * SIZE * typeSize).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static ByteBuffer floats(float... values)
+	{
+		ByteBuffer buffer = buffer(4);
+		buffer.asFloatBuffer().put(values);
+		return buffer;
+	}
+
+	private static NullableNumberArray outside(double value)
+	{
+		NullableNumberArray outside = new NullableNumberArray(1);
+		outside.setDouble(0, value);
+		return outside;
+	}
+
+	private static int index(int x, int y, int typeSize)
+	{
+		return (y * SIZE + x) * typeSize;
+	}
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link TileDeduplicator} class
+ */
+public class TileDeduplicatorTest
+{
+	private File directory;
+
+	@Before
+	public void setup() throws Exception
+	{
+		directory = File.createTempFile("dedup", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void teardown()
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testDuplicateTilesHaveSameContents() throws Exception
+	{
+		TileDeduplicator deduplicator = new TileDeduplicator();
+		ByteBuffer blank = ByteBuffer.wrap(new byte[] { 0, 0, 0, 0 });
+		ByteBuffer other = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+
+		File a = new File(directory, "a");
+		File b = new File(directory, "b");
+		File c = new File(directory, "c");
+		deduplicator.write(a, blank);
+		deduplicator.write(b, other);
+		deduplicator.write(c, blank);
+
+		assertArrayEquals(blank.array(), TileGenerator.readFile(a).array());
+		assertArrayEquals(other.array(), TileGenerator.readFile(b).array());
+		assertArrayEquals(blank.array(), TileGenerator.readFile(c).array());
+		assertTrue(blank.position() == 0 && other.position() == 0);
+	}
+
+	@Test
+	public void testRewritingLinkedTileDoesNotModifyOthers() throws Exception
+	{
+		TileDeduplicator deduplicator = new TileDeduplicator();
+		ByteBuffer blank = ByteBuffer.wrap(new byte[] { 0, 0, 0, 0 });
+
+		File a = new File(directory, "a");
+		File b = new File(directory, "b");
+		deduplicator.write(a, blank);
+		deduplicator.write(b, blank);
+
+		byte[] replaced = new byte[] { 5, 6 };
+		TileGenerator.write(b, ByteBuffer.wrap(replaced));
+
+		assertArrayEquals(blank.array(), TileGenerator.readFile(a).array());
+		assertArrayEquals(replaced, TileGenerator.readFile(b).array());
+		assertFalse(a.length() == b.length());
+	}
+}
@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link TileJournal} class
+ */
+public class TileJournalTest
+{
+	private File directory;
+
+	@Before
+	public void setup() throws Exception
+	{
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void teardown()
+	{
+		for (File file : directory.listFiles())
+		{
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private File tile(int X, int Y, byte[] data) throws IOException
+	{
+		File file = new File(directory, X + "_" + Y + ".bil");
+		FileOutputStream fos = new FileOutputStream(file);
+		try
+		{
+			fos.write(data);
+		}
+		finally
+		{
+			fos.close();
+		}
+		return file;
+	}
+
+	@Test
+	public void testNewJournalIsEmpty() throws Exception
+	{
+		TileJournal journal = TileJournal.open(directory, 0, 9, 0, 9);
+		assertFalse(journal.existed());
+		assertEquals(0, journal.getCompleteCount());
+		assertFalse(journal.isComplete(0, 0));
+		journal.close();
+	}
+
+	@Test
+	public void testRecordsAreReadOnReopen() throws Exception
+	{
+		TileJournal journal = TileJournal.open(directory, 10, 19, 20, 29);
+		journal.tileWritten(12, 25, tile(12, 25, new byte[] { 1, 2, 3 }));
+		journal.tileBlank(19, 29);
+		assertTrue(journal.isComplete(12, 25));
+		journal.close();
+
+		journal = TileJournal.open(directory, 10, 19, 20, 29);
+		assertTrue(journal.existed());
+		assertEquals(2, journal.getCompleteCount());
+		assertTrue(journal.isComplete(12, 25));
+		assertFalse(journal.isBlank(12, 25));
+		assertTrue(journal.isComplete(19, 29));
+		assertTrue(journal.isBlank(19, 29));
+		assertFalse(journal.isComplete(13, 25));
+		journal.close();
+	}
+
+	@Test
+	public void testOutOfOrderCompletion() throws Exception
+	{
+		TileJournal journal = TileJournal.open(directory, 0, 99, 0, 99);
+		for (int i = 99; i >= 0; i -= 3)
+		{
+			journal.tileWritten(i, 99 - i, tile(i, 99 - i, new byte[] { (byte) i }));
+		}
+		journal.close();
+
+		journal = TileJournal.open(directory, 0, 99, 0, 99);
+		assertEquals(34, journal.getCompleteCount());
+		assertTrue(journal.isComplete(0, 99));
+		assertTrue(journal.isComplete(99, 0));
+		assertFalse(journal.isComplete(98, 1));
+		journal.close();
+	}
+
+	@Test
+	public void testTilesOutsideGridAreIgnored() throws Exception
+	{
+		TileJournal journal = TileJournal.open(directory, 0, 99, 0, 99);
+		journal.tileWritten(5, 5, tile(5, 5, new byte[1]));
+		journal.tileWritten(50, 50, tile(50, 50, new byte[1]));
+		journal.close();
+
+		journal = TileJournal.open(directory, 0, 9, 0, 9);
+		assertEquals(1, journal.getCompleteCount());
+		assertFalse(journal.isComplete(50, 50));
+		journal.close();
+	}
+
+	@Test
+	public void testPartialRecordIsDiscarded() throws Exception
+	{
+		TileJournal journal = TileJournal.open(directory, 0, 9, 0, 9);
+		journal.tileWritten(1, 1, tile(1, 1, new byte[1]));
+		journal.tileWritten(2, 2, tile(2, 2, new byte[1]));
+		journal.close();
+
+		File file = new File(directory, TileJournal.FILENAME);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+
+		journal = TileJournal.open(directory, 0, 9, 0, 9);
+		assertTrue(journal.isComplete(1, 1));
+		assertFalse(journal.isComplete(2, 2));
+		journal.tileWritten(3, 3, tile(3, 3, new byte[1]));
+		journal.close();
+
+		journal = TileJournal.open(directory, 0, 9, 0, 9);
+		assertEquals(2, journal.getCompleteCount());
+		assertTrue(journal.isComplete(3, 3));
+		journal.close();
+	}
+
+	@Test
+	public void testCorruptRecordIsDiscarded() throws Exception
+	{
+		TileJournal journal = TileJournal.open(directory, 0, 9, 0, 9);
+		journal.tileWritten(1, 1, tile(1, 1, new byte[1]));
+		journal.tileWritten(2, 2, tile(2, 2, new byte[1]));
+		journal.tileBlank(3, 3);
+		journal.close();
+
+		//zero the tile size of the second record, as if it was lost in a crash
+		File file = new File(directory, TileJournal.FILENAME);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length() - 24);
+		raf.writeInt(0);
+		raf.close();
+
+		journal = TileJournal.open(directory, 0, 9, 0, 9);
+		assertEquals(1, journal.getCompleteCount());
+		assertTrue(journal.isComplete(1, 1));
+		assertFalse(journal.isComplete(2, 2));
+		assertFalse(journal.isComplete(3, 3));
+		journal.close();
+	}
+
+	@Test
+	public void testOtherVersionIsReplaced() throws Exception
+	{
+		TileJournal journal = TileJournal.open(directory, 0, 9, 0, 9);
+		journal.tileBlank(1, 1);
+		journal.close();
+
+		File file = new File(directory, TileJournal.FILENAME);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(4);
+		raf.writeInt(1);
+		raf.close();
+
+		journal = TileJournal.open(directory, 0, 9, 0, 9);
+		assertFalse(journal.existed());
+		assertEquals(0, journal.getCompleteCount());
+		journal.tileBlank(2, 2);
+		journal.close();
+
+		journal = TileJournal.open(directory, 0, 9, 0, 9);
+		assertTrue(journal.existed());
+		assertTrue(journal.isComplete(2, 2));
+		journal.close();
+	}
+
+	@Test
+	public void testRecordsAreWrittenInBatches() throws Exception
+	{
+		File file = new File(directory, TileJournal.FILENAME);
+		TileJournal journal = TileJournal.open(directory, 0, 99, 0, 99);
+		long empty = file.length();
+		for (int i = 0; i < TileJournal.FORCE_INTERVAL - 1; i++)
+		{
+			journal.tileBlank(i % 100, i / 100);
+		}
+		//completed tiles are known before their records are written
+		assertEquals(TileJournal.FORCE_INTERVAL - 1, journal.getCompleteCount());
+		assertEquals(empty, file.length());
+
+		journal.tileWritten(99, 99, tile(99, 99, new byte[1]));
+		assertEquals(empty + TileJournal.FORCE_INTERVAL * 16, file.length());
+		journal.tileBlank(98, 99);
+		assertEquals(empty + TileJournal.FORCE_INTERVAL * 16, file.length());
+		journal.close();
+
+		journal = TileJournal.open(directory, 0, 99, 0, 99);
+		assertEquals(TileJournal.FORCE_INTERVAL + 1, journal.getCompleteCount());
+		assertTrue(journal.isComplete(99, 99));
+		assertFalse(journal.isBlank(99, 99));
+		assertTrue(journal.isBlank(98, 99));
+		journal.close();
+	}
+
+	@Test
+	public void testRemovedTileIsNotRecorded() throws Exception
+	{
+		TileJournal journal = TileJournal.open(directory, 0, 9, 0, 9);
+		journal.tileWritten(1, 1, tile(1, 1, new byte[1]));
+		journal.tileWritten(2, 2, tile(2, 2, new byte[1]));
+		new File(directory, "2_2.bil").delete();
+		journal.close();
+
+		journal = TileJournal.open(directory, 0, 9, 0, 9);
+		assertTrue(journal.isComplete(1, 1));
+		assertFalse(journal.isComplete(2, 2));
+		journal.close();
+	}
+
+	@Test(expected = IOException.class)
+	public void testGridTooLargeIsRejected() throws Exception
+	{
+		TileJournal.open(directory, 0, 99999, 0, 99999);
+	}
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.Rectangle;
+
+import org.junit.Test;
+
+import au.gov.ga.worldwind.tiler.util.LatLon;
+import au.gov.ga.worldwind.tiler.util.Sector;
+
+/**
+ * Unit tests for the incremental update support in the {@link Tiler} class
+ */
+public class TilerUpdateTest
+{
+	private static final LatLon ORIGIN = new LatLon(-90, -180);
+
+	@Test
+	public void testUpdateRangeCoversIntersectingTiles()
+	{
+		//level 0 with 36 degree tiles: tile (5,2) covers lat -18..18, lon 0..36
+		Rectangle range = Tiler.updateRange(0, 9, 0, 4, new Sector(-10, 10, 20, 40), ORIGIN, 0, 36);
+		assertEquals(new Rectangle(5, 2, 2, 2), range);
+	}
+
+	@Test
+	public void testUpdateRangeIsClampedToGrid()
+	{
+		Rectangle range = Tiler.updateRange(5, 6, 2, 2, new Sector(-90, -180, 90, 180), ORIGIN, 0, 36);
+		assertEquals(new Rectangle(5, 2, 2, 1), range);
+
+		//each level halves the tile size
+		range = Tiler.updateRange(0, 19, 0, 9, new Sector(1, 1, 2, 2), ORIGIN, 1, 36);
+		assertEquals(new Rectangle(10, 5, 1, 1), range);
+	}
+
+	@Test
+	public void testUpdateRangeOutsideGrid()
+	{
+		assertNull(Tiler.updateRange(5, 6, 2, 2, new Sector(50, 100, 60, 110), ORIGIN, 0, 36));
+	}
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.gdal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the strip calculation in the {@link GDALStripReader} class
+ */
+public class GDALStripReaderTest
+{
+	@Test
+	public void testStripIsAlignedToBlocks()
+	{
+		Rectangle strip = GDALStripReader.calculateStrip(new Rectangle(300, 300, 100, 100), 1000, 1000, 256, 256, 1,
+				100000000L);
+		assertEquals(new Rectangle(256, 256, 744, 256), strip);
+	}
+
+	@Test
+	public void testStripIncludesMargin()
+	{
+		Rectangle strip = GDALStripReader.calculateStrip(new Rectangle(300, 257, 100, 254), 1000, 1000, 256, 256, 1,
+				100000000L);
+		assertEquals(new Rectangle(256, 0, 744, 768), strip);
+	}
+
+	@Test
+	public void testStripIsClampedToDataset()
+	{
+		Rectangle strip = GDALStripReader.calculateStrip(new Rectangle(0, 900, 100, 100), 1000, 1000, 1, 1, 1,
+				100000000L);
+		assertEquals(new Rectangle(0, 898, 1000, 102), strip);
+	}
+
+	@Test
+	public void testStripWidthIsLimitedBySize()
+	{
+		//104 rows * 4 bytes per pixel = 416 bytes per column; 100000 bytes allows 240 columns, aligned to 64
+		Rectangle strip = GDALStripReader.calculateStrip(new Rectangle(10, 100, 100, 100), 10000, 1000, 64, 1, 4,
+				100000L);
+		assertEquals(new Rectangle(0, 98, 192, 104), strip);
+	}
+
+	@Test
+	public void testUnalignedRowsAreUsedIfAlignedStripIsTooLarge()
+	{
+		//a single block of rows covering the whole dataset doesn't fit, so the strip only covers the tile's rows
+		Rectangle strip = GDALStripReader.calculateStrip(new Rectangle(0, 500, 100, 100), 1000, 1000, 1000, 1000, 1,
+				20000L);
+		assertEquals(new Rectangle(0, 498, 192, 104), strip);
+	}
+
+	@Test
+	public void testDecimatedTilesAreNotReadFromStrips()
+	{
+		assertTrue(GDALStripReader.canReadFromStrip(new Rectangle(0, 0, 256, 256), 256, 256));
+		assertTrue(GDALStripReader.canReadFromStrip(new Rectangle(0, 0, 100, 100), 256, 256));
+		assertFalse(GDALStripReader.canReadFromStrip(new Rectangle(0, 0, 512, 512), 256, 256));
+		assertFalse(GDALStripReader.canReadFromStrip(new Rectangle(0, 0, 200, 300), 256, 256));
+	}
+
+	@Test
+	public void testTileTooLargeForStrip()
+	{
+		assertNull(GDALStripReader.calculateStrip(new Rectangle(0, 0, 1000, 1000), 1000, 1000, 1, 1, 1, 10000L));
+	}
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.gdal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import au.gov.ga.worldwind.tiler.util.MinMaxArray;
+import au.gov.ga.worldwind.tiler.util.NullableNumberArray;
+import au.gov.ga.worldwind.tiler.util.NumberArray;
+
+/**
+ * Unit tests for the {@link GDALTileKernel} class
+ */
+public class GDALTileKernelTest
+{
+	private static final int SIZE = 4;
+
+	@Test
+	public void testShortReplaceAndFillOutside()
+	{
+		ByteBuffer buffer = buffer(2);
+		for (int i = 0; i < SIZE * SIZE; i++)
+		{
+			buffer.putShort(i * 2, (short) (i * 2));
+		}
+		MinMaxArray[] minMaxs = new MinMaxArray[] { range(0, 10) };
+		GDALTileKernel kernel =
+				GDALTileKernel.create(GDALTileKernel.SHORT, 1, 1, minMaxs, values(100), values(-1), values(-9999));
+
+		Rectangle dataRectangle = new Rectangle(1, 1, 2, 2);
+		assertFalse(kernel.process(buffer, SIZE, SIZE, dataRectangle, true));
+
+		//(1,1)=10 and (2,1)=12 are replaced, (1,2)=18 and (2,2)=20 are otherwise
+		assertEquals(100, buffer.getShort(index(1, 1, 2)));
+		assertEquals(-1, buffer.getShort(index(2, 1, 2)));
+		assertEquals(-1, buffer.getShort(index(1, 2, 2)));
+		assertEquals(-1, buffer.getShort(index(2, 2, 2)));
+		//everything outside the data rectangle is nodata
+		assertEquals(-9999, buffer.getShort(index(0, 0, 2)));
+		assertEquals(-9999, buffer.getShort(index(3, 1, 2)));
+		assertEquals(-9999, buffer.getShort(index(0, 2, 2)));
+		assertEquals(-9999, buffer.getShort(index(3, 3, 2)));
+	}
+
+	@Test
+	public void testBlankWithinDataRectangle()
+	{
+		ByteBuffer buffer = buffer(4);
+		for (int i = 0; i < SIZE * SIZE; i++)
+		{
+			buffer.putFloat(i * 4, 5f);
+		}
+		Rectangle dataRectangle = new Rectangle(2, 2, 2, 2);
+		for (int y = 2; y < SIZE; y++)
+		{
+			for (int x = 2; x < SIZE; x++)
+			{
+				buffer.putFloat(index(x, y, 4), -9999f);
+			}
+		}
+
+		GDALTileKernel kernel = GDALTileKernel.create(GDALTileKernel.FLOAT, 1, 1, null, null, null, values(-9999));
+		assertTrue(kernel.process(buffer, SIZE, SIZE, dataRectangle, true));
+		assertEquals(-9999f, buffer.getFloat(index(0, 0, 4)), 0f);
+
+		buffer.putFloat(index(3, 3, 4), 1f);
+		assertFalse(kernel.process(buffer, SIZE, SIZE, dataRectangle, true));
+	}
+
+	@Test
+	public void testUnsignedByteReplace()
+	{
+		ByteBuffer buffer = buffer(1);
+		buffer.put(0, (byte) 200);
+		buffer.put(1, (byte) 100);
+		MinMaxArray[] minMaxs = new MinMaxArray[] { range(150, 255) };
+		GDALTileKernel kernel = GDALTileKernel.create(GDALTileKernel.BYTE, 1, 1, minMaxs, values(0), null, null);
+
+		kernel.replace(buffer, SIZE, SIZE, new Rectangle(0, 0, SIZE, SIZE));
+		assertEquals(0, buffer.get(0));
+		assertEquals(100, buffer.get(1));
+	}
+
+	@Test
+	public void testUpdateMinMaxIgnoresNoData()
+	{
+		ByteBuffer buffer = buffer(4);
+		for (int i = 0; i < SIZE * SIZE; i++)
+		{
+			buffer.putInt(i * 4, i < 8 ? -9999 : i * 1000);
+		}
+		NumberArray minmax = new NumberArray(2);
+		minmax.setLong(0, Long.MAX_VALUE);
+		minmax.setLong(1, Long.MIN_VALUE);
+
+		GDALTileKernel kernel = GDALTileKernel.create(GDALTileKernel.INT, 1, 1, null, null, null, values(-9999));
+		kernel.updateMinMax(buffer, SIZE, SIZE, minmax);
+		assertEquals(8000, minmax.getLong(0));
+		assertEquals(15000, minmax.getLong(1));
+	}
+
+	private static ByteBuffer buffer(int typeSize)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(SIZE * SIZE * typeSize);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	private static int index(int x, int y, int typeSize)
+	{
+		return (y * SIZE + x) * typeSize;
+	}
+
+	private static MinMaxArray range(long min, long max)
+	{
+		MinMaxArray range = new MinMaxArray(1);
+		range.setMinMaxLong(0, min, max);
+		return range;
+	}
+
+	private static NullableNumberArray values(long value)
+	{
+		NullableNumberArray values = new NullableNumberArray(1);
+		values.setLong(0, value);
+		return values;
+	}
+}
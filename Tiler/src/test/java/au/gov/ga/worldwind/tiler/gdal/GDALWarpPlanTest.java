@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.gdal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link GDALWarpPlan} class
+ */
+public class GDALWarpPlanTest
+{
+	@Test
+	public void testGridCoversTileEdges()
+	{
+		assertEquals(17, GDALWarpPlan.gridSize(256));
+		assertEquals(0, GDALWarpPlan.gridPosition(0, 256));
+		assertEquals(240, GDALWarpPlan.gridPosition(15, 256));
+		assertEquals(255, GDALWarpPlan.gridPosition(16, 256));
+		assertEquals(1, GDALWarpPlan.gridSize(1));
+		assertEquals(2, GDALWarpPlan.gridSize(17));
+	}
+
+	@Test
+	public void testInterpolateAffineGridIsExact()
+	{
+		int width = 40, height = 20;
+		int gridWidth = GDALWarpPlan.gridSize(width);
+		int gridHeight = GDALWarpPlan.gridSize(height);
+		double[] gridX = new double[gridWidth * gridHeight];
+		double[] gridY = new double[gridWidth * gridHeight];
+		for (int j = 0; j < gridHeight; j++)
+		{
+			for (int i = 0; i < gridWidth; i++)
+			{
+				int x = GDALWarpPlan.gridPosition(i, width);
+				int y = GDALWarpPlan.gridPosition(j, height);
+				gridX[j * gridWidth + i] = 10 + 2 * x + 0.5 * y;
+				gridY[j * gridWidth + i] = 5 + 3 * y;
+			}
+		}
+
+		float[] sourceX = new float[width * height];
+		float[] sourceY = new float[width * height];
+		GDALWarpPlan.interpolateGrid(gridX, gridY, width, height, sourceX, sourceY);
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				assertEquals(10 + 2 * x + 0.5 * y, sourceX[y * width + x], 1e-4);
+				assertEquals(5 + 3 * y, sourceY[y * width + x], 1e-4);
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidGridPointsAreMarked()
+	{
+		int width = 32, height = 16;
+		int gridWidth = GDALWarpPlan.gridSize(width);
+		int gridHeight = GDALWarpPlan.gridSize(height);
+		double[] gridX = new double[gridWidth * gridHeight];
+		double[] gridY = new double[gridWidth * gridHeight];
+		gridX[0] = Double.POSITIVE_INFINITY;
+
+		float[] sourceX = new float[width * height];
+		float[] sourceY = new float[width * height];
+		GDALWarpPlan.interpolateGrid(gridX, gridY, width, height, sourceX, sourceY);
+		assertTrue(Float.isNaN(sourceX[0]));
+		assertTrue(Float.isNaN(sourceX[5 * width + 5]));
+		assertEquals(0, sourceX[5 * width + 20], 0);
+	}
+
+	@Test
+	public void testSourceWindowIsClipped()
+	{
+		float[] sourceX = new float[] { 2.5f, 8.2f, Float.NaN, -3f };
+		float[] sourceY = new float[] { 4.5f, 6.7f, 100f, 5f };
+		assertEquals(new Rectangle(0, 3, 10, 5), GDALWarpPlan.sourceWindow(sourceX, sourceY, 10, 8));
+		assertTrue(GDALWarpPlan.sourceWindow(new float[] { Float.NaN }, new float[] { 1 }, 10, 10).isEmpty());
+	}
+
+	@Test
+	public void testResample()
+	{
+		double[] source = new double[] { 0, 10, 20, 30 }; //2x2
+		float[] sourceX = new float[] { 0.5f, 1.5f, 1.0f, Float.NaN };
+		float[] sourceY = new float[] { 0.5f, 1.5f, 1.0f, 0.5f };
+
+		double[] nearest = new double[] { -1, -1, -1, -1 };
+		GDALWarpPlan.resample(source, 2, 2, sourceX, sourceY, nearest, false);
+		assertEquals(0, nearest[0], 0);
+		assertEquals(30, nearest[1], 0);
+		assertEquals(30, nearest[2], 0);
+		assertEquals(-1, nearest[3], 0);
+
+		double[] bilinear = new double[4];
+		GDALWarpPlan.resample(source, 2, 2, sourceX, sourceY, bilinear, true);
+		assertEquals(0, bilinear[0], 1e-9);
+		assertEquals(30, bilinear[1], 1e-9);
+		assertEquals(15, bilinear[2], 1e-9);
+	}
+}
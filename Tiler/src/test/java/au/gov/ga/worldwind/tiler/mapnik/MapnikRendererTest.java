@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.mapnik;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import au.gov.ga.worldwind.tiler.util.Sector;
+import au.gov.ga.worldwind.tiler.util.TilerException;
+
+/**
+ * Unit tests for the {@link MapnikRenderer} class, using the
+ * {@link StandInMapnikRenderer} in place of a Mapnik renderer
+ */
+public class MapnikRendererTest
+{
+	private static final Sector EAST = new Sector(0, 10, 10, 20);
+	private static final Sector WEST = new Sector(0, -20, 10, -10);
+
+	private File directory;
+	private MapnikRenderer.Pool pool;
+
+	@Before
+	public void setup() throws Exception
+	{
+		directory = File.createTempFile("mapnik", "");
+		directory.delete();
+		directory.mkdirs();
+
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+		List<String> command =
+				Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+						StandInMapnikRenderer.class.getName());
+		pool =
+				new MapnikRenderer.Pool(command, new File(directory, "map.xml"), false, null,
+						Logger.getLogger(MapnikRendererTest.class.getName()));
+	}
+
+	@After
+	public void teardown()
+	{
+		pool.close();
+		for (File file : directory.listFiles())
+		{
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testRenderMultipleTilesWithOneProcess() throws Exception
+	{
+		for (int i = 0; i < 5; i++)
+		{
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(pool.render(EAST, 32 + i, 16, "png")));
+			assertNotNull(image);
+			assertEquals(32 + i, image.getWidth());
+			assertEquals(16, image.getHeight());
+			assertEquals(0xffff0000, image.getRGB(5, 5));
+		}
+		assertEquals(1, pool.size());
+	}
+
+	@Test
+	public void testErrorFrameKeepsRenderer() throws Exception
+	{
+		try
+		{
+			pool.render(EAST, 13, 13, "png");
+			fail("Expected renderer error");
+		}
+		catch (TilerException e)
+		{
+			assertTrue(e.getMessage(), e.getMessage().contains("Cannot render"));
+		}
+		assertNotNull(pool.render(EAST, 16, 16, "png"));
+		assertEquals(1, pool.size());
+	}
+
+	@Test
+	public void testFailedRendererIsReplaced() throws Exception
+	{
+		assertNotNull(pool.render(EAST, 16, 16, "png"));
+		try
+		{
+			pool.render(EAST, 99, 99, "png");
+			fail("Expected renderer to exit");
+		}
+		catch (TilerException e)
+		{
+			//expected
+		}
+		assertEquals(0, pool.size());
+		assertNotNull(pool.render(EAST, 16, 16, "png"));
+		assertEquals(1, pool.size());
+	}
+
+	@Test
+	public void testParallelRendering() throws Exception
+	{
+		int threads = 3;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < 30; i++)
+		{
+			final int width = 20 + i;
+			futures.add(executor.submit(new Callable<Integer>()
+			{
+				@Override
+				public Integer call() throws Exception
+				{
+					return ImageIO.read(new ByteArrayInputStream(pool.render(EAST, width, 8, "png"))).getWidth();
+				}
+			}));
+		}
+		for (int i = 0; i < futures.size(); i++)
+		{
+			assertEquals(20 + i, futures.get(i).get().intValue());
+		}
+		executor.shutdown();
+		assertTrue(pool.size() <= threads);
+	}
+
+	@Test
+	public void testIgnoreBlankTiles() throws Exception
+	{
+		File east = new File(directory, "east.png");
+		File west = new File(directory, "west.png");
+		MapnikUtil.tile(pool, EAST, 16, 16, true, east);
+		MapnikUtil.tile(pool, WEST, 16, 16, true, west);
+		assertTrue(east.exists());
+		assertFalse(west.exists());
+
+		MapnikUtil.tile(pool, WEST, 16, 16, false, west);
+		assertTrue(west.exists());
+	}
+}
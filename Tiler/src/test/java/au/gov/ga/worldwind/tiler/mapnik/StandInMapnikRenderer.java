@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.mapnik;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.InputStreamReader;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Stand-in for a batch Mapnik renderer, used to test the
+ * {@link MapnikRenderer} protocol without Mapnik. Renders a transparent tile
+ * for requests west of the prime meridian, and an opaque tile otherwise. A
+ * width of 13 returns an error frame, and a width of 99 exits the process.
+ */
+public class StandInMapnikRenderer
+{
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 2 || !args[0].equals("-m"))
+		{
+			System.err.println("Usage: -m <mapfile>");
+			System.exit(1);
+		}
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+		DataOutputStream out = new DataOutputStream(System.out);
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			String[] parts = line.trim().split(" ");
+			double minlon = Double.parseDouble(parts[0]);
+			int width = Integer.parseInt(parts[4]);
+			int height = Integer.parseInt(parts[5]);
+			String format = parts[6];
+
+			if (width == 99)
+			{
+				System.exit(2);
+			}
+			if (width == 13)
+			{
+				byte[] message = ("Cannot render " + line).getBytes("UTF-8");
+				out.writeInt(-message.length);
+				out.write(message);
+				out.flush();
+				continue;
+			}
+
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			if (minlon >= 0)
+			{
+				Graphics2D g = image.createGraphics();
+				g.setColor(Color.RED);
+				g.fillRect(0, 0, width, height);
+				g.dispose();
+			}
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ImageIO.write(image, format.equals("jpg") ? "png" : format, baos);
+			out.writeInt(baos.size());
+			baos.writeTo(out);
+			out.flush();
+		}
+	}
+}
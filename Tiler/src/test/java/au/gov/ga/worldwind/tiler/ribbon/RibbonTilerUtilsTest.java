@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.ribbon;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link RibbonTilerUtils} class
+ */
+public class RibbonTilerUtilsTest
+{
+	@Test
+	public void testCountConstantPixelsByteBands()
+	{
+		//3 bands, 3 columns, 5 rows; column 0 has a 2 pixel constant top and
+		//1 pixel constant bottom, column 1 is constant, column 2 differs only
+		//in the last band
+		int width = 3;
+		int height = 5;
+		int[][] band01 = { { 7, 9, 1 }, { 7, 9, 1 }, { 3, 9, 1 }, { 4, 9, 1 }, { 5, 9, 1 } };
+		int[][] band2 = { { 7, 9, 1 }, { 7, 9, 2 }, { 3, 9, 2 }, { 4, 9, 2 }, { 5, 9, 2 } };
+		ByteBuffer buffer = ByteBuffer.allocate(3 * width * height);
+		for (int b = 0; b < 3; b++)
+		{
+			int[][] band = b < 2 ? band01 : band2;
+			for (int y = 0; y < height; y++)
+			{
+				for (int x = 0; x < width; x++)
+				{
+					buffer.put((byte) band[y][x]);
+				}
+			}
+		}
+
+		int[] fromTop = new int[width + 1];
+		int[] fromBottom = new int[width + 1];
+		RibbonTilerUtils.countConstantPixels(buffer, 1, 3, width, height, fromTop, fromBottom, 1);
+
+		assertArrayEquals(new int[] { 0, 2, 5, 1 }, fromTop);
+		assertArrayEquals(new int[] { 0, 1, 0, 4 }, fromBottom);
+	}
+
+	@Test
+	public void testCountConstantPixelsFloatBand()
+	{
+		int width = 2;
+		int height = 4;
+		float[] values = { -1f, 0f, -1f, 0f, 2.5f, 0f, -1f, 1e-6f };
+		ByteBuffer buffer = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.asFloatBuffer().put(values);
+
+		int[] fromTop = new int[width];
+		int[] fromBottom = new int[width];
+		RibbonTilerUtils.countConstantPixels(buffer, 4, 1, width, height, fromTop, fromBottom, 0);
+
+		assertArrayEquals(new int[] { 2, 3 }, fromTop);
+		assertArrayEquals(new int[] { 1, 1 }, fromBottom);
+	}
+}
@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.shapefile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import au.gov.ga.worldwind.tiler.util.LatLon;
+import au.gov.ga.worldwind.tiler.util.ProgressReporter;
+import au.gov.ga.worldwind.tiler.util.ProgressReporterImpl;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.BasicFeature;
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureDataset;
+import com.vividsolutions.jump.feature.FeatureSchema;
+import com.vividsolutions.jump.io.DriverProperties;
+import com.vividsolutions.jump.io.ShapefileWriter;
+
+/**
+ * Unit tests for the {@link ShapefileTiler} class
+ */
+public class ShapefileTilerTest
+{
+	private static final int LEVEL = 2;
+	private static final double LZTS = 36;
+
+	private final GeometryFactory factory = new GeometryFactory();
+
+	private File directory;
+	private File shapefile;
+	private ProgressReporter progress;
+
+	@Before
+	public void setup() throws Exception
+	{
+		directory = File.createTempFile("shapefile", "");
+		directory.delete();
+		directory.mkdirs();
+
+		progress = new ProgressReporterImpl(Logger.getLogger(ShapefileTilerTest.class.getName()))
+		{
+			@Override
+			public void progress(double percent)
+			{
+			}
+
+			@Override
+			public void done()
+			{
+			}
+		};
+
+		//a large polygon, covering some tiles completely, and a small polygon within a single tile
+		shapefile =
+				writeShapefile("input", factory.createPolygon(ring(-40, -50, 50, 60), null),
+						factory.createPolygon(ring(60, 100, 62, 102), null));
+	}
+
+	@After
+	public void teardown()
+	{
+		delete(directory);
+	}
+
+	@Test
+	public void testStreamingMatchesInMemory() throws Exception
+	{
+		File memory = new File(directory, "memory");
+		File streamed = new File(directory, "streamed");
+		ShapefileTiler.tile(shapefile, memory, LEVEL, LZTS, LatLon.DEFAULT_ORIGIN, false, false, 1, progress);
+		ShapefileTiler.tile(shapefile, streamed, LEVEL, LZTS, LatLon.DEFAULT_ORIGIN, false, true, 4, progress);
+
+		List<String> tiles = list(memory, "");
+		assertFalse(tiles.isEmpty());
+		assertEquals(tiles, list(streamed, ""));
+		for (String tile : tiles)
+		{
+			assertZipEquals(new File(memory, tile), new File(streamed, tile));
+		}
+
+		//the temporary buckets are removed once the tiles are saved
+		for (String file : streamed.list())
+		{
+			assertFalse(file, file.endsWith(".buckets"));
+		}
+	}
+
+	@Test
+	public void testTilesWithoutGeometryAreNotSaved() throws Exception
+	{
+		File output = new File(directory, "output");
+		ShapefileTiler.tile(shapefile, output, LEVEL, LZTS, LatLon.DEFAULT_ORIGIN, false, true, 2, progress);
+
+		List<String> tiles = list(output, "");
+		//small polygon: tile (31,16)
+		assertTrue(tiles.contains("2/0016/0016_0031.zip"));
+		//inside the large polygon but not touched by its outline: tile (15,6)
+		assertTrue(tiles.contains("2/0006/0006_0015.zip"));
+		//within the shapefile bounds, but outside both polygons
+		assertFalse(tiles.contains("2/0012/0012_0029.zip"));
+		//the large polygon spans 13x11 tiles, the small polygon 1 tile
+		assertEquals(13 * 11 + 1, tiles.size());
+	}
+
+	@Test
+	public void testPyramidSimplifiesCoarseLevels() throws Exception
+	{
+		//a detailed circle, clockwise
+		Coordinate[] coordinates = new Coordinate[2001];
+		for (int i = 0; i < coordinates.length - 1; i++)
+		{
+			double angle = -2 * Math.PI * i / (coordinates.length - 1);
+			coordinates[i] = new Coordinate(10 + 20 * Math.cos(angle), 10 + 20 * Math.sin(angle));
+		}
+		coordinates[coordinates.length - 1] = coordinates[0];
+		File circle = writeShapefile("circle", factory.createPolygon(factory.createLinearRing(coordinates), null));
+
+		File pyramid = new File(directory, "pyramid");
+		File level0 = new File(directory, "level0");
+		File level2 = new File(directory, "level2");
+		ShapefileTiler.tilePyramid(circle, pyramid, 0, 2, LZTS, LatLon.DEFAULT_ORIGIN, 1 / 64d, false, true, 2,
+				progress);
+		ShapefileTiler.tile(circle, level0, 0, LZTS, LatLon.DEFAULT_ORIGIN, progress);
+		ShapefileTiler.tile(circle, level2, 2, LZTS, LatLon.DEFAULT_ORIGIN, progress);
+
+		//the finest level is not simplified
+		List<String> tiles = list(level2, "");
+		assertFalse(tiles.isEmpty());
+		for (String tile : tiles)
+		{
+			assertZipEquals(new File(level2, tile), new File(pyramid, tile));
+		}
+
+		//coarser levels contain the same tiles, with less geometry
+		assertEquals(list(level0, ""), list(new File(pyramid, "0"), "0/"));
+		//circle bounds -10..30 degrees span 3x3 of the 18 degree level 1 tiles
+		assertEquals(9, list(new File(pyramid, "1"), "1/").size());
+		for (String tile : list(level0, ""))
+		{
+			long simplified = new File(pyramid, tile).length();
+			assertTrue(tile, simplified * 5 < new File(level0, tile).length());
+		}
+	}
+
+	@Test
+	public void testParallelClippingMatchesSerial() throws Exception
+	{
+		//many polygons of different sizes, so that features finish clipping out of order
+		Polygon[] polygons = new Polygon[40];
+		for (int i = 0; i < polygons.length; i++)
+		{
+			//(avoid vertices on the tile edges)
+			double lat = -61.13 + (i % 8) * 14.7;
+			double lon = -151.37 + (i / 8) * 59.3;
+			double size = 2.31 + (i * 7) % 30;
+			polygons[i] = factory.createPolygon(ring(lat, lon, lat + size, lon + size * 1.5), null);
+		}
+		File many = writeShapefile("many", polygons);
+
+		File serial = new File(directory, "serial");
+		File parallel = new File(directory, "parallel");
+		ShapefileTiler.tilePyramid(many, serial, 0, 3, LZTS, LatLon.DEFAULT_ORIGIN, 1 / 64d, false, false, 1,
+				progress);
+		ShapefileTiler.tilePyramid(many, parallel, 0, 3, LZTS, LatLon.DEFAULT_ORIGIN, 1 / 64d, false, true, 4,
+				progress);
+
+		List<String> tiles = list(serial, "");
+		assertFalse(tiles.isEmpty());
+		assertEquals(tiles, list(parallel, ""));
+		for (String tile : tiles)
+		{
+			assertZipEquals(new File(serial, tile), new File(parallel, tile));
+		}
+	}
+
+	private File writeShapefile(String name, Polygon... polygons) throws Exception
+	{
+		FeatureSchema schema = new FeatureSchema();
+		schema.addAttribute("GEOMETRY", AttributeType.GEOMETRY);
+		schema.addAttribute("NAME", AttributeType.STRING);
+		schema.addAttribute("ID", AttributeType.INTEGER);
+
+		FeatureDataset features = new FeatureDataset(schema);
+		for (int i = 0; i < polygons.length; i++)
+		{
+			Feature feature = new BasicFeature(schema);
+			feature.setGeometry(polygons[i]);
+			feature.setAttribute("NAME", name + i);
+			feature.setAttribute("ID", i);
+			features.add(feature);
+		}
+
+		File file = new File(directory, name + ".shp");
+		new ShapefileWriter().write(features, new DriverProperties(file.getAbsolutePath()));
+		return file;
+	}
+
+	private LinearRing ring(double minLat, double minLon, double maxLat, double maxLon)
+	{
+		return factory.createLinearRing(new Coordinate[] { new Coordinate(minLon, minLat),
+				new Coordinate(minLon, maxLat), new Coordinate(maxLon, maxLat), new Coordinate(maxLon, minLat),
+				new Coordinate(minLon, minLat) });
+	}
+
+	private static List<String> list(File directory, String prefix)
+	{
+		List<String> files = new ArrayList<String>();
+		if (directory.isDirectory())
+		{
+			for (File file : directory.listFiles())
+			{
+				files.addAll(list(file, prefix + file.getName() + "/"));
+			}
+		}
+		else if (directory.getName().endsWith(".zip"))
+		{
+			files.add(prefix.substring(0, prefix.length() - 1));
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	private static void assertZipEquals(File expected, File actual) throws IOException
+	{
+		ZipFile expectedZip = new ZipFile(expected);
+		ZipFile actualZip = new ZipFile(actual);
+		try
+		{
+			assertEquals(expectedZip.size(), actualZip.size());
+			Enumeration<? extends ZipEntry> entries = expectedZip.entries();
+			while (entries.hasMoreElements())
+			{
+				ZipEntry entry = entries.nextElement();
+				ZipEntry other = actualZip.getEntry(entry.getName());
+				assertArrayEquals(entry.getName(), read(expectedZip.getInputStream(entry)),
+						read(actualZip.getInputStream(other)));
+			}
+		}
+		finally
+		{
+			expectedZip.close();
+			actualZip.close();
+		}
+	}
+
+	private static byte[] read(InputStream is) throws IOException
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = is.read(buffer)) >= 0)
+		{
+			baos.write(buffer, 0, read);
+		}
+		is.close();
+		return baos.toByteArray();
+	}
+
+	private static void delete(File file)
+	{
+		if (file.isDirectory())
+		{
+			for (File child : file.listFiles())
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -16,8 +16,13 @@
 package au.gov.ga.worldwind.tiler.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.gdal.gdalconst.gdalconstConstants;
 import org.junit.Before;
@@ -121,6 +126,91 @@ public class BufferManagerTest
 		assertEquals(1, BufferManager.getBuffers().size());
 	}
 	
+	@Test
+	public void testBuffersOfSameSizeAreAllPooled()
+	{
+		ByteBuffer buffer1 = BufferManager.takeByteBuffer(64);
+		ByteBuffer buffer2 = BufferManager.takeByteBuffer(64);
+		ByteBuffer buffer3 = BufferManager.takeByteBuffer(64);
+		BufferManager.returnByteBuffer(buffer1);
+		BufferManager.returnByteBuffer(buffer2);
+		BufferManager.returnByteBuffer(buffer3);
+		
+		assertEquals(3, BufferManager.getBuffers().size());
+		
+		long misses = BufferManager.getMissCount();
+		BufferManager.takeByteBuffer(64);
+		BufferManager.takeByteBuffer(64);
+		BufferManager.takeByteBuffer(64);
+		assertEquals(misses, BufferManager.getMissCount());
+		assertEquals(0, BufferManager.getBuffers().size());
+	}
+	
+	@Test
+	public void testReusedBufferIsClearedAndBigEndian()
+	{
+		ByteBuffer buffer1 = BufferManager.takeByteBuffer(16000);
+		buffer1.order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer1.hasRemaining())
+		{
+			buffer1.put((byte) 7);
+		}
+		BufferManager.returnByteBuffer(buffer1);
+		
+		ByteBuffer buffer2 = BufferManager.takeByteBuffer(15000);
+		assertSame(buffer1, buffer2);
+		assertEquals(15000, buffer2.limit());
+		assertEquals(ByteOrder.BIG_ENDIAN, buffer2.order());
+		assertBufferIsCleared(buffer2);
+	}
+	
+	@Test
+	public void testMuchLargerBufferIsNotUsed()
+	{
+		ByteBuffer buffer1 = BufferManager.takeByteBuffer(4096);
+		BufferManager.returnByteBuffer(buffer1);
+		
+		ByteBuffer buffer2 = BufferManager.takeByteBuffer(16);
+		assertNotSame(buffer1, buffer2);
+	}
+	
+	@Test
+	public void testSharedPoolIsCapped()
+	{
+		long max = BufferManager.getMaxPooledBytes();
+		try
+		{
+			BufferManager.setMaxPooledBytes(2048);
+			List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+			for (int i = 0; i < BufferManager.THREAD_CACHE_SIZE + 4; i++)
+			{
+				buffers.add(BufferManager.takeByteBuffer(1024));
+			}
+			for (ByteBuffer buffer : buffers)
+			{
+				BufferManager.returnByteBuffer(buffer);
+			}
+			
+			assertEquals(2048, BufferManager.getPooledBytes());
+			assertEquals(BufferManager.THREAD_CACHE_SIZE + 2, BufferManager.getBuffers().size());
+		}
+		finally
+		{
+			BufferManager.setMaxPooledBytes(max);
+		}
+	}
+	
+	@Test
+	public void testClassCapacity()
+	{
+		assertEquals(16, BufferManager.classCapacity(16));
+		assertEquals(16, BufferManager.classCapacity(9));
+		assertEquals(1024, BufferManager.classCapacity(1000));
+		assertEquals(1280, BufferManager.classCapacity(1025));
+		assertEquals(256 * 256 * 3, BufferManager.classCapacity(256 * 256 * 3));
+		assertEquals(256 * 256 * 4, BufferManager.classCapacity(256 * 256 * 4));
+	}
+	
 	private void assertBufferIsCleared(ByteBuffer buffer)
 	{
 		buffer.rewind();
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link DDSEncoder} class. The encoded textures are
+ * decoded again to check the header, mipmap chain and block contents.
+ */
+public class DDSEncoderTest
+{
+	@Test
+	public void testHeaderAndMipmapSizes()
+	{
+		BufferedImage image = gradient(64, 32, false);
+		ByteBuffer dds = wrap(DDSEncoder.encode(image, DDSEncoder.Format.DXT1, true));
+
+		assertEquals(0x20534444, dds.getInt(0)); //"DDS "
+		assertEquals(124, dds.getInt(4));
+		assertEquals(32, dds.getInt(12));
+		assertEquals(64, dds.getInt(16));
+		assertEquals(16 * 8 * 8, dds.getInt(20));
+		assertEquals(7, dds.getInt(28));
+		assertEquals(0x31545844, dds.getInt(84)); //"DXT1"
+
+		//64x32, 32x16, 16x8, 8x4, 4x2, 2x1, 1x1
+		int expected = 128 + (128 + 32 + 8 + 2 + 1 + 1 + 1) * 8;
+		assertEquals(expected, dds.limit());
+
+		dds = wrap(DDSEncoder.encode(image, DDSEncoder.Format.DXT5, false));
+		assertEquals(1, dds.getInt(28));
+		assertEquals(0x35545844, dds.getInt(84)); //"DXT5"
+		assertEquals(128 + 128 * 16, dds.limit());
+	}
+
+	@Test
+	public void testDXT1RoundTrip()
+	{
+		BufferedImage image = gradient(16, 16, false);
+		int[] decoded = decode(wrap(DDSEncoder.encode(image, null, false)), 16, 16);
+		assertClose(image, decoded, 12);
+	}
+
+	@Test
+	public void testDXT5RoundTripWithAlpha()
+	{
+		BufferedImage image = gradient(16, 16, true);
+		assertEquals(DDSEncoder.Format.DXT5, DDSEncoder.chooseFormat(image));
+		ByteBuffer dds = wrap(DDSEncoder.encode(image, null, true));
+		assertEquals(0x35545844, dds.getInt(84));
+		int[] decoded = decode(dds, 16, 16);
+		assertClose(image, decoded, 12);
+	}
+
+	@Test
+	public void testDXT1TransparentPixels()
+	{
+		BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB);
+		image.setRGB(1, 2, 0xff336699);
+		int[] decoded = decode(wrap(DDSEncoder.encode(image, DDSEncoder.Format.DXT1, false)), 4, 4);
+		for (int i = 0; i < 16; i++)
+		{
+			if (i == 2 * 4 + 1)
+			{
+				assertClose(0xff336699, decoded[i], 8);
+			}
+			else
+			{
+				assertEquals(0, decoded[i] >>> 24);
+			}
+		}
+	}
+
+	private static BufferedImage gradient(int width, int height, boolean alpha)
+	{
+		BufferedImage image =
+				new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				int a = alpha ? x * 255 / (width - 1) : 255;
+				//colors within each block lie on a line, which DXT can represent closely
+				int r = (x + y) * 255 / (width + height - 2);
+				int g = 255 - r / 2;
+				image.setRGB(x, y, a << 24 | r << 16 | g << 8 | 0x40);
+			}
+		}
+		return image;
+	}
+
+	private static ByteBuffer wrap(byte[] bytes)
+	{
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static void assertClose(BufferedImage expected, int[] actual, int tolerance)
+	{
+		for (int y = 0; y < expected.getHeight(); y++)
+		{
+			for (int x = 0; x < expected.getWidth(); x++)
+			{
+				assertClose(expected.getRGB(x, y), actual[y * expected.getWidth() + x], tolerance);
+			}
+		}
+	}
+
+	private static void assertClose(int expected, int actual, int tolerance)
+	{
+		for (int shift = 0; shift < 32; shift += 8)
+		{
+			int e = (expected >>> shift) & 0xff;
+			int a = (actual >>> shift) & 0xff;
+			assertTrue(Integer.toHexString(expected) + " != " + Integer.toHexString(actual),
+					Math.abs(e - a) <= tolerance);
+		}
+	}
+
+	/**
+	 * Decode the first (full size) level of a DXT1 or DXT5 texture.
+	 */
+	private static int[] decode(ByteBuffer dds, int width, int height)
+	{
+		boolean dxt5 = dds.getInt(84) == 0x35545844;
+		int[] argb = new int[width * height];
+		int position = 128;
+		for (int by = 0; by < height / 4; by++)
+		{
+			for (int bx = 0; bx < width / 4; bx++)
+			{
+				int[] alphas = null;
+				long alphaIndices = 0;
+				if (dxt5)
+				{
+					int a0 = dds.get(position) & 0xff, a1 = dds.get(position + 1) & 0xff;
+					alphas = new int[8];
+					alphas[0] = a0;
+					alphas[1] = a1;
+					for (int i = 2; i < 8; i++)
+					{
+						alphas[i] = a0 > a1 ? ((8 - i) * a0 + (i - 1) * a1) / 7 : i < 6 ? ((6 - i) * a0 + (i - 1) * a1) / 5 : i == 6 ? 0 : 255;
+					}
+					for (int i = 0; i < 6; i++)
+					{
+						alphaIndices |= (long) (dds.get(position + 2 + i) & 0xff) << (i * 8);
+					}
+					position += 8;
+				}
+
+				int c0 = dds.getShort(position) & 0xffff, c1 = dds.getShort(position + 2) & 0xffff;
+				int indices = dds.getInt(position + 4);
+				position += 8;
+				int[] palette = new int[4];
+				palette[0] = 0xff000000 | rgb(c0);
+				palette[1] = 0xff000000 | rgb(c1);
+				if (c0 > c1 || dxt5)
+				{
+					palette[2] = 0xff000000 | mix(rgb(c0), rgb(c1), 2, 1);
+					palette[3] = 0xff000000 | mix(rgb(c0), rgb(c1), 1, 2);
+				}
+				else
+				{
+					palette[2] = 0xff000000 | mix(rgb(c0), rgb(c1), 1, 1);
+					palette[3] = 0;
+				}
+
+				for (int i = 0; i < 16; i++)
+				{
+					int pixel = palette[(indices >>> (i * 2)) & 3];
+					if (dxt5)
+					{
+						pixel = (pixel & 0xffffff) | alphas[(int) (alphaIndices >>> (i * 3)) & 7] << 24;
+					}
+					argb[(by * 4 + (i >> 2)) * width + bx * 4 + (i & 3)] = pixel;
+				}
+			}
+		}
+		return argb;
+	}
+
+	private static int rgb(int c)
+	{
+		int r = (c >> 11) & 0x1f, g = (c >> 5) & 0x3f, b = c & 0x1f;
+		return ((r << 3) | (r >> 2)) << 16 | ((g << 2) | (g >> 4)) << 8 | ((b << 3) | (b >> 2));
+	}
+
+	private static int mix(int c0, int c1, int w0, int w1)
+	{
+		int result = 0;
+		for (int shift = 0; shift < 24; shift += 8)
+		{
+			result |= ((((c0 >> shift) & 0xff) * w0 + ((c1 >> shift) & 0xff) * w1) / (w0 + w1)) << shift;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link ImageEncoder} class
+ */
+public class ImageEncoderTest
+{
+	@Test
+	public void testEncodersAreReused() throws Exception
+	{
+		BufferedImage image = createImage();
+		ImageEncoder.encode(image, "png", 0.8f);
+		ImageEncoder.Statistics start = ImageEncoder.getStatistics();
+
+		for (int i = 0; i < 5; i++)
+		{
+			ImageEncoder.encode(image, "png", 0.8f);
+		}
+
+		ImageEncoder.Statistics statistics = ImageEncoder.getStatistics().since(start);
+		assertEquals(5, statistics.count);
+		assertEquals(0, statistics.encoders);
+		assertTrue(statistics.bytes > 0);
+	}
+
+	@Test
+	public void testEncodedImagesAreIdentical() throws Exception
+	{
+		BufferedImage image = createImage();
+		byte[] first = ImageEncoder.encode(image, "jpg", 0.75f);
+		byte[] second = ImageEncoder.encode(image, "jpg", 0.75f);
+		assertArrayEquals(first, second);
+
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(first));
+		assertEquals(image.getWidth(), decoded.getWidth());
+		assertEquals(image.getHeight(), decoded.getHeight());
+	}
+
+	@Test
+	public void testWrite() throws Exception
+	{
+		BufferedImage image = createImage();
+		File file = File.createTempFile("tile", ".png");
+		try
+		{
+			ImageEncoder.write(image, "png", 0.8f, file);
+			BufferedImage decoded = ImageIO.read(file);
+			assertEquals(image.getRGB(5, 5), decoded.getRGB(5, 5));
+			assertEquals(image.getRGB(60, 60), decoded.getRGB(60, 60));
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	private static BufferedImage createImage()
+	{
+		BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.BLUE);
+		g.fillRect(0, 0, 32, 32);
+		g.setColor(Color.GREEN);
+		g.fillRect(32, 32, 32, 32);
+		g.dispose();
+		return image;
+	}
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright 2012 Geoscience Australia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package au.gov.ga.worldwind.tiler.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link TilePacker} and {@link TilePack} classes
+ */
+public class TilePackTest
+{
+	private File directory;
+	private ProgressReporter progress;
+
+	@Before
+	public void setup() throws Exception
+	{
+		directory = File.createTempFile("tileset", "");
+		directory.delete();
+		directory.mkdirs();
+
+		progress = new ProgressReporterImpl(Logger.getLogger(TilePackTest.class.getName()))
+		{
+			@Override
+			public void progress(double percent)
+			{
+			}
+
+			@Override
+			public void done()
+			{
+			}
+		};
+	}
+
+	@After
+	public void teardown()
+	{
+		delete(directory);
+		new File(directory.getParentFile(), directory.getName() + ".pack").delete();
+	}
+
+	@Test
+	public void testPackLevels() throws Exception
+	{
+		createTile(0, 1, 2, "jpg", new byte[] { 1, 2, 3 });
+		createTile(0, 1, 4, "jpg", new byte[] { 4 });
+		createTile(1, 2, 4, "jpg", new byte[] { 5, 6 });
+		createTile(1, 3, 9, "jpg", new byte[] { 7, 8, 9, 10 });
+		createTile(1, 3, 8, "png", new byte[] { 11 });
+
+		TilePacker.packLevels(directory, "jpg", false, progress);
+
+		TilePack pack = TilePack.open(new File(directory, "1.pack"));
+		assertEquals("jpg", pack.getExtension());
+		assertArrayEquals(new int[] { 1 }, pack.getLevels());
+		assertTileEquals(new byte[] { 5, 6 }, pack.getTile(1, 2, 4));
+		assertTileEquals(new byte[] { 7, 8, 9, 10 }, pack.getTile(1, 3, 9));
+		assertTrue(pack.hasTile(1, 2, 4));
+		assertFalse(pack.hasTile(1, 3, 8));
+		assertFalse(pack.hasTile(1, 2, 9));
+		assertNull(pack.getTile(1, 3, 8));
+		assertNull(pack.getTile(1, 5, 5));
+		assertNull(pack.getTile(0, 1, 2));
+		pack.close();
+
+		pack = TilePack.open(new File(directory, "0.pack"));
+		assertTileEquals(new byte[] { 1, 2, 3 }, pack.getTile(0, 1, 2));
+		assertTileEquals(new byte[] { 4 }, pack.getTile(0, 1, 4));
+		assertNull(pack.getTile(0, 1, 3));
+		pack.close();
+
+		assertTrue(tileFile(1, 2, 4, "jpg").exists());
+	}
+
+	@Test
+	public void testPackTilesetAndDelete() throws Exception
+	{
+		createTile(0, 0, 0, "bil", new byte[] { 1 });
+		createTile(1, 0, 1, "bil", new byte[] { 2, 2 });
+		createTile(1, 1, 0, "bil", new byte[] { 3, 3, 3 });
+
+		TilePacker.packTileset(directory, "bil", true, progress);
+
+		TilePack pack = TilePack.open(new File(directory.getParentFile(), directory.getName() + ".pack"));
+		assertEquals("bil", pack.getExtension());
+		assertArrayEquals(new int[] { 0, 1 }, pack.getLevels());
+		assertTileEquals(new byte[] { 1 }, pack.getTile(0, 0, 0));
+		assertTileEquals(new byte[] { 2, 2 }, pack.getTile(1, 0, 1));
+		assertTileEquals(new byte[] { 3, 3, 3 }, pack.getTile(1, 1, 0));
+		assertNull(pack.getTile(1, 0, 0));
+		assertFalse(pack.hasLevel(2));
+		pack.close();
+
+		assertFalse(tileFile(1, 0, 1, "bil").exists());
+		assertFalse(new File(directory, "1").exists());
+	}
+
+	@Test
+	public void testDuplicateTilesStoredOnce() throws Exception
+	{
+		byte[] blank = new byte[100];
+		createTile(0, 0, 0, "png", blank);
+		createTile(0, 0, 1, "png", blank);
+		createTile(0, 1, 0, "png", blank);
+		createTile(0, 1, 1, "png", new byte[] { 1, 2, 3 });
+
+		TilePacker.packLevels(directory, "png", false, progress);
+
+		File file = new File(directory, "0.pack");
+		int indexSize = TilePack.HEADER_SIZE + TilePack.LEVEL_SIZE + 4 * TilePack.ENTRY_SIZE;
+		assertEquals(indexSize + 100 + 3, file.length());
+
+		TilePack pack = TilePack.open(file);
+		assertTileEquals(blank, pack.getTile(0, 0, 0));
+		assertTileEquals(blank, pack.getTile(0, 0, 1));
+		assertTileEquals(blank, pack.getTile(0, 1, 0));
+		assertTileEquals(new byte[] { 1, 2, 3 }, pack.getTile(0, 1, 1));
+		assertEquals(pack.getChecksum(0, 0, 0), pack.getChecksum(0, 1, 0));
+		pack.close();
+	}
+
+	private void assertTileEquals(byte[] expected, ByteBuffer actual)
+	{
+		byte[] bytes = new byte[actual.remaining()];
+		actual.get(bytes);
+		assertArrayEquals(expected, bytes);
+	}
+
+	private File tileFile(int level, int row, int col, String ext)
+	{
+		return new File(directory, level + "/" + Util.paddedInt(row, 4) + "/" + Util.paddedInt(row, 4) + "_"
+				+ Util.paddedInt(col, 4) + "." + ext);
+	}
+
+	private void createTile(int level, int row, int col, String ext, byte[] data) throws Exception
+	{
+		File file = tileFile(level, row, col, ext);
+		file.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(data);
+		fos.close();
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}